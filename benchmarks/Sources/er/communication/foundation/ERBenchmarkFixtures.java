@@ -0,0 +1,132 @@
+package er.communication.foundation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The recipients, medias and message processors used by the benchmarks.<p>
+ * Nothing is delivered: the message processors build the merged data then return, so the benchmarks measure the
+ * channel and not a mail or jabber server.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERBenchmarkFixtures
+{
+	public static final String CONTEXT_NAME = "BENCHMARK";
+	public static final List<ERMedia> MEDIAS = Collections.unmodifiableList(Arrays.asList(new ERMedia[] { ERDefaultMedia.PLAIN_TEXT_MAIL, ERDefaultMedia.JABBER }));
+
+	/**
+	 * A message processor which does nothing once the send context is built.
+	 */
+	public static class NoOpMessageProcessor extends ERAbstractMessageProcessor
+	{
+		@Override
+		protected void sendContent(ERSendContext sendContext)
+		{
+		}
+	}
+
+	/**
+	 * A template provider which returns the same template for every key.
+	 */
+	public static class StubTemplateProvider implements ERAbstractMessageProcessor.TemplateProvider
+	{
+		public static final String TEMPLATE = "Hi {{firstName}} {{lastName}}, your order {{orderNumber}} of {{amount}} has been shipped to {{city}}.";
+
+		public String templateForMedia(String key, String targetLanguage, ERMedia media)
+		{
+			return TEMPLATE;
+		}
+	}
+
+	private ERBenchmarkFixtures()
+	{
+	}
+
+	/**
+	 * Sets the media provider and the message processor factory of the channels: the context uses MEDIAS and each media
+	 * has a NoOpMessageProcessor.
+	 */
+	public static void installNoOpChannel()
+	{
+		final Map<ERMedia, ERMessageProcessor> processors = new HashMap<ERMedia, ERMessageProcessor>();
+		for (ERMedia media : MEDIAS)
+		{
+			ERMessageProcessor processor = new NoOpMessageProcessor();
+			processor.setSendingConfiguration(Collections.<String, Object> emptyMap());
+			processors.put(media, processor);
+		}
+		ERChannel.setMediaProvider(new ERMediaProvider()
+		{
+			public List<ERMedia> getMedias(String contextName)
+			{
+				return MEDIAS;
+			}
+		});
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory()
+		{
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media)
+			{
+				return processors.get(media);
+			}
+		});
+	}
+
+	/**
+	 * @return the data of a context, like a typical transactional message.
+	 */
+	public static Map<String, Object> contextData()
+	{
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("orderNumber", "A-2048");
+		data.put("amount", "42.00 EUR");
+		data.put("city", "Paris");
+		return data;
+	}
+
+	public static ERRecipient recipient(int index)
+	{
+		return new Recipient("First" + index, "Last" + index, "en", "user" + index + "@domain.com");
+	}
+
+	/**
+	 * @param count
+	 * @return recipients with an identifier for all medias.
+	 */
+	public static List<ERRecipient> recipients(int count)
+	{
+		List<ERRecipient> recipients = new ArrayList<ERRecipient>(count);
+		for (int i = 0; i < count; i++)
+			recipients.add(recipient(i));
+		return recipients;
+	}
+
+	private static class Recipient implements ERPersonalizedRecipient
+	{
+		private final String firstName;
+		private final String lastName;
+		private final String language;
+		private final String identifier;
+		private final Map<String, Object> personalizedData;
+
+		Recipient(String firstName, String lastName, String language, String identifier)
+		{
+			this.firstName = firstName;
+			this.lastName = lastName;
+			this.language = language;
+			this.identifier = identifier;
+			this.personalizedData = Collections.<String, Object> singletonMap("city", "Lyon");
+		}
+
+		public String getFirstName() { return firstName; }
+		public String getLastName() { return lastName; }
+		public String getLanguage() { return language; }
+		public String getIdentifier(ERMedia media) { return identifier; }
+		public Map<String, Object> getPersonalizedData() { return personalizedData; }
+	}
+}
@@ -0,0 +1,66 @@
+package er.communication.foundation;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The fan-out of a message to a list of recipients: sequential, parallel and campaign sends, with message
+ * processors which deliver nothing.
+ *
+ * @author Philippe Rabier
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ERBulkSendBenchmark
+{
+	@Param({ "10", "1000", "10000" })
+	public int recipientCount;
+
+	private ERChannel channel;
+	private List<ERRecipient> recipients;
+	private ERCommunicationContext context;
+
+	@Setup
+	public void setUp()
+	{
+		ERBenchmarkFixtures.installNoOpChannel();
+		channel = new ERChannel();
+		recipients = ERBenchmarkFixtures.recipients(recipientCount);
+		context = new ERCommunicationContext(ERBenchmarkFixtures.CONTEXT_NAME, ERBenchmarkFixtures.contextData());
+	}
+
+	@Benchmark
+	public void sendMessage()
+	{
+		channel.sendMessage(recipients, context, null);
+	}
+
+	@Benchmark
+	public ERBulkSendResult sendMessageInParallel()
+	{
+		return channel.sendMessageInParallel(recipients, context, null);
+	}
+
+	@Benchmark
+	public ERBulkSendResult sendCampaign()
+	{
+		return channel.sendCampaign(recipients, context, null, "city");
+	}
+}
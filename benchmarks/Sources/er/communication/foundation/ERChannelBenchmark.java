@@ -0,0 +1,49 @@
+package er.communication.foundation;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of the channel for one recipient: media lookup, processor lookup, rate limiters, merged data and metrics,
+ * with message processors which deliver nothing.
+ *
+ * @author Philippe Rabier
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ERChannelBenchmark
+{
+	private ERChannel channel;
+	private ERRecipient recipient;
+	private ERCommunicationContext context;
+
+	@Setup
+	public void setUp()
+	{
+		ERBenchmarkFixtures.installNoOpChannel();
+		channel = new ERChannel();
+		recipient = ERBenchmarkFixtures.recipient(1);
+		context = new ERCommunicationContext(ERBenchmarkFixtures.CONTEXT_NAME, ERBenchmarkFixtures.contextData());
+	}
+
+	@Benchmark
+	public void sendMessage()
+	{
+		channel.sendMessage(recipient, context, null);
+	}
+}
@@ -0,0 +1,104 @@
+package er.communication.foundation;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Template parsing and text content of a message.<p>
+ * getTextContentWithDefaultProvider looks up the template with ERXLocalizer: as there is no CommunicationTemplate
+ * key in the benchmark, it measures the whole fallback chain and renders UNDEFINED_COMMUNICATION_TEMPLATE.
+ *
+ * @author Philippe Rabier
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ERTemplateBenchmark
+{
+	private static final String KEY = ERBenchmarkFixtures.CONTEXT_NAME;
+
+	private ERBenchmarkFixtures.NoOpMessageProcessor processor;
+	private ERAbstractMessageProcessor.TemplateProvider stubProvider;
+	private ERAbstractMessageProcessor.TemplateProvider defaultProvider;
+	private ERAbstractMessageProcessor.TemplateProvider cachingProvider;
+	private Map<String, Object> mergedData;
+	private ERSendContext sendContext;
+
+	@Setup
+	public void setUp()
+	{
+		processor = new ERBenchmarkFixtures.NoOpMessageProcessor();
+		stubProvider = new ERBenchmarkFixtures.StubTemplateProvider();
+		defaultProvider = new ERAbstractMessageProcessor.DefaultTemplateProvider();
+		cachingProvider = new ERCachingTemplateProvider(stubProvider, 0);
+		ERRecipient recipient = ERBenchmarkFixtures.recipient(1);
+		ERCommunicationContext context = new ERCommunicationContext(ERBenchmarkFixtures.CONTEXT_NAME, ERBenchmarkFixtures.contextData());
+		mergedData = ERMergedDataMap.recipientData(context.getData(), recipient);
+		sendContext = new ERSendContext(recipient, context, ERDefaultMedia.PLAIN_TEXT_MAIL, null, mergedData, null, cachingProvider);
+	}
+
+	@Benchmark
+	public String parseTemplate()
+	{
+		return processor.parseTemplate(ERBenchmarkFixtures.StubTemplateProvider.TEMPLATE, mergedData);
+	}
+
+	@Benchmark
+	public String getTextContentWithStubProvider()
+	{
+		return processor.getTextContent(stubProvider, "en", KEY, ERDefaultMedia.PLAIN_TEXT_MAIL, null, mergedData);
+	}
+
+	@Benchmark
+	public String getTextContentWithDefaultProvider()
+	{
+		return processor.getTextContent(defaultProvider, "en", KEY, ERDefaultMedia.PLAIN_TEXT_MAIL, null, mergedData);
+	}
+
+	@Benchmark
+	public String getTextContentWithCachingProvider()
+	{
+		return processor.getTextContent(cachingProvider, "en", KEY, ERDefaultMedia.PLAIN_TEXT_MAIL, null, mergedData);
+	}
+
+	/**
+	 * The path used by the message processors: the latencies are recorded in the metrics of the context.
+	 */
+	@Benchmark
+	public String getTextContentWithSendContext()
+	{
+		return processor.getTextContent(sendContext, KEY);
+	}
+
+	/**
+	 * The content is written in a pooled buffer without building a String, as for a transport which takes a Writer.
+	 */
+	@Benchmark
+	public int writeTextContentWithSendContext()
+	{
+		ERRenderBuffer buffer = ERRenderBuffer.acquire();
+		try
+		{
+			processor.writeTextContent(sendContext, KEY, buffer);
+			return buffer.length();
+		} finally
+		{
+			buffer.release();
+		}
+	}
+}
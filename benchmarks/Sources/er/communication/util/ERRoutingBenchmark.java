@@ -0,0 +1,80 @@
+package er.communication.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import er.communication.foundation.ERCommunicationContext;
+import er.communication.foundation.ERDefaultMedia;
+import er.communication.foundation.ERMedia;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * The routing of a message through the framework principal: the medias of the context then the message processor
+ * of each media, as done by a channel. The contexts are built in memory, no MediaContext.json file is read.
+ *
+ * @author Philippe Rabier
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ERRoutingBenchmark
+{
+	@Param({ "10", "1000" })
+	public int contextCount;
+
+	private ERCommunicationFrameworkPrincipal principal;
+	private ERCommunicationContext[] contexts;
+	private int index;
+
+	@Setup
+	public void setUp()
+	{
+		System.setProperty("er.communication.util.ERCommunicationFrameworkPrincipal.communicationServiceToLaunch", "true");
+		ERXProperties.systemPropertiesChanged();
+		Map<String, Object> mediaContext = new HashMap<String, Object>();
+		contexts = new ERCommunicationContext[contextCount];
+		for (int i = 0; i < contextCount; i++)
+		{
+			Map<String, Object> description = new HashMap<String, Object>();
+			description.put("Medias", new ArrayList<String>(Arrays.asList(ERDefaultMedia.PLAIN_TEXT_MAIL.getName(), ERDefaultMedia.HTML_MAIL.getName())));
+			Map<String, Object> htmlConfiguration = new HashMap<String, Object>();
+			htmlConfiguration.put("component", "BenchmarkComponent");
+			description.put(ERDefaultMedia.HTML_MAIL.getName(), htmlConfiguration);
+			mediaContext.put("context" + i, description);
+			contexts[i] = new ERCommunicationContext("context" + i, null);
+		}
+		principal = ERCommunicationFrameworkPrincipal.sharedInstance();
+		principal.setMediaContext(mediaContext);
+	}
+
+	@Benchmark
+	public void route(Blackhole blackhole)
+	{
+		ERCommunicationContext context = contexts[index];
+		index = (index + 1) % contexts.length;
+		List<ERMedia> medias = principal.getMedias(context.getName());
+		for (int i = 0; i < medias.size(); i++)
+			blackhole.consume(principal.newMessageProcessor(context, medias.get(i)));
+	}
+}
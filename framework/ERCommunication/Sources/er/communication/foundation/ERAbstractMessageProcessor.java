@@ -1,21 +1,36 @@
 package er.communication.foundation;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 
-import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.MustacheException;
 import com.samskivert.mustache.Template;
 
+import er.communication.metrics.ERCommunicationMetrics;
+import er.communication.metrics.ERMetrics;
 import er.extensions.foundation.ERXProperties;
 import er.extensions.localization.ERXLocalizer;
 
 /**
  * This class provides common method like retrieving template, template parsing, ...<p>
- * A message processor is instantiated each time a client needs to send informations based on a given context 
- * through a media.<br>
- * A message processor can use the sending configuration to get informations defined in the JSON description. 
+ * A message processor is instantiated once for a given context and media then shared by all threads. 
+ * The state of a send is given to sendContent() through a ERSendContext object, so a subclass must not keep it
+ * in its fields.<br>
+ * A message processor can use the sending configuration to get informations defined in the JSON description.<p>
+ * The sent, failed and skipped messages and the latencies of the template lookups, renderings and deliveries are
+ * recorded in the metrics of the context and media.<p>
+ * The templates are rendered through a Writer: getTextContentDataSource() returns a data source which renders the content
+ * straight into the stream of the transport, writeTextContent() renders into the writer of a transport which accepts one
+ * and getTextContent() renders into a ERRenderBuffer reused from one message to the next. The mail processors give the
+ * body to JavaMail as a data source, so it's never held in memory. The jabber processor gives it to Smack as a String,
+ * so while it's built the content is held twice, in the buffer and in the String.
+ * 
+ * @see ERCommunicationMetrics
+ * @see ERRenderBuffer
+ * @see ERTemplateDataSource
  * 
  * @author Philippe Rabier
  *
@@ -28,8 +43,7 @@ public abstract class ERAbstractMessageProcessor implements ERMessageProcessor
 	public final static String COMMUNICATION_TEMPLATE_PREFIX = "CommunicationTemplate.";
 	public final static String UNDEFINED_COMMUNICATION_TEMPLATE = "Undefined Communication Template";
 	
-	private Map<String, Object> mergedData = null;
-	private Map<String, Object> sendingConfiguration;
+	private volatile ERSendingConfiguration sendingConfiguration;
 	
 	private static TemplateProvider templateProvider;
 	
@@ -106,15 +120,13 @@ public abstract class ERAbstractMessageProcessor implements ERMessageProcessor
 	 * Abstract method which must be implemented in all concrete classes as the real job is done here.<p>
 	 * sendContent() is called by sendMessage() if all conditions are ok (recipient ok, media not null, ...)
 	 * 
-	 * @param recipient
-	 * @param context
-	 * @param media
-	 * @param dataProcessor
+	 * @param sendContext the recipient, context, media, data processor and merged data of this send
 	 */
-	protected abstract void sendContent(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor);
+	protected abstract void sendContent(ERSendContext sendContext);
 
 	/**
-	 * Initialize the mergedData map and check if the message can be delivered.
+	 * Build the send context with the merged data and check if the message can be delivered.<p>
+	 * The merged data is a read-only view of the context data with the first and last names of the recipient.
 	 * 
 	 * @param recipient
 	 * @param context
@@ -128,23 +140,56 @@ public abstract class ERAbstractMessageProcessor implements ERMessageProcessor
 		if (log.isDebugEnabled())
 			log.debug("method: sendContent ENTER /recipient: " + recipient + " /context: " + context + " /media: " + media);
 
+		ERMetrics metrics = ERCommunicationMetrics.sharedInstance().metricsFor(context.getName(), media);
 		if (isExistsIdentifierForMedia(recipient, media))
 		{
-			if (context.getData() == null)
-				mergedData = new HashMap<String, Object>();
-			else
-				mergedData = new HashMap<String, Object>(context.getData());
-			mergedData.put(FIRST_NAME, recipient.getFirstName());
-			mergedData.put(LAST_NAME, recipient.getLastName());
+			Map<String, Object> mergedData = ERMergedDataMap.recipientData(context.getData(), recipient);
 			if (log.isDebugEnabled())
 				log.debug("method: sendContent DONE /mergedData: " + mergedData);
-			sendContent(recipient, context, media, dataProcessor);
+			sendContent(metrics, new ERSendContext(recipient, context, media, dataProcessor, mergedData, getSendingConfiguration()));
+		}
+		else
+			metrics.recordSkipped();
+	}
+
+	/**
+	 * Send a message with a send context prepared by the caller.<p>
+	 * Used by a campaign which builds the merged data and gives its own template provider. Nothing is sent if the recipient
+	 * has no identifier for the media.
+	 * 
+	 * @param sendContext
+	 */
+	public void sendMessage(ERSendContext sendContext)
+	{
+		ERMetrics metrics = ERCommunicationMetrics.sharedInstance().metricsFor(sendContext.getContext().getName(), sendContext.getMedia());
+		if (isExistsIdentifierForMedia(sendContext.getRecipient(), sendContext.getMedia()))
+			sendContent(metrics, sendContext);
+		else
+			metrics.recordSkipped();
+	}
+
+	private void sendContent(ERMetrics metrics, ERSendContext sendContext)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			sendContent(sendContext);
+		} catch (RuntimeException e)
+		{
+			metrics.recordFailed();
+			throw e;
 		}
+		metrics.deliverLatency().record(System.nanoTime() - start);
+		metrics.recordSent();
 	}
 
+	/**
+	 * @param sendingInformations the configuration, parsed into a ERSendingConfiguration if it's a plain map
+	 * @throws IllegalStateException if a value used by the framework has the wrong type.
+	 */
 	public void setSendingConfiguration(Map<String, Object> sendingInformations)
 	{
-		this.sendingConfiguration = sendingInformations;
+		this.sendingConfiguration = ERSendingConfiguration.valueOf(sendingInformations);
 	}
 
 	public Map<String, Object> getSendingConfiguration()
@@ -153,15 +198,48 @@ public abstract class ERAbstractMessageProcessor implements ERMessageProcessor
 	}
 	
 	/**
-	 * It compiles the template using the Mustache compiler then renders it with <code>data</code>   
+	 * It gets the compiled template from the shared template cache then renders it with <code>data</code>
 	 * @param template to render
 	 * @param data
 	 * @return
+	 *
+	 * @see ERTemplateCache
 	 */
-	public String parseTemplate(String template, Map<String, Object> data) 
+	public String parseTemplate(String template, Map<String, Object> data)
 	{
-		Template compiledTemplate = Mustache.compiler().compile(template);
-		return compiledTemplate.execute(data);
+		ERRenderBuffer buffer = ERRenderBuffer.acquire();
+		try
+		{
+			renderTemplate(template, data, buffer);
+			return buffer.toString();
+		} finally
+		{
+			buffer.release();
+		}
+	}
+
+	/**
+	 * Renders the template with <code>data</code> into <code>out</code>, without building the content in a String.
+	 * 
+	 * @param template to render
+	 * @param data
+	 * @param out
+	 * @throws ERSendException if the writer fails, the failure is transient.
+	 * 
+	 * @see ERTemplateCache
+	 */
+	public void renderTemplate(String template, Map<String, Object> data, Writer out)
+	{
+		Template compiledTemplate = ERTemplateCache.sharedInstance().templateForSource(template);
+		try
+		{
+			compiledTemplate.execute(data, out);
+		} catch (MustacheException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw new ERSendException("Failed writing the content.", e.getCause(), true);
+			throw e;
+		}
 	}
 
 	/**
@@ -181,30 +259,131 @@ public abstract class ERAbstractMessageProcessor implements ERMessageProcessor
 	 */
 	public String getTextContent(String targetLanguage, String key, ERMedia media, ERDataProcessor dataProcessor, Map<String, Object> mergedData)
 	{
-		String textContent = null;
-		String template = ERAbstractMessageProcessor.templateProvider().templateForMedia(key, targetLanguage, media);
-		if (dataProcessor != null)
-			textContent = dataProcessor.processTemplate(template, mergedData);
-		else
-			textContent = parseTemplate(template, mergedData);
+		return getTextContent(ERAbstractMessageProcessor.templateProvider(), targetLanguage, key, media, dataProcessor, mergedData);
+	}
+
+	/**
+	 * Return the text to send through the media for a send context.<p>
+	 * The template is retrieved with the template provider of the send context and rendered in a pooled buffer, then
+	 * copied in the returned String: the memory used by the rendering is about twice the size of the content. The pooled
+	 * buffer saves the copies of a growing StringWriter and its garbage, not the String.<br>
+	 * It's meant for the transports which take the body as a String, like Smack: the mail processors use
+	 * getTextContentDataSource() instead.
+	 * 
+	 * @param sendContext
+	 * @param key (should contain the context name with a prefix or suffix)
+	 * @return the content to be sent
+	 * 
+	 * @see ERSendContext#getTemplateProvider()
+	 * @see #writeTextContent(ERSendContext, String, Writer)
+	 * @see #getTextContentDataSource(ERSendContext, String, String, String)
+	 */
+	public String getTextContent(ERSendContext sendContext, String key)
+	{
+		String textContent;
+		ERRenderBuffer buffer = ERRenderBuffer.acquire();
+		try
+		{
+			writeTextContent(sendContext, key, buffer);
+			textContent = buffer.toString();
+		} finally
+		{
+			buffer.release();
+		}
+		if (log.isDebugEnabled())
+			log.debug("method: getTextContent /sendContext: " + sendContext + " /key: " + key + " /textContent: " + textContent);
+		return textContent;
+	}
+
+	/**
+	 * Writes the text to send through the media for a send context into <code>out</code>.<p>
+	 * A message processor whose transport takes the body as a Writer or a stream renders it with this method, so the
+	 * processor doesn't hold the content in a buffer: the memory used depends on the writer.
+	 * 
+	 * @param sendContext
+	 * @param key (should contain the context name with a prefix or suffix)
+	 * @param out
+	 * @throws ERSendException if the writer fails, the failure is transient.
+	 */
+	public void writeTextContent(ERSendContext sendContext, String key, Writer out)
+	{
+		ERMetrics metrics = ERCommunicationMetrics.sharedInstance().metricsFor(sendContext.getContext().getName(), sendContext.getMedia());
+		long start = System.nanoTime();
+		String template = sendContext.getTemplateProvider().templateForMedia(key, sendContext.getRecipient().getLanguage(), sendContext.getMedia());
+		long lookupEnd = System.nanoTime();
+		metrics.lookupLatency().record(lookupEnd - start);
+		processTemplate(template, sendContext.getDataProcessor(), sendContext.getMergedData(), out);
+		metrics.renderLatency().record(System.nanoTime() - lookupEnd);
+	}
+
+	/**
+	 * Returns the text to send through the media for a send context as a data source which renders it when it's written.<p>
+	 * The template is retrieved now with the template provider of the send context, the rendering is done each time the
+	 * data source is written, by the thread which writes it.
+	 * 
+	 * @param sendContext
+	 * @param key (should contain the context name with a prefix or suffix)
+	 * @param contentType the MIME type of the content, with its charset parameter
+	 * @param charset used to encode the content
+	 * @return the data source of the content
+	 * 
+	 * @see ERSendContext#getTemplateProvider()
+	 */
+	public ERTemplateDataSource getTextContentDataSource(ERSendContext sendContext, String key, String contentType, String charset)
+	{
+		ERMetrics metrics = ERCommunicationMetrics.sharedInstance().metricsFor(sendContext.getContext().getName(), sendContext.getMedia());
+		long start = System.nanoTime();
+		String template = sendContext.getTemplateProvider().templateForMedia(key, sendContext.getRecipient().getLanguage(), sendContext.getMedia());
+		metrics.lookupLatency().record(System.nanoTime() - start);
+		return new ERTemplateDataSource(this, template, sendContext.getDataProcessor(), sendContext.getMergedData(), metrics, contentType, charset);
+	}
+
+	protected String getTextContent(TemplateProvider aTemplateProvider, String targetLanguage, String key, ERMedia media, ERDataProcessor dataProcessor, Map<String, Object> mergedData)
+	{
+		String template = aTemplateProvider.templateForMedia(key, targetLanguage, media);
+		String textContent = processTemplate(template, dataProcessor, mergedData);
 		if (log.isDebugEnabled())
 			log.debug("method: getTextContent /targetLanguage: " + targetLanguage + " /key: " + key + " /media: " + media + " /dataProcessor: " + dataProcessor + " /textContent: " + textContent);
 		return textContent;
 	}
 	
 	/**
-	 * Return the merged data built from the context and recipient first name and last name.<p>
-	 * This allow to use the FIRST_NAME and LAST_NAME values in the message.
+	 * @param template
+	 * @param dataProcessor
+	 * @param mergedData
+	 * @return the content built by the data processor if there is one, the parsed template otherwise.
+	 */
+	protected String processTemplate(String template, ERDataProcessor dataProcessor, Map<String, Object> mergedData)
+	{
+		if (dataProcessor != null)
+			return dataProcessor.processTemplate(template, mergedData);
+		return parseTemplate(template, mergedData);
+	}
+
+	/**
+	 * Writes the content built by the data processor if there is one, renders the template into <code>out</code> otherwise.
 	 * 
-	 * @return data + entries for FIRST_NAME and LAST_NAME
+	 * @param template
+	 * @param dataProcessor
+	 * @param mergedData
+	 * @param out
 	 */
-	public Map<String, Object> getMergedData()
+	protected void processTemplate(String template, ERDataProcessor dataProcessor, Map<String, Object> mergedData, Writer out)
 	{
-		if (mergedData == null)
-			throw new IllegalStateException("method: getMergedData: mergedData is null. Forgot to call sendMessage.");
-		return mergedData;
+		if (dataProcessor == null)
+		{
+			renderTemplate(template, mergedData, out);
+			return;
+		}
+		try
+		{
+			out.write(dataProcessor.processTemplate(template, mergedData));
+		} catch (IOException e)
+		{
+			throw new ERSendException("Failed writing the content.", e, true);
+		}
 	}
-	
+
 	/**
 	 * Checks if there is an identifier for the media.<p>
 	 * The recipient may have an email but not a jabber ID for example.
@@ -0,0 +1,59 @@
+package er.communication.foundation;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over the recipients given by an ERRecipientBatchSource, which keeps only the current batch.<p>
+ * The next batch is fetched when the current one is exhausted. A batch smaller than the batch size is the last one.<br>
+ * The iterator is not thread safe.
+ * 
+ * @author Philippe Rabier
+ *
+ */
+public class ERBatchedRecipientIterator implements Iterator<ERRecipient>
+{
+	private final ERRecipientBatchSource source;
+	private final int batchSize;
+	private List<? extends ERRecipient> batch;
+	private int indexInBatch;
+	private int start;
+	private boolean lastBatch;
+
+	public ERBatchedRecipientIterator(ERRecipientBatchSource source, int batchSize)
+	{
+		if (source == null)
+			throw new IllegalArgumentException("The batch source can't be null.");
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("The batch size must be greater than 0: " + batchSize);
+		this.source = source;
+		this.batchSize = batchSize;
+	}
+
+	public boolean hasNext()
+	{
+		if (batch != null && indexInBatch < batch.size())
+			return true;
+		if (lastBatch)
+			return false;
+		batch = source.fetchBatch(start, batchSize);
+		indexInBatch = 0;
+		int size = batch != null ? batch.size() : 0;
+		start += size;
+		lastBatch = size < batchSize;
+		return size > 0;
+	}
+
+	public ERRecipient next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return batch.get(indexInBatch++);
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,173 @@
+package er.communication.foundation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The aggregated result of a bulk send.<p>
+ * It counts the messages handed to the message processors, the skipped, expired and retried messages and the failures for
+ * each media. A message is skipped when the recipient has no identifier for the media, it expires when it's reached after
+ * its time to live. A failure is recorded when the message processor throws 
+ * an exception, the other recipients are still processed. A message which failed with a ERSendException is given to the 
+ * retry engine and counted as retried: it may still be delivered or become a dead letter.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERBulkSendResult
+{
+	private final ConcurrentMap<String, AtomicInteger> sentCounts = new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentMap<String, AtomicInteger> failedCounts = new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentMap<String, AtomicInteger> skippedCounts = new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentMap<String, AtomicInteger> expiredCounts = new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentMap<String, AtomicInteger> retriedCounts = new ConcurrentHashMap<String, AtomicInteger>();
+	private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+
+	/**
+	 * A message which couldn't be sent.
+	 */
+	public static class Failure
+	{
+		private final ERRecipient recipient;
+		private final ERMedia media;
+		private final Throwable cause;
+
+		public Failure(ERRecipient recipient, ERMedia media, Throwable cause)
+		{
+			this.recipient = recipient;
+			this.media = media;
+			this.cause = cause;
+		}
+
+		public ERRecipient getRecipient() { return recipient; }
+		public ERMedia getMedia() { return media; }
+		public Throwable getCause() { return cause; }
+
+		public String toString()
+		{
+			return "Failure: recipient: " + recipient + " /media: " + media + " /cause: " + cause;
+		}
+	}
+
+	public void recordSent(ERMedia media)
+	{
+		counter(sentCounts, media).incrementAndGet();
+	}
+
+	public void recordSkipped(ERMedia media)
+	{
+		counter(skippedCounts, media).incrementAndGet();
+	}
+
+	public void recordExpired(ERMedia media)
+	{
+		counter(expiredCounts, media).incrementAndGet();
+	}
+
+	public void recordRetried(ERMedia media)
+	{
+		counter(retriedCounts, media).incrementAndGet();
+	}
+
+	public void recordFailure(ERRecipient recipient, ERMedia media, Throwable cause)
+	{
+		counter(failedCounts, media).incrementAndGet();
+		failures.add(new Failure(recipient, media, cause));
+	}
+
+	public int sentCount(ERMedia media)
+	{
+		AtomicInteger count = sentCounts.get(media.getName());
+		return count != null ? count.get() : 0;
+	}
+
+	public int failedCount(ERMedia media)
+	{
+		AtomicInteger count = failedCounts.get(media.getName());
+		return count != null ? count.get() : 0;
+	}
+
+	public int skippedCount(ERMedia media)
+	{
+		AtomicInteger count = skippedCounts.get(media.getName());
+		return count != null ? count.get() : 0;
+	}
+
+	public int expiredCount(ERMedia media)
+	{
+		AtomicInteger count = expiredCounts.get(media.getName());
+		return count != null ? count.get() : 0;
+	}
+
+	public int retriedCount(ERMedia media)
+	{
+		AtomicInteger count = retriedCounts.get(media.getName());
+		return count != null ? count.get() : 0;
+	}
+
+	public int sentCount()
+	{
+		return sum(sentCounts);
+	}
+
+	public int failedCount()
+	{
+		return sum(failedCounts);
+	}
+
+	public int skippedCount()
+	{
+		return sum(skippedCounts);
+	}
+
+	public int expiredCount()
+	{
+		return sum(expiredCounts);
+	}
+
+	public int retriedCount()
+	{
+		return sum(retriedCounts);
+	}
+
+	/**
+	 * @return a copy of the failures
+	 */
+	public List<Failure> getFailures()
+	{
+		synchronized (failures) {
+			return new ArrayList<Failure>(failures);
+		}
+	}
+
+	private static AtomicInteger counter(ConcurrentMap<String, AtomicInteger> counts, ERMedia media)
+	{
+		AtomicInteger count = counts.get(media.getName());
+		if (count == null)
+		{
+			AtomicInteger newCount = new AtomicInteger();
+			count = counts.putIfAbsent(media.getName(), newCount);
+			if (count == null)
+				count = newCount;
+		}
+		return count;
+	}
+
+	private static int sum(Map<String, AtomicInteger> counts)
+	{
+		int sum = 0;
+		for (AtomicInteger count : counts.values())
+			sum += count.get();
+		return sum;
+	}
+
+	public String toString()
+	{
+		return "ERBulkSendResult: sent: " + sentCounts + " /skipped: " + skippedCounts + " /expired: " + expiredCounts + " /retried: " + retriedCounts + " /failed: " + failedCounts;
+	}
+}
@@ -0,0 +1,264 @@
+package er.communication.foundation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+
+import er.communication.metrics.ERStripedCounter;
+import er.extensions.foundation.ERXConstant;
+import er.extensions.foundation.ERXProperties;
+import er.extensions.localization.ERXLocalizer;
+
+/**
+ * A template provider which caches the templates returned by another template provider.<p>
+ * The templates are cached by key, language and media. A missing template (the wrapped provider returns null)
+ * is cached as well and the fallback chain (media, then key only, then UNDEFINED_COMMUNICATION_TEMPLATE) is
+ * resolved once per entry.<br>
+ * When an entry is older than the refresh interval, the cached template is still returned and the entry
+ * is refreshed in the background, so senders never wait for the wrapped provider.<br>
+ * A template asked without language is cached under the language of the current localizer.<br>
+ * The cache is emptied when the localizers are reloaded, a template loaded before the reload is never cached after it.<p>
+ * The refresh interval (in milliseconds) is set with the er.communication.foundation.ERCachingTemplateProvider.refreshInterval
+ * property (5 minutes by default, 0 means never refresh).
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERCachingTemplateProvider implements ERAbstractMessageProcessor.TemplateProvider
+{
+	private static final Logger log = Logger.getLogger(ERCachingTemplateProvider.class);
+	public static final long DEFAULT_REFRESH_INTERVAL = 5 * 60 * 1000L;
+
+	private static ExecutorService refreshExecutor;
+
+	private final ERAbstractMessageProcessor.TemplateProvider templateProvider;
+	private final long refreshInterval;
+	private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+	// incremented by clear(), an entry loaded in a previous generation is dropped
+	private final AtomicLong generation = new AtomicLong();
+	private final ERStripedCounter hits = new ERStripedCounter();
+	private final ERStripedCounter misses = new ERStripedCounter();
+
+	private static class Key
+	{
+		private final String key;
+		private final String language;
+		private final ERMedia media;
+		private final String mediaName;
+
+		Key(String key, String language, ERMedia media)
+		{
+			this.key = key;
+			this.language = language;
+			this.media = media;
+			this.mediaName = media != null ? media.getName() : null;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = key != null ? key.hashCode() : 0;
+			result = 31 * result + language.hashCode();
+			result = 31 * result + (mediaName != null ? mediaName.hashCode() : 0);
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return equals(key, other.key) && language.equals(other.language) && equals(mediaName, other.mediaName);
+		}
+
+		private static boolean equals(String s1, String s2)
+		{
+			return s1 == null ? s2 == null : s1.equals(s2);
+		}
+	}
+
+	private static class Entry
+	{
+		private final String template;
+		private final long loadTime;
+		private final long generation;
+		private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+		Entry(String template, long loadTime, long generation)
+		{
+			this.template = template;
+			this.loadTime = loadTime;
+			this.generation = generation;
+		}
+	}
+
+	public ERCachingTemplateProvider(ERAbstractMessageProcessor.TemplateProvider templateProvider)
+	{
+		this(templateProvider, ERXProperties.longForKeyWithDefault("er.communication.foundation.ERCachingTemplateProvider.refreshInterval", DEFAULT_REFRESH_INTERVAL));
+	}
+
+	public ERCachingTemplateProvider(ERAbstractMessageProcessor.TemplateProvider templateProvider, long refreshInterval)
+	{
+		if (templateProvider == null)
+			throw new IllegalArgumentException("The template provider to cache can't be null.");
+		this.templateProvider = templateProvider;
+		this.refreshInterval = refreshInterval;
+		NSNotificationCenter.defaultCenter().addObserver(this,
+				new NSSelector<Void>("localizationDidReset", ERXConstant.NotificationClassArray),
+				ERXLocalizer.LocalizationDidResetNotification,
+				null);
+	}
+
+	/**
+	 * Returns the cached template or asks the wrapped provider if there is no entry yet.<p>
+	 * When the language is null, the template of the language of the current localizer is returned: the wrapped provider
+	 * is asked with this language.
+	 */
+	public String templateForMedia(String key, String targetLanguage, ERMedia media)
+	{
+		if (targetLanguage == null)
+			targetLanguage = ERXLocalizer.currentLocalizer().language();
+
+		final Key cacheKey = new Key(key, targetLanguage, media);
+		Entry entry = entries.get(cacheKey);
+		if (entry != null && entry.generation != generation.get())
+		{
+			entries.remove(cacheKey, entry);
+			entry = null;
+		}
+		if (entry == null)
+		{
+			misses.increment();
+			long loadGeneration = generation.get();
+			entry = new Entry(resolve(key, targetLanguage, media), System.currentTimeMillis(), loadGeneration);
+			Entry previousEntry = entries.putIfAbsent(cacheKey, entry);
+			if (previousEntry != null && previousEntry.generation == loadGeneration)
+				entry = previousEntry;
+			// the localizers have been reloaded while the template was loaded
+			if (loadGeneration != generation.get())
+				entries.remove(cacheKey, entry);
+		}
+		else
+		{
+			hits.increment();
+			if (isStale(entry))
+				scheduleRefresh(cacheKey, entry);
+		}
+		return entry.template;
+	}
+
+	/**
+	 * Empties the cache and resets the counters.
+	 */
+	public void clear()
+	{
+		generation.incrementAndGet();
+		entries.clear();
+		hits.reset();
+		misses.reset();
+	}
+
+	public long hitCount()
+	{
+		return hits.sum();
+	}
+
+	public long missCount()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of cached templates
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Called when the localizers are reloaded.
+	 *
+	 * @param n
+	 */
+	public void localizationDidReset(NSNotification n)
+	{
+		if (log.isDebugEnabled())
+			log.debug("method: localizationDidReset: the template cache is emptied.");
+		clear();
+	}
+
+	public ERAbstractMessageProcessor.TemplateProvider templateProvider()
+	{
+		return templateProvider;
+	}
+
+	protected boolean isStale(Entry entry)
+	{
+		return refreshInterval > 0 && System.currentTimeMillis() - entry.loadTime > refreshInterval;
+	}
+
+	/**
+	 * Asks the wrapped provider for the template.<p>
+	 * A null template is replaced by UNDEFINED_COMMUNICATION_TEMPLATE so it's cached as any other template.
+	 */
+	protected String resolve(String key, String targetLanguage, ERMedia media)
+	{
+		String template = templateProvider.templateForMedia(key, targetLanguage, media);
+		if (template == null)
+			template = ERAbstractMessageProcessor.UNDEFINED_COMMUNICATION_TEMPLATE;
+		return template;
+	}
+
+	private void scheduleRefresh(final Key cacheKey, final Entry staleEntry)
+	{
+		if (!staleEntry.refreshing.compareAndSet(false, true))
+			return;
+		refreshExecutor().execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					Entry newEntry = new Entry(resolve(cacheKey.key, cacheKey.language, cacheKey.media), System.currentTimeMillis(), staleEntry.generation);
+					// fails if the cache has been emptied meanwhile
+					entries.replace(cacheKey, staleEntry, newEntry);
+				} catch (RuntimeException e)
+				{
+					log.error("method: scheduleRefresh: failed refreshing the template /key: " + cacheKey.key + " /language: " + cacheKey.language, e);
+					staleEntry.refreshing.set(false);
+				}
+			}
+		});
+	}
+
+	private static synchronized ExecutorService refreshExecutor()
+	{
+		if (refreshExecutor == null)
+		{
+			refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "ERCachingTemplateProvider-refresh");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return refreshExecutor;
+	}
+}
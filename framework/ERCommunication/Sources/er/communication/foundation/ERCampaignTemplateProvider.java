@@ -0,0 +1,60 @@
+package er.communication.foundation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The template provider used by a campaign for the recipients which share a language and a media.<p>
+ * Each template (subject, body, ...) is resolved once by the wrapped provider then kept for the whole group.
+ * A request for another language or media is given to the wrapped provider, a missing template isn't kept.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERCampaignTemplateProvider implements ERAbstractMessageProcessor.TemplateProvider
+{
+	private final ERAbstractMessageProcessor.TemplateProvider templateProvider;
+	private final String language;
+	private final ERMedia media;
+	private final ConcurrentMap<String, String> templates = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger resolutionCount = new AtomicInteger();
+
+	public ERCampaignTemplateProvider(ERAbstractMessageProcessor.TemplateProvider templateProvider, String language, ERMedia media)
+	{
+		if (templateProvider == null || media == null)
+			throw new IllegalArgumentException("The template provider and the media can't be null.");
+		this.templateProvider = templateProvider;
+		this.language = language;
+		this.media = media;
+	}
+
+	public String templateForMedia(String key, String targetLanguage, ERMedia aMedia)
+	{
+		if (!isGroup(targetLanguage, aMedia))
+			return templateProvider.templateForMedia(key, targetLanguage, aMedia);
+		String template = templates.get(key);
+		if (template == null)
+		{
+			resolutionCount.incrementAndGet();
+			template = templateProvider.templateForMedia(key, targetLanguage, aMedia);
+			if (template != null)
+				templates.putIfAbsent(key, template);
+		}
+		return template;
+	}
+
+	/**
+	 * @return the number of templates resolved by the wrapped provider for the group.
+	 */
+	public int resolutionCount()
+	{
+		return resolutionCount.get();
+	}
+
+	private boolean isGroup(String targetLanguage, ERMedia aMedia)
+	{
+		return (language == null ? targetLanguage == null : language.equals(targetLanguage))
+			&& aMedia != null && media.getName().equals(aMedia.getName());
+	}
+}
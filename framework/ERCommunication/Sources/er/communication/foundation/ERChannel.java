@@ -1,6 +1,30 @@
 package er.communication.foundation;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import er.communication.metrics.ERCommunicationMetrics;
+import er.communication.outbox.EROutboxJournal;
+import er.communication.outbox.EROutboxRecord;
+import er.extensions.foundation.ERXProperties;
 
 /**
  * A communication channel is a an object that will send a message through different medias.<p>
@@ -12,9 +36,17 @@ import java.util.List;
  */
 public class ERChannel 
 {
+	private static final Logger log = Logger.getLogger(ERChannel.class);
 
 	private static ERMediaProvider mediaProvider;
 	private static ERMessageProcessorFactory mpFactory;
+	private static volatile ERChannelExecutor executor;
+	private static volatile EROutboxJournal outbox;
+	private static volatile ERRetryEngine retryEngine;
+	private static volatile ERDigestBuffer digestBuffer;
+	private static volatile ERScheduler scheduler;
+	private static final Semaphore NO_CONCURRENCY_LIMIT = new Semaphore(Integer.MAX_VALUE);
+	private static final ConcurrentMap<String, Semaphore> concurrencyLimits = new ConcurrentHashMap<String, Semaphore>();
 	
 	/**
 	 * Send a message to a recipient based on a context
@@ -30,12 +62,941 @@ public class ERChannel
 		if (context == null)
 			throw new IllegalArgumentException("Communication context can't be null.");
 		List<ERMedia> medias = getMediaProvider().getMedias(context.getName());
+		long recordId = journal(recipient, context, medias);
+		for (ERMedia aMedia : medias) 
+		{
+			deliver(recipient, context, aMedia, dataProcessor, recordId);
+		}
+	}
+
+	/**
+	 * Send a message to a recipient based on a context without waiting for the delivery.<p>
+	 * Each media is delivered by a separate task executed by the channel executor, in the lane of the context priority. 
+	 * What happens when its queue is full depends on the admission policy. A task which starts after the time to live of
+	 * the message, or of its context, drops the message.
+	 * 
+	 * @param recipient of the message
+	 * @param context which allows to know the media used to communicate
+	 * @param dataProcessor (optional) a data processor used to transform data that are used to build the message. Can be null.
+	 * @return a future for each media, in the same order as the medias of the context.
+	 * 
+	 * @see ERChannelExecutor
+	 */
+	public Map<ERMedia, Future<Void>> sendMessageAsync(final ERRecipient recipient, final ERCommunicationContext context, final ERDataProcessor dataProcessor)
+	{
+		if (recipient == null)
+			throw new IllegalArgumentException("There must be at least one recipient.");
+		if (context == null)
+			throw new IllegalArgumentException("Communication context can't be null.");
+		List<ERMedia> medias = getMediaProvider().getMedias(context.getName());
+		Map<ERMedia, Future<Void>> futures = new LinkedHashMap<ERMedia, Future<Void>>(medias.size());
+		long recordId = journal(recipient, context, medias);
+		ERPriority priority = priorityForContext(context.getName());
+		long expirationTime = expirationTime(context);
+		for (ERMedia aMedia : medias) 
+		{
+			Future<Void> future = getExecutor().submit(priority, deliveryTask(recipient, context, aMedia, dataProcessor, recordId, expirationTime), queueTag(context.getName(), aMedia.getName()));
+			futures.put(aMedia, future);
+		}
+		return futures;
+	}
+
+	/**
+	 * Send a message to a recipient at a given time.<p>
+	 * If the context has quiet hours (see ERQuietHoursProvider) and the time is during the quiet hours in the time zone of the
+	 * recipient, the message is sent at their end. When its time comes, the quiet hours are checked again, they may have
+	 * changed or the message may have been read from the journal after a restart, then the message is sent as with
+	 * sendMessageAsync().<br>
+	 * The message is kept by the scheduler, in its journal when it's persistent so it's still sent if the application
+	 * restarts meanwhile. When the outbox is off, the scheduler keeps it in its journal until it's delivered.
+	 * 
+	 * @param recipient of the message
+	 * @param context which allows to know the media used to communicate
+	 * @param dataProcessor (optional) a data processor used to transform data that are used to build the message. Can be null.
+	 * @param time in milliseconds, a time in the past sends the message at the next tick of the scheduler.
+	 * @return the scheduled message, which can be cancelled.
+	 * 
+	 * @see ERScheduler
+	 */
+	public ERScheduler.ScheduledSend sendAt(ERRecipient recipient, ERCommunicationContext context, ERDataProcessor dataProcessor, long time)
+	{
+		if (recipient == null)
+			throw new IllegalArgumentException("There must be at least one recipient.");
+		if (context == null)
+			throw new IllegalArgumentException("Communication context can't be null.");
+		List<ERMedia> medias = getMediaProvider().getMedias(context.getName());
+		return getScheduler().schedule(recipient, context, medias, dataProcessor, allowedSendTime(recipient, context, time));
+	}
+
+	/**
+	 * Send a message to a recipient after a delay, or at the end of the quiet hours of the context.
+	 * 
+	 * @param recipient of the message
+	 * @param context which allows to know the media used to communicate
+	 * @param dataProcessor (optional) a data processor used to transform data that are used to build the message. Can be null.
+	 * @param delay 0 to send the message as soon as the quiet hours allow it
+	 * @param unit of the delay
+	 * @return the scheduled message, which can be cancelled.
+	 * 
+	 * @see #sendAt(ERRecipient, ERCommunicationContext, ERDataProcessor, long)
+	 */
+	public ERScheduler.ScheduledSend sendAfter(ERRecipient recipient, ERCommunicationContext context, ERDataProcessor dataProcessor, long delay, TimeUnit unit)
+	{
+		return sendAt(recipient, context, dataProcessor, System.currentTimeMillis() + unit.toMillis(delay));
+	}
+
+	/**
+	 * Send a message to a list of recipients based on a context, using several threads for each media.<p>
+	 * For each media, the recipients are split in as many partitions as the parallelism of the media and
+	 * each partition is sent by a separate thread. The method returns when all messages have been handed to the
+	 * message processors.<br>
+	 * The parallelism is read from the er.communication.foundation.ERChannel.parallelism.&lt;media name&gt; property then
+	 * from the er.communication.foundation.ERChannel.parallelism property (number of processors by default). The partitions 
+	 * are executed by the channel executor in the lane of the context priority, so a bulk send uses the threads of its lane
+	 * and doesn't slow down the other lanes more than their weights allow (see ERChannelExecutor). A partition rejected by 
+	 * the executor or dropped from its queue is sent by the caller.<br>
+	 * A recipient who has no identifier for a media is counted as skipped for the media. A message is dropped and counted
+	 * as expired when its partition reaches it after the time to live of the message, or of its context.
+	 * 
+	 * @param list of recipients of the message
+	 * @param context which allows to know the media used to communicate
+	 * @param dataProcessor (optional) a data processor used to transform data that are used to build the message. Can be null.
+	 * @return the number of sent and failed messages for each media.
+	 */
+	public ERBulkSendResult sendMessageInParallel(final List<ERRecipient> recipients, final ERCommunicationContext context, final ERDataProcessor dataProcessor)
+	{
+		if (recipients == null || recipients.size() == 0)
+			throw new IllegalArgumentException("There must be at least one recipient.");
+		if (context == null)
+			throw new IllegalArgumentException("Communication context can't be null.");
+		
+		final ERBulkSendResult result = new ERBulkSendResult();
+		BulkSend bulkSend = new BulkSend(context.getName());
+		List<ERMedia> medias = getMediaProvider().getMedias(context.getName());
+		final long[] recordIds = journal(recipients, context, medias);
+		final long expirationTime = expirationTime(context);
+		for (final ERMedia aMedia : medias) 
+		{
+			int parallelism = Math.min(parallelismForMedia(aMedia), recipients.size());
+			int partitionSize = (recipients.size() + parallelism - 1) / parallelism;
+			for (int start = 0; start < recipients.size(); start += partitionSize)
+			{
+				final int partitionStart = start;
+				final int partitionEnd = Math.min(start + partitionSize, recipients.size());
+				bulkSend.submit(new Runnable() 
+				{
+					public void run() 
+					{
+						for (int i = partitionStart; i < partitionEnd; i++) 
+							deliverBulk(recipients.get(i), context, aMedia, dataProcessor, recordIds[i], expirationTime, result);
+					}
+				}, queueTag(context.getName(), aMedia.getName()));
+			}
+		}
+		
+		bulkSend.await();
+		return result;
+	}
+
+	/**
+	 * Send a message to recipients read lazily from an iterator, a ERXFetchSpecificationBatchIterator for example.<p>
+	 * The recipients are taken from the iterator by a few threads, each thread takes a recipient then sends the message
+	 * through all medias before taking the next one. So the iterator is read at the speed of the deliveries and the number 
+	 * of recipients in memory doesn't depend on the size of the audience.<br>
+	 * The number of threads is the greatest parallelism of the medias, they are executed by the channel executor in the lane
+	 * of the context priority (see sendMessageInParallel()). The method returns when the iterator is exhausted and all 
+	 * messages have been handed to the message processors. If the iterator throws an exception, no other recipient is taken
+	 * and the exception is thrown by this method. A recipient who can't be written in the outbox journal is counted as a 
+	 * failure for all the medias and the thread takes the next one.
+	 * 
+	 * @param recipients an iterator of the recipients, it's only used by one thread at a time.
+	 * @param context which allows to know the media used to communicate
+	 * @param dataProcessor (optional) a data processor used to transform data that are used to build the message. Can be null.
+	 * @return the number of sent and failed messages for each media.
+	 */
+	public ERBulkSendResult sendMessage(Iterator<? extends ERRecipient> recipients, final ERCommunicationContext context, final ERDataProcessor dataProcessor)
+	{
+		if (recipients == null)
+			throw new IllegalArgumentException("The recipients can't be null.");
+		if (context == null)
+			throw new IllegalArgumentException("Communication context can't be null.");
+
+		final ERBulkSendResult result = new ERBulkSendResult();
+		final List<ERMedia> medias = getMediaProvider().getMedias(context.getName());
+		final RecipientPuller puller = new RecipientPuller(recipients);
+		final long expirationTime = expirationTime(context);
+		int parallelism = 1;
+		for (ERMedia aMedia : medias) 
+			parallelism = Math.max(parallelism, parallelismForMedia(aMedia));
+		BulkSend bulkSend = new BulkSend(context.getName());
+		for (int i = 0; i < parallelism; i++)
+		{
+			bulkSend.submit(new Runnable() 
+			{
+				public void run() 
+				{
+					ERRecipient aRecipient;
+					while ((aRecipient = puller.next()) != null)
+					{
+						long recordId;
+						try
+						{
+							recordId = journal(aRecipient, context, medias);
+						} catch (RuntimeException e)
+						{
+							for (ERMedia aMedia : medias) 
+								result.recordFailure(aRecipient, aMedia, e);
+							continue;
+						}
+						for (ERMedia aMedia : medias) 
+							deliverBulk(aRecipient, context, aMedia, dataProcessor, recordId, expirationTime, result);
+					}
+				}
+			}, null);
+		}
+		bulkSend.await();
+		return result;
+	}
+
+	/**
+	 * Send a message to recipients fetched by batches.
+	 * 
+	 * @param source which fetches the recipients
+	 * @param batchSize number of recipients fetched at once
+	 * @param context which allows to know the media used to communicate
+	 * @param dataProcessor (optional) a data processor used to transform data that are used to build the message. Can be null.
+	 * @return the number of sent and failed messages for each media.
+	 * @see #sendMessage(Iterator, ERCommunicationContext, ERDataProcessor)
+	 */
+	public ERBulkSendResult sendMessage(ERRecipientBatchSource source, int batchSize, ERCommunicationContext context, ERDataProcessor dataProcessor)
+	{
+		return sendMessage(new ERBatchedRecipientIterator(source, batchSize), context, dataProcessor);
+	}
+
+	/**
+	 * Delivers a message of a bulk send and records its result. A recipient without identifier for the media is counted
+	 * as skipped and acknowledged in the outbox journal, nothing is sent. An expired message is dropped. A message given
+	 * to the retry engine is counted as retried.
+	 */
+	private void deliverBulk(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor, long recordId, long expirationTime, ERBulkSendResult result)
+	{
+		try
+		{
+			if (skip(getMessageProcessorFactory().newMessageProcessor(context, media), recipient, context, media, recordId))
+			{
+				result.recordSkipped(media);
+				return;
+			}
+			if (System.currentTimeMillis() > expirationTime)
+			{
+				expire(recipient, context, media, recordId);
+				result.recordExpired(media);
+				return;
+			}
+			if (deliver(recipient, context, media, dataProcessor, recordId))
+				result.recordSent(media);
+			else
+				result.recordRetried(media);
+		} catch (RuntimeException e)
+		{
+			result.recordFailure(recipient, media, e);
+		}
+	}
+
+	/**
+	 * @param messageProcessor of the context and the media, can be null
+	 * @return <code>true</code> if the recipient has no identifier for the media, the message is then acknowledged in the
+	 * outbox journal and counted as skipped in the metrics.
+	 * @see ERAbstractMessageProcessor#isExistsIdentifierForMedia(ERRecipient, ERMedia)
+	 */
+	private boolean skip(ERMessageProcessor messageProcessor, ERRecipient recipient, ERCommunicationContext context, ERMedia media, long recordId)
+	{
+		if (messageProcessor instanceof ERAbstractMessageProcessor ? ((ERAbstractMessageProcessor) messageProcessor).isExistsIdentifierForMedia(recipient, media) : recipient.getIdentifier(media) != null)
+			return false;
+		ERCommunicationMetrics.sharedInstance().metricsFor(context.getName(), media).recordSkipped();
+		acknowledge(recordId, media);
+		return true;
+	}
+
+	/**
+	 * The tasks of a bulk send, executed by the channel executor in the lane of the context priority.<p>
+	 * A task rejected by the executor (REJECT policy or shut down executor) or dropped from its queue (DROP_OLDEST policy)
+	 * is executed by the caller, so no recipient is left out.
+	 */
+	private class BulkSend
+	{
+		private final ERPriority priority;
+		private final List<Runnable> tasks = new ArrayList<Runnable>();
+		private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		BulkSend(String contextName)
+		{
+			this.priority = priorityForContext(contextName);
+		}
+
+		/**
+		 * @param task
+		 * @param tag of the task in the channel executor, can be null
+		 */
+		void submit(Runnable task, Object tag)
+		{
+			Future<?> future;
+			try
+			{
+				future = getExecutor().submit(priority, Executors.callable(task), tag);
+			} catch (RejectedExecutionException e)
+			{
+				log.warn("method: submit: the channel executor rejected a task of a bulk send, it's executed by the caller: " + e.getMessage());
+				FutureTask<Void> callerTask = new FutureTask<Void>(task, null);
+				callerTask.run();
+				future = callerTask;
+			}
+			tasks.add(task);
+			futures.add(future);
+		}
+
+		/**
+		 * Waits until all the tasks are executed.
+		 */
+		void await()
+		{
+			try
+			{
+				for (int i = 0; i < futures.size(); i++)
+				{
+					try
+					{
+						futures.get(i).get();
+					} catch (CancellationException e)
+					{
+						// dropped before being started
+						log.warn("method: await: a task of a bulk send has been dropped by the channel executor, it's executed by the caller.");
+						tasks.get(i).run();
+					}
+				}
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the end of the bulk send.", e);
+			} catch (ExecutionException e)
+			{
+				throw new IllegalStateException("The bulk send failed.", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Shares an iterator between the threads of a streamed send.
+	 */
+	private static class RecipientPuller
+	{
+		private final Iterator<? extends ERRecipient> recipients;
+		private boolean exhausted;
+
+		RecipientPuller(Iterator<? extends ERRecipient> recipients)
+		{
+			this.recipients = recipients;
+		}
+
+		/**
+		 * @return the next recipient, null when there is no more recipient or the iterator has failed.
+		 */
+		synchronized ERRecipient next()
+		{
+			if (exhausted)
+				return null;
+			try
+			{
+				if (recipients.hasNext())
+					return recipients.next();
+			} catch (RuntimeException e)
+			{
+				exhausted = true;
+				throw e;
+			}
+			exhausted = true;
+			return null;
+		}
+	}
+	
+	/**
+	 * Send a campaign: the same message to a list of recipients based on a context.<p>
+	 * The recipients are grouped by language and, for each media, the templates (subject, body, ...) of a group are resolved 
+	 * once by the template provider. The data of each message is the context data plus the first name, the last name and
+	 * the personalized keys of the recipient (read from ERPersonalizedRecipient.getPersonalizedData()).<br>
+	 * A message processor which doesn't subclass ERAbstractMessageProcessor is called as usual, once per recipient.<br>
+	 * Each language of each media is sent by a task of the channel executor in the lane of the context priority (see
+	 * sendMessageInParallel()). A message is dropped and counted as expired when its task reaches it after the time to
+	 * live of the message, or of its context.
+	 * 
+	 * @param list of recipients of the message
+	 * @param context which allows to know the media used to communicate
+	 * @param dataProcessor (optional) a data processor used to transform data that are used to build the message. Can be null.
+	 * @param personalizedKeys the keys whose values are given by each recipient
+	 * @return the number of sent and failed messages for each media.
+	 * 
+	 * @see ERPersonalizedRecipient
+	 * @see ERCampaignTemplateProvider
+	 */
+	public ERBulkSendResult sendCampaign(List<ERRecipient> recipients, ERCommunicationContext context, ERDataProcessor dataProcessor, String... personalizedKeys)
+	{
+		if (recipients == null || recipients.size() == 0)
+			throw new IllegalArgumentException("There must be at least one recipient.");
+		if (context == null)
+			throw new IllegalArgumentException("Communication context can't be null.");
+
+		Map<String, List<ERRecipient>> recipientsByLanguage = new LinkedHashMap<String, List<ERRecipient>>();
+		for (ERRecipient aRecipient : recipients) 
+		{
+			List<ERRecipient> group = recipientsByLanguage.get(aRecipient.getLanguage());
+			if (group == null)
+			{
+				group = new ArrayList<ERRecipient>();
+				recipientsByLanguage.put(aRecipient.getLanguage(), group);
+			}
+			group.add(aRecipient);
+		}
+
+		ERBulkSendResult result = new ERBulkSendResult();
+		List<ERMedia> medias = getMediaProvider().getMedias(context.getName());
+		Map<String, long[]> recordIdsByLanguage = new HashMap<String, long[]>();
+		for (Map.Entry<String, List<ERRecipient>> group : recipientsByLanguage.entrySet()) 
+			recordIdsByLanguage.put(group.getKey(), journal(group.getValue(), context, medias));
+		long expirationTime = expirationTime(context);
+		BulkSend bulkSend = new BulkSend(context.getName());
 		for (ERMedia aMedia : medias) 
 		{
 			ERMessageProcessor messageProcessor = getMessageProcessorFactory().newMessageProcessor(context, aMedia);
-			if (messageProcessor != null)
-				messageProcessor.sendMessage(recipient, context, aMedia, dataProcessor);
+			if (messageProcessor == null)
+				continue;
+			for (Map.Entry<String, List<ERRecipient>> group : recipientsByLanguage.entrySet()) 
+			{
+				ERCampaignTemplateProvider templateProvider = new ERCampaignTemplateProvider(ERAbstractMessageProcessor.templateProvider(), group.getKey(), aMedia);
+				bulkSend.submit(campaignTask(group.getValue(), recordIdsByLanguage.get(group.getKey()), context, aMedia, messageProcessor, templateProvider, 
+						dataProcessor, personalizedKeys, expirationTime, result), queueTag(context.getName(), aMedia.getName()));
+			}
+		}
+		bulkSend.await();
+		return result;
+	}
+
+	/**
+	 * @return the task which sends a campaign to the recipients of a language through a media.
+	 */
+	private Runnable campaignTask(final List<ERRecipient> recipients, final long[] recordIds, final ERCommunicationContext context, final ERMedia media, 
+			final ERMessageProcessor messageProcessor, final ERCampaignTemplateProvider templateProvider, final ERDataProcessor dataProcessor, 
+			final String[] personalizedKeys, final long expirationTime, final ERBulkSendResult result)
+	{
+		return new Runnable() 
+		{
+			public void run() 
+			{
+				for (int i = 0; i < recipients.size(); i++) 
+				{
+					ERRecipient aRecipient = recipients.get(i);
+					try
+					{
+						if (skip(messageProcessor, aRecipient, context, media, recordIds[i]))
+						{
+							result.recordSkipped(media);
+							continue;
+						}
+						if (System.currentTimeMillis() > expirationTime)
+						{
+							expire(aRecipient, context, media, recordIds[i]);
+							result.recordExpired(media);
+							continue;
+						}
+						ERRateLimiterManager.sharedInstance().acquire(context.getName(), media, messageProcessor.getSendingConfiguration());
+						Semaphore concurrencyLimit = acquireConcurrencyLimit(messageProcessor, media);
+						try
+						{
+							if (messageProcessor instanceof ERAbstractMessageProcessor)
+							{
+								Map<String, Object> mergedData = campaignData(context.getData(), aRecipient, personalizedKeys);
+								ERSendContext sendContext = new ERSendContext(aRecipient, context, media, dataProcessor, mergedData, messageProcessor.getSendingConfiguration(), templateProvider);
+								((ERAbstractMessageProcessor) messageProcessor).sendMessage(sendContext);
+							}
+							else
+								messageProcessor.sendMessage(aRecipient, context, media, dataProcessor);
+						} finally
+						{
+							if (concurrencyLimit != null)
+								concurrencyLimit.release();
+						}
+						acknowledge(recordIds[i], media);
+						result.recordSent(media);
+					} catch (ERSendException e)
+					{
+						getRetryEngine().failed(new ERFailedMessage(aRecipient, context, media, dataProcessor, recordIds[i]), e);
+						result.recordRetried(media);
+					} catch (RuntimeException e)
+					{
+						result.recordFailure(aRecipient, media, e);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param contextData
+	 * @param recipient
+	 * @param personalizedKeys
+	 * @return the data of a campaign message for the recipient, a read-only view of the context data.
+	 */
+	protected Map<String, Object> campaignData(Map<String, Object> contextData, ERRecipient recipient, String[] personalizedKeys)
+	{
+		Map<String, Object> personalizedData = null;
+		if (personalizedKeys != null && personalizedKeys.length > 0 && recipient instanceof ERPersonalizedRecipient)
+			personalizedData = ((ERPersonalizedRecipient) recipient).getPersonalizedData();
+		if (personalizedData == null)
+			return ERMergedDataMap.recipientData(contextData, recipient);
+
+		int count = 2;
+		for (String key : personalizedKeys)
+		{
+			if (personalizedData.containsKey(key))
+				count++;
+		}
+		String[] keys = new String[count];
+		Object[] values = new Object[count];
+		keys[0] = ERAbstractMessageProcessor.FIRST_NAME;
+		values[0] = recipient.getFirstName();
+		keys[1] = ERAbstractMessageProcessor.LAST_NAME;
+		values[1] = recipient.getLastName();
+		int index = 2;
+		for (String key : personalizedKeys)
+		{
+			if (personalizedData.containsKey(key))
+			{
+				keys[index] = key;
+				values[index++] = personalizedData.get(key);
+			}
+		}
+		return new ERMergedDataMap(contextData, keys, values);
+	}
+
+	/**
+	 * Sends again the messages of the outbox journal which haven't been acknowledged for all their medias.<p>
+	 * Each media of a record is sent by the channel executor without data processor. A media which is not used by the context
+	 * anymore is acknowledged without being sent. The time to live of a message runs from the time it was appended to the
+	 * journal, so a message which expired while the application was stopped is dropped.
+	 * 
+	 * @return the number of records sent again
+	 * @see EROutboxJournal
+	 */
+	public int replayOutbox()
+	{
+		EROutboxJournal anOutbox = outbox;
+		if (anOutbox == null)
+			return 0;
+		List<EROutboxRecord> records = anOutbox.pendingRecords();
+		for (EROutboxRecord record : records) 
+		{
+			ERCommunicationContext context = record.newContext();
+			List<ERMedia> medias;
+			try
+			{
+				medias = getMediaProvider().getMedias(record.getContextName());
+			} catch (IllegalArgumentException e)
+			{
+				log.error("method: replayOutbox: the context doesn't exist anymore /record: " + record, e);
+				continue;
+			}
+			for (String mediaName : record.getMediaNames()) 
+			{
+				ERMedia media = null;
+				for (ERMedia aMedia : medias) 
+				{
+					if (aMedia.getName().equals(mediaName))
+						media = aMedia;
+				}
+				if (media == null)
+				{
+					log.warn("method: replayOutbox: the media " + mediaName + " isn't used by the context anymore /record: " + record);
+					try
+					{
+						anOutbox.acknowledge(record.getId(), mediaName);
+					} catch (IOException e)
+					{
+						log.error("method: replayOutbox: the delivery can't be written in the outbox /record: " + record, e);
+					}
+					continue;
+				}
+				long enqueueTime = record.getEnqueueTime() > 0 ? record.getEnqueueTime() : System.currentTimeMillis();
+				getExecutor().submit(priorityForContext(record.getContextName()), deliveryTask(record.getRecipient(), context, media, null, record.getId(), expirationTime(context, enqueueTime)),
+						queueTag(record.getContextName(), mediaName));
+			}
+		}
+		if (records.size() > 0)
+			log.info("method: replayOutbox: messages sent again /count: " + records.size());
+		return records.size();
+	}
+
+	/**
+	 * Appends the message to the outbox journal when there is one.
+	 * 
+	 * @param recipient
+	 * @param context
+	 * @param medias
+	 * @return the id of the record or EROutboxJournal.NO_RECORD
+	 */
+	protected long journal(ERRecipient recipient, ERCommunicationContext context, List<ERMedia> medias)
+	{
+		EROutboxJournal anOutbox = outbox;
+		if (anOutbox == null)
+			return EROutboxJournal.NO_RECORD;
+		try
+		{
+			return anOutbox.append(context, recipient, medias);
+		} catch (IOException e)
+		{
+			log.error("method: journal: the message can't be written in the outbox, it's sent anyway /recipient: " + recipient + " /context: " + context, e);
+			return EROutboxJournal.NO_RECORD;
+		}
+	}
+
+	/**
+	 * @return the ids of the records, in the same order as the recipients.
+	 */
+	protected long[] journal(List<ERRecipient> recipients, ERCommunicationContext context, List<ERMedia> medias)
+	{
+		long[] recordIds = new long[recipients.size()];
+		for (int i = 0; i < recordIds.length; i++)
+			recordIds[i] = journal(recipients.get(i), context, medias);
+		return recordIds;
+	}
+
+	/**
+	 * Acknowledges the delivery of a message through a media in the outbox journal.
+	 * 
+	 * @param recordId the id returned by journal()
+	 * @param media
+	 */
+	protected void acknowledge(long recordId, ERMedia media)
+	{
+		EROutboxJournal anOutbox = outbox;
+		if (anOutbox == null || recordId == EROutboxJournal.NO_RECORD)
+			return;
+		try
+		{
+			anOutbox.acknowledge(recordId, media);
+		} catch (IOException e)
+		{
+			log.error("method: acknowledge: the delivery can't be written in the outbox /recordId: " + recordId + " /media: " + media, e);
+		}
+	}
+
+	/**
+	 * @param contextName
+	 * @return the priority of the context, NORMAL if the media provider doesn't know the priorities.
+	 */
+	protected ERPriority priorityForContext(String contextName)
+	{
+		ERMediaProvider provider = getMediaProvider();
+		return provider instanceof ERPriorityProvider ? ((ERPriorityProvider) provider).getPriority(contextName) : ERPriority.NORMAL;
+	}
+
+	/**
+	 * The time to live of the message takes precedence over the one of the context.
+	 * 
+	 * @param context
+	 * @return the time after which the message is dropped instead of sent, Long.MAX_VALUE if it doesn't expire.
+	 */
+	protected long expirationTime(ERCommunicationContext context)
+	{
+		return expirationTime(context, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param context
+	 * @param enqueueTime the time in milliseconds when the message was sent
+	 * @return the time after which the message is dropped instead of sent, Long.MAX_VALUE if it doesn't expire.
+	 */
+	protected long expirationTime(ERCommunicationContext context, long enqueueTime)
+	{
+		long timeToLive = context.getTimeToLive();
+		ERMediaProvider provider = getMediaProvider();
+		if (timeToLive <= 0 && provider instanceof ERPriorityProvider)
+			timeToLive = ((ERPriorityProvider) provider).getTimeToLive(context.getName());
+		return timeToLive > 0 ? enqueueTime + timeToLive : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param recipient
+	 * @param context
+	 * @param time in milliseconds
+	 * @return the end of the quiet hours of the context if the time is during them in the time zone of the recipient, the time otherwise.
+	 */
+	protected long allowedSendTime(ERRecipient recipient, ERCommunicationContext context, long time)
+	{
+		ERMediaProvider provider = getMediaProvider();
+		ERQuietHours quietHours = provider instanceof ERQuietHoursProvider ? ((ERQuietHoursProvider) provider).getQuietHours(context.getName()) : null;
+		return quietHours != null ? quietHours.nextAllowedTime(time, ERQuietHours.timeZoneForRecipient(recipient)) : time;
+	}
+
+	/**
+	 * Drops a message which has waited longer than its time to live.<p>
+	 * The message is acknowledged in the outbox journal so it isn't sent again.
+	 * 
+	 * @param recipient
+	 * @param context
+	 * @param media
+	 * @param recordId the id returned by journal()
+	 */
+	protected void expire(ERRecipient recipient, ERCommunicationContext context, ERMedia media, long recordId)
+	{
+		log.warn("method: expire: the message has expired before being sent /recipient: " + recipient.getIdentifier(media) + " /context: " + context.getName() + " /media: " + media);
+		ERCommunicationMetrics.sharedInstance().metricsFor(context.getName(), media).recordExpired();
+		acknowledge(recordId, media);
+	}
+
+	/**
+	 * Send a scheduled message without outbox: the message is acknowledged in the journal of the scheduler once it's
+	 * delivered through each media, instead of when it's handed to the executor.<br>
+	 * The message isn't gathered in a digest and a message given to the retry engine stays pending in the journal of the
+	 * scheduler, so it's sent again if the application restarts before it's acknowledged.
+	 * 
+	 * @param scheduledSend
+	 * @see ERScheduler.ScheduledSend#deferAcknowledgement()
+	 */
+	protected void sendScheduledMessage(final ERScheduler.ScheduledSend scheduledSend)
+	{
+		final ERRecipient recipient = scheduledSend.getRecipient();
+		final ERCommunicationContext context = scheduledSend.getContext();
+		final ERDataProcessor dataProcessor = scheduledSend.getDataProcessor();
+		List<ERMedia> medias = getMediaProvider().getMedias(context.getName());
+		ERPriority priority = priorityForContext(context.getName());
+		final long expirationTime = expirationTime(context);
+		scheduledSend.deferAcknowledgement();
+		for (final ERMedia aMedia : medias) 
+		{
+			getExecutor().submit(priority, new Callable<Void>() 
+			{
+				public Void call() 
+				{
+					if (System.currentTimeMillis() > expirationTime)
+					{
+						expire(recipient, context, aMedia, EROutboxJournal.NO_RECORD);
+						scheduledSend.acknowledge(aMedia);
+					}
+					else if (deliverNow(recipient, context, aMedia, dataProcessor, EROutboxJournal.NO_RECORD))
+						scheduledSend.acknowledge(aMedia);
+					return null;
+				}
+			}, queueTag(context.getName(), aMedia.getName()));
+		}
+	}
+
+	private Callable<Void> deliveryTask(final ERRecipient recipient, final ERCommunicationContext context, final ERMedia media, final ERDataProcessor dataProcessor, final long recordId, final long expirationTime)
+	{
+		return new Callable<Void>() 
+		{
+			public Void call() 
+			{
+				if (System.currentTimeMillis() > expirationTime)
+					expire(recipient, context, media, recordId);
+				else
+					deliver(recipient, context, media, dataProcessor, recordId);
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * @return the tag of the delivery tasks of a context and a media in the channel executor.
+	 */
+	private static String queueTag(String contextName, String mediaName)
+	{
+		return contextName + "/" + mediaName;
+	}
+
+	/**
+	 * @param contextName
+	 * @param mediaName
+	 * @return the number of deliveries of the context and media waiting in the channel executor, 0 if it hasn't been created.
+	 */
+	public static int queueDepth(String contextName, String mediaName)
+	{
+		ERChannelExecutor anExecutor = executor;
+		return anExecutor != null ? anExecutor.queueSize(queueTag(contextName, mediaName)) : 0;
+	}
+
+	/**
+	 * @param media
+	 * @return the number of threads used by a bulk send for the media.
+	 */
+	protected int parallelismForMedia(ERMedia media)
+	{
+		int defaultParallelism = ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannel.parallelism", Runtime.getRuntime().availableProcessors());
+		int parallelism = ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannel.parallelism." + media.getName(), defaultParallelism);
+		return Math.max(parallelism, 1);
+	}
+
+	/**
+	 * Send a message to a recipient through one media then acknowledge it in the outbox journal.<p>
+	 * If the digest mode is on for the context and the media, the message is buffered and sent later with the other messages
+	 * of the recipient (see ERDigestBuffer).<br>
+	 * If the message processor throws a ERSendException, the message is given to the retry engine which acknowledges it
+	 * when it's delivered. A dead letter stays pending in the outbox journal.
+	 * 
+	 * @param recipient of the message
+	 * @param context in which the message is sent
+	 * @param media to use
+	 * @param dataProcessor (optional)
+	 * @param recordId the id returned by journal()
+	 * @return <code>false</code> if the message has been given to the retry engine.
+	 * @see ERRetryEngine
+	 */
+	protected boolean deliver(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor, long recordId)
+	{
+		if (!(context instanceof ERDigestContext))
+		{
+			ERMessageProcessor messageProcessor = getMessageProcessorFactory().newMessageProcessor(context, media);
+			if (messageProcessor != null && ERDigestBuffer.isDigestEnabled(messageProcessor.getSendingConfiguration())
+					&& getDigestBuffer().offer(recipient, context, media, dataProcessor, recordId, messageProcessor.getSendingConfiguration()))
+				return true;
+		}
+		return deliverNow(recipient, context, media, dataProcessor, recordId);
+	}
+
+	/**
+	 * Same as deliver() without the digest mode.
+	 */
+	protected boolean deliverNow(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor, long recordId)
+	{
+		try
+		{
+			sendMessage(recipient, context, media, dataProcessor);
+		} catch (ERSendException e)
+		{
+			getRetryEngine().failed(new ERFailedMessage(recipient, context, media, dataProcessor, recordId), e);
+			return false;
 		}
+		acknowledge(recordId, media);
+		return true;
+	}
+
+	/**
+	 * Sends the messages gathered by the digest buffer.<p>
+	 * A digest of one message is delivered as usual. Otherwise the messages are acknowledged in the outbox journal once the
+	 * digest is delivered. If the digest fails, it's given to the retry engine with the ids of all its messages, they are
+	 * acknowledged when the retry succeeds and stay pending if the digest becomes a dead letter.
+	 * 
+	 * @param digest
+	 */
+	protected void deliverDigest(ERDigestBuffer.Digest digest)
+	{
+		long[] recordIds = digest.getRecordIds();
+		ERCommunicationContext context = digest.newContext();
+		if (!(context instanceof ERDigestContext))
+		{
+			deliverNow(digest.getRecipient(), context, digest.getMedia(), digest.getDataProcessor(), recordIds[0]);
+			return;
+		}
+		try
+		{
+			sendMessage(digest.getRecipient(), context, digest.getMedia(), digest.getDataProcessor());
+		} catch (ERSendException e)
+		{
+			getRetryEngine().failed(new ERFailedMessage(digest.getRecipient(), context, digest.getMedia(), digest.getDataProcessor(), recordIds), e);
+			return;
+		}
+		for (long recordId : recordIds)
+			acknowledge(recordId, digest.getMedia());
+	}
+
+	/**
+	 * Send a message to a recipient through one media.<p>
+	 * The caller waits if the rate limit of the media or of the context is reached. A digest is sent by the message processor
+	 * and with the limits of its original context.<br>
+	 * The caller also waits while the media has as many deliveries in progress as its concurrency limit, read from the
+	 * er.communication.foundation.ERChannel.maxConcurrency.&lt;media name&gt; property then from the 
+	 * er.communication.foundation.ERChannel.maxConcurrency property (no limit by default). So the number of connections to
+	 * a server doesn't depend on the number of threads which send the messages. A message processor which keeps its 
+	 * connections open between messages applies the limit to its connections instead (see ERConcurrencyLimitedProcessor).
+	 * 
+	 * @param recipient of the message
+	 * @param context in which the message is sent
+	 * @param media to use
+	 * @param dataProcessor (optional)
+	 * @throws ERSendException if the thread is interrupted while waiting for the concurrency limit.
+	 */
+	protected void sendMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor)
+	{
+		ERCommunicationContext processorContext = context instanceof ERDigestContext ? ((ERDigestContext) context).getOriginalContext() : context;
+		ERMessageProcessor messageProcessor = getMessageProcessorFactory().newMessageProcessor(processorContext, media);
+		if (messageProcessor != null)
+		{
+			ERRateLimiterManager.sharedInstance().acquire(processorContext.getName(), media, messageProcessor.getSendingConfiguration());
+			Semaphore concurrencyLimit = acquireConcurrencyLimit(messageProcessor, media);
+			try
+			{
+				messageProcessor.sendMessage(recipient, context, media, dataProcessor);
+			} finally
+			{
+				if (concurrencyLimit != null)
+					concurrencyLimit.release();
+			}
+		}
+	}
+
+	/**
+	 * Waits for a permit of the concurrency limit of the media, unless the message processor applies the limit itself
+	 * where it uses its connections (see ERConcurrencyLimitedProcessor).
+	 * 
+	 * @param messageProcessor
+	 * @param media
+	 * @return the semaphore to release after the send, null if no permit has been taken.
+	 * @throws ERSendException if the thread is interrupted while waiting for the concurrency limit.
+	 */
+	private Semaphore acquireConcurrencyLimit(ERMessageProcessor messageProcessor, ERMedia media)
+	{
+		if (messageProcessor instanceof ERConcurrencyLimitedProcessor && ((ERConcurrencyLimitedProcessor) messageProcessor).appliesConcurrencyLimit(media))
+			return null;
+		Semaphore concurrencyLimit = concurrencyLimitForMedia(media);
+		if (concurrencyLimit == null)
+			return null;
+		try
+		{
+			concurrencyLimit.acquire();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new ERSendException("Interrupted while waiting for the concurrency limit of the media " + media.getName(), e, true);
+		}
+		return concurrencyLimit;
+	}
+
+	/**
+	 * @param media
+	 * @return the semaphore which limits the number of deliveries of the media in progress, null if there is no limit.
+	 */
+	public static Semaphore concurrencyLimitForMedia(ERMedia media)
+	{
+		Semaphore concurrencyLimit = concurrencyLimits.get(media.getName());
+		if (concurrencyLimit == null)
+		{
+			int defaultPermits = ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannel.maxConcurrency", 0);
+			int permits = ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannel.maxConcurrency." + media.getName(), defaultPermits);
+			concurrencyLimit = permits > 0 ? new Semaphore(permits) : NO_CONCURRENCY_LIMIT;
+			Semaphore existing = concurrencyLimits.putIfAbsent(media.getName(), concurrencyLimit);
+			if (existing != null)
+				concurrencyLimit = existing;
+		}
+		return concurrencyLimit != NO_CONCURRENCY_LIMIT ? concurrencyLimit : null;
+	}
+
+	/**
+	 * Replaces the concurrency limit of a media. The deliveries in progress release the permits of the previous limit.
+	 * 
+	 * @param media
+	 * @param permits the number of deliveries in progress at the same time, 0 for no limit.
+	 */
+	public static void setConcurrencyLimit(ERMedia media, int permits)
+	{
+		concurrencyLimits.put(media.getName(), permits > 0 ? new Semaphore(permits) : NO_CONCURRENCY_LIMIT);
 	}
 
 	/**
@@ -44,6 +1005,7 @@ public class ERChannel
 	 * @param list of recipients of the message
 	 * @param context which allows to know the media used to communicate
 	 * @param dataProcessor (optional) a data processor used to transform data that are used to build the message. Can be null.
+	 * @see #sendMessage(Iterator, ERCommunicationContext, ERDataProcessor) when the recipients don't fit in memory
 	 */
 	public void sendMessage(List<ERRecipient> recipients, ERCommunicationContext context, ERDataProcessor dataProcessor)
 	{
@@ -89,4 +1051,243 @@ public class ERChannel
 			throw new IllegalStateException("MessageProcessorFactory is null. It must be set before using a channel object.");
 		return mpFactory;
 	}
+	
+	/**
+	 * Used to set the executor of the asynchronous sends
+	 * 
+	 * @param anExecutor which is used when a channel object sends a message asynchronously.
+	 */
+	public static void setExecutor(ERChannelExecutor anExecutor)
+	{
+		executor = anExecutor;
+	}
+	
+	/**
+	 * @return the executor of the asynchronous sends, null if it hasn't been created or set yet.
+	 */
+	public static ERChannelExecutor existingExecutor()
+	{
+		return executor;
+	}
+	
+	/**
+	 * @return the executor of the asynchronous sends, created with the default properties if it hasn't been set.
+	 */
+	public static ERChannelExecutor getExecutor()
+	{
+		if (executor == null)
+		{
+			synchronized(ERChannel.class) {
+				if (executor == null)
+					executor = new ERChannelExecutor();
+			}
+		}
+		return executor;
+	}
+	
+	/**
+	 * Used to set the outbox journal
+	 * 
+	 * @param anOutbox which keeps the messages until they are delivered, null to turn off the journal.
+	 */
+	public static void setOutbox(EROutboxJournal anOutbox)
+	{
+		outbox = anOutbox;
+	}
+	
+	/**
+	 * @return the outbox journal, null if the messages are not journaled.
+	 */
+	public static EROutboxJournal getOutbox()
+	{
+		return outbox;
+	}
+	
+	/**
+	 * Used to set the retry engine
+	 * 
+	 * @param anEngine which sends again the messages which failed.
+	 */
+	public static void setRetryEngine(ERRetryEngine anEngine)
+	{
+		retryEngine = anEngine;
+	}
+	
+	/**
+	 * @return the retry engine, null if it hasn't been created or set yet.
+	 */
+	public static ERRetryEngine existingRetryEngine()
+	{
+		return retryEngine;
+	}
+	
+	/**
+	 * @return the retry engine, created with the default properties if it hasn't been set.
+	 */
+	public static ERRetryEngine getRetryEngine()
+	{
+		if (retryEngine == null)
+		{
+			synchronized(ERChannel.class) {
+				if (retryEngine == null)
+					retryEngine = new ERRetryEngine(new ChannelSender());
+			}
+		}
+		return retryEngine;
+	}
+	
+	/**
+	 * Used to set the digest buffer
+	 * 
+	 * @param aBuffer which gathers the messages of the contexts in digest mode.
+	 */
+	public static void setDigestBuffer(ERDigestBuffer aBuffer)
+	{
+		digestBuffer = aBuffer;
+	}
+	
+	/**
+	 * @return the digest buffer, null if it hasn't been created or set yet.
+	 */
+	public static ERDigestBuffer existingDigestBuffer()
+	{
+		return digestBuffer;
+	}
+	
+	/**
+	 * @return the digest buffer, created with the default properties if it hasn't been set.
+	 */
+	public static ERDigestBuffer getDigestBuffer()
+	{
+		if (digestBuffer == null)
+		{
+			synchronized(ERChannel.class) {
+				if (digestBuffer == null)
+					digestBuffer = new ERDigestBuffer(new ChannelDigestSender());
+			}
+		}
+		return digestBuffer;
+	}
+	
+	/**
+	 * Used to set the scheduler
+	 * 
+	 * @param aScheduler which keeps the messages sent with sendAt() and sendAfter().
+	 */
+	public static void setScheduler(ERScheduler aScheduler)
+	{
+		scheduler = aScheduler;
+	}
+	
+	/**
+	 * @return the scheduler, null if it hasn't been created or set yet.
+	 */
+	public static ERScheduler existingScheduler()
+	{
+		return scheduler;
+	}
+	
+	/**
+	 * @return the scheduler, created with the default properties if it hasn't been set.
+	 */
+	public static ERScheduler getScheduler()
+	{
+		if (scheduler == null)
+		{
+			synchronized(ERChannel.class) {
+				if (scheduler == null)
+					scheduler = new ERScheduler(new ChannelScheduledSender());
+			}
+		}
+		return scheduler;
+	}
+	
+	/**
+	 * Stops the components of the channel in the order which keeps the outbox journal consistent: the executor delivers
+	 * its queued messages (within its shutdown timeout), the buffered digests are sent, the scheduler and the retry engine
+	 * are stopped and the outbox journal is closed last, so the deliveries are acknowledged before it's closed. A scheduled
+	 * message which can't be handed over to the stopped executor stays in the journal of the scheduler.<p>
+	 * Called when the application terminates by the first component of the channel which receives the notification, the
+	 * components which are already stopped are skipped. A message delivered while the journal is closed stays pending in
+	 * it and is sent again when the application starts.
+	 */
+	public static void shutdown()
+	{
+		log.info("method: shutdown: stopping the channel.");
+		ERChannelExecutor anExecutor = executor;
+		if (anExecutor != null)
+		{
+			log.info("method: shutdown: draining the queue /queueSize: " + anExecutor.queueSize());
+			anExecutor.shutdown();
+		}
+		ERDigestBuffer aBuffer = digestBuffer;
+		if (aBuffer != null)
+			aBuffer.stop();
+		ERScheduler aScheduler = scheduler;
+		if (aScheduler != null)
+			aScheduler.stop();
+		ERRetryEngine anEngine = retryEngine;
+		if (anEngine != null)
+			anEngine.stop();
+		EROutboxJournal anOutbox = outbox;
+		if (anOutbox != null)
+			anOutbox.close();
+	}
+	
+	/**
+	 * Sends the retries through a channel and acknowledges them in the outbox journal.
+	 */
+	public static class ChannelSender implements ERRetryEngine.Sender
+	{
+		private final ERChannel channel = new ERChannel();
+
+		public void send(ERFailedMessage message)
+		{
+			channel.sendMessage(message.getRecipient(), message.getContext(), message.getMedia(), message.getDataProcessor());
+		}
+
+		public void finished(ERFailedMessage message)
+		{
+			for (long recordId : message.getRecordIds())
+				channel.acknowledge(recordId, message.getMedia());
+		}
+	}
+	
+	/**
+	 * Sends the digests through a channel and acknowledges their messages in the outbox journal.
+	 */
+	public static class ChannelDigestSender implements ERDigestBuffer.Sender
+	{
+		private final ERChannel channel = new ERChannel();
+
+		public void send(ERDigestBuffer.Digest digest)
+		{
+			channel.deliverDigest(digest);
+		}
+	}
+	
+	/**
+	 * Sends the scheduled messages through a channel, without waiting for their delivery.<p>
+	 * A message whose time falls in the quiet hours of its context is postponed to their end. When the outbox is off, the
+	 * message is acknowledged in the journal of the scheduler once it's delivered.
+	 */
+	public static class ChannelScheduledSender implements ERScheduler.Sender
+	{
+		private final ERChannel channel = new ERChannel();
+
+		public void send(ERScheduler.ScheduledSend scheduledSend)
+		{
+			long now = System.currentTimeMillis();
+			long allowedTime = channel.allowedSendTime(scheduledSend.getRecipient(), scheduledSend.getContext(), now);
+			if (allowedTime > now)
+			{
+				scheduledSend.postpone(allowedTime);
+				return;
+			}
+			if (outbox == null && scheduledSend.getRecordId() != EROutboxJournal.NO_RECORD)
+				channel.sendScheduledMessage(scheduledSend);
+			else
+				channel.sendMessageAsync(scheduledSend.getRecipient(), scheduledSend.getContext(), scheduledSend.getDataProcessor());
+		}
+	}
 }
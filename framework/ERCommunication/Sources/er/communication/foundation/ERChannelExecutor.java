@@ -0,0 +1,679 @@
+package er.communication.foundation;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.appserver.WOApplication;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+
+import er.extensions.foundation.ERXConstant;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Executes the asynchronous sends of a channel.<p>
+ * The tasks are stored in a bounded queue per priority, a lane, and executed by a maximum number of threads shared by the lanes.
+ * When a thread is free, a weighted round robin chooses the lane of the next task among the lanes which have waiting tasks:
+ * with the default weights, a transactional task is taken 8 times when a bulk task is taken once, so a backlog of bulk
+ * messages slows down the transactional messages but never blocks them. A lane can't use more than its own number of threads
+ * either, half of the threads for the bulk lane by default, so there are always free threads for the other lanes.<br>
+ * When the queue of a lane is full, the admission policy decides what happens to the new task.<p>
+ * The message processors spend most of their time waiting for the network (SMTP, XMPP), so in the VIRTUAL thread mode each
+ * task is executed by a virtual thread and tens of thousands of deliveries can be in flight without a platform thread for
+ * each of them. The mode needs a runtime with virtual threads (Java 21), otherwise the executor falls back to the PLATFORM
+ * mode: a bounded pool of platform threads. The number of concurrent deliveries of a media is limited by the channel with
+ * a semaphore, whatever the mode (see ERChannel).<br>
+ * The executor is configured with the following properties:
+ * <ul>
+ * <li>er.communication.foundation.ERChannelExecutor.threadMode: PLATFORM or VIRTUAL (PLATFORM by default)
+ * <li>er.communication.foundation.ERChannelExecutor.threads: number of platform threads (4 by default)
+ * <li>er.communication.foundation.ERChannelExecutor.virtualThreads: maximum number of tasks executed at the same time in the
+ * VIRTUAL mode (10000 by default)
+ * <li>er.communication.foundation.ERChannelExecutor.queueSize: maximum number of waiting tasks per lane (1000 by default)
+ * <li>er.communication.foundation.ERChannelExecutor.admissionPolicy: BLOCK, CALLER_RUNS, DROP_OLDEST or REJECT (BLOCK by default)
+ * <li>er.communication.foundation.ERChannelExecutor.shutdownTimeout: how long the queue can be drained when the application
+ * terminates, in milliseconds (30 seconds by default)
+ * <li>er.communication.foundation.ERChannelExecutor.queueSize.&lt;priority&gt;: maximum number of waiting tasks of the lane
+ * <li>er.communication.foundation.ERChannelExecutor.weight.&lt;priority&gt;: weight of the lane (8, 4 and 1 by default)
+ * <li>er.communication.foundation.ERChannelExecutor.threads.&lt;priority&gt;: maximum number of threads used by the lane
+ * </ul>
+ *
+ * @author Philippe Rabier
+ * @see ERPriority
+ */
+public class ERChannelExecutor
+{
+	private static final Logger log = Logger.getLogger(ERChannelExecutor.class);
+
+	public static final int DEFAULT_THREADS = 4;
+	public static final int DEFAULT_VIRTUAL_THREADS = 10000;
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 30 * 1000L;
+
+	/**
+	 * What happens to a new task when the queue is full.
+	 */
+	public static enum AdmissionPolicy
+	{
+		/** The caller waits until there is room in the queue. */
+		BLOCK,
+		/** The task is executed by the caller thread. */
+		CALLER_RUNS,
+		/** The oldest waiting task is cancelled and the new one is queued. */
+		DROP_OLDEST,
+		/** A RejectedExecutionException is thrown. */
+		REJECT
+	}
+
+	/**
+	 * The kind of threads which execute the tasks.
+	 */
+	public static enum ThreadMode
+	{
+		/** A bounded pool of platform threads. */
+		PLATFORM,
+		/** A new virtual thread for each task, when the runtime supports them. */
+		VIRTUAL
+	}
+
+	/**
+	 * The queue and the budget of a priority. It's only read and modified with the lock of the executor.
+	 */
+	private static class Lane
+	{
+		private final ERPriority priority;
+		private final ArrayDeque<FutureTask<?>> queue = new ArrayDeque<FutureTask<?>>();
+		private int queueSize;
+		private int weight;
+		private int maxThreads;
+		private int activeCount;
+		private int currentWeight;
+		private long executedCount;
+
+		private Lane(ERPriority priority)
+		{
+			this.priority = priority;
+		}
+	}
+
+	/**
+	 * A task waiting in a lane, with the tag given when it was submitted.
+	 */
+	private static class QueuedTask<T> extends FutureTask<T>
+	{
+		private final Object tag;
+
+		private QueuedTask(Callable<T> task, Object tag)
+		{
+			super(task);
+			this.tag = tag;
+		}
+
+		/**
+		 * Completes the future with an exception without executing the task.
+		 */
+		private void reject(Throwable failure)
+		{
+			setException(failure);
+		}
+	}
+
+	/**
+	 * A task taken from a lane by a thread.
+	 */
+	private static class Assignment
+	{
+		private final Lane lane;
+		private final FutureTask<?> task;
+
+		private Assignment(Lane lane, FutureTask<?> task)
+		{
+			this.lane = lane;
+			this.task = task;
+		}
+	}
+
+	private final int threads;
+	private final ThreadMode threadMode;
+	private final ExecutorService threadSource;
+	private final Lane[] lanes;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final Condition drained = lock.newCondition();
+	private final AdmissionPolicy admissionPolicy;
+	private final long shutdownTimeout;
+	private int busyCount;
+	private boolean shutdown;
+
+	public ERChannelExecutor()
+	{
+		this(defaultThreadMode(),
+			ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannelExecutor.queueSize", DEFAULT_QUEUE_SIZE),
+			AdmissionPolicy.valueOf(ERXProperties.stringForKeyWithDefault("er.communication.foundation.ERChannelExecutor.admissionPolicy", AdmissionPolicy.BLOCK.name())),
+			ERXProperties.longForKeyWithDefault("er.communication.foundation.ERChannelExecutor.shutdownTimeout", DEFAULT_SHUTDOWN_TIMEOUT));
+		for (Lane lane : lanes)
+		{
+			String suffix = "." + lane.priority.name();
+			configureLane(lane.priority,
+				ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannelExecutor.queueSize" + suffix, lane.queueSize),
+				ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannelExecutor.weight" + suffix, lane.weight),
+				ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannelExecutor.threads" + suffix, lane.maxThreads));
+		}
+	}
+
+	private ERChannelExecutor(ThreadMode threadMode, int queueSize, AdmissionPolicy admissionPolicy, long shutdownTimeout)
+	{
+		this(threadMode == ThreadMode.VIRTUAL
+				? ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannelExecutor.virtualThreads", DEFAULT_VIRTUAL_THREADS)
+				: ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannelExecutor.threads", DEFAULT_THREADS),
+			queueSize, admissionPolicy, shutdownTimeout, threadMode);
+	}
+
+	public ERChannelExecutor(int threads, int queueSize, AdmissionPolicy admissionPolicy, long shutdownTimeout)
+	{
+		this(threads, queueSize, admissionPolicy, shutdownTimeout, ThreadMode.PLATFORM);
+	}
+
+	/**
+	 * @param threads maximum number of tasks executed at the same time
+	 * @param queueSize maximum number of waiting tasks per lane
+	 * @param admissionPolicy
+	 * @param shutdownTimeout in milliseconds
+	 * @param threadMode PLATFORM is used when VIRTUAL isn't supported by the runtime
+	 */
+	public ERChannelExecutor(int threads, int queueSize, AdmissionPolicy admissionPolicy, long shutdownTimeout, ThreadMode threadMode)
+	{
+		if (threads <= 0 || queueSize <= 0)
+			throw new IllegalArgumentException("The number of threads and the queue size must be greater than 0 /threads: " + threads + " /queueSize: " + queueSize);
+		if (admissionPolicy == null)
+			throw new IllegalArgumentException("The admission policy can't be null.");
+		ExecutorService virtualThreadSource = threadMode == ThreadMode.VIRTUAL ? newVirtualThreadExecutor("ERChannelExecutor") : null;
+		if (virtualThreadSource != null)
+		{
+			this.threadMode = ThreadMode.VIRTUAL;
+			this.threads = threads;
+			this.threadSource = virtualThreadSource;
+		}
+		else
+		{
+			if (threadMode == ThreadMode.VIRTUAL)
+				log.warn("method: ERChannelExecutor: the runtime doesn't support virtual threads, a pool of platform threads is used.");
+			this.threadMode = ThreadMode.PLATFORM;
+			this.threads = threadMode == ThreadMode.VIRTUAL ? Math.min(threads, ERXProperties.intForKeyWithDefault("er.communication.foundation.ERChannelExecutor.threads", DEFAULT_THREADS)) : threads;
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(this.threads, this.threads, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ERChannelExecutor"));
+			pool.allowCoreThreadTimeOut(true);
+			this.threadSource = pool;
+		}
+		this.admissionPolicy = admissionPolicy;
+		this.shutdownTimeout = shutdownTimeout;
+		this.lanes = new Lane[ERPriority.values().length];
+		for (ERPriority priority : ERPriority.values())
+		{
+			Lane lane = new Lane(priority);
+			lane.queueSize = queueSize;
+			lane.weight = priority.defaultWeight();
+			lane.maxThreads = priority == ERPriority.BULK ? Math.max(1, this.threads / 2) : this.threads;
+			lanes[priority.ordinal()] = lane;
+		}
+		NSNotificationCenter.defaultCenter().addObserver(this,
+				new NSSelector<Void>("applicationWillTerminate", ERXConstant.NotificationClassArray),
+				WOApplication.ApplicationWillTerminateNotification,
+				null);
+	}
+
+	/**
+	 * @return <code>true</code> if the runtime can create virtual threads.
+	 */
+	public static boolean virtualThreadsSupported()
+	{
+		ExecutorService executor = newVirtualThreadExecutor("ERChannelExecutor-check");
+		if (executor == null)
+			return false;
+		executor.shutdown();
+		return true;
+	}
+
+	/**
+	 * Creates an executor which starts a virtual thread for each task.<p>
+	 * The framework is compiled for runtimes without virtual threads so the API is called by reflection.
+	 *
+	 * @param prefix of the thread names
+	 * @return the executor, null if the runtime doesn't support virtual threads.
+	 */
+	protected static ExecutorService newVirtualThreadExecutor(String prefix)
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", Long.valueOf(1));
+			ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+		} catch (Exception e)
+		{
+			// before Java 21, or Java 19 and 20 without the preview features
+			if (log.isDebugEnabled())
+				log.debug("method: newVirtualThreadExecutor: virtual threads are not available: " + e);
+			return null;
+		}
+	}
+
+	private static ThreadMode defaultThreadMode()
+	{
+		return ThreadMode.valueOf(ERXProperties.stringForKeyWithDefault("er.communication.foundation.ERChannelExecutor.threadMode", ThreadMode.PLATFORM.name()));
+	}
+
+	/**
+	 * Changes the configuration of a lane, the tasks already queued are kept.
+	 *
+	 * @param priority
+	 * @param queueSize maximum number of waiting tasks
+	 * @param weight share of the threads when all lanes have waiting tasks
+	 * @param maxThreads maximum number of threads used by the lane at the same time
+	 */
+	public void configureLane(ERPriority priority, int queueSize, int weight, int maxThreads)
+	{
+		if (queueSize <= 0 || weight <= 0 || maxThreads <= 0)
+			throw new IllegalArgumentException("Invalid configuration of the lane " + priority + " /queueSize: " + queueSize + " /weight: " + weight + " /maxThreads: " + maxThreads);
+		lock.lock();
+		try
+		{
+			Lane lane = lanes[priority.ordinal()];
+			lane.queueSize = queueSize;
+			lane.weight = weight;
+			lane.maxThreads = Math.min(maxThreads, threads);
+			notFull.signalAll();
+			dispatch();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Submits a task in the NORMAL lane according to the admission policy.
+	 *
+	 * @param task
+	 * @return the future of the task
+	 * @throws RejectedExecutionException if the policy is REJECT and the queue is full or if the executor is shut down.
+	 */
+	public <T> Future<T> submit(Callable<T> task)
+	{
+		return submit(ERPriority.NORMAL, task);
+	}
+
+	/**
+	 * Submits a task in the lane of a priority according to the admission policy.
+	 *
+	 * @param priority
+	 * @param task
+	 * @return the future of the task
+	 * @throws RejectedExecutionException if the policy is REJECT and the queue is full or if the executor is shut down.
+	 */
+	public <T> Future<T> submit(ERPriority priority, Callable<T> task)
+	{
+		return submit(priority, task, null);
+	}
+
+	/**
+	 * Submits a task in the lane of a priority according to the admission policy.
+	 *
+	 * @param priority
+	 * @param task
+	 * @param tag identifies the kind of the task (the context and the media of a delivery for example), can be null
+	 * @return the future of the task
+	 * @throws RejectedExecutionException if the policy is REJECT and the queue is full or if the executor is shut down.
+	 * @see #queueSize(Object)
+	 */
+	public <T> Future<T> submit(ERPriority priority, Callable<T> task, Object tag)
+	{
+		if (task == null)
+			throw new IllegalArgumentException("The task can't be null.");
+		FutureTask<T> future = new QueuedTask<T>(task, tag);
+		Lane lane = lanes[priority.ordinal()];
+		FutureTask<?> dropped = null;
+		lock.lock();
+		try
+		{
+			while (true)
+			{
+				if (shutdown)
+					throw new RejectedExecutionException("The executor is shut down.");
+				if (lane.queue.size() < lane.queueSize)
+				{
+					lane.queue.add(future);
+					dispatch();
+					return future;
+				}
+				if (admissionPolicy == AdmissionPolicy.REJECT)
+					throw new RejectedExecutionException("The queue of the lane " + priority + " is full.");
+				if (admissionPolicy == AdmissionPolicy.CALLER_RUNS)
+					break;
+				if (admissionPolicy == AdmissionPolicy.DROP_OLDEST)
+				{
+					dropped = lane.queue.poll();
+					lane.queue.add(future);
+					break;
+				}
+				try
+				{
+					notFull.await();
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("Interrupted while waiting for room in the queue.", e);
+				}
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+		if (dropped != null)
+		{
+			// the future of the dropped task doesn't wait forever
+			dropped.cancel(false);
+			log.warn("method: submit: the queue of the lane " + priority + " is full, the oldest task has been dropped.");
+		}
+		else
+			future.run();
+		return future;
+	}
+
+	/**
+	 * @return the number of tasks waiting in the queues.
+	 */
+	public int queueSize()
+	{
+		lock.lock();
+		try
+		{
+			int size = 0;
+			for (Lane lane : lanes)
+				size += lane.queue.size();
+			return size;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param priority
+	 * @return the number of tasks waiting in the queue of the lane.
+	 */
+	public int queueSize(ERPriority priority)
+	{
+		lock.lock();
+		try
+		{
+			return lanes[priority.ordinal()].queue.size();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param tag given when the tasks were submitted
+	 * @return the number of tasks with the tag waiting in the queues.
+	 */
+	public int queueSize(Object tag)
+	{
+		lock.lock();
+		try
+		{
+			int size = 0;
+			for (Lane lane : lanes)
+			{
+				for (FutureTask<?> task : lane.queue)
+				{
+					Object taskTag = ((QueuedTask<?>) task).tag;
+					if (taskTag == null ? tag == null : taskTag.equals(tag))
+						size++;
+				}
+			}
+			return size;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of tasks being executed.
+	 */
+	public int activeCount()
+	{
+		lock.lock();
+		try
+		{
+			return busyCount;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param priority
+	 * @return the number of tasks of the lane executed since the executor started.
+	 */
+	public long executedCount(ERPriority priority)
+	{
+		lock.lock();
+		try
+		{
+			return lanes[priority.ordinal()].executedCount;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public AdmissionPolicy admissionPolicy()
+	{
+		return admissionPolicy;
+	}
+
+	/**
+	 * @return the mode really used, PLATFORM if VIRTUAL has been asked but isn't supported.
+	 */
+	public ThreadMode threadMode()
+	{
+		return threadMode;
+	}
+
+	/**
+	 * @return the maximum number of tasks executed at the same time.
+	 */
+	public int threads()
+	{
+		return threads;
+	}
+
+	public boolean isShutdown()
+	{
+		lock.lock();
+		try
+		{
+			return shutdown;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting new tasks and waits until the queued tasks are executed or the shutdown timeout is reached.
+	 *
+	 * @return <code>true</code> if all tasks have been executed
+	 */
+	public boolean shutdown()
+	{
+		boolean terminated = false;
+		lock.lock();
+		try
+		{
+			shutdown = true;
+			notFull.signalAll();
+			long nanos = TimeUnit.MILLISECONDS.toNanos(shutdownTimeout);
+			while (busyCount > 0 && nanos > 0)
+				nanos = drained.awaitNanos(nanos);
+			terminated = busyCount == 0;
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		} finally
+		{
+			lock.unlock();
+		}
+		if (terminated)
+			threadSource.shutdown();
+		else
+			log.warn("method: shutdown: timeout reached, " + queueSize() + " task(s) not executed.");
+		return terminated;
+	}
+
+	/**
+	 * Called when the application terminates, drains the queue.<p>
+	 * The executor of the channel is stopped by ERChannel.shutdown() with the other components of the channel, in order.
+	 *
+	 * @param n
+	 */
+	public void applicationWillTerminate(NSNotification n)
+	{
+		log.info("method: applicationWillTerminate: draining the queue /queueSize: " + queueSize());
+		if (this == ERChannel.existingExecutor())
+			ERChannel.shutdown();
+		else
+			shutdown();
+	}
+
+	/**
+	 * Starts a thread for each waiting task which can be executed now. Called with the lock.<p>
+	 * If no thread can be started for a task, its future fails with the RejectedExecutionException and the other tasks 
+	 * wait for the next dispatch.
+	 */
+	private void dispatch()
+	{
+		Lane lane;
+		while (busyCount < threads && (lane = nextLane()) != null)
+		{
+			final Assignment assignment = take(lane);
+			try
+			{
+				threadSource.execute(new Runnable()
+				{
+					public void run()
+					{
+						work(assignment);
+					}
+				});
+			} catch (RejectedExecutionException e)
+			{
+				busyCount--;
+				assignment.lane.activeCount--;
+				if (busyCount == 0)
+					drained.signalAll();
+				log.error("method: dispatch: no thread can be started, the task of the lane " + assignment.lane.priority + " fails.", e);
+				((QueuedTask<?>) assignment.task).reject(e);
+				return;
+			}
+		}
+	}
+
+	private Assignment take(Lane lane)
+	{
+		busyCount++;
+		lane.activeCount++;
+		notFull.signalAll();
+		return new Assignment(lane, lane.queue.poll());
+	}
+
+	/**
+	 * Executes the task then the next ones while there are tasks the thread can take.
+	 */
+	private void work(Assignment assignment)
+	{
+		while (assignment != null)
+		{
+			// a FutureTask keeps the exception of the task for its future
+			assignment.task.run();
+			lock.lock();
+			try
+			{
+				busyCount--;
+				assignment.lane.activeCount--;
+				assignment.lane.executedCount++;
+				Lane lane = nextLane();
+				assignment = lane != null ? take(lane) : null;
+				// the thread budget of the lane may let other tasks start
+				dispatch();
+				if (busyCount == 0)
+					drained.signalAll();
+			} finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Smooth weighted round robin between the lanes which have waiting tasks and free threads: each lane earns its weight
+	 * at each choice and the chosen lane pays the sum of the weights, so the lanes are interleaved in proportion of their weights.
+	 */
+	private Lane nextLane()
+	{
+		Lane chosen = null;
+		int totalWeight = 0;
+		for (Lane lane : lanes)
+		{
+			if (lane.queue.isEmpty() || lane.activeCount >= lane.maxThreads)
+				continue;
+			lane.currentWeight += lane.weight;
+			totalWeight += lane.weight;
+			if (chosen == null || lane.currentWeight > chosen.currentWeight)
+				chosen = lane;
+		}
+		if (chosen != null)
+			chosen.currentWeight -= totalWeight;
+		return chosen;
+	}
+
+	/**
+	 * Creates daemon threads with a readable name.
+	 */
+	protected static class NamedThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		public NamedThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -14,6 +14,7 @@ public class ERCommunicationContext
 	private final String name;
 	private final Map<String, Object> data;
 	private Map<String, Object> sendingInformations;
+	private long timeToLive;
 	
 	public ERCommunicationContext(String name, Map<String, Object> data)
 	{
@@ -49,6 +50,21 @@ public class ERCommunicationContext
 	public Map<String, Object> getSendingInformations() {
 		return sendingInformations;
 	}
+
+	/**
+	 * Allow to drop the message when it waits too long in the channel executor, instead of delivering it late.<p>
+	 * It takes precedence over the time to live of the context declared in MediaContext.json.
+	 * 
+	 * @param timeToLive in milliseconds, 0 if the message doesn't expire.
+	 */
+	public void setTimeToLive(long timeToLive) 
+	{
+		this.timeToLive = timeToLive;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
 	
 	public String toString()
 	{
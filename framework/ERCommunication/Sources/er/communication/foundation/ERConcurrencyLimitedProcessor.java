@@ -0,0 +1,20 @@
+package er.communication.foundation;
+
+/**
+ * Interface to implement by a message processor which applies the concurrency limit of a media itself, where it uses its
+ * connections.<p>
+ * A processor which keeps its connections open between messages (see ERMailDeliveryEngine) holds a permit of the limit
+ * for each open connection, so the channel doesn't take a permit around the send: it would count the messages waiting for
+ * a connection instead of the connections.
+ *
+ * @author Philippe Rabier
+ * @see ERChannel#concurrencyLimitForMedia(ERMedia)
+ */
+public interface ERConcurrencyLimitedProcessor
+{
+	/**
+	 * @param media
+	 * @return <code>true</code> if the processor applies the concurrency limit of the media to its next sends.
+	 */
+	public boolean appliesConcurrencyLimit(ERMedia media);
+}
@@ -0,0 +1,114 @@
+package er.communication.foundation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps the messages which couldn't be delivered, for each media.<p>
+ * The store is bounded: when a media has too many dead letters, the oldest one is dropped.<br>
+ * The store is in memory: the dead letters are still pending in the outbox journal, so they are sent again after a
+ * restart. Removing or clearing a dead letter doesn't acknowledge it.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERDeadLetterStore
+{
+	private final int capacity;
+	private final Map<String, LinkedList<ERFailedMessage>> deadLetters = new HashMap<String, LinkedList<ERFailedMessage>>();
+	private long droppedCount;
+
+	/**
+	 * @param capacity maximum number of dead letters for each media
+	 */
+	public ERDeadLetterStore(int capacity)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("The capacity must be greater than 0 /capacity: " + capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param message
+	 * @return the oldest dead letter of the media dropped because the store was full, null if none was.
+	 */
+	public synchronized ERFailedMessage add(ERFailedMessage message)
+	{
+		String mediaName = message.getMedia().getName();
+		LinkedList<ERFailedMessage> messages = deadLetters.get(mediaName);
+		if (messages == null)
+		{
+			messages = new LinkedList<ERFailedMessage>();
+			deadLetters.put(mediaName, messages);
+		}
+		messages.add(message);
+		if (messages.size() > capacity)
+		{
+			droppedCount++;
+			return messages.removeFirst();
+		}
+		return null;
+	}
+
+	/**
+	 * @param media
+	 * @return a copy of the dead letters of the media, the oldest first.
+	 */
+	public synchronized List<ERFailedMessage> deadLetters(ERMedia media)
+	{
+		LinkedList<ERFailedMessage> messages = deadLetters.get(media.getName());
+		return messages == null ? new ArrayList<ERFailedMessage>() : new ArrayList<ERFailedMessage>(messages);
+	}
+
+	/**
+	 * @return the names of the medias which have dead letters.
+	 */
+	public synchronized Set<String> mediaNames()
+	{
+		Set<String> names = new TreeSet<String>();
+		for (Map.Entry<String, LinkedList<ERFailedMessage>> entry : deadLetters.entrySet())
+		{
+			if (!entry.getValue().isEmpty())
+				names.add(entry.getKey());
+		}
+		return names;
+	}
+
+	public synchronized int count(ERMedia media)
+	{
+		LinkedList<ERFailedMessage> messages = deadLetters.get(media.getName());
+		return messages == null ? 0 : messages.size();
+	}
+
+	public synchronized int count()
+	{
+		int count = 0;
+		for (LinkedList<ERFailedMessage> messages : deadLetters.values())
+			count += messages.size();
+		return count;
+	}
+
+	/**
+	 * @return the number of dead letters dropped because the store was full.
+	 */
+	public synchronized long droppedCount()
+	{
+		return droppedCount;
+	}
+
+	public synchronized boolean remove(ERFailedMessage message)
+	{
+		LinkedList<ERFailedMessage> messages = deadLetters.get(message.getMedia().getName());
+		return messages != null && messages.remove(message);
+	}
+
+	public synchronized void clear(ERMedia media)
+	{
+		deadLetters.remove(media.getName());
+	}
+}
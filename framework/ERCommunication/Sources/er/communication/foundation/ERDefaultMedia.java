@@ -7,21 +7,27 @@ import er.communication.mail.ERPlainTextMailProcessor;
 
 public enum ERDefaultMedia implements ERMedia 
 {
-	PLAIN_TEXT_MAIL(ERPlainTextMailProcessor.class),
-	HTML_MAIL(ERHTMLMailProcessor.class),
-	JABBER(ERSimpleMessageProcessor.class);
+	PLAIN_TEXT_MAIL(new ERMessageProcessorSupplier() {
+		public ERMessageProcessor newMessageProcessor() { return new ERPlainTextMailProcessor(); }
+	}),
+	HTML_MAIL(new ERMessageProcessorSupplier() {
+		public ERMessageProcessor newMessageProcessor() { return new ERHTMLMailProcessor(); }
+	}),
+	JABBER(new ERMessageProcessorSupplier() {
+		public ERMessageProcessor newMessageProcessor() { return new ERSimpleMessageProcessor(); }
+	});
 	
-	private final Class<? extends ERMessageProcessor> messageProcessorClass;
+	private final ERMessageProcessorSupplier messageProcessorSupplier;
 	
-	ERDefaultMedia(Class<? extends ERMessageProcessor> messageProcessorClass)
+	ERDefaultMedia(ERMessageProcessorSupplier messageProcessorSupplier)
 	{
-		this.messageProcessorClass = messageProcessorClass;
+		this.messageProcessorSupplier = messageProcessorSupplier;
 	}
 	
 	public String getName() { return toString(); }
 	
-	public ERMessageProcessor getMessageProcessor() throws InstantiationException, IllegalAccessException 
+	public ERMessageProcessor getMessageProcessor() 
 	{
-		return  (ERMessageProcessor)messageProcessorClass.newInstance();
+		return messageProcessorSupplier.newMessageProcessor();
 	}
 }
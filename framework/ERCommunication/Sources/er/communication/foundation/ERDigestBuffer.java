@@ -0,0 +1,429 @@
+package er.communication.foundation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.appserver.WOApplication;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+
+import er.extensions.foundation.ERXConstant;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Gathers the messages sent to the same recipient through the same media in the same context during a time window,
+ * and sends them as one message: a digest.<p>
+ * The digest mode is turned on for a context and a media in the sending configuration of MediaContext.json:
+ * <pre>
+ * "context1": {
+ *     "Medias": ["PLAIN_TEXT_MAIL"],
+ *     "PLAIN_TEXT_MAIL": { "digestWindow": 300, "digestMaxMessages": 20 }
+ * }
+ * </pre>
+ * The window starts with the first message of a recipient: the messages which come during the next digestWindow seconds
+ * are buffered, then they are sent together. A digest is sent before the end of its window when it reaches digestMaxMessages.
+ * A single message is sent as usual, otherwise the digest is sent in an ERDigestContext, rendered from the
+ * &lt;context name&gt;.digest templates.<br>
+ * The data processor of a digest processes the template of all its messages, so the messages sent with data processors
+ * which are not equal are gathered in different digests.<br>
+ * The buffered messages stay in the outbox journal until the digest is delivered, so they are sent again one by one
+ * if the application stops before. The buffer is flushed when the application terminates.<p>
+ * The buffer is configured with the following properties:
+ * <ul>
+ * <li>er.communication.foundation.ERDigestBuffer.maxMessages: the default number of messages of a digest (100 by default)
+ * <li>er.communication.foundation.ERDigestBuffer.threads: number of threads which send the digests (2 by default)
+ * </ul>
+ *
+ * @author Philippe Rabier
+ * @see ERDigestContext
+ */
+public class ERDigestBuffer
+{
+	private static final Logger log = Logger.getLogger(ERDigestBuffer.class);
+
+	/**
+	 * The key used in the sending configuration map to set the window of the digest, in seconds
+	 */
+	public static final String DIGEST_WINDOW = ERSendingConfiguration.DIGEST_WINDOW;
+
+	/**
+	 * The key used in the sending configuration map to set the maximum number of messages of a digest
+	 */
+	public static final String DIGEST_MAX_MESSAGES = ERSendingConfiguration.DIGEST_MAX_MESSAGES;
+
+	/**
+	 * Sends the digests for the buffer.
+	 */
+	public static interface Sender
+	{
+		/**
+		 * Sends the digest, it must not throw an exception.
+		 *
+		 * @param digest
+		 */
+		public void send(Digest digest);
+	}
+
+	/**
+	 * The messages gathered for a recipient, a context and a media.
+	 */
+	public static class Digest
+	{
+		private final ERRecipient recipient;
+		private final ERCommunicationContext context;
+		private final ERMedia media;
+		private final List<Map<String, Object>> messages = new ArrayList<Map<String, Object>>();
+		private final ERDataProcessor dataProcessor;
+		private long[] recordIds = new long[4];
+		private boolean closed;
+
+		protected Digest(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor)
+		{
+			this.recipient = recipient;
+			this.context = context;
+			this.media = media;
+			this.dataProcessor = dataProcessor;
+		}
+
+		private void add(ERCommunicationContext aContext, long recordId)
+		{
+			if (messages.size() == recordIds.length)
+			{
+				long[] newRecordIds = new long[recordIds.length * 2];
+				System.arraycopy(recordIds, 0, newRecordIds, 0, recordIds.length);
+				recordIds = newRecordIds;
+			}
+			recordIds[messages.size()] = recordId;
+			messages.add(aContext.getData());
+		}
+
+		public ERRecipient getRecipient() { return recipient; }
+		public ERMedia getMedia() { return media; }
+
+		/**
+		 * @return the context of the first message.
+		 */
+		public ERCommunicationContext getContext() { return context; }
+
+		/**
+		 * @return the data processor of all the messages, can be null.
+		 */
+		public ERDataProcessor getDataProcessor() { return dataProcessor; }
+
+		public synchronized int size()
+		{
+			return messages.size();
+		}
+
+		/**
+		 * @return the ids of the messages in the outbox journal, in the order they were sent.
+		 */
+		public synchronized long[] getRecordIds()
+		{
+			long[] ids = new long[messages.size()];
+			System.arraycopy(recordIds, 0, ids, 0, ids.length);
+			return ids;
+		}
+
+		/**
+		 * @return the context of the message to send: the context of the first message if there is only one message, an ERDigestContext otherwise.
+		 */
+		public synchronized ERCommunicationContext newContext()
+		{
+			if (messages.size() == 1)
+				return context;
+			return new ERDigestContext(context, new ArrayList<Map<String, Object>>(messages));
+		}
+
+		public String toString()
+		{
+			return "Digest: recipient: " + recipient.getIdentifier(media) + " /context: " + context.getName() + " /media: " + media.getName() + " /size: " + size();
+		}
+	}
+
+	/**
+	 * The key of the digest of a recipient, a context, a media and a data processor.
+	 */
+	private static class DigestKey
+	{
+		private final String name;
+		private final ERDataProcessor dataProcessor;
+
+		DigestKey(String name, ERDataProcessor dataProcessor)
+		{
+			this.name = name;
+			this.dataProcessor = dataProcessor;
+		}
+
+		public boolean equals(Object object)
+		{
+			if (!(object instanceof DigestKey))
+				return false;
+			DigestKey key = (DigestKey) object;
+			return name.equals(key.name) && (dataProcessor == null ? key.dataProcessor == null : dataProcessor.equals(key.dataProcessor));
+		}
+
+		public int hashCode()
+		{
+			return name.hashCode() * 31 + (dataProcessor != null ? dataProcessor.hashCode() : 0);
+		}
+	}
+
+	private final Sender sender;
+	private final int maxMessages;
+	private final ScheduledExecutorService timer;
+	private final ExecutorService sendExecutor;
+	private final ConcurrentMap<DigestKey, Digest> digests = new ConcurrentHashMap<DigestKey, Digest>();
+	private final AtomicLong bufferedCount = new AtomicLong();
+	private final AtomicLong sentCount = new AtomicLong();
+	private volatile boolean stopped;
+
+	public ERDigestBuffer(Sender sender)
+	{
+		this(sender,
+			ERXProperties.intForKeyWithDefault("er.communication.foundation.ERDigestBuffer.maxMessages", 100),
+			ERXProperties.intForKeyWithDefault("er.communication.foundation.ERDigestBuffer.threads", 2));
+		NSNotificationCenter.defaultCenter().addObserver(this,
+				new NSSelector<Void>("applicationWillTerminate", ERXConstant.NotificationClassArray),
+				WOApplication.ApplicationWillTerminateNotification,
+				null);
+	}
+
+	public ERDigestBuffer(Sender sender, int maxMessages, int threads)
+	{
+		if (sender == null)
+			throw new IllegalArgumentException("The sender can't be null.");
+		if (maxMessages <= 0 || threads <= 0)
+			throw new IllegalArgumentException("Invalid configuration /maxMessages: " + maxMessages + " /threads: " + threads);
+		this.sender = sender;
+		this.maxMessages = maxMessages;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ERChannelExecutor.NamedThreadFactory("ERDigestBuffer-timer"));
+		this.sendExecutor = Executors.newFixedThreadPool(threads, new ERChannelExecutor.NamedThreadFactory("ERDigestBuffer"));
+	}
+
+	/**
+	 * @param sendingConfiguration the configuration of the context and media, can be null
+	 * @return <code>true</code> if the messages of the context and media are gathered in digests.
+	 */
+	public static boolean isDigestEnabled(Map<String, Object> sendingConfiguration)
+	{
+		ERSendingConfiguration configuration = ERSendingConfiguration.valueOf(sendingConfiguration);
+		return configuration != null && configuration.getDigestWindow() > 0;
+	}
+
+	/**
+	 * Buffers the message if the digest mode is on for the context and the media.
+	 *
+	 * @param recipient
+	 * @param context
+	 * @param media
+	 * @param dataProcessor can be null
+	 * @param recordId the id of the message in the outbox journal, EROutboxJournal.NO_RECORD if it isn't journaled.
+	 * @param sendingConfiguration the configuration of the context and media, can be null
+	 * @return <code>false</code> if the message isn't buffered and must be sent now.
+	 */
+	public boolean offer(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor, long recordId, Map<String, Object> sendingConfiguration)
+	{
+		ERSendingConfiguration configuration = ERSendingConfiguration.valueOf(sendingConfiguration);
+		long window = configuration != null ? configuration.getDigestWindow() : 0;
+		if (window <= 0 || stopped)
+			return false;
+		String identifier = recipient.getIdentifier(media);
+		if (identifier == null)
+			return false;
+		int max = configuration.getDigestMaxMessages() > 0 ? configuration.getDigestMaxMessages() : maxMessages;
+
+		DigestKey key = new DigestKey(context.getName() + '\u0000' + media.getName() + '\u0000' + identifier, dataProcessor);
+		while (true)
+		{
+			Digest digest = digests.get(key);
+			boolean created = false;
+			if (digest == null)
+			{
+				Digest newDigest = new Digest(recipient, context, media, dataProcessor);
+				digest = digests.putIfAbsent(key, newDigest);
+				if (digest == null)
+				{
+					digest = newDigest;
+					created = true;
+				}
+			}
+			boolean full;
+			synchronized (digest)
+			{
+				if (digest.closed)
+				{
+					// the digest is being sent, the message starts a new one
+					digests.remove(key, digest);
+					continue;
+				}
+				digest.add(context, recordId);
+				full = digest.size() >= max;
+				if (full)
+					digest.closed = true;
+			}
+			bufferedCount.incrementAndGet();
+			if (full)
+			{
+				digests.remove(key, digest);
+				sendLater(digest);
+			}
+			else if (created)
+				scheduleFlush(key, digest, window);
+			return true;
+		}
+	}
+
+	/**
+	 * Sends all the buffered digests in the caller thread, without waiting for the end of their windows.
+	 *
+	 * @return the number of digests sent
+	 */
+	public int flush()
+	{
+		int count = 0;
+		for (Map.Entry<DigestKey, Digest> entry : digests.entrySet())
+		{
+			Digest digest = entry.getValue();
+			if (close(entry.getKey(), digest))
+			{
+				send(digest);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of digests waiting for the end of their windows.
+	 */
+	public int pendingCount()
+	{
+		return digests.size();
+	}
+
+	/**
+	 * @return the number of messages buffered since the buffer started.
+	 */
+	public long bufferedCount()
+	{
+		return bufferedCount.get();
+	}
+
+	/**
+	 * @return the number of digests sent since the buffer started.
+	 */
+	public long sentCount()
+	{
+		return sentCount.get();
+	}
+
+	/**
+	 * Stops the buffer: the buffered digests are sent and the next messages are not buffered anymore. The method returns
+	 * when the digests whose windows ended before are sent too.
+	 */
+	public void stop()
+	{
+		stopped = true;
+		timer.shutdownNow();
+		flush();
+		sendExecutor.shutdown();
+		try
+		{
+			if (!sendExecutor.awaitTermination(ERChannelExecutor.DEFAULT_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
+				log.warn("method: stop: timeout reached, digests are still being sent.");
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Called when the application terminates.<p>
+	 * The buffer of the channel is stopped by ERChannel.shutdown() with the other components of the channel, in order.
+	 *
+	 * @param n
+	 */
+	public void applicationWillTerminate(NSNotification n)
+	{
+		if (this == ERChannel.existingDigestBuffer())
+			ERChannel.shutdown();
+		else
+			stop();
+	}
+
+	private boolean close(DigestKey key, Digest digest)
+	{
+		synchronized (digest)
+		{
+			if (digest.closed)
+				return false;
+			digest.closed = true;
+		}
+		digests.remove(key, digest);
+		return true;
+	}
+
+	private void scheduleFlush(final DigestKey key, final Digest digest, long window)
+	{
+		try
+		{
+			timer.schedule(new Runnable()
+			{
+				public void run()
+				{
+					if (close(key, digest))
+						sendLater(digest);
+				}
+			}, window, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e)
+		{
+			// the buffer has been stopped meanwhile
+			if (close(key, digest))
+				send(digest);
+		}
+	}
+
+	private void sendLater(final Digest digest)
+	{
+		try
+		{
+			sendExecutor.execute(new Runnable()
+			{
+				public void run()
+				{
+					send(digest);
+				}
+			});
+		} catch (RejectedExecutionException e)
+		{
+			send(digest);
+		}
+	}
+
+	private void send(Digest digest)
+	{
+		if (log.isDebugEnabled())
+			log.debug("method: send: " + digest);
+		try
+		{
+			sender.send(digest);
+			sentCount.incrementAndGet();
+		} catch (RuntimeException e)
+		{
+			log.error("method: send: the digest can't be sent /digest: " + digest, e);
+		}
+	}
+}
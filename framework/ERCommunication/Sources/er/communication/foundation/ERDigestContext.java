@@ -0,0 +1,50 @@
+package er.communication.foundation;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The context of a digest: one message which gathers the messages sent to the same recipient and media during the
+ * digest window (see ERDigestBuffer).<p>
+ * Its name is the name of the original context with the ".digest" suffix, so the templates of the digest are
+ * &lt;context name&gt;.digest and &lt;context name&gt;.digest.subject. Its data is the data of the last message with:
+ * <ul>
+ * <li>digestMessages: the list of the data of the gathered messages, in the order they were sent
+ * <li>digestCount: the number of gathered messages
+ * </ul>
+ * The message processor and the sending configuration are the ones of the original context.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERDigestContext extends ERCommunicationContext
+{
+	public static final String DIGEST_SUFFIX = ".digest";
+	public static final String DIGEST_MESSAGES = "digestMessages";
+	public static final String DIGEST_COUNT = "digestCount";
+
+	private final ERCommunicationContext originalContext;
+
+	/**
+	 * @param originalContext the context of the gathered messages
+	 * @param messages the data of the gathered messages, the last one is used as the data of the digest.
+	 */
+	public ERDigestContext(ERCommunicationContext originalContext, List<Map<String, Object>> messages)
+	{
+		super(originalContext.getName() + DIGEST_SUFFIX, new ERMergedDataMap(messages.isEmpty() ? null : messages.get(messages.size() - 1),
+				new String[] { DIGEST_MESSAGES, DIGEST_COUNT },
+				new Object[] { Collections.unmodifiableList(messages), Integer.valueOf(messages.size()) }));
+		this.originalContext = originalContext;
+		setSendingInformations(originalContext.getSendingInformations());
+		setTimeToLive(originalContext.getTimeToLive());
+	}
+
+	/**
+	 * @return the context used to find the message processor, the medias and the limits.
+	 */
+	public ERCommunicationContext getOriginalContext()
+	{
+		return originalContext;
+	}
+}
@@ -0,0 +1,96 @@
+package er.communication.foundation;
+
+import java.util.Date;
+
+/**
+ * A message which failed at least once, retried by the retry engine or kept in the dead-letter store.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERFailedMessage
+{
+	private final ERRecipient recipient;
+	private final ERCommunicationContext context;
+	private final ERMedia media;
+	private final ERDataProcessor dataProcessor;
+	private final long[] recordIds;
+	private final Date firstFailureDate = new Date();
+	private volatile int attempts;
+	private volatile Throwable lastFailure;
+	private volatile Date lastFailureDate;
+
+	/**
+	 * @param recipient
+	 * @param context
+	 * @param media
+	 * @param dataProcessor can be null
+	 * @param recordId the id of the message in the outbox journal, EROutboxJournal.NO_RECORD if it isn't journaled.
+	 */
+	public ERFailedMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor, long recordId)
+	{
+		this(recipient, context, media, dataProcessor, new long[] { recordId });
+	}
+
+	/**
+	 * Used for a digest, which is acknowledged for all its messages when it's delivered.
+	 *
+	 * @param recipient
+	 * @param context
+	 * @param media
+	 * @param dataProcessor can be null
+	 * @param recordIds the ids of the messages in the outbox journal, EROutboxJournal.NO_RECORD for the messages which aren't journaled.
+	 */
+	public ERFailedMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor, long[] recordIds)
+	{
+		if (recordIds == null || recordIds.length == 0)
+			throw new IllegalArgumentException("The message must have at least one record id.");
+		this.recipient = recipient;
+		this.context = context;
+		this.media = media;
+		this.dataProcessor = dataProcessor;
+		this.recordIds = recordIds.clone();
+	}
+
+	void failed(Throwable failure)
+	{
+		attempts++;
+		lastFailure = failure;
+		lastFailureDate = new Date();
+	}
+
+	void reset()
+	{
+		attempts = 0;
+	}
+
+	public ERRecipient getRecipient() { return recipient; }
+	public ERCommunicationContext getContext() { return context; }
+	public ERMedia getMedia() { return media; }
+	public ERDataProcessor getDataProcessor() { return dataProcessor; }
+
+	/**
+	 * @return the id of the first message in the outbox journal.
+	 */
+	public long getRecordId() { return recordIds[0]; }
+
+	/**
+	 * @return the ids of the messages in the outbox journal, several for a digest.
+	 */
+	public long[] getRecordIds() { return recordIds.clone(); }
+
+	public Date getFirstFailureDate() { return firstFailureDate; }
+
+	/**
+	 * @return the number of failed attempts
+	 */
+	public int getAttempts() { return attempts; }
+	public Throwable getLastFailure() { return lastFailure; }
+	public Date getLastFailureDate() { return lastFailureDate; }
+
+	public String toString()
+	{
+		return "ERFailedMessage: recipient: " + recipient + " /context: " + (context != null ? context.getName() : null) + " /media: " + media
+			+ " /attempts: " + attempts + " /lastFailure: " + lastFailure;
+	}
+}
@@ -1,7 +1,5 @@
 package er.communication.foundation;
 
-import java.lang.reflect.InvocationTargetException;
-
 /**
  * Examples of Medias:
  * <ul>
@@ -17,5 +15,13 @@ public interface ERMedia
 {
 	String getName();
 	
-	ERMessageProcessor getMessageProcessor() throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException;
+	/**
+	 * Creates a new message processor for this media.<p>
+	 * It's called once for each context using the media, the processor is then shared by all threads 
+	 * so it must not keep the state of a send in its fields.
+	 * 
+	 * @return a new message processor
+	 * @see ERMessageProcessorSupplier
+	 */
+	ERMessageProcessor getMessageProcessor();
 }
@@ -0,0 +1,211 @@
+package er.communication.foundation;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only map which layers a few values over the data of a context, without copying the data.<p>
+ * The merged data of a message is the data of its context plus the values of the recipient (first name, last name and
+ * personalized keys). Copying the context data for each recipient and media makes the garbage proportional to the
+ * size of the data: this map only keeps a reference to the data and the arrays of recipient keys and values, so
+ * building it costs the same whatever the size of the context data.<br>
+ * A key of the overlay hides the same key of the data, and when a key is twice in the overlay the last value wins.
+ * get() and containsKey() don't allocate anything, which is what Mustache and the data processors use; iterating
+ * walks the overlay then the data.<p>
+ * The map is read-only: a processor which needs to change the data must copy it.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERMergedDataMap extends AbstractMap<String, Object>
+{
+	private static final String[] RECIPIENT_KEYS = new String[] { ERAbstractMessageProcessor.FIRST_NAME, ERAbstractMessageProcessor.LAST_NAME };
+
+	private final Map<String, Object> data;
+	private final String[] keys;
+	private final Object[] values;
+	private Set<Map.Entry<String, Object>> entrySet;
+
+	/**
+	 * @param data the data of the context, can be null. It must not be modified while the map is used.
+	 * @param keys the keys of the overlay
+	 * @param values the values of the overlay, in the same order as the keys
+	 */
+	public ERMergedDataMap(Map<String, Object> data, String[] keys, Object[] values)
+	{
+		if (keys.length != values.length)
+			throw new IllegalArgumentException("There must be as many keys as values /keys: " + keys.length + " /values: " + values.length);
+		this.data = data != null ? data : Collections.<String, Object> emptyMap();
+		this.keys = keys;
+		this.values = values;
+	}
+
+	/**
+	 * @param data the data of the context, can be null
+	 * @param recipient
+	 * @return the data of the context with the first and last names of the recipient.
+	 */
+	public static ERMergedDataMap recipientData(Map<String, Object> data, ERRecipient recipient)
+	{
+		return new ERMergedDataMap(data, RECIPIENT_KEYS, new Object[] { recipient.getFirstName(), recipient.getLastName() });
+	}
+
+	/**
+	 * @return the data under the overlay, never null.
+	 */
+	public Map<String, Object> data()
+	{
+		return data;
+	}
+
+	/**
+	 * @return a copy of the keys of the overlay, the values which differ from a recipient to another.
+	 */
+	public String[] overlayKeys()
+	{
+		return keys.clone();
+	}
+
+	@Override
+	public Object get(Object key)
+	{
+		int index = indexOfKey(key);
+		return index >= 0 ? values[index] : data.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return indexOfKey(key) >= 0 || data.containsKey(key);
+	}
+
+	@Override
+	public int size()
+	{
+		int size = data.size();
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (isVisible(i) && !data.containsKey(keys[i]))
+				size++;
+		}
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return keys.length == 0 && data.isEmpty();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet()
+	{
+		if (entrySet == null)
+		{
+			entrySet = new AbstractSet<Map.Entry<String, Object>>()
+			{
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator()
+				{
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size()
+				{
+					return ERMergedDataMap.this.size();
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	@Override
+	public Object put(String key, Object value)
+	{
+		throw new UnsupportedOperationException("The merged data is read-only.");
+	}
+
+	@Override
+	public Object remove(Object key)
+	{
+		throw new UnsupportedOperationException("The merged data is read-only.");
+	}
+
+	@Override
+	public void clear()
+	{
+		throw new UnsupportedOperationException("The merged data is read-only.");
+	}
+
+	/**
+	 * @return the last index of the key in the overlay, -1 if it isn't in the overlay.
+	 */
+	private int indexOfKey(Object key)
+	{
+		for (int i = keys.length - 1; i >= 0; i--)
+		{
+			if (keys[i] == null ? key == null : keys[i].equals(key))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return <code>false</code> if the key at the index is hidden by the same key later in the overlay.
+	 */
+	private boolean isVisible(int index)
+	{
+		return indexOfKey(keys[index]) == index;
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, Object>>
+	{
+		private int index = -1;
+		private final Iterator<Map.Entry<String, Object>> dataIterator = data.entrySet().iterator();
+		private Map.Entry<String, Object> next;
+
+		public boolean hasNext()
+		{
+			if (next != null)
+				return true;
+			while (++index < keys.length)
+			{
+				if (isVisible(index))
+				{
+					next = new AbstractMap.SimpleImmutableEntry<String, Object>(keys[index], values[index]);
+					return true;
+				}
+			}
+			while (dataIterator.hasNext())
+			{
+				Map.Entry<String, Object> entry = dataIterator.next();
+				if (indexOfKey(entry.getKey()) < 0)
+				{
+					next = new AbstractMap.SimpleImmutableEntry<String, Object>(entry);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public Map.Entry<String, Object> next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<String, Object> entry = next;
+			next = null;
+			return entry;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException("The merged data is read-only.");
+		}
+	}
+}
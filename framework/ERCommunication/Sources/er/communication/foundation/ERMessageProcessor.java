@@ -5,7 +5,9 @@ import java.util.Map;
 /**
  * This interface defines the methods to create your own message processor.<p>
  * It's unlikely you create one from scratch and you should subclass ERAbstractMessageProcessor
- * but it's up to you!
+ * but it's up to you!<br>
+ * A message processor is created once for each context and media then used by all threads, so
+ * an implementation must be thread safe.
  * 
  * @author Philippe Rabier
  *
@@ -27,6 +29,7 @@ public interface ERMessageProcessor
 	 * @param context in which the message is sent (a new user has signed up, a password has been modified,...)
 	 * @param media the media to use (plain text message, jabber, ...)
 	 * @param dataProcessor an optional object which can be used to create the content in some complex cases.
+	 * @throws ERSendException if the message can't be delivered, the channel gives it to the retry engine.
 	 */
 	void sendMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor);
 }
@@ -0,0 +1,14 @@
+package er.communication.foundation;
+
+/**
+ * Interface to implement when a media creates its message processor.<p>
+ * It replaces the instantiation by reflection: the supplier is called once for each context using the media
+ * and the returned processor is reused by all threads.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public interface ERMessageProcessorSupplier
+{
+	public ERMessageProcessor newMessageProcessor();
+}
@@ -0,0 +1,18 @@
+package er.communication.foundation;
+
+import java.util.Map;
+
+/**
+ * A recipient which brings its own values for the personalized keys of a campaign (a discount code, the name of
+ * a product, ...).<p>
+ * Only the keys declared as personalized by the campaign are read from this map, the other values come from the
+ * communication context.
+ *
+ * @author Philippe Rabier
+ *
+ * @see ERChannel#sendCampaign(java.util.List, ERCommunicationContext, ERDataProcessor, String...)
+ */
+public interface ERPersonalizedRecipient extends ERRecipient
+{
+	Map<String, Object> getPersonalizedData();
+}
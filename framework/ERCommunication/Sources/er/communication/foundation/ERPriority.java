@@ -0,0 +1,34 @@
+package er.communication.foundation;
+
+/**
+ * The priority of the messages of a context, declared in MediaContext.json with the "Priority" key.<p>
+ * Each priority has its own lane in the channel executor: a queue, a weight used by the scheduler and a maximum
+ * number of threads (see ERChannelExecutor). So a password reset mail doesn't wait behind a newsletter.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public enum ERPriority
+{
+	/** The messages expected by a user right now: password reset, confirmation, ... */
+	TRANSACTIONAL(8),
+	/** The default priority. */
+	NORMAL(4),
+	/** The messages sent to many recipients: newsletters, campaigns, ... */
+	BULK(1);
+
+	private final int defaultWeight;
+
+	ERPriority(int defaultWeight)
+	{
+		this.defaultWeight = defaultWeight;
+	}
+
+	/**
+	 * @return the share of the threads given to the lane when all lanes have waiting tasks.
+	 */
+	public int defaultWeight()
+	{
+		return defaultWeight;
+	}
+}
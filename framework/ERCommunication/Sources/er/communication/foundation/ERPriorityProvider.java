@@ -0,0 +1,18 @@
+package er.communication.foundation;
+
+/**
+ * Interface to implement when a media provider also knows the priority and the time to live of the contexts.
+ * 
+ * @author Philippe Rabier
+ *
+ */
+public interface ERPriorityProvider 
+{
+	public ERPriority getPriority(String contextName);
+
+	/**
+	 * @param contextName
+	 * @return the time to live of the messages of the context in milliseconds, 0 if they don't expire.
+	 */
+	public long getTimeToLive(String contextName);
+}
@@ -0,0 +1,129 @@
+package er.communication.foundation;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * The hours of the day during which the messages of a context are not sent, in the time zone of the recipient.<p>
+ * The quiet hours are described as "HH:mm-HH:mm", for example "22:00-08:00" holds the messages from 10 PM until 8 AM
+ * the next morning. A message which should be sent during the quiet hours is sent at their end.<br>
+ * The time zone of the recipient is given by ERTimeZoneRecipient. For the other recipients, it's read from the
+ * er.communication.foundation.ERQuietHours.defaultTimeZone property (the time zone of the JVM by default).
+ *
+ * @author Philippe Rabier
+ *
+ * @see ERQuietHoursProvider
+ * @see ERTimeZoneRecipient
+ */
+public class ERQuietHours
+{
+	private static final int MINUTES_PER_DAY = 24 * 60;
+
+	private final int startMinute;
+	private final int endMinute;
+
+	/**
+	 * @param startMinute the minute of the day when the quiet hours start
+	 * @param endMinute the minute of the day when the quiet hours end, before startMinute if they end the next day
+	 */
+	public ERQuietHours(int startMinute, int endMinute)
+	{
+		if (startMinute < 0 || startMinute >= MINUTES_PER_DAY || endMinute < 0 || endMinute >= MINUTES_PER_DAY || startMinute == endMinute)
+			throw new IllegalArgumentException("Invalid quiet hours /startMinute: " + startMinute + " /endMinute: " + endMinute);
+		this.startMinute = startMinute;
+		this.endMinute = endMinute;
+	}
+
+	/**
+	 * @param description the quiet hours as "HH:mm-HH:mm"
+	 * @return the quiet hours
+	 * @throws IllegalArgumentException if the description is malformed.
+	 */
+	public static ERQuietHours parse(String description)
+	{
+		int separator = description != null ? description.indexOf('-') : -1;
+		if (separator < 0)
+			throw new IllegalArgumentException("The quiet hours must be described as HH:mm-HH:mm: " + description);
+		return new ERQuietHours(parseMinute(description.substring(0, separator), description), parseMinute(description.substring(separator + 1), description));
+	}
+
+	private static int parseMinute(String time, String description)
+	{
+		int colon = time.indexOf(':');
+		try
+		{
+			int hour = Integer.parseInt(time.substring(0, colon).trim());
+			int minute = Integer.parseInt(time.substring(colon + 1).trim());
+			if (hour >= 0 && hour < 24 && minute >= 0 && minute < 60)
+				return hour * 60 + minute;
+		} catch (RuntimeException e)
+		{
+			// reported below
+		}
+		throw new IllegalArgumentException("The quiet hours must be described as HH:mm-HH:mm: " + description);
+	}
+
+	/**
+	 * @param recipient
+	 * @return the time zone of the recipient, or the default time zone.
+	 */
+	public static TimeZone timeZoneForRecipient(ERRecipient recipient)
+	{
+		if (recipient instanceof ERTimeZoneRecipient)
+		{
+			TimeZone timeZone = ((ERTimeZoneRecipient) recipient).getTimeZone();
+			if (timeZone != null)
+				return timeZone;
+		}
+		String timeZoneID = ERXProperties.stringForKey("er.communication.foundation.ERQuietHours.defaultTimeZone");
+		return timeZoneID != null ? TimeZone.getTimeZone(timeZoneID) : TimeZone.getDefault();
+	}
+
+	/**
+	 * @param time in milliseconds
+	 * @param timeZone
+	 * @return <code>true</code> if the time is during the quiet hours in the time zone.
+	 */
+	public boolean isQuiet(long time, TimeZone timeZone)
+	{
+		Calendar calendar = Calendar.getInstance(timeZone);
+		calendar.setTimeInMillis(time);
+		return isQuietMinute(calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE));
+	}
+
+	/**
+	 * @param time in milliseconds
+	 * @param timeZone
+	 * @return the end of the quiet hours if the time is during the quiet hours, the time otherwise.
+	 */
+	public long nextAllowedTime(long time, TimeZone timeZone)
+	{
+		Calendar calendar = Calendar.getInstance(timeZone);
+		calendar.setTimeInMillis(time);
+		int minute = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+		if (!isQuietMinute(minute))
+			return time;
+		// the quiet hours end the next day
+		if (startMinute > endMinute && minute >= startMinute)
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+		calendar.set(Calendar.HOUR_OF_DAY, endMinute / 60);
+		calendar.set(Calendar.MINUTE, endMinute % 60);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTimeInMillis();
+	}
+
+	private boolean isQuietMinute(int minute)
+	{
+		if (startMinute < endMinute)
+			return minute >= startMinute && minute < endMinute;
+		return minute >= startMinute || minute < endMinute;
+	}
+
+	public String toString()
+	{
+		return String.format("%02d:%02d-%02d:%02d", Integer.valueOf(startMinute / 60), Integer.valueOf(startMinute % 60), Integer.valueOf(endMinute / 60), Integer.valueOf(endMinute % 60));
+	}
+}
@@ -0,0 +1,16 @@
+package er.communication.foundation;
+
+/**
+ * Interface to implement when a media provider also knows the quiet hours of the contexts.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public interface ERQuietHoursProvider
+{
+	/**
+	 * @param contextName
+	 * @return the quiet hours of the context, null if its messages can be sent at any time.
+	 */
+	public ERQuietHours getQuietHours(String contextName);
+}
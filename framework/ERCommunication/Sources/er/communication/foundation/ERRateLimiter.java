@@ -0,0 +1,187 @@
+package er.communication.foundation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket which limits the number of messages sent per second.<p>
+ * The bucket is refilled at the allowed rate and holds at most burst tokens, so a limiter idle for a while
+ * accepts a short burst then the allowed rate. When there is no token left, acquire() makes the caller wait
+ * until its turn: the messages are never dropped, the sending threads are slowed down and the queues in front of
+ * them fill up and push back on their own callers.
+ *
+ * @author Philippe Rabier
+ * @see ERRateLimiterManager
+ */
+public class ERRateLimiter
+{
+	private final String name;
+	private double permitsPerSecond;
+	private double burst;
+	private double storedPermits;
+	private long lastRefill = System.nanoTime();
+	private long windowStart = System.nanoTime();
+	private int windowCount;
+	private int lastWindowCount;
+	private final AtomicInteger waitingCount = new AtomicInteger();
+	private final AtomicLong acquiredCount = new AtomicLong();
+
+	/**
+	 * @param name used to identify the limiter (media name, media name and context name)
+	 * @param permitsPerSecond the allowed rate
+	 * @param burst the number of messages which can be sent at once
+	 */
+	public ERRateLimiter(String name, double permitsPerSecond, double burst)
+	{
+		this.name = name;
+		setRate(permitsPerSecond, burst);
+		this.storedPermits = this.burst;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Changes the allowed rate, the tokens already stored are kept up to the new burst.
+	 *
+	 * @param aPermitsPerSecond
+	 * @param aBurst
+	 */
+	public synchronized void setRate(double aPermitsPerSecond, double aBurst)
+	{
+		if (aPermitsPerSecond <= 0)
+			throw new IllegalArgumentException("The rate must be greater than 0 /name: " + name + " /rate: " + aPermitsPerSecond);
+		refill(System.nanoTime());
+		this.permitsPerSecond = aPermitsPerSecond;
+		this.burst = Math.max(aBurst, 1);
+		this.storedPermits = Math.min(storedPermits, burst);
+	}
+
+	/**
+	 * @return the allowed rate, in messages per second
+	 */
+	public synchronized double getRate()
+	{
+		return permitsPerSecond;
+	}
+
+	public synchronized double getBurst()
+	{
+		return burst;
+	}
+
+	/**
+	 * Takes a token, waiting for it if the bucket is empty.
+	 *
+	 * @return the time waited in milliseconds
+	 * @throws IllegalStateException if the thread is interrupted while waiting
+	 */
+	public long acquire()
+	{
+		long wait;
+		synchronized (this)
+		{
+			wait = reserve(System.nanoTime());
+		}
+		if (wait <= 0)
+			return 0;
+		waitingCount.incrementAndGet();
+		try
+		{
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the rate limiter " + name, e);
+		} finally
+		{
+			waitingCount.decrementAndGet();
+		}
+		return TimeUnit.NANOSECONDS.toMillis(wait);
+	}
+
+	/**
+	 * Takes a token only if one is available now.
+	 *
+	 * @return <code>true</code> if a token has been taken
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		long now = System.nanoTime();
+		refill(now);
+		if (storedPermits < 1)
+			return false;
+		reserve(now);
+		return true;
+	}
+
+	/**
+	 * @return the number of messages which went through the limiter during the last second.
+	 */
+	public synchronized int currentRate()
+	{
+		updateWindow(System.nanoTime());
+		return lastWindowCount;
+	}
+
+	/**
+	 * @return the number of threads waiting for a token
+	 */
+	public int waitingCount()
+	{
+		return waitingCount.get();
+	}
+
+	/**
+	 * @return the number of tokens taken since the limiter has been created
+	 */
+	public long acquiredCount()
+	{
+		return acquiredCount.get();
+	}
+
+	/**
+	 * Takes a token which may not be available yet: the stored tokens become negative and the caller
+	 * waits until the bucket is refilled up to its token.
+	 *
+	 * @return the time to wait in nanoseconds
+	 */
+	private long reserve(long now)
+	{
+		refill(now);
+		storedPermits -= 1;
+		acquiredCount.incrementAndGet();
+		updateWindow(now);
+		windowCount++;
+		if (storedPermits >= 0)
+			return 0;
+		return (long) (-storedPermits / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+	}
+
+	private void refill(long now)
+	{
+		if (now > lastRefill)
+		{
+			storedPermits = Math.min(burst, storedPermits + (now - lastRefill) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+			lastRefill = now;
+		}
+	}
+
+	private void updateWindow(long now)
+	{
+		long elapsed = now - windowStart;
+		if (elapsed < TimeUnit.SECONDS.toNanos(1))
+			return;
+		lastWindowCount = elapsed < TimeUnit.SECONDS.toNanos(2) ? windowCount : 0;
+		windowCount = 0;
+		windowStart = now;
+	}
+
+	public String toString()
+	{
+		return "ERRateLimiter: name: " + name + " /rate: " + getRate() + " /burst: " + getBurst() + " /currentRate: " + currentRate() + " /waiting: " + waitingCount();
+	}
+}
@@ -0,0 +1,273 @@
+package er.communication.foundation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import er.communication.metrics.ERCommunicationMetrics;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Handles the rate limiters of the medias and of the contexts.<p>
+ * The channel takes a token from the limiter of the context then from the limiter of the media, if they exist, before
+ * each message. So the limit of a media protects the server (SMTP relay, XMPP server, ...) whatever the context and
+ * the limit of a context slows down a campaign without slowing down the other contexts: a message waiting for its
+ * context doesn't hold a token of the media which another context could use.<p>
+ * The limit of a media is set with the properties:
+ * <ul>
+ * <li>er.communication.foundation.ERRateLimiterManager.rate.&lt;media name&gt;: messages per second
+ * <li>er.communication.foundation.ERRateLimiterManager.burst.&lt;media name&gt;: messages sent at once (the rate by default)
+ * </ul>
+ * The limit of a context is set in the sending configuration of the media in MediaContext.json, with the rateLimit and rateBurst keys,
+ * or with the er.communication.foundation.ERRateLimiterManager.rate.&lt;media name&gt;.&lt;context name&gt; and
+ * er.communication.foundation.ERRateLimiterManager.burst.&lt;media name&gt;.&lt;context name&gt; properties which take precedence.<br>
+ * There is no limit by default.<p>
+ * The limits can be changed at runtime with setMediaRate() and setContextRate(), or with JMX: the shared manager is
+ * registered with the name <code>er.communication:type=ERRateLimiterManager</code>. A limit set at runtime overrides the
+ * configuration until it's removed, clear() and the reload of MediaContext.json keep it.
+ *
+ * @author Philippe Rabier
+ * @see ERRateLimiter
+ */
+public class ERRateLimiterManager implements ERRateLimiterManagerMBean
+{
+	/**
+	 * The key used in the sending configuration map to set the rate of the context
+	 */
+	public static final String RATE_LIMIT = ERSendingConfiguration.RATE_LIMIT;
+
+	/**
+	 * The key used in the sending configuration map to set the burst of the context
+	 */
+	public static final String RATE_BURST = ERSendingConfiguration.RATE_BURST;
+
+	private static final String PROPERTY_PREFIX = "er.communication.foundation.ERRateLimiterManager.";
+	private static final ERRateLimiter NO_LIMIT = new ERRateLimiter("NO_LIMIT", 1, 1);
+	private static volatile ERRateLimiterManager sharedInstance;
+
+	private final ConcurrentMap<String, ERRateLimiter> limiters = new ConcurrentHashMap<String, ERRateLimiter>();
+	// the rate and burst of the limits set at runtime
+	private final ConcurrentMap<String, double[]> overrides = new ConcurrentHashMap<String, double[]>();
+
+	/**
+	 * @return the manager used by the channels.
+	 */
+	public static ERRateLimiterManager sharedInstance()
+	{
+		if (sharedInstance == null)
+		{
+			synchronized(ERRateLimiterManager.class) {
+				if (sharedInstance == null)
+				{
+					ERRateLimiterManager manager = new ERRateLimiterManager();
+					ERCommunicationMetrics.sharedInstance().register(manager, ERCommunicationMetrics.DOMAIN + ":type=ERRateLimiterManager");
+					sharedInstance = manager;
+				}
+			}
+		}
+		return sharedInstance;
+	}
+
+	public static void setSharedInstance(ERRateLimiterManager manager)
+	{
+		if (manager != null)
+			ERCommunicationMetrics.sharedInstance().register(manager, ERCommunicationMetrics.DOMAIN + ":type=ERRateLimiterManager");
+		sharedInstance = manager;
+	}
+
+	/**
+	 * Takes a token from the limiter of the context then from the limiter of the media, waiting if needed.
+	 *
+	 * @param contextName
+	 * @param media
+	 * @param sendingConfiguration the configuration of the context and media, can be null
+	 * @return the time waited in milliseconds
+	 */
+	public long acquire(String contextName, ERMedia media, Map<String, Object> sendingConfiguration)
+	{
+		long waited = 0;
+		ERRateLimiter limiter = limiterForContext(contextName, media, sendingConfiguration);
+		if (limiter != null)
+			waited += limiter.acquire();
+		limiter = limiterForMedia(media);
+		if (limiter != null)
+			waited += limiter.acquire();
+		return waited;
+	}
+
+	/**
+	 * @param media
+	 * @return the limiter of the media, null if there is no limit.
+	 */
+	public ERRateLimiter limiterForMedia(ERMedia media)
+	{
+		String key = media.getName();
+		ERRateLimiter limiter = limiters.get(key);
+		if (limiter == null)
+		{
+			double[] override = overrides.get(key);
+			if (override != null)
+				limiter = register(key, new ERRateLimiter(key, override[0], override[1]));
+			else
+				limiter = register(key, newLimiter(key, ERXProperties.stringForKey(PROPERTY_PREFIX + "rate." + key), ERXProperties.stringForKey(PROPERTY_PREFIX + "burst." + key)));
+		}
+		return limiter == NO_LIMIT ? null : limiter;
+	}
+
+	/**
+	 * @param contextName
+	 * @param media
+	 * @param sendingConfiguration the configuration of the context and media, can be null
+	 * @return the limiter of the context for the media, null if there is no limit.
+	 */
+	public ERRateLimiter limiterForContext(String contextName, ERMedia media, Map<String, Object> sendingConfiguration)
+	{
+		String key = media.getName() + "." + contextName;
+		ERRateLimiter limiter = limiters.get(key);
+		if (limiter == null)
+		{
+			String rate = ERXProperties.stringForKey(PROPERTY_PREFIX + "rate." + key);
+			ERSendingConfiguration configuration = ERSendingConfiguration.valueOf(sendingConfiguration);
+			double[] override = overrides.get(key);
+			if (override != null)
+				limiter = register(key, new ERRateLimiter(key, override[0], override[1]));
+			else if (rate == null && configuration != null)
+				limiter = register(key, newLimiter(key, configuration.getRateLimit(), configuration.getRateBurst()));
+			else
+				limiter = register(key, newLimiter(key, rate, ERXProperties.stringForKey(PROPERTY_PREFIX + "burst." + key)));
+		}
+		return limiter == NO_LIMIT ? null : limiter;
+	}
+
+	/**
+	 * Sets or replaces the limit of a media at runtime.
+	 *
+	 * @param media
+	 * @param permitsPerSecond
+	 * @param burst
+	 */
+	public void setMediaRate(ERMedia media, double permitsPerSecond, double burst)
+	{
+		setRate(media.getName(), permitsPerSecond, burst);
+	}
+
+	public void setMediaRate(String mediaName, double permitsPerSecond, double burst)
+	{
+		setRate(mediaName, permitsPerSecond, burst);
+	}
+
+	/**
+	 * Sets or replaces the limit of a context at runtime.
+	 *
+	 * @param contextName
+	 * @param media
+	 * @param permitsPerSecond
+	 * @param burst
+	 */
+	public void setContextRate(String contextName, ERMedia media, double permitsPerSecond, double burst)
+	{
+		setRate(media.getName() + "." + contextName, permitsPerSecond, burst);
+	}
+
+	public void setContextRate(String contextName, String mediaName, double permitsPerSecond, double burst)
+	{
+		setRate(mediaName + "." + contextName, permitsPerSecond, burst);
+	}
+
+	public boolean removeOverride(String name)
+	{
+		if (overrides.remove(name) == null)
+			return false;
+		limiters.remove(name);
+		return true;
+	}
+
+	public String[] getLimiters()
+	{
+		List<String> result = new ArrayList<String>();
+		for (ERRateLimiter limiter : limiters().values())
+			result.add(limiter.toString());
+		return result.toArray(new String[result.size()]);
+	}
+
+	public String[] getOverrides()
+	{
+		List<String> result = new ArrayList<String>();
+		for (Map.Entry<String, double[]> entry : new TreeMap<String, double[]>(overrides).entrySet())
+			result.add(entry.getKey() + " /rate: " + entry.getValue()[0] + " /burst: " + entry.getValue()[1]);
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * @return the limiters by name (the media name or the media name and the context name), sorted by name.
+	 */
+	public Map<String, ERRateLimiter> limiters()
+	{
+		Map<String, ERRateLimiter> result = new TreeMap<String, ERRateLimiter>();
+		for (Map.Entry<String, ERRateLimiter> entry : limiters.entrySet())
+		{
+			if (entry.getValue() != NO_LIMIT)
+				result.put(entry.getKey(), entry.getValue());
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Forgets all limiters, they are created again from the configuration and the limits set at runtime.
+	 */
+	public void clear()
+	{
+		limiters.clear();
+	}
+
+	private void setRate(String key, double permitsPerSecond, double burst)
+	{
+		// checked by the limiter before the override is kept
+		ERRateLimiter newLimiter = new ERRateLimiter(key, permitsPerSecond, burst);
+		overrides.put(key, new double[] { permitsPerSecond, burst });
+		ERRateLimiter limiter = limiters.get(key);
+		if (limiter != null && limiter != NO_LIMIT)
+			limiter.setRate(permitsPerSecond, burst);
+		else
+			limiters.put(key, newLimiter);
+	}
+
+	private ERRateLimiter register(String key, ERRateLimiter limiter)
+	{
+		ERRateLimiter existing = limiters.putIfAbsent(key, limiter);
+		return existing != null ? existing : limiter;
+	}
+
+	private static ERRateLimiter newLimiter(String key, Object rate, Object burst)
+	{
+		return newLimiter(key, doubleValue(rate), doubleValue(burst));
+	}
+
+	private static ERRateLimiter newLimiter(String key, double permitsPerSecond, double burst)
+	{
+		if (permitsPerSecond <= 0)
+			return NO_LIMIT;
+		return new ERRateLimiter(key, permitsPerSecond, burst > 0 ? burst : permitsPerSecond);
+	}
+
+	private static double doubleValue(Object value)
+	{
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+		if (value instanceof String)
+		{
+			try
+			{
+				return Double.parseDouble((String) value);
+			} catch (NumberFormatException e)
+			{
+				throw new IllegalStateException("Invalid rate limit: " + value, e);
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,48 @@
+package er.communication.foundation;
+
+/**
+ * The JMX interface of the rate limiters, to read and change the limits at runtime.<p>
+ * A limit set with JMX overrides the configuration until it's removed, even when MediaContext.json is reloaded.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public interface ERRateLimiterManagerMBean
+{
+	/**
+	 * @return the limiters in use, sorted by name (the media name or the media name and the context name).
+	 */
+	public String[] getLimiters();
+
+	/**
+	 * @return the limits set at runtime, sorted by name, with their rate and burst.
+	 */
+	public String[] getOverrides();
+
+	/**
+	 * Sets or replaces the limit of a media.
+	 *
+	 * @param mediaName
+	 * @param permitsPerSecond
+	 * @param burst
+	 */
+	public void setMediaRate(String mediaName, double permitsPerSecond, double burst);
+
+	/**
+	 * Sets or replaces the limit of a context.
+	 *
+	 * @param contextName
+	 * @param mediaName
+	 * @param permitsPerSecond
+	 * @param burst
+	 */
+	public void setContextRate(String contextName, String mediaName, double permitsPerSecond, double burst);
+
+	/**
+	 * Removes a limit set at runtime, the limiter is created again from the configuration.
+	 *
+	 * @param name the media name or the media name and the context name separated by a dot
+	 * @return <code>false</code> if there was no limit set at runtime with this name.
+	 */
+	public boolean removeOverride(String name);
+}
@@ -0,0 +1,21 @@
+package er.communication.foundation;
+
+import java.util.List;
+
+/**
+ * Interface to implement when the recipients of a large send are fetched by batches, from a database for example.<p>
+ * The channel asks the next batch only when the recipients of the previous one have been taken by the threads which send
+ * the messages, so only a few batches are in memory whatever the number of recipients.
+ * 
+ * @author Philippe Rabier
+ * @see ERBatchedRecipientIterator
+ */
+public interface ERRecipientBatchSource 
+{
+	/**
+	 * @param start the index of the first recipient of the batch
+	 * @param batchSize the number of recipients expected
+	 * @return the recipients of the batch, fewer than batchSize (or none) when there is no more recipient.
+	 */
+	public List<? extends ERRecipient> fetchBatch(int start, int batchSize);
+}
@@ -0,0 +1,157 @@
+package er.communication.foundation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * A Writer which keeps the rendered content of a message in a buffer reused from one message to the next.<p>
+ * The templates are rendered into a buffer taken from a pool shared by all message processors, so a body is not rendered
+ * in a new StringWriter which grows by copying itself for each message. A buffer is given back to the pool with release(),
+ * it is dropped when it has grown above maxRetainedSize so a very large message doesn't keep its memory afterwards: the
+ * pool keeps at most poolSize * maxRetainedSize chars, 1 MB with the default values.<br>
+ * The buffer holds the whole content, and toString() copies it: use writeTo() or render straight into the final writer
+ * when the content must not be held twice.<br>
+ * The pool isn't bound to the threads: it works the same with the virtual threads of the channel executor.<p>
+ * The pool is configured with the following properties:
+ * <ul>
+ * <li>er.communication.foundation.ERRenderBuffer.poolSize: the number of buffers kept in the pool (32 by default)
+ * <li>er.communication.foundation.ERRenderBuffer.initialSize: the initial capacity of a buffer, in chars (8192 by default)
+ * <li>er.communication.foundation.ERRenderBuffer.maxRetainedSize: the capacity above which a buffer is not kept, in chars (16384 by default)
+ * </ul>
+ *
+ * @author Philippe Rabier
+ * @see ERAbstractMessageProcessor#writeTextContent(ERSendContext, String, Writer)
+ */
+public class ERRenderBuffer extends Writer
+{
+	// the last released buffer is reused first, its memory is the most likely to be in the caches
+	private static final BlockingDeque<ERRenderBuffer> pool = new LinkedBlockingDeque<ERRenderBuffer>(
+			Math.max(1, ERXProperties.intForKeyWithDefault("er.communication.foundation.ERRenderBuffer.poolSize", 32)));
+	private static final int initialSize = ERXProperties.intForKeyWithDefault("er.communication.foundation.ERRenderBuffer.initialSize", 8192);
+	private static final int maxRetainedSize = ERXProperties.intForKeyWithDefault("er.communication.foundation.ERRenderBuffer.maxRetainedSize", 16 * 1024);
+
+	private final StringBuilder buffer;
+
+	protected ERRenderBuffer(int capacity)
+	{
+		buffer = new StringBuilder(capacity);
+	}
+
+	/**
+	 * @return an empty buffer, taken from the pool when there is one.
+	 */
+	public static ERRenderBuffer acquire()
+	{
+		ERRenderBuffer renderBuffer = pool.pollFirst();
+		return renderBuffer != null ? renderBuffer : new ERRenderBuffer(initialSize);
+	}
+
+	/**
+	 * @return the number of buffers waiting in the pool.
+	 */
+	public static int pooledCount()
+	{
+		return pool.size();
+	}
+
+	/**
+	 * Empties the buffer and gives it back to the pool.<p>
+	 * The buffer must not be used after this call.
+	 */
+	public void release()
+	{
+		if (buffer.capacity() > maxRetainedSize)
+			return;
+		buffer.setLength(0);
+		pool.offerFirst(this);
+	}
+
+	/**
+	 * @return the number of chars written since the buffer was acquired.
+	 */
+	public int length()
+	{
+		return buffer.length();
+	}
+
+	/**
+	 * Copies the content to another writer, without building a String.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(Writer out) throws IOException
+	{
+		char[] chars = new char[Math.min(buffer.length(), 8192)];
+		for (int start = 0; start < buffer.length(); start += chars.length)
+		{
+			int end = Math.min(start + chars.length, buffer.length());
+			buffer.getChars(start, end, chars, 0);
+			out.write(chars, 0, end - start);
+		}
+	}
+
+	@Override
+	public void write(int c)
+	{
+		buffer.append((char) c);
+	}
+
+	@Override
+	public void write(char[] chars, int offset, int length)
+	{
+		buffer.append(chars, offset, length);
+	}
+
+	@Override
+	public void write(String str)
+	{
+		buffer.append(str);
+	}
+
+	@Override
+	public void write(String str, int offset, int length)
+	{
+		buffer.append(str, offset, offset + length);
+	}
+
+	@Override
+	public ERRenderBuffer append(CharSequence csq)
+	{
+		buffer.append(csq);
+		return this;
+	}
+
+	@Override
+	public ERRenderBuffer append(CharSequence csq, int start, int end)
+	{
+		buffer.append(csq, start, end);
+		return this;
+	}
+
+	@Override
+	public ERRenderBuffer append(char c)
+	{
+		buffer.append(c);
+		return this;
+	}
+
+	@Override
+	public void flush() { }
+
+	@Override
+	public void close() { }
+
+	/**
+	 * @return the content written since the buffer was acquired.
+	 */
+	@Override
+	public String toString()
+	{
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,255 @@
+package er.communication.foundation;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.appserver.WOApplication;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+
+import er.extensions.foundation.ERXConstant;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Sends again the messages which failed with a transient ERSendException.<p>
+ * The delay before the next attempt grows exponentially with the number of attempts, with a random jitter so the messages
+ * which failed together are not retried together. The retries are scheduled on a timer thread and executed by a
+ * small pool of threads, so the threads which send the healthy messages never wait for them.<br>
+ * A message which fails with a permanent failure, or which has failed too many times, goes to the dead-letter
+ * store of its media. The dead-letter store is in memory, so a dead letter isn't acknowledged in the outbox journal:
+ * it's sent again when the application restarts. It's acknowledged when it's redelivered or dropped from the full store.<br>
+ * A message which fails after the engine is stopped is left as it is, so it's still pending in the outbox journal.<p>
+ * The engine is configured with the following properties:
+ * <ul>
+ * <li>er.communication.foundation.ERRetryEngine.maxAttempts: number of attempts, the first one included (3 by default). It can be
+ * set for a media with er.communication.foundation.ERRetryEngine.maxAttempts.&lt;media name&gt;
+ * <li>er.communication.foundation.ERRetryEngine.baseDelay: the delay before the first retry in milliseconds (1 second by default)
+ * <li>er.communication.foundation.ERRetryEngine.maxDelay: the maximum delay in milliseconds (5 minutes by default)
+ * <li>er.communication.foundation.ERRetryEngine.threads: number of threads which send the retries (2 by default)
+ * <li>er.communication.foundation.ERRetryEngine.deadLetterCapacity: maximum number of dead letters per media (1000 by default)
+ * </ul>
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERRetryEngine
+{
+	private static final Logger log = Logger.getLogger(ERRetryEngine.class);
+
+	/**
+	 * Sends the messages for the engine.
+	 */
+	public static interface Sender
+	{
+		/**
+		 * Sends the message again.
+		 *
+		 * @param message
+		 * @throws ERSendException if it fails again
+		 */
+		public void send(ERFailedMessage message);
+
+		/**
+		 * Called when the message has been delivered, or dropped from the dead-letter store.
+		 *
+		 * @param message
+		 */
+		public void finished(ERFailedMessage message);
+	}
+
+	private final Sender sender;
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final ScheduledExecutorService timer;
+	private final ExecutorService retryExecutor;
+	private final ERDeadLetterStore deadLetterStore;
+	private final Random random = new Random();
+	private final AtomicLong scheduledCount = new AtomicLong();
+	private final AtomicLong deliveredCount = new AtomicLong();
+	private volatile boolean stopped;
+
+	public ERRetryEngine(Sender sender)
+	{
+		this(sender,
+			ERXProperties.intForKeyWithDefault("er.communication.foundation.ERRetryEngine.maxAttempts", 3),
+			ERXProperties.longForKeyWithDefault("er.communication.foundation.ERRetryEngine.baseDelay", 1000L),
+			ERXProperties.longForKeyWithDefault("er.communication.foundation.ERRetryEngine.maxDelay", 5 * 60 * 1000L),
+			ERXProperties.intForKeyWithDefault("er.communication.foundation.ERRetryEngine.threads", 2),
+			ERXProperties.intForKeyWithDefault("er.communication.foundation.ERRetryEngine.deadLetterCapacity", 1000));
+		NSNotificationCenter.defaultCenter().addObserver(this,
+				new NSSelector<Void>("applicationWillTerminate", ERXConstant.NotificationClassArray),
+				WOApplication.ApplicationWillTerminateNotification,
+				null);
+	}
+
+	public ERRetryEngine(Sender sender, int maxAttempts, long baseDelay, long maxDelay, int threads, int deadLetterCapacity)
+	{
+		if (sender == null)
+			throw new IllegalArgumentException("The sender can't be null.");
+		if (maxAttempts <= 0 || threads <= 0 || baseDelay < 0 || maxDelay < baseDelay)
+			throw new IllegalArgumentException("Invalid configuration /maxAttempts: " + maxAttempts + " /threads: " + threads + " /baseDelay: " + baseDelay + " /maxDelay: " + maxDelay);
+		this.sender = sender;
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ERChannelExecutor.NamedThreadFactory("ERRetryEngine-timer"));
+		this.retryExecutor = Executors.newFixedThreadPool(threads, new ERChannelExecutor.NamedThreadFactory("ERRetryEngine"));
+		this.deadLetterStore = new ERDeadLetterStore(deadLetterCapacity);
+	}
+
+	/**
+	 * Records a failed attempt and schedules the next one, or moves the message to the dead-letter store.
+	 *
+	 * @param message
+	 * @param cause the failure of the last attempt
+	 * @return <code>true</code> if the message will be retried.
+	 */
+	public boolean failed(final ERFailedMessage message, ERSendException cause)
+	{
+		message.failed(cause);
+		if (stopped)
+		{
+			log.warn("method: failed: the engine is stopped, the message is left in the outbox journal /message: " + message, cause);
+			return false;
+		}
+		if (!cause.isTransient() || message.getAttempts() >= maxAttemptsForMedia(message.getMedia()))
+		{
+			log.error("method: failed: the message goes to the dead-letter store /message: " + message, cause);
+			ERFailedMessage dropped = deadLetterStore.add(message);
+			if (dropped != null)
+				sender.finished(dropped);
+			return false;
+		}
+		long delay = delayForAttempt(message.getAttempts());
+		if (log.isDebugEnabled())
+			log.debug("method: failed: retry scheduled /delay: " + delay + " /message: " + message);
+		scheduledCount.incrementAndGet();
+		timer.schedule(new Runnable()
+		{
+			public void run()
+			{
+				retryExecutor.execute(new Runnable()
+				{
+					public void run()
+					{
+						retry(message);
+					}
+				});
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	/**
+	 * Removes a message from the dead-letter store and sends it again with all its attempts.
+	 *
+	 * @param message
+	 * @return <code>false</code> if the message isn't in the dead-letter store.
+	 */
+	public boolean redeliver(final ERFailedMessage message)
+	{
+		if (!deadLetterStore.remove(message))
+			return false;
+		message.reset();
+		retryExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				retry(message);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * @param attempt the number of failed attempts
+	 * @return a random delay between the half and the whole exponential delay, in milliseconds.
+	 */
+	public long delayForAttempt(int attempt)
+	{
+		long delay = maxDelay;
+		if (attempt <= 31 && baseDelay << (attempt - 1) < maxDelay)
+			delay = baseDelay << (attempt - 1);
+		return delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+	}
+
+	/**
+	 * @param media
+	 * @return the number of attempts for the media, the first one included.
+	 */
+	protected int maxAttemptsForMedia(ERMedia media)
+	{
+		return ERXProperties.intForKeyWithDefault("er.communication.foundation.ERRetryEngine.maxAttempts." + media.getName(), maxAttempts);
+	}
+
+	public ERDeadLetterStore deadLetterStore()
+	{
+		return deadLetterStore;
+	}
+
+	/**
+	 * @return the number of retries scheduled since the engine started.
+	 */
+	public long scheduledCount()
+	{
+		return scheduledCount.get();
+	}
+
+	/**
+	 * @return the number of messages delivered by a retry.
+	 */
+	public long deliveredCount()
+	{
+		return deliveredCount.get();
+	}
+
+	/**
+	 * Stops the timer: the scheduled retries are abandoned. The messages are still in the outbox journal if it's used.
+	 */
+	public void stop()
+	{
+		stopped = true;
+		timer.shutdownNow();
+		retryExecutor.shutdown();
+	}
+
+	/**
+	 * Called when the application terminates.<p>
+	 * The engine of the channel is stopped by ERChannel.shutdown() with the other components of the channel, in order.
+	 *
+	 * @param n
+	 */
+	public void applicationWillTerminate(NSNotification n)
+	{
+		if (this == ERChannel.existingRetryEngine())
+			ERChannel.shutdown();
+		else
+			stop();
+	}
+
+	private void retry(ERFailedMessage message)
+	{
+		try
+		{
+			sender.send(message);
+		} catch (ERSendException e)
+		{
+			failed(message, e);
+			return;
+		} catch (RuntimeException e)
+		{
+			failed(message, new ERSendException("Unexpected failure.", e, false));
+			return;
+		}
+		deliveredCount.incrementAndGet();
+		sender.finished(message);
+	}
+}
@@ -0,0 +1,615 @@
+package er.communication.foundation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.appserver.WOApplication;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+
+import er.communication.outbox.EROutboxJournal;
+import er.communication.outbox.EROutboxRecord;
+import er.extensions.foundation.ERXConstant;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Keeps the messages to send later and hands them to a sender when their time comes.<p>
+ * The pending messages are kept in a hierarchical timer wheel, so scheduling or cancelling a message costs the same
+ * whatever the number of pending messages, and a timer thread moves the wheel at each tick.<br>
+ * When the scheduler is persistent, each message is written in its own outbox journal with its send time and
+ * acknowledged once the sender has handed it over, or once it's delivered when the sender takes over the acknowledgement.
+ * The wheel then only keeps the id of the record, its send time and the medias to acknowledge: the recipient and the
+ * context are read from the journal when the message is sent, so the memory used by a pending message doesn't depend on
+ * its data. A message the sender can't hand over stays in the journal and is sent again after the retry delay. When the
+ * application starts again, the pending messages are scheduled again, the ones whose time has passed are sent at once.<br>
+ * The time zone of the recipient and the class of the data processor are written with the message. A message read from
+ * the journal after a restart gets a new instance of its data processor, or none if the class has no public constructor
+ * without argument (see EROutboxRecord.newDataProcessor()).<p>
+ * The scheduler is configured with the following properties:
+ * <ul>
+ * <li>er.communication.foundation.ERScheduler.tick: the duration of a tick in milliseconds, a message is sent at most one
+ * tick late (1000 by default)
+ * <li>er.communication.foundation.ERScheduler.wheelSize: the number of slots of each wheel, a power of 2 (256 by default)
+ * <li>er.communication.foundation.ERScheduler.levels: the number of wheels (4 by default)
+ * <li>er.communication.foundation.ERScheduler.retryDelay: the delay in milliseconds before a message the sender couldn't
+ * hand over is sent again (60000 by default)
+ * <li>er.communication.foundation.ERScheduler.persistent: the pending messages are written in a journal (the value of
+ * er.communication.outbox.EROutboxJournal.enabled by default)
+ * <li>er.communication.foundation.ERScheduler.directory: the directory of the journal (by default, a directory named after
+ * the application and its port in the temporary directory)
+ * </ul>
+ *
+ * @author Philippe Rabier
+ * @see ERChannel#sendAt(ERRecipient, ERCommunicationContext, ERDataProcessor, long)
+ * @see ERTimerWheel
+ */
+public class ERScheduler
+{
+	private static final Logger log = Logger.getLogger(ERScheduler.class);
+
+	/**
+	 * Sends the messages when their time comes.
+	 */
+	public static interface Sender
+	{
+		/**
+		 * Sends the message.<p>
+		 * The sender can postpone the message, for example during quiet hours, or take over its acknowledgement in the
+		 * journal. Otherwise the message is acknowledged when the method returns.
+		 *
+		 * @param scheduledSend
+		 * @throws RuntimeException if the message can't be handed over, it's sent again after the retry delay.
+		 * @see ScheduledSend#postpone(long)
+		 * @see ScheduledSend#deferAcknowledgement()
+		 */
+		public void send(ScheduledSend scheduledSend);
+	}
+
+	/**
+	 * A message waiting for its send time.<p>
+	 * The recipient and the context of a journaled message are read from the journal when the message is sent, and
+	 * forgotten when it goes back in the wheel.
+	 */
+	public static class ScheduledSend
+	{
+		private final ERScheduler scheduler;
+		private final long recordId;
+		// the medias to acknowledge, a bit per media of the scheduler
+		private final long mediaMask;
+		// the data processor given to schedule(), the journal only keeps its class
+		private final ERDataProcessor dataProcessor;
+		private volatile long sendTime;
+		private volatile boolean acknowledgementDeferred;
+		private volatile Message message;
+		private ERTimerWheel.Timeout<ScheduledSend> timeout;
+
+		/**
+		 * @param scheduler
+		 * @param message the recipient and the context, null if the message is read from the journal when it's sent
+		 * @param dataProcessor can be null
+		 * @param sendTime
+		 * @param recordId
+		 * @param mediaMask
+		 */
+		private ScheduledSend(ERScheduler scheduler, Message message, ERDataProcessor dataProcessor, long sendTime, long recordId, long mediaMask)
+		{
+			this.scheduler = scheduler;
+			this.message = message;
+			this.dataProcessor = dataProcessor;
+			this.sendTime = sendTime;
+			this.recordId = recordId;
+			this.mediaMask = mediaMask;
+		}
+
+		/**
+		 * @throws IllegalStateException if a journaled message can't be read from the journal.
+		 */
+		public ERRecipient getRecipient() { return message().recipient; }
+
+		/**
+		 * @throws IllegalStateException if a journaled message can't be read from the journal.
+		 */
+		public ERCommunicationContext getContext() { return message().context; }
+
+		/**
+		 * @return the data processor, null if there is none or the one of a message read from the journal can't be created.
+		 * @throws IllegalStateException if a journaled message can't be read from the journal.
+		 */
+		public ERDataProcessor getDataProcessor() { return dataProcessor != null ? dataProcessor : message().dataProcessor; }
+
+		private Message message()
+		{
+			Message aMessage = message;
+			if (aMessage == null)
+			{
+				aMessage = scheduler.readMessage(this);
+				message = aMessage;
+			}
+			return aMessage;
+		}
+
+		/**
+		 * @return the time in milliseconds when the message is sent, the new time if it has been postponed.
+		 */
+		public long getSendTime() { return sendTime; }
+
+		/**
+		 * @return the id of the message in the journal of the scheduler, EROutboxJournal.NO_RECORD if it isn't journaled.
+		 */
+		public long getRecordId() { return recordId; }
+
+		/**
+		 * Removes the message from the scheduler.
+		 *
+		 * @return <code>false</code> if the message has already been sent or cancelled.
+		 */
+		public boolean cancel()
+		{
+			return scheduler.cancel(this);
+		}
+
+		/**
+		 * Schedules the message again, called by the sender when the message can't be sent yet.<br>
+		 * The message stays in the journal with its first send time.
+		 *
+		 * @param time in milliseconds
+		 * @throws IllegalStateException if the message is still waiting for its send time.
+		 */
+		public void postpone(long time)
+		{
+			scheduler.postpone(this, time);
+		}
+
+		/**
+		 * Called by the sender which acknowledges the message itself, once it's delivered through each media.
+		 *
+		 * @see #acknowledge(ERMedia)
+		 */
+		public void deferAcknowledgement()
+		{
+			acknowledgementDeferred = true;
+		}
+
+		/**
+		 * Acknowledges the message for a media in the journal of the scheduler, after deferAcknowledgement().
+		 *
+		 * @param media
+		 */
+		public void acknowledge(ERMedia media)
+		{
+			scheduler.acknowledge(this, media.getName());
+		}
+
+		public String toString()
+		{
+			Message aMessage = message;
+			return "ScheduledSend: recordId: " + recordId + " /sendTime: " + new Date(sendTime) + (aMessage != null ? " /recipient: " + aMessage.recipient + " /context: " + aMessage.context.getName() : "");
+		}
+	}
+
+	/**
+	 * The recipient and the context of a message, with the data processor of a message read from the journal.
+	 */
+	private static class Message
+	{
+		private final ERRecipient recipient;
+		private final ERCommunicationContext context;
+		private final ERDataProcessor dataProcessor;
+
+		Message(ERRecipient recipient, ERCommunicationContext context, ERDataProcessor dataProcessor)
+		{
+			this.recipient = recipient;
+			this.context = context;
+			this.dataProcessor = dataProcessor;
+		}
+	}
+
+	private final Sender sender;
+	private final ERTimerWheel<ScheduledSend> wheel;
+	private final EROutboxJournal journal;
+	private final long retryDelay;
+	private final ScheduledExecutorService timer;
+	// the names of the medias of the journaled messages, a message keeps the bits of its medias
+	private final List<String> mediaNameIndex = new ArrayList<String>();
+	private final AtomicLong scheduledCount = new AtomicLong();
+	private final AtomicLong sentCount = new AtomicLong();
+	private volatile boolean stopped;
+
+	/**
+	 * Creates the scheduler with the default properties and, when it's persistent, schedules again the messages
+	 * of its journal.
+	 *
+	 * @param sender
+	 * @throws IllegalStateException if the journal can't be opened.
+	 */
+	public ERScheduler(Sender sender)
+	{
+		this(sender,
+			ERXProperties.longForKeyWithDefault("er.communication.foundation.ERScheduler.tick", 1000),
+			ERXProperties.intForKeyWithDefault("er.communication.foundation.ERScheduler.wheelSize", 256),
+			ERXProperties.intForKeyWithDefault("er.communication.foundation.ERScheduler.levels", 4),
+			isPersistent() ? openJournal() : null,
+			ERXProperties.longForKeyWithDefault("er.communication.foundation.ERScheduler.retryDelay", 60000));
+		NSNotificationCenter.defaultCenter().addObserver(this,
+				new NSSelector<Void>("applicationWillTerminate", ERXConstant.NotificationClassArray),
+				WOApplication.ApplicationWillTerminateNotification,
+				null);
+	}
+
+	/**
+	 * @param sender
+	 * @param tickMillis the duration of a tick in milliseconds
+	 * @param wheelSize the number of slots of each wheel, a power of 2
+	 * @param levels the number of wheels
+	 * @param journal which keeps the pending messages, null if they are lost when the application stops. The scheduler closes it when it stops.
+	 */
+	public ERScheduler(Sender sender, long tickMillis, int wheelSize, int levels, EROutboxJournal journal)
+	{
+		this(sender, tickMillis, wheelSize, levels, journal, 60000);
+	}
+
+	/**
+	 * @param sender
+	 * @param tickMillis the duration of a tick in milliseconds
+	 * @param wheelSize the number of slots of each wheel, a power of 2
+	 * @param levels the number of wheels
+	 * @param journal which keeps the pending messages, null if they are lost when the application stops. The scheduler closes it when it stops.
+	 * @param retryDelay the delay in milliseconds before a message the sender couldn't hand over is sent again
+	 */
+	public ERScheduler(Sender sender, long tickMillis, int wheelSize, int levels, EROutboxJournal journal, long retryDelay)
+	{
+		if (sender == null)
+			throw new IllegalArgumentException("The sender can't be null.");
+		if (retryDelay < 0)
+			throw new IllegalArgumentException("The retry delay can't be negative: " + retryDelay);
+		this.sender = sender;
+		this.wheel = new ERTimerWheel<ScheduledSend>(tickMillis, wheelSize, levels, System.currentTimeMillis());
+		this.journal = journal;
+		this.retryDelay = retryDelay;
+		if (journal != null)
+			recover();
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ERChannelExecutor.NamedThreadFactory("ERScheduler-timer"));
+		timer.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				advance(System.currentTimeMillis());
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return <code>true</code> if the pending messages must be written in a journal.
+	 */
+	public static boolean isPersistent()
+	{
+		return ERXProperties.booleanForKeyWithDefault("er.communication.foundation.ERScheduler.persistent", EROutboxJournal.isEnabled());
+	}
+
+	private static EROutboxJournal openJournal()
+	{
+		String directory = ERXProperties.stringForKeyWithDefault("er.communication.foundation.ERScheduler.directory", EROutboxJournal.defaultDirectory("ERCommunicationSchedule"));
+		try
+		{
+			return new EROutboxJournal(new File(directory));
+		} catch (IOException e)
+		{
+			throw new IllegalStateException("method: openJournal: can't open the journal of the scheduler /directory: " + directory, e);
+		}
+	}
+
+	/**
+	 * Schedules a message.
+	 *
+	 * @param recipient
+	 * @param context
+	 * @param medias the medias of the context, the recipient identifiers of these medias are written in the journal
+	 * @param dataProcessor can be null
+	 * @param sendTime the time in milliseconds when the message must be sent
+	 * @return the scheduled message
+	 * @throws IllegalStateException if the scheduler is stopped, or a journaled message is sent through more than 64
+	 * different medias.
+	 */
+	public ScheduledSend schedule(ERRecipient recipient, ERCommunicationContext context, List<ERMedia> medias, ERDataProcessor dataProcessor, long sendTime)
+	{
+		if (stopped)
+			throw new IllegalStateException("The scheduler is stopped.");
+		ScheduledSend scheduledSend = null;
+		if (journal != null)
+		{
+			List<String> mediaNames = new ArrayList<String>(medias.size());
+			for (ERMedia media : medias)
+				mediaNames.add(media.getName());
+			long mediaMask = mediaMask(mediaNames);
+			try
+			{
+				long recordId = journal.append(context, recipient, medias, dataProcessor, sendTime);
+				scheduledSend = new ScheduledSend(this, null, dataProcessor, sendTime, recordId, mediaMask);
+			} catch (IOException e)
+			{
+				log.error("method: schedule: the message can't be written in the journal, it's only kept in memory /recipient: " + recipient + " /context: " + context, e);
+			}
+		}
+		if (scheduledSend == null)
+			scheduledSend = new ScheduledSend(this, new Message(recipient, context, null), dataProcessor, sendTime, EROutboxJournal.NO_RECORD, 0);
+		add(scheduledSend);
+		if (log.isDebugEnabled())
+			log.debug("method: schedule: " + scheduledSend);
+		return scheduledSend;
+	}
+
+	/**
+	 * Removes a message from the scheduler.
+	 *
+	 * @param scheduledSend
+	 * @return <code>false</code> if the message has already been sent or cancelled.
+	 */
+	public boolean cancel(ScheduledSend scheduledSend)
+	{
+		synchronized (wheel)
+		{
+			if (scheduledSend.timeout == null || !wheel.cancel(scheduledSend.timeout))
+				return false;
+		}
+		acknowledge(scheduledSend);
+		return true;
+	}
+
+	/**
+	 * Hands the messages whose time has come to the sender, in the caller thread.<p>
+	 * Called by the timer thread at each tick. A message the sender can't hand over is sent again after the retry delay.
+	 *
+	 * @param now the current time in milliseconds
+	 * @return the number of messages sent, without the ones postponed or sent again later
+	 */
+	public int advance(long now)
+	{
+		List<ScheduledSend> dueSends;
+		synchronized (wheel)
+		{
+			dueSends = wheel.advance(now);
+		}
+		int count = 0;
+		for (ScheduledSend scheduledSend : dueSends)
+		{
+			if (log.isDebugEnabled())
+				log.debug("method: advance: send: " + scheduledSend);
+			try
+			{
+				// a journaled message is read once, the sender and the ones who keep it afterwards share it
+				scheduledSend.message();
+				sender.send(scheduledSend);
+			} catch (RuntimeException e)
+			{
+				scheduledSend.acknowledgementDeferred = false;
+				if (scheduledSend.recordId != EROutboxJournal.NO_RECORD && !journal.isPending(scheduledSend.recordId))
+				{
+					log.error("method: advance: the message can't be sent and isn't in the journal anymore, it's dropped /scheduledSend: " + scheduledSend, e);
+					continue;
+				}
+				log.error("method: advance: the message can't be sent, it's sent again later /scheduledSend: " + scheduledSend + " /retryDelay: " + retryDelay, e);
+				if (!isPending(scheduledSend))
+					postpone(scheduledSend, now + retryDelay);
+				continue;
+			}
+			if (isPending(scheduledSend))
+				continue;
+			count++;
+			sentCount.incrementAndGet();
+			if (!scheduledSend.acknowledgementDeferred)
+				acknowledge(scheduledSend);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of messages waiting for their send time.
+	 */
+	public int pendingCount()
+	{
+		synchronized (wheel)
+		{
+			return wheel.size();
+		}
+	}
+
+	/**
+	 * @return the number of messages scheduled since the scheduler started, including the ones read from the journal.
+	 */
+	public long scheduledCount()
+	{
+		return scheduledCount.get();
+	}
+
+	/**
+	 * @return the number of messages handed over by the sender since the scheduler started.
+	 */
+	public long sentCount()
+	{
+		return sentCount.get();
+	}
+
+	/**
+	 * @return the journal of the pending messages, null if the scheduler isn't persistent.
+	 */
+	public EROutboxJournal getJournal()
+	{
+		return journal;
+	}
+
+	/**
+	 * Stops the timer and closes the journal: the pending messages are sent when the application starts again if the
+	 * scheduler is persistent, they are lost otherwise.
+	 */
+	public void stop()
+	{
+		if (stopped)
+			return;
+		stopped = true;
+		timer.shutdownNow();
+		int pending = pendingCount();
+		if (journal != null)
+		{
+			journal.close();
+			if (log.isInfoEnabled())
+				log.info("method: stop: scheduler stopped /pending: " + pending);
+		}
+		else if (pending > 0)
+			log.warn("method: stop: the scheduler isn't persistent, the pending messages are lost /pending: " + pending);
+	}
+
+	/**
+	 * Called when the application terminates.<p>
+	 * The scheduler of the channel is stopped by ERChannel.shutdown() with the other components of the channel, in order.
+	 *
+	 * @param n
+	 */
+	public void applicationWillTerminate(NSNotification n)
+	{
+		if (this == ERChannel.existingScheduler())
+			ERChannel.shutdown();
+		else
+			stop();
+	}
+
+	private void add(ScheduledSend scheduledSend)
+	{
+		synchronized (wheel)
+		{
+			scheduledSend.timeout = wheel.schedule(scheduledSend, scheduledSend.sendTime);
+		}
+		scheduledCount.incrementAndGet();
+	}
+
+	private void postpone(ScheduledSend scheduledSend, long time)
+	{
+		synchronized (wheel)
+		{
+			if (scheduledSend.timeout != null && scheduledSend.timeout.isPending())
+				throw new IllegalStateException("The message is still waiting for its send time: " + scheduledSend);
+			scheduledSend.sendTime = time;
+			scheduledSend.timeout = wheel.schedule(scheduledSend, time);
+			// the wheel doesn't keep the recipient and the context of a journaled message
+			if (scheduledSend.recordId != EROutboxJournal.NO_RECORD)
+				scheduledSend.message = null;
+		}
+		if (log.isDebugEnabled())
+			log.debug("method: postpone: " + scheduledSend);
+	}
+
+	private boolean isPending(ScheduledSend scheduledSend)
+	{
+		synchronized (wheel)
+		{
+			return scheduledSend.timeout != null && scheduledSend.timeout.isPending();
+		}
+	}
+
+	/**
+	 * @return the bits of the medias in the index of the scheduler, the new medias are added to the index.
+	 * @throws IllegalStateException if there would be more than 64 medias in the index.
+	 */
+	private long mediaMask(List<String> mediaNames)
+	{
+		long mask = 0;
+		synchronized (mediaNameIndex)
+		{
+			for (String mediaName : mediaNames)
+			{
+				int index = mediaNameIndex.indexOf(mediaName);
+				if (index < 0)
+				{
+					if (mediaNameIndex.size() == Long.SIZE)
+						throw new IllegalStateException("The scheduler can't journal messages sent through more than " + Long.SIZE + " medias: " + mediaName);
+					mediaNameIndex.add(mediaName);
+					index = mediaNameIndex.size() - 1;
+				}
+				mask |= 1L << index;
+			}
+		}
+		return mask;
+	}
+
+	private List<String> mediaNames(long mediaMask)
+	{
+		List<String> mediaNames = new ArrayList<String>(Long.bitCount(mediaMask));
+		synchronized (mediaNameIndex)
+		{
+			for (int i = 0; i < mediaNameIndex.size(); i++)
+			{
+				if ((mediaMask & (1L << i)) != 0)
+					mediaNames.add(mediaNameIndex.get(i));
+			}
+		}
+		return mediaNames;
+	}
+
+	/**
+	 * Reads the recipient and the context of a journaled message.
+	 *
+	 * @throws IllegalStateException if the message isn't in the journal anymore or can't be read.
+	 */
+	private Message readMessage(ScheduledSend scheduledSend)
+	{
+		EROutboxRecord record;
+		try
+		{
+			record = journal.pendingRecord(scheduledSend.recordId);
+		} catch (IOException e)
+		{
+			throw new IllegalStateException("The message can't be read from the journal: " + scheduledSend, e);
+		}
+		if (record == null)
+			throw new IllegalStateException("The message isn't in the journal anymore: " + scheduledSend);
+		return new Message(record.getRecipient(), record.newContext(), scheduledSend.dataProcessor != null ? null : record.newDataProcessor());
+	}
+
+	private void acknowledge(ScheduledSend scheduledSend, String mediaName)
+	{
+		if (journal == null || scheduledSend.recordId == EROutboxJournal.NO_RECORD)
+			return;
+		try
+		{
+			journal.acknowledge(scheduledSend.recordId, mediaName);
+		} catch (IOException e)
+		{
+			log.error("method: acknowledge: the message can't be acknowledged in the journal, it will be sent again /scheduledSend: " + scheduledSend + " /media: " + mediaName, e);
+		}
+	}
+
+	private void acknowledge(ScheduledSend scheduledSend)
+	{
+		if (journal == null || scheduledSend.recordId == EROutboxJournal.NO_RECORD)
+			return;
+		try
+		{
+			for (String mediaName : mediaNames(scheduledSend.mediaMask))
+				journal.acknowledge(scheduledSend.recordId, mediaName);
+		} catch (IOException e)
+		{
+			log.error("method: acknowledge: the message can't be acknowledged in the journal, it will be sent again /scheduledSend: " + scheduledSend, e);
+		}
+	}
+
+	/**
+	 * Schedules again the messages of the journal.
+	 */
+	private void recover()
+	{
+		List<EROutboxRecord> records = journal.pendingRecords();
+		for (EROutboxRecord record : records)
+			add(new ScheduledSend(this, null, null, record.getSendTime(), record.getId(), mediaMask(record.getMediaNames())));
+		if (records.size() > 0)
+			log.info("method: recover: scheduled messages read from the journal /count: " + records.size());
+	}
+}
@@ -0,0 +1,102 @@
+package er.communication.foundation;
+
+import java.util.Map;
+
+/**
+ * ERSendContext contains everything a message processor needs to send one message.<p>
+ * A message processor is shared by all threads, so the state of a send (recipient, merged data, ...) is given
+ * to the processor through this object instead of being kept in its fields.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERSendContext
+{
+	private final ERRecipient recipient;
+	private final ERCommunicationContext context;
+	private final ERMedia media;
+	private final ERDataProcessor dataProcessor;
+	private final Map<String, Object> mergedData;
+	private final Map<String, Object> sendingConfiguration;
+	private final ERAbstractMessageProcessor.TemplateProvider templateProvider;
+
+	public ERSendContext(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor, Map<String, Object> mergedData, Map<String, Object> sendingConfiguration)
+	{
+		this(recipient, context, media, dataProcessor, mergedData, sendingConfiguration, null);
+	}
+
+	/**
+	 * @param templateProvider used instead of the template provider of ERAbstractMessageProcessor, can be null.
+	 */
+	public ERSendContext(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor, Map<String, Object> mergedData, Map<String, Object> sendingConfiguration, ERAbstractMessageProcessor.TemplateProvider templateProvider)
+	{
+		this.recipient = recipient;
+		this.context = context;
+		this.media = media;
+		this.dataProcessor = dataProcessor;
+		this.mergedData = mergedData;
+		this.sendingConfiguration = sendingConfiguration;
+		this.templateProvider = templateProvider;
+	}
+
+	public ERRecipient getRecipient()
+	{
+		return recipient;
+	}
+
+	public ERCommunicationContext getContext()
+	{
+		return context;
+	}
+
+	public ERMedia getMedia()
+	{
+		return media;
+	}
+
+	/**
+	 * @return the data processor, can be null.
+	 */
+	public ERDataProcessor getDataProcessor()
+	{
+		return dataProcessor;
+	}
+
+	/**
+	 * @return the context data + entries for FIRST_NAME and LAST_NAME, read-only
+	 * @see ERMergedDataMap
+	 */
+	public Map<String, Object> getMergedData()
+	{
+		return mergedData;
+	}
+
+	/**
+	 * @return the configuration read from the JSON description for the context and the media, can be null.
+	 */
+	public Map<String, Object> getSendingConfiguration()
+	{
+		return sendingConfiguration;
+	}
+
+	/**
+	 * @return the template provider of this send, a campaign gives its own provider to resolve the templates once.
+	 */
+	public ERAbstractMessageProcessor.TemplateProvider getTemplateProvider()
+	{
+		return templateProvider != null ? templateProvider : ERAbstractMessageProcessor.templateProvider();
+	}
+
+	/**
+	 * @return the identifier of the recipient for the media (email, jabber ID, ...)
+	 */
+	public String getIdentifier()
+	{
+		return recipient.getIdentifier(media);
+	}
+
+	public String toString()
+	{
+		return "ERSendContext: recipient: " + recipient + " /context: " + context + " /media: " + media;
+	}
+}
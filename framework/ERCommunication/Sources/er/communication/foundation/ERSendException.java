@@ -0,0 +1,31 @@
+package er.communication.foundation;
+
+/**
+ * Thrown by a message processor when a message can't be delivered.<p>
+ * A transient failure (the server is down, the connection has been lost, ...) may succeed later so the message
+ * is retried. A permanent failure (an invalid address, ...) will fail again and the message goes directly to
+ * the dead-letter store.
+ *
+ * @author Philippe Rabier
+ * @see ERRetryEngine
+ */
+public class ERSendException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	private final boolean transientFailure;
+
+	public ERSendException(String message, Throwable cause, boolean transientFailure)
+	{
+		super(message, cause);
+		this.transientFailure = transientFailure;
+	}
+
+	/**
+	 * @return <code>true</code> if the message can be sent again.
+	 */
+	public boolean isTransient()
+	{
+		return transientFailure;
+	}
+}
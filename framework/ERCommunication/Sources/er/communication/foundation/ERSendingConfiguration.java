@@ -0,0 +1,176 @@
+package er.communication.foundation;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The sending configuration of a media in a context, as described in MediaContext.json.<p>
+ * The values used by the framework (component, rate limit, digest window, ...) are checked and converted once, when the
+ * configuration is built with the dispatch plan, so a send reads typed fields instead of looking up and casting the values
+ * of a map. A malformed value is reported at initialization instead of at the first send.<br>
+ * The configuration is also a read-only map of all the values of the description, so a message processor reads its own
+ * keys with get().
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERSendingConfiguration extends AbstractMap<String, Object>
+{
+	/** The name of the component of an HTML mail */
+	public static final String COMPONENT_NAME = "component";
+	/** The name of the component of an HTML digest */
+	public static final String DIGEST_COMPONENT_NAME = "digestComponent";
+	/** true to render the component of an HTML mail once per language */
+	public static final String RENDER_ONCE = "renderOnce";
+	/** The messages per second of the context */
+	public static final String RATE_LIMIT = "rateLimit";
+	/** The messages of the context sent at once */
+	public static final String RATE_BURST = "rateBurst";
+	/** The window of a digest in seconds */
+	public static final String DIGEST_WINDOW = "digestWindow";
+	/** The maximum number of messages of a digest */
+	public static final String DIGEST_MAX_MESSAGES = "digestMaxMessages";
+
+	private final Map<String, Object> values;
+	private final String componentName;
+	private final String digestComponentName;
+	private final boolean renderOnce;
+	private final double rateLimit;
+	private final double rateBurst;
+	private final long digestWindow;
+	private final int digestMaxMessages;
+
+	/**
+	 * @param values the description of the sending configuration, copied
+	 * @throws IllegalStateException if a value used by the framework has the wrong type.
+	 */
+	public ERSendingConfiguration(Map<String, Object> values)
+	{
+		this.values = Collections.unmodifiableMap(new HashMap<String, Object>(values));
+		this.componentName = stringValue(COMPONENT_NAME);
+		this.digestComponentName = stringValue(DIGEST_COMPONENT_NAME);
+		Object value = values.get(RENDER_ONCE);
+		if (value != null && !(value instanceof Boolean))
+			throw new IllegalStateException("The value of " + RENDER_ONCE + " must be a boolean: " + value);
+		this.renderOnce = Boolean.TRUE.equals(value);
+		this.rateLimit = doubleValue(RATE_LIMIT);
+		this.rateBurst = doubleValue(RATE_BURST);
+		this.digestWindow = (long) (doubleValue(DIGEST_WINDOW) * 1000);
+		this.digestMaxMessages = (int) doubleValue(DIGEST_MAX_MESSAGES);
+	}
+
+	/**
+	 * @param configuration a sending configuration or a map read from the description, can be null
+	 * @return the typed configuration, the same object if it's already typed, null if <code>configuration</code> is null.
+	 */
+	public static ERSendingConfiguration valueOf(Map<String, Object> configuration)
+	{
+		if (configuration == null || configuration instanceof ERSendingConfiguration)
+			return (ERSendingConfiguration) configuration;
+		return new ERSendingConfiguration(configuration);
+	}
+
+	/**
+	 * @return the name of the component of an HTML mail, null if there is none.
+	 */
+	public String getComponentName()
+	{
+		return componentName;
+	}
+
+	/**
+	 * @return the name of the component of an HTML digest, null if the usual component is used.
+	 */
+	public String getDigestComponentName()
+	{
+		return digestComponentName;
+	}
+
+	public boolean isRenderOnce()
+	{
+		return renderOnce;
+	}
+
+	/**
+	 * @return the messages per second of the context, 0 if there is no limit.
+	 */
+	public double getRateLimit()
+	{
+		return rateLimit;
+	}
+
+	/**
+	 * @return the messages of the context sent at once, 0 to use the rate.
+	 */
+	public double getRateBurst()
+	{
+		return rateBurst;
+	}
+
+	/**
+	 * @return the window of a digest in milliseconds, 0 if the digest mode is off.
+	 */
+	public long getDigestWindow()
+	{
+		return digestWindow;
+	}
+
+	/**
+	 * @return the maximum number of messages of a digest, 0 to use the default.
+	 */
+	public int getDigestMaxMessages()
+	{
+		return digestMaxMessages;
+	}
+
+	public Object get(Object key)
+	{
+		return values.get(key);
+	}
+
+	public boolean containsKey(Object key)
+	{
+		return values.containsKey(key);
+	}
+
+	public int size()
+	{
+		return values.size();
+	}
+
+	public Set<Map.Entry<String, Object>> entrySet()
+	{
+		return values.entrySet();
+	}
+
+	private String stringValue(String key)
+	{
+		Object value = values.get(key);
+		if (value != null && !(value instanceof String))
+			throw new IllegalStateException("The value of " + key + " must be a string: " + value);
+		return (String) value;
+	}
+
+	private double doubleValue(String key)
+	{
+		Object value = values.get(key);
+		if (value == null)
+			return 0;
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+		if (value instanceof String)
+		{
+			try
+			{
+				return Double.parseDouble((String) value);
+			} catch (NumberFormatException e)
+			{
+				// reported below
+			}
+		}
+		throw new IllegalStateException("The value of " + key + " must be a number: " + value);
+	}
+}
@@ -0,0 +1,131 @@
+package er.communication.foundation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Keeps the compiled Mustache templates so the same template is not compiled for each recipient.<p>
+ * The cache is shared by all message processors, bounded in size and uses a LRU eviction policy.<br>
+ * The maximum size can be set with the er.communication.foundation.ERTemplateCache.maxSize property (500 by default).
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERTemplateCache
+{
+	public static final int DEFAULT_MAX_SIZE = 500;
+
+	private static final Mustache.Compiler compiler = Mustache.compiler();
+	private static volatile ERTemplateCache sharedInstance;
+
+	private final Map<String, Template> templates;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ERTemplateCache(final int maxSize)
+	{
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("The cache size must be greater than 0 /maxSize: " + maxSize);
+		this.templates = new LinkedHashMap<String, Template>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Template> eldest)
+			{
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the cache shared by all message processors.
+	 */
+	public static ERTemplateCache sharedInstance()
+	{
+		if (sharedInstance == null)
+		{
+			synchronized(ERTemplateCache.class) {
+				if (sharedInstance == null)
+					sharedInstance = new ERTemplateCache(ERXProperties.intForKeyWithDefault("er.communication.foundation.ERTemplateCache.maxSize", DEFAULT_MAX_SIZE));
+			}
+		}
+		return sharedInstance;
+	}
+
+	/**
+	 * @return the Mustache compiler shared by all message processors.
+	 */
+	public static Mustache.Compiler compiler()
+	{
+		return compiler;
+	}
+
+	/**
+	 * Returns the compiled template, compiling it only if it's not in the cache yet.<p>
+	 * Compilation is done outside the lock, two threads may compile the same template but the result is the same.
+	 *
+	 * @param template the template source
+	 * @return the compiled template
+	 */
+	public Template templateForSource(String template)
+	{
+		if (template == null)
+			throw new IllegalArgumentException("The template can't be null.");
+		Template compiledTemplate;
+		synchronized (templates) {
+			compiledTemplate = templates.get(template);
+		}
+		if (compiledTemplate != null)
+		{
+			hits.incrementAndGet();
+			return compiledTemplate;
+		}
+		misses.incrementAndGet();
+		compiledTemplate = compiler.compile(template);
+		synchronized (templates) {
+			templates.put(template, compiledTemplate);
+		}
+		return compiledTemplate;
+	}
+
+	public int size()
+	{
+		synchronized (templates) {
+			return templates.size();
+		}
+	}
+
+	public long hitCount()
+	{
+		return hits.get();
+	}
+
+	public long missCount()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Empties the cache and resets the counters.
+	 */
+	public void clear()
+	{
+		synchronized (templates) {
+			templates.clear();
+		}
+		hits.set(0);
+		misses.set(0);
+	}
+
+	public String toString()
+	{
+		return "ERTemplateCache: size: " + size() + " /hits: " + hitCount() + " /misses: " + missCount();
+	}
+}
@@ -0,0 +1,137 @@
+package er.communication.foundation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+
+import er.communication.metrics.ERMetrics;
+
+/**
+ * A DataSource which renders the content of a message when it's written.<p>
+ * The template is looked up when the data source is created and rendered straight into the stream given to writeTo(),
+ * which is the SMTP connection when the mail is sent: the body is never held in memory, neither in a buffer nor in a
+ * String. The DataHandler returned by dataHandler() writes through writeTo(), a DataHandler built on the data source
+ * would copy getInputStream() instead.<br>
+ * getInputStream() and contentString() render the whole content in memory, they are only used by the transports which
+ * read the body instead of writing it.<br>
+ * The content is rendered each time it's written and the render latency is recorded each time.
+ *
+ * @author Philippe Rabier
+ * @see ERAbstractMessageProcessor#getTextContentDataSource(ERSendContext, String, String, String)
+ */
+public class ERTemplateDataSource implements DataSource
+{
+	private final ERAbstractMessageProcessor messageProcessor;
+	private final String template;
+	private final ERDataProcessor dataProcessor;
+	private final Map<String, Object> mergedData;
+	private final ERMetrics metrics;
+	private final String contentType;
+	private final String charset;
+
+	ERTemplateDataSource(ERAbstractMessageProcessor messageProcessor, String template, ERDataProcessor dataProcessor, Map<String, Object> mergedData, ERMetrics metrics, String contentType, String charset)
+	{
+		this.messageProcessor = messageProcessor;
+		this.template = template;
+		this.dataProcessor = dataProcessor;
+		this.mergedData = mergedData;
+		this.metrics = metrics;
+		this.contentType = contentType;
+		this.charset = charset;
+	}
+
+	/**
+	 * Renders the content into <code>out</code>, encoded with the charset of the data source.<p>
+	 * The stream is flushed but not closed.
+	 *
+	 * @param out
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		long start = System.nanoTime();
+		Writer writer = new OutputStreamWriter(out, charset);
+		try
+		{
+			messageProcessor.processTemplate(template, dataProcessor, mergedData, writer);
+		} catch (ERSendException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+		writer.flush();
+		metrics.renderLatency().record(System.nanoTime() - start);
+	}
+
+	/**
+	 * @return a DataHandler which renders the content into the stream it's written to.
+	 */
+	public DataHandler dataHandler()
+	{
+		return new DataHandler(this)
+		{
+			@Override
+			public void writeTo(OutputStream out) throws IOException
+			{
+				ERTemplateDataSource.this.writeTo(out);
+			}
+		};
+	}
+
+	/**
+	 * @return the content rendered in a String.
+	 */
+	public String contentString()
+	{
+		ERRenderBuffer buffer = ERRenderBuffer.acquire();
+		try
+		{
+			long start = System.nanoTime();
+			messageProcessor.processTemplate(template, dataProcessor, mergedData, buffer);
+			metrics.renderLatency().record(System.nanoTime() - start);
+			return buffer.toString();
+		} finally
+		{
+			buffer.release();
+		}
+	}
+
+	public InputStream getInputStream() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeTo(out);
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	public OutputStream getOutputStream() throws IOException
+	{
+		throw new IOException("The content of a template can't be written.");
+	}
+
+	public String getContentType()
+	{
+		return contentType;
+	}
+
+	public String getCharset()
+	{
+		return charset;
+	}
+
+	/**
+	 * @return null, so JavaMail chooses the transfer encoding by writing the content and not by reading getInputStream().
+	 */
+	public String getName()
+	{
+		return null;
+	}
+}
@@ -0,0 +1,18 @@
+package er.communication.foundation;
+
+import java.util.TimeZone;
+
+/**
+ * A recipient which gives its time zone, used to apply the quiet hours of a context in the local time of the recipient.
+ *
+ * @author Philippe Rabier
+ *
+ * @see ERQuietHours
+ */
+public interface ERTimeZoneRecipient extends ERRecipient
+{
+	/**
+	 * @return the time zone of the recipient, null to use the default time zone.
+	 */
+	TimeZone getTimeZone();
+}
@@ -0,0 +1,254 @@
+package er.communication.foundation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel which keeps a large number of timeouts with a constant cost per timeout.<p>
+ * The time is divided in ticks. The first wheel has a slot per tick, each slot of the next wheel covers a whole turn of the
+ * previous one and so on: with 4 wheels of 256 slots and a tick of one second, a timeout can be set more than 130 years
+ * ahead. A timeout is linked in the slot of its deadline in the first wheel which can hold it, so scheduling and
+ * cancelling a timeout don't depend on the number of timeouts. When a wheel completes a turn, the timeouts of the next
+ * slot of the upper wheel are moved down to the lower wheels.<br>
+ * A timeout never expires before its deadline, and expires at most one tick after it. A timeout whose deadline has
+ * already passed expires at the next call to advance().<p>
+ * The wheel isn't thread safe, the caller synchronizes the calls (see ERScheduler).
+ *
+ * @author Philippe Rabier
+ *
+ * @param <T> the type of the scheduled items
+ */
+public class ERTimerWheel<T>
+{
+	/**
+	 * An item scheduled in the wheel.
+	 */
+	public static class Timeout<T>
+	{
+		private final T item;
+		private final long deadline;
+		private final long deadlineTick;
+		private Timeout<T> previous;
+		private Timeout<T> next;
+
+		private Timeout(T item, long deadline, long deadlineTick)
+		{
+			this.item = item;
+			this.deadline = deadline;
+			this.deadlineTick = deadlineTick;
+		}
+
+		public T getItem()
+		{
+			return item;
+		}
+
+		/**
+		 * @return the time of the deadline in milliseconds.
+		 */
+		public long getDeadline()
+		{
+			return deadline;
+		}
+
+		/**
+		 * @return <code>true</code> while the timeout is in the wheel.
+		 */
+		public boolean isPending()
+		{
+			return next != null;
+		}
+	}
+
+	private final long tickMillis;
+	private final int bits;
+	private final int mask;
+	private final int levels;
+	private final Timeout<T>[][] slots;
+	// the timeouts whose deadline has passed and not returned by advance() yet
+	private final Timeout<T> due;
+	private long currentTick;
+	// the time given to the last advance()
+	private long currentTime;
+	private int size;
+
+	/**
+	 * @param tickMillis the duration of a tick in milliseconds
+	 * @param wheelSize the number of slots of each wheel, a power of 2
+	 * @param levels the number of wheels
+	 * @param startTime the current time in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	public ERTimerWheel(long tickMillis, int wheelSize, int levels, long startTime)
+	{
+		if (tickMillis <= 0 || wheelSize < 2 || Integer.bitCount(wheelSize) != 1 || levels <= 0 || (long) Integer.numberOfTrailingZeros(wheelSize) * levels > 62)
+			throw new IllegalArgumentException("Invalid configuration /tickMillis: " + tickMillis + " /wheelSize: " + wheelSize + " /levels: " + levels);
+		this.tickMillis = tickMillis;
+		this.bits = Integer.numberOfTrailingZeros(wheelSize);
+		this.mask = wheelSize - 1;
+		this.levels = levels;
+		this.slots = new Timeout[levels][wheelSize];
+		for (int level = 0; level < levels; level++)
+		{
+			for (int slot = 0; slot < wheelSize; slot++)
+				slots[level][slot] = newList();
+		}
+		this.due = newList();
+		this.currentTick = startTime / tickMillis;
+		this.currentTime = startTime;
+	}
+
+	/**
+	 * Schedules an item.
+	 *
+	 * @param item
+	 * @param deadline the time in milliseconds after which the item is returned by advance()
+	 * @return the timeout used to cancel the item
+	 */
+	public Timeout<T> schedule(T item, long deadline)
+	{
+		// rounded up so the timeout doesn't expire before the deadline
+		long deadlineTick = deadline / tickMillis + (deadline % tickMillis > 0 ? 1 : 0);
+		Timeout<T> timeout = new Timeout<T>(item, deadline, deadlineTick);
+		// a deadline already passed doesn't wait for the next tick
+		if (deadline <= currentTime)
+			link(due, timeout);
+		else
+			place(timeout);
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Removes a timeout from the wheel.
+	 *
+	 * @param timeout
+	 * @return <code>false</code> if the timeout has already expired or been cancelled.
+	 */
+	public boolean cancel(Timeout<T> timeout)
+	{
+		if (!timeout.isPending())
+			return false;
+		unlink(timeout);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Moves the wheel to <code>now</code> and removes the expired timeouts.
+	 *
+	 * @param now the current time in milliseconds
+	 * @return the items whose deadline has passed, in the order of their ticks.
+	 */
+	public List<T> advance(long now)
+	{
+		List<T> expired = new ArrayList<T>();
+		currentTime = Math.max(currentTime, now);
+		drain(due, expired);
+		long targetTick = now / tickMillis;
+		if (size == 0 && currentTick < targetTick)
+			currentTick = targetTick;
+		while (currentTick < targetTick)
+		{
+			currentTick++;
+			// from the upper wheel down, so a timeout moved to a slot cascaded in the same tick goes further down
+			for (int level = levels - 1; level > 0; level--)
+			{
+				if ((currentTick & ((1L << (bits * level)) - 1)) == 0)
+					cascade(slots[level][(int) ((currentTick >>> (bits * level)) & mask)]);
+			}
+			cascade(slots[0][(int) (currentTick & mask)]);
+			drain(due, expired);
+			if (size == 0)
+				currentTick = targetTick;
+		}
+		return expired;
+	}
+
+	/**
+	 * @return the number of pending timeouts.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	public long tickMillis()
+	{
+		return tickMillis;
+	}
+
+	private void place(Timeout<T> timeout)
+	{
+		long delta = timeout.deadlineTick - currentTick;
+		if (delta <= 0)
+		{
+			link(due, timeout);
+			return;
+		}
+		int level = 0;
+		while (level < levels - 1 && delta >= (1L << (bits * (level + 1))))
+			level++;
+		// a deadline beyond the upper wheel is placed again each time its slot is cascaded
+		link(slots[level][(int) ((timeout.deadlineTick >>> (bits * level)) & mask)], timeout);
+	}
+
+	/**
+	 * Places again the timeouts of a slot, the expired ones go to the due list.
+	 */
+	private void cascade(Timeout<T> list)
+	{
+		if (list.next == list)
+			return;
+		// the list is emptied first: a deadline beyond the upper wheel may be placed in the same slot
+		Timeout<T> timeout = list.next;
+		list.previous.next = null;
+		list.previous = list;
+		list.next = list;
+		while (timeout != null)
+		{
+			Timeout<T> next = timeout.next;
+			timeout.previous = null;
+			timeout.next = null;
+			place(timeout);
+			timeout = next;
+		}
+	}
+
+	private void drain(Timeout<T> list, List<T> expired)
+	{
+		Timeout<T> timeout = list.next;
+		while (timeout != list)
+		{
+			Timeout<T> next = timeout.next;
+			unlink(timeout);
+			size--;
+			expired.add(timeout.item);
+			timeout = next;
+		}
+	}
+
+	private Timeout<T> newList()
+	{
+		Timeout<T> list = new Timeout<T>(null, 0, 0);
+		list.previous = list;
+		list.next = list;
+		return list;
+	}
+
+	private static <T> void link(Timeout<T> list, Timeout<T> timeout)
+	{
+		timeout.previous = list.previous;
+		timeout.next = list;
+		list.previous.next = timeout;
+		list.previous = timeout;
+	}
+
+	private static <T> void unlink(Timeout<T> timeout)
+	{
+		timeout.previous.next = timeout.next;
+		timeout.next.previous = timeout.previous;
+		timeout.previous = null;
+		timeout.next = null;
+	}
+}
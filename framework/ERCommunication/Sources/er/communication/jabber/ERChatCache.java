@@ -0,0 +1,129 @@
+package er.communication.jabber;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.ChatManager;
+import org.jivesoftware.smack.MessageListener;
+
+/**
+ * Keeps the chats opened with the recipients of a connection so the same chat is reused for all messages sent
+ * to a jabber ID.<p>
+ * The cache is bounded and the least recently used chat is evicted first. A chat which hasn't been used
+ * for the idle timeout is evicted as well. An evicted chat is forgotten, Smack only keeps weak references
+ * to its chats so it can be garbage collected.<br>
+ * The chats belong to the chat manager of one connection: when the connection is replaced, the chats of the previous one
+ * are forgotten at the first call with the new chat manager.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERChatCache
+{
+	private final int maxSize;
+	private final long idleTimeout;
+	private final LinkedHashMap<String, Entry> chats;
+	private ChatManager chatManager;
+
+	private static class Entry
+	{
+		private final Chat chat;
+		private long lastUsed;
+
+		Entry(Chat chat, long lastUsed)
+		{
+			this.chat = chat;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	/**
+	 * @param maxSize maximum number of chats
+	 * @param idleTimeout in milliseconds, 0 or less means no idle eviction
+	 */
+	public ERChatCache(final int maxSize, long idleTimeout)
+	{
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("The cache size must be greater than 0 /maxSize: " + maxSize);
+		this.maxSize = maxSize;
+		this.idleTimeout = idleTimeout;
+		this.chats = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns the chat opened with the participant or creates it with the chat manager.
+	 *
+	 * @param chatManager used to create the chat if needed, the chat manager of the connection
+	 * @param participant the jabber ID
+	 * @param listener the listener of a new chat
+	 * @return the chat
+	 */
+	public synchronized Chat chatForParticipant(ChatManager chatManager, String participant, MessageListener listener)
+	{
+		if (chatManager == null)
+			throw new IllegalArgumentException("The chat manager can't be null.");
+		if (chatManager != this.chatManager)
+		{
+			// the chats of a previous connection can't be used anymore
+			clear();
+			this.chatManager = chatManager;
+		}
+		long now = System.currentTimeMillis();
+		evictIdleChats(now);
+		Entry entry = chats.get(participant);
+		if (entry == null)
+		{
+			entry = new Entry(chatManager.createChat(participant, listener), now);
+			chats.put(participant, entry);
+			if (chats.size() > maxSize)
+			{
+				Iterator<Entry> eldest = chats.values().iterator();
+				forget(eldest.next().chat);
+				eldest.remove();
+			}
+		}
+		else
+			entry.lastUsed = now;
+		return entry.chat;
+	}
+
+	/**
+	 * Forgets all chats, called when the connection is closed.
+	 */
+	public synchronized void clear()
+	{
+		for (Entry entry : chats.values())
+			forget(entry.chat);
+		chats.clear();
+		chatManager = null;
+	}
+
+	public synchronized int size()
+	{
+		return chats.size();
+	}
+
+	/**
+	 * The map is in access order, so the idle chats are at the beginning.
+	 */
+	private void evictIdleChats(long now)
+	{
+		if (idleTimeout <= 0)
+			return;
+		for (Iterator<Entry> iterator = chats.values().iterator(); iterator.hasNext();)
+		{
+			Entry entry = iterator.next();
+			if (now - entry.lastUsed <= idleTimeout)
+				break;
+			forget(entry.chat);
+			iterator.remove();
+		}
+	}
+
+	private void forget(Chat chat)
+	{
+		for (MessageListener listener : chat.getListeners())
+			chat.removeMessageListener(listener);
+	}
+}
@@ -1,81 +1,113 @@
 package er.communication.jabber;
 
 import org.jivesoftware.smack.Chat;
-import org.jivesoftware.smack.ChatManager;
 import org.jivesoftware.smack.Connection;
-import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.MessageListener;
-import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Message;
-import org.jivesoftware.smack.packet.Presence;
 
 import er.communication.foundation.ERAbstractMessageProcessor;
-import er.communication.foundation.ERCommunicationContext;
-import er.communication.foundation.ERDataProcessor;
-import er.communication.foundation.ERMedia;
-import er.communication.foundation.ERRecipient;
-import er.extensions.foundation.ERXStringUtilities;
+import er.communication.foundation.ERSendContext;
+import er.communication.foundation.ERSendException;
 
+/**
+ * Concrete implementation of a message processor which sends chat messages through a jabber server.<p>
+ * The connections to the server are handled by a ERXMPPConnectionPool shared by all processors.
+ * 
+ * @author Philippe Rabier
+ * @see ERXMPPConnectionPool
+ */
 public class ERSimpleMessageProcessor extends ERAbstractMessageProcessor 
 {
 	public static final String JABBER_HOST = "host";
 	public static final String JABBER_PORT = "port";
-	private static Connection serverConnection = null;
+	private static ERXMPPConnectionPool connectionPool = null;
+	
+	/**
+	 * The listener of all chats, it answers the messages received from the recipients.
+	 */
+	private static final MessageListener chatListener = new MessageListener() 
+	{
+		@Override
+		public void processMessage(Chat chat, Message message) 
+		{
+			try 
+			{
+				chat.sendMessage("Oups, I'm sorry, I'm very primitive, can do nothing for you.");
+			} catch (XMPPException e) 
+			{
+				log.error("method: processMessage: error in the listener.", e);
+			}
+		}
+	};
 	
 	@Override
-	public void sendContent(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor) 
+	public void sendContent(ERSendContext sendContext) 
 	{
-		String textContent = getTextContent(recipient.getLanguage(), context.getName(), media, dataProcessor, getMergedData());
-		sendChatMessage(recipient.getIdentifier(media), textContent);
+		String textContent = getTextContent(sendContext, sendContext.getContext().getName());
+		sendChatMessage(sendContext.getIdentifier(), textContent);
 	}
 
 	protected void sendChatMessage(String identifier, String textContent)  
 	{
-		Connection connection;
+		ERXMPPConnectionPool pool = connectionPool();
+		ERXMPPConnectionPool.PooledConnection pooledConnection = null;
 		try 
 		{
-			connection = getConnection();
-			ChatManager chatmanager = connection.getChatManager();
-			Chat aChat = chatmanager.createChat(identifier, new MessageListener() 
-			{
-				@Override
-				public void processMessage(Chat chat, Message message) 
-				{
-					try 
-					{
-						chat.sendMessage("Oups, I'm sorry, I'm very primitive, can do nothing for you.");
-					} catch (XMPPException e) 
-					{
-						log.error("method: sendChatMessage: error in the listener.", e);
-					}
-				}
-			});
+			pooledConnection = pool.borrow();
+			Chat aChat = pooledConnection.chatForParticipant(identifier, chatListener);
 			aChat.sendMessage(textContent);
 		} catch (XMPPException e) 
 		{
-			log.error("method: sendChatMessage: error when sending message /identifier: " + identifier + " /textContent: " + textContent, e);
+			if (pooledConnection != null)
+				pool.invalidate(pooledConnection);
+			throw new ERSendException("Failed sending chat message /identifier: " + identifier, e, true);
+		} catch (IllegalStateException e) 
+		{
+			// Smack throws it when the connection has been closed meanwhile
+			if (pooledConnection != null)
+				pool.invalidate(pooledConnection);
+			throw new ERSendException("Failed sending chat message /identifier: " + identifier, e, true);
+		} finally
+		{
+			if (pooledConnection != null)
+				pool.release(pooledConnection);
 		}
 	}
 
-	protected Connection getConnection() throws XMPPException 
+	/**
+	 * @return the pool shared by all processors, created with the default properties if it hasn't been set.
+	 */
+	public static synchronized ERXMPPConnectionPool connectionPool()
 	{
-		if (serverConnection == null)
-		{
-			// Create a connection to the jabber server on a specific port.
-			String host = getProperty("er.communication.jabber.host");
-			int port = ERXStringUtilities.integerWithString(getProperty("er.communication.jabber.port"));
-			ConnectionConfiguration config = new ConnectionConfiguration(host, port);
-			serverConnection = new XMPPConnection(config);
-			serverConnection.connect();
-			Presence presence = new Presence(Presence.Type.unavailable);
-			presence.setStatus("Gone fishing");
-			serverConnection.sendPacket(presence);		}
-		return serverConnection;
+		if (connectionPool == null)
+			connectionPool = new ERXMPPConnectionPool();
+		return connectionPool;
 	}
 	
-	public static void setConnection(Connection connection)
+	public static synchronized void setConnectionPool(ERXMPPConnectionPool pool)
 	{
-		serverConnection = connection;
+		if (connectionPool != null && connectionPool != pool)
+			connectionPool.close();
+		connectionPool = pool;
+	}
+	
+	/**
+	 * Uses a single connection already opened. When the pool closes it after a failure, the same connection is connected
+	 * again.
+	 * 
+	 * @param connection
+	 */
+	public static void setConnection(final Connection connection)
+	{
+		setConnectionPool(new ERXMPPConnectionPool(new ERXMPPConnectionPool.ConnectionFactory() 
+		{
+			public Connection newConnection() throws XMPPException 
+			{
+				if (!connection.isConnected())
+					connection.connect();
+				return connection;
+			}
+		}, 1, Integer.MAX_VALUE, 0, 1000L, 300 * 1000L));
 	}
 }
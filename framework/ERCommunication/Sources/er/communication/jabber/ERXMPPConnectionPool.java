@@ -0,0 +1,504 @@
+package er.communication.jabber;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.MessageListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.Presence;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * A pool of connections to the jabber server.<p>
+ * The messages are spread over the connections and each connection accepts a limited number of messages at the same time.
+ * A connection which is closed or fails is reconnected, waiting longer after each failed attempt (exponential backoff).
+ * A connection is only closed and reopened when no sender uses it anymore: a broken connection isn't given to new senders
+ * and is closed when the last sender gives it back. A sender which waits for a connection is woken up as soon as any
+ * connection is given back.<br>
+ * A keepalive task checks the connections periodically, reconnects the broken ones and sends a presence packet to the others.<br>
+ * The pool is configured with the following properties:
+ * <ul>
+ * <li>er.communication.jabber.host and er.communication.jabber.port: the jabber server
+ * <li>er.communication.jabber.poolSize: number of connections (2 by default)
+ * <li>er.communication.jabber.maxInFlight: number of messages sent at the same time through a connection (10 by default)
+ * <li>er.communication.jabber.borrowTimeout: how long a sender waits for a connection, in milliseconds (10 seconds by default)
+ * <li>er.communication.jabber.keepAliveInterval: delay between two checks, in milliseconds (60 seconds by default, 0 disables it)
+ * <li>er.communication.jabber.reconnectDelay and er.communication.jabber.maxReconnectDelay: first and maximum delay
+ * between two connection attempts, in milliseconds (1 and 300 seconds by default)
+ * <li>er.communication.jabber.chatCacheSize and er.communication.jabber.chatIdleTimeout: maximum number of chats kept
+ * by a connection and how long an unused chat is kept, in milliseconds (1000 and 10 minutes by default)
+ * </ul>
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERXMPPConnectionPool
+{
+	private static final Logger log = Logger.getLogger(ERXMPPConnectionPool.class);
+
+	/**
+	 * Creates and connects a new connection to the jabber server.
+	 */
+	public static interface ConnectionFactory
+	{
+		public Connection newConnection() throws XMPPException;
+	}
+
+	/**
+	 * Default implementation which uses the er.communication.jabber.host and er.communication.jabber.port properties.
+	 */
+	public static class DefaultConnectionFactory implements ConnectionFactory
+	{
+		public Connection newConnection() throws XMPPException
+		{
+			String host = ERXProperties.stringForKey("er.communication.jabber.host");
+			if (host == null)
+				throw new IllegalStateException("method: newConnection: the property er.communication.jabber.host has not been set.");
+			int port = ERXProperties.intForKeyWithDefault("er.communication.jabber.port", 5222);
+			ConnectionConfiguration config = new ConnectionConfiguration(host, port);
+			// The pool handles the reconnection itself.
+			config.setReconnectionAllowed(false);
+			Connection connection = new XMPPConnection(config);
+			connection.connect();
+			Presence presence = new Presence(Presence.Type.unavailable);
+			presence.setStatus("Gone fishing");
+			connection.sendPacket(presence);
+			return connection;
+		}
+	}
+
+	/**
+	 * A connection of the pool with its in flight limit and reconnection state.<p>
+	 * The connection is only replaced when it has no borrower, so a sender which invalidates it after a failure never
+	 * closes a connection opened meanwhile for the other senders.
+	 */
+	public class PooledConnection implements ConnectionListener
+	{
+		private final Semaphore permits;
+		private final ERChatCache chatCache = new ERChatCache(chatCacheSize, chatIdleTimeout);
+		private volatile Connection connection;
+		private int failures;
+		private long nextAttemptTime;
+		// the senders which use the connection
+		private int borrowers;
+		// the connection is closed when its last borrower gives it back, it isn't lent meanwhile
+		private boolean invalidated;
+
+		PooledConnection(int maxInFlight)
+		{
+			this.permits = new Semaphore(maxInFlight, true);
+		}
+
+		public Connection connection()
+		{
+			return connection;
+		}
+
+		/**
+		 * Returns the chat opened with the participant on this connection, creating it if needed.
+		 *
+		 * @param participant the jabber ID
+		 * @param listener the listener of a new chat
+		 * @return the chat
+		 * @throws XMPPException if the connection has been closed
+		 */
+		public Chat chatForParticipant(String participant, MessageListener listener) throws XMPPException
+		{
+			Connection aConnection = connection;
+			if (aConnection == null)
+				throw new XMPPException("The jabber connection has been closed.");
+			return chatCache.chatForParticipant(aConnection.getChatManager(), participant, listener);
+		}
+
+		public int chatCount()
+		{
+			return chatCache.size();
+		}
+
+		public boolean isHealthy()
+		{
+			Connection aConnection = connection;
+			return aConnection != null && aConnection.isConnected();
+		}
+
+		/**
+		 * Connects if needed and allowed by the backoff. A broken connection which still has borrowers is invalidated,
+		 * it's reopened once they have given it back.
+		 *
+		 * @return <code>true</code> if the connection can be used
+		 */
+		synchronized boolean ensureConnected()
+		{
+			if (invalidated)
+				return false;
+			if (isHealthy())
+				return true;
+			if (borrowers > 0)
+			{
+				invalidated = true;
+				return false;
+			}
+			long now = System.currentTimeMillis();
+			if (now < nextAttemptTime)
+				return false;
+			closeConnection();
+			try
+			{
+				Connection newConnection = connectionFactory.newConnection();
+				newConnection.addConnectionListener(this);
+				connection = newConnection;
+				failures = 0;
+				nextAttemptTime = 0;
+				if (log.isDebugEnabled())
+					log.debug("method: ensureConnected: connected to " + newConnection.getHost());
+				return true;
+			} catch (Exception e)
+			{
+				failures++;
+				long delay = Math.min(reconnectDelay << Math.min(failures - 1, 20), maxReconnectDelay);
+				nextAttemptTime = now + delay;
+				log.error("method: ensureConnected: connection failed, next attempt in " + delay + " ms /failures: " + failures, e);
+				return false;
+			}
+		}
+
+		/**
+		 * Lends the connection to a sender, connecting it if needed.
+		 *
+		 * @return <code>false</code> if the connection is invalidated or can't be connected
+		 */
+		synchronized boolean take()
+		{
+			if (!ensureConnected())
+				return false;
+			borrowers++;
+			return true;
+		}
+
+		/**
+		 * Closes the connection now if nobody uses it, otherwise when its last borrower gives it back.
+		 */
+		synchronized void invalidate()
+		{
+			if (borrowers > 0)
+				invalidated = true;
+			else
+				closeConnection();
+		}
+
+		synchronized void giveBack()
+		{
+			borrowers--;
+			if (invalidated && borrowers == 0)
+			{
+				invalidated = false;
+				closeConnection();
+			}
+		}
+
+		private void closeConnection()
+		{
+			Connection oldConnection = connection;
+			connection = null;
+			chatCache.clear();
+			if (oldConnection != null)
+			{
+				oldConnection.removeConnectionListener(this);
+				try
+				{
+					oldConnection.disconnect();
+				} catch (RuntimeException e)
+				{
+					log.warn("method: closeConnection: error when disconnecting.", e);
+				}
+			}
+		}
+
+		public int inFlight()
+		{
+			return maxInFlight - permits.availablePermits();
+		}
+
+		public void connectionClosed()
+		{
+			log.info("method: connectionClosed: the jabber connection has been closed.");
+			invalidate();
+		}
+
+		public void connectionClosedOnError(Exception e)
+		{
+			log.error("method: connectionClosedOnError: the jabber connection has been closed.", e);
+			invalidate();
+		}
+
+		public void reconnectingIn(int seconds) { }
+
+		public void reconnectionSuccessful() { }
+
+		public void reconnectionFailed(Exception e) { }
+	}
+
+	private final ConnectionFactory connectionFactory;
+	private final PooledConnection[] connections;
+	private final int maxInFlight;
+	private final long borrowTimeout;
+	private final long reconnectDelay;
+	private final long maxReconnectDelay;
+	private final int chatCacheSize = ERXProperties.intForKeyWithDefault("er.communication.jabber.chatCacheSize", 1000);
+	private final long chatIdleTimeout = ERXProperties.longForKeyWithDefault("er.communication.jabber.chatIdleTimeout", 10 * 60 * 1000L);
+	private final AtomicInteger nextIndex = new AtomicInteger();
+	// the senders waiting for a connection are woken up when any connection is given back
+	private final Object releaseLock = new Object();
+	private long releaseCount;
+	private int waiters;
+	private ScheduledExecutorService keepAliveExecutor;
+
+	public ERXMPPConnectionPool()
+	{
+		this(new DefaultConnectionFactory(),
+			ERXProperties.intForKeyWithDefault("er.communication.jabber.poolSize", 2),
+			ERXProperties.intForKeyWithDefault("er.communication.jabber.maxInFlight", 10),
+			ERXProperties.longForKeyWithDefault("er.communication.jabber.borrowTimeout", 10 * 1000L),
+			ERXProperties.longForKeyWithDefault("er.communication.jabber.reconnectDelay", 1000L),
+			ERXProperties.longForKeyWithDefault("er.communication.jabber.maxReconnectDelay", 300 * 1000L));
+		startKeepAlive(ERXProperties.longForKeyWithDefault("er.communication.jabber.keepAliveInterval", 60 * 1000L));
+	}
+
+	public ERXMPPConnectionPool(ConnectionFactory connectionFactory, int poolSize, int maxInFlight, long borrowTimeout, long reconnectDelay, long maxReconnectDelay)
+	{
+		if (connectionFactory == null)
+			throw new IllegalArgumentException("The connection factory can't be null.");
+		if (poolSize <= 0 || maxInFlight <= 0)
+			throw new IllegalArgumentException("The pool size and the in flight limit must be greater than 0 /poolSize: " + poolSize + " /maxInFlight: " + maxInFlight);
+		this.connectionFactory = connectionFactory;
+		this.maxInFlight = maxInFlight;
+		this.borrowTimeout = borrowTimeout;
+		this.reconnectDelay = Math.max(reconnectDelay, 1);
+		this.maxReconnectDelay = Math.max(maxReconnectDelay, this.reconnectDelay);
+		this.connections = new PooledConnection[poolSize];
+		for (int i = 0; i < poolSize; i++)
+			connections[i] = new PooledConnection(maxInFlight);
+	}
+
+	/**
+	 * Opens all connections so the first messages don't wait for the connection to the server.
+	 *
+	 * @return the number of opened connections
+	 */
+	public int warmUp()
+	{
+		int count = 0;
+		for (PooledConnection pooledConnection : connections)
+		{
+			if (pooledConnection.ensureConnected())
+				count++;
+		}
+		log.info("method: warmUp: " + count + "/" + connections.length + " jabber connection(s) opened.");
+		return count;
+	}
+
+	/**
+	 * Returns a connection which can accept one more message.<p>
+	 * The connections are tried in turn. If all of them have reached their in flight limit or are down, the caller waits
+	 * until any connection is given back and tries again, until the borrow timeout. The connection must be given back 
+	 * with {@link #release(PooledConnection)}.
+	 *
+	 * @return a connected connection
+	 * @throws XMPPException if no connection is available
+	 */
+	public PooledConnection borrow() throws XMPPException
+	{
+		long deadline = System.currentTimeMillis() + borrowTimeout;
+		while (true)
+		{
+			long seenReleases;
+			synchronized (releaseLock) {
+				seenReleases = releaseCount;
+			}
+			int start = (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+			for (int i = 0; i < connections.length; i++)
+			{
+				PooledConnection pooledConnection = connections[(start + i) % connections.length];
+				if (pooledConnection.permits.tryAcquire())
+				{
+					if (pooledConnection.take())
+						return pooledConnection;
+					pooledConnection.permits.release();
+				}
+			}
+
+			// All connections are busy or down. A connection down may be reopened when its backoff delay is over,
+			// so the caller doesn't wait longer than the first reconnection delay without trying again.
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				throw new XMPPException("No jabber connection available.");
+			try
+			{
+				synchronized (releaseLock) {
+					if (releaseCount == seenReleases)
+					{
+						waiters++;
+						try
+						{
+							releaseLock.wait(Math.min(remaining, reconnectDelay));
+						} finally
+						{
+							waiters--;
+						}
+					}
+				}
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new XMPPException("Interrupted while waiting for a jabber connection.");
+			}
+		}
+	}
+
+	/**
+	 * Gives back a connection returned by borrow().
+	 *
+	 * @param pooledConnection
+	 */
+	public void release(PooledConnection pooledConnection)
+	{
+		pooledConnection.giveBack();
+		pooledConnection.permits.release();
+		synchronized (releaseLock) {
+			releaseCount++;
+			if (waiters > 0)
+				releaseLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Closes a connection which failed, it will be reopened by the next borrow() or the keepalive task. The connection
+	 * isn't lent anymore and is closed when all the senders which use it have given it back.
+	 *
+	 * @param pooledConnection
+	 */
+	public void invalidate(PooledConnection pooledConnection)
+	{
+		pooledConnection.invalidate();
+	}
+
+	/**
+	 * Checks each connection: a broken one is reconnected, a healthy one receives a presence packet which keeps
+	 * the socket alive.
+	 */
+	public void keepAlive()
+	{
+		for (PooledConnection pooledConnection : connections)
+		{
+			Connection connection = pooledConnection.connection();
+			if (connection != null && connection.isConnected())
+			{
+				try
+				{
+					Presence presence = new Presence(Presence.Type.unavailable);
+					presence.setStatus("Gone fishing");
+					connection.sendPacket(presence);
+				} catch (RuntimeException e)
+				{
+					log.warn("method: keepAlive: failed sending the presence, the connection is closed.", e);
+					pooledConnection.invalidate();
+				}
+			}
+			else
+				pooledConnection.ensureConnected();
+		}
+	}
+
+	/**
+	 * @return the number of connected connections
+	 */
+	public int healthyConnectionCount()
+	{
+		int count = 0;
+		for (PooledConnection pooledConnection : connections)
+		{
+			if (pooledConnection.isHealthy())
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of messages being sent through all connections
+	 */
+	public int inFlightCount()
+	{
+		int count = 0;
+		for (PooledConnection pooledConnection : connections)
+			count += pooledConnection.inFlight();
+		return count;
+	}
+
+	public int size()
+	{
+		return connections.length;
+	}
+
+	/**
+	 * Starts the keepalive task.
+	 *
+	 * @param interval in milliseconds, nothing is started if it's 0 or less.
+	 */
+	public synchronized void startKeepAlive(long interval)
+	{
+		if (interval <= 0 || keepAliveExecutor != null)
+			return;
+		keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "ERXMPPConnectionPool-keepAlive");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		keepAliveExecutor.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					keepAlive();
+				} catch (RuntimeException e)
+				{
+					log.error("method: keepAlive: unexpected error.", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the keepalive task and closes all connections.
+	 */
+	public synchronized void close()
+	{
+		if (keepAliveExecutor != null)
+		{
+			keepAliveExecutor.shutdownNow();
+			keepAliveExecutor = null;
+		}
+		for (PooledConnection pooledConnection : connections)
+			pooledConnection.invalidate();
+	}
+
+	public String toString()
+	{
+		return "ERXMPPConnectionPool: size: " + connections.length + " /healthy: " + healthyConnectionCount();
+	}
+}
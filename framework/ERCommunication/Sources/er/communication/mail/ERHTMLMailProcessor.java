@@ -1,8 +1,11 @@
 package er.communication.mail;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.mail.MessagingException;
 
@@ -12,8 +15,13 @@ import com.webobjects.appserver.WOContext;
 import com.webobjects.appserver.WORequest;
 import com.webobjects.foundation.NSData;
 
-import er.communication.foundation.ERMedia;
+import er.communication.foundation.ERCommunicationContext;
+import er.communication.foundation.ERDigestContext;
+import er.communication.foundation.ERMergedDataMap;
 import er.communication.foundation.ERRecipient;
+import er.communication.foundation.ERSendContext;
+import er.communication.foundation.ERSendingConfiguration;
+import er.communication.metrics.ERCommunicationMetrics;
 import er.extensions.appserver.ERXApplication;
 import er.extensions.foundation.ERXProperties;
 import er.javamail.ERMailDeliveryHTML;
@@ -21,7 +29,16 @@ import er.javamail.ERMailDeliveryHTML;
 /**
  * Concrete implementation of a mail processor which sends HTML messages<p>
  * It uses the sending configuration map to get the component name to use<br>
- * <b>Note: </b> the component must implement an accessor data of type Map<String, Object>
+ * <b>Note: </b> the component must implement an accessor data of type Map<String, Object><p>
+ * When the sending configuration contains <code>"renderOnce": true</code> and the component implements
+ * ERRenderOnceComponent, the component is rendered once per language and communication context and only the values of the
+ * recipient (first and last names and the personalized keys of a campaign) are inserted for each recipient (see
+ * ERHTMLRenderCache). The first message of the component is also compared with a complete rendering and if they differ,
+ * the component is rendered for each recipient as usual.<br>
+ * The request used to render the component is built once per language and thread, a context is created for each
+ * rendering.<p>
+ * A digest (see ERDigestContext) is rendered with the component given by the <code>digestComponent</code> key, or with the
+ * usual component when there is none, and always for each recipient.
  * 
  * @author Philippe Rabier
  *
@@ -31,47 +48,71 @@ public class ERHTMLMailProcessor extends ERMailProcessor
 	/** 
 	 * The key used to get the component name in the sending configuration map
 	 */
-	public static final String COMPONENT_NAME = "component";
+	public static final String COMPONENT_NAME = ERSendingConfiguration.COMPONENT_NAME;
 
-	public void sendMail(ERRecipient recipient, ERMedia media, final String subject, final String textContent)
-	{
-		String componentName = (String) getSendingConfiguration().get(COMPONENT_NAME);
-		String realName = recipient.getFirstName() + " " + recipient.getLastName();
-		sendMailWithComponent(recipient.getIdentifier(media), realName, subject, textContent, recipient.getLanguage(), componentName);
+	/**
+	 * The key used in the sending configuration map to render the component once per language
+	 */
+	public static final String RENDER_ONCE = ERSendingConfiguration.RENDER_ONCE;
 
-	}
-	private void sendMailWithComponent(String address, String realName, String subject, String textContent, String language, String component) 
-	{
-		WOApplication app = WOApplication.application();
+	/**
+	 * The key used to get the component name of the digests in the sending configuration map
+	 */
+	public static final String DIGEST_COMPONENT_NAME = ERSendingConfiguration.DIGEST_COMPONENT_NAME;
 
-		// build context
-		Map<String, List<String>> headers = new HashMap<String, List<String>>();
-		headers.put("accept-language", java.util.Arrays.asList(language));
+	private static final String[] PERSONALIZED_KEYS = new String[] { FIRST_NAME, LAST_NAME };
 
-		/* Tells the WORequest object to answer true when request.isUsingWebServer(). When isUsingWebServer() returns true, 
-		 the URL contains the host and port number.*/
-		headers.put("x-webobjects-adaptor-version", java.util.Arrays.asList("4.5"));
+	private static final ERHTMLRenderCache renderCache = new ERHTMLRenderCache(
+			ERXProperties.intForKeyWithDefault("er.communication.mail.ERHTMLMailProcessor.renderCacheSize", 100));
 
-		// Host for URL
-		String host = ERXProperties.stringForKeyWithDefault("er.communication.mail.host", app.host());
-		headers.put("host", java.util.Arrays.asList(host));
+	private final ConcurrentMap<String, Map<String, List<String>>> headersByLanguage = new ConcurrentHashMap<String, Map<String, List<String>>>();
+	private final ThreadLocal<Map<String, WORequest>> requestsByLanguage = new ThreadLocal<Map<String, WORequest>>()
+	{
+		@Override
+		protected Map<String, WORequest> initialValue()
+		{
+			return new HashMap<String, WORequest>();
+		}
+	};
 
-		// Port number for URL
-		String port = ERXProperties.stringForKey("er.communication.mail.port");
-		if (port != null)
-			headers.put(WORequest.ServerPortHeaderX, java.util.Arrays.asList(port));
+	/**
+	 * @return the cache of the components rendered once, shared by all HTML mail processors.
+	 */
+	public static ERHTMLRenderCache renderCache()
+	{
+		return renderCache;
+	}
 
-		WORequest request = new WORequest("GET", app.adaptorPath() + "/" + app.name() + ".woa", "HTTP/1.1", headers, new NSData(), new HashMap());
+	/**
+	 * The body is the rendered component, so the template of the context name isn't rendered.
+	 */
+	@Override
+	public void sendMail(ERSendContext sendContext, final String subject)
+	{
+		sendMail(sendContext, subject, null);
+	}
 
-		WOContext ctx = new WOContext(request);
-		ctx.generateCompleteURLs();
-		// Init template
-		WOComponent page = ERXApplication.erxApplication().pageWithName(component, ctx);
-		page.takeValueForKey(getMergedData(), "data");
+	public void sendMail(ERSendContext sendContext, final String subject, final String textContent)
+	{
+		ERRecipient recipient = sendContext.getRecipient();
+		ERSendingConfiguration sendingConfiguration = ERSendingConfiguration.valueOf(sendContext.getSendingConfiguration());
+		boolean isDigest = sendContext.getContext() instanceof ERDigestContext;
+		String componentName = sendingConfiguration.getComponentName();
+		if (isDigest && sendingConfiguration.getDigestComponentName() != null)
+			componentName = sendingConfiguration.getDigestComponentName();
+		String realName = recipient.getFirstName() + " " + recipient.getLastName();
+		String language = recipient.getLanguage();
 
 		// create mail
 		ERMailDeliveryHTML message = new ERMailDeliveryHTML();
-		message.setComponent(page);
+		if (!isDigest && sendingConfiguration.isRenderOnce())
+		{
+			long start = System.nanoTime();
+			message.setHTMLContent(renderedContent(componentName, language, sendContext.getContext(), sendContext.getMergedData()));
+			ERCommunicationMetrics.sharedInstance().metricsFor(sendContext.getContext().getName(), sendContext.getMedia()).renderLatency().record(System.nanoTime() - start);
+		}
+		else
+			message.setComponent(pageWithData(componentName, language, sendContext.getMergedData()));
 		// TODO add text part with
 		// message.setAlternativeComponent(alternativeComponent);
 		// and with
@@ -81,17 +122,127 @@ public class ERHTMLMailProcessor extends ERMailProcessor
 		{
 			message.setSubject(subject);
 			if (realName != null)
-				message.setToAddress(address, realName);
+				message.setToAddress(sendContext.getIdentifier(), realName);
 			else
-				message.setToAddress(address);
+				message.setToAddress(sendContext.getIdentifier());
 
 			message.setFromAddress(fromEmail());
 
 			// send the mail assynchronously
-			message.sendMail();
+			if (!deliverWithEngine(message, sendContext.getMedia()))
+				message.sendMail();
 		} catch (MessagingException e)
 		{
-			log.error("method sendMail: failed sending mail.", e);
+			throw sendException(e);
+		}
+	}
+
+	/**
+	 * Returns the HTML of a recipient, from the template rendered once for the language and the context when the
+	 * component implements ERRenderOnceComponent.<p>
+	 * All the values which differ from a recipient to another (the overlay of the merged data) are replaced by tokens,
+	 * so a template never contains a value of the recipient who built it. The template is rendered for the first
+	 * recipient of the context, the other recipients only merge their values.
+	 * 
+	 * @param component
+	 * @param language
+	 * @param context the communication context, the templates are kept by context
+	 * @param mergedData the context data with the recipient values
+	 * @return the HTML content
+	 */
+	protected String renderedContent(String component, String language, ERCommunicationContext context, Map<String, Object> mergedData)
+	{
+		String[] personalizedKeys = mergedData instanceof ERMergedDataMap ? ((ERMergedDataMap) mergedData).overlayKeys() : PERSONALIZED_KEYS;
+		ERHTMLRenderCache.RenderedTemplate template = renderCache.templateFor(component, language, personalizedKeys, context);
+		if (template == ERHTMLRenderCache.NOT_RENDERABLE)
+			return render(component, language, mergedData);
+		if (template != null)
+			return template.merge(mergedData);
+
+		WOComponent page = pageWithData(component, language, ERHTMLRenderCache.dataWithTokens(mergedData, personalizedKeys));
+		if (!(page instanceof ERRenderOnceComponent))
+		{
+			log.warn("method: renderedContent: the component doesn't implement ERRenderOnceComponent, it is rendered for each recipient /component: " + component);
+			renderCache.setTemplateFor(component, language, personalizedKeys, context, ERHTMLRenderCache.NOT_RENDERABLE);
+			return render(component, language, mergedData);
+		}
+		template = new ERHTMLRenderCache.RenderedTemplate(page.generateResponse().contentString(), personalizedKeys);
+		if (!renderCache.isVerified(component, language, personalizedKeys))
+		{
+			String content = render(component, language, mergedData);
+			if (!content.equals(template.merge(mergedData)))
+			{
+				log.warn("method: renderedContent: the component can't be rendered once, it is rendered for each recipient /component: " + component);
+				renderCache.setTemplateFor(component, language, personalizedKeys, context, ERHTMLRenderCache.NOT_RENDERABLE);
+				return content;
+			}
+		}
+		renderCache.setTemplateFor(component, language, personalizedKeys, context, template);
+		return template.merge(mergedData);
+	}
+
+	protected String render(String component, String language, Map<String, Object> data)
+	{
+		return pageWithData(component, language, data).generateResponse().contentString();
+	}
+
+	private WOComponent pageWithData(String component, String language, Map<String, Object> data)
+	{
+		WOContext ctx = new WOContext(requestForLanguage(language));
+		ctx.generateCompleteURLs();
+		// Init template
+		WOComponent page = ERXApplication.erxApplication().pageWithName(component, ctx);
+		page.takeValueForKey(data, "data");
+		return page;
+	}
+
+	/**
+	 * The request only depends on the language so it's built once per language and thread. A context keeps the state of
+	 * a rendering (the page, the resources added to the response, ...) so it's never reused.
+	 */
+	private WORequest requestForLanguage(String language)
+	{
+		String languageKey = language == null ? "" : language;
+		Map<String, WORequest> requests = requestsByLanguage.get();
+		WORequest request = requests.get(languageKey);
+		if (request == null)
+		{
+			WOApplication app = WOApplication.application();
+			request = new WORequest("GET", app.adaptorPath() + "/" + app.name() + ".woa", "HTTP/1.1", headersForLanguage(language), new NSData(), new HashMap());
+			requests.put(languageKey, request);
 		}
+		return request;
+	}
+
+	/**
+	 * The headers only depend on the language so they are built once per language.
+	 */
+	private Map<String, List<String>> headersForLanguage(String language)
+	{
+		String languageKey = language == null ? "" : language;
+		Map<String, List<String>> headers = headersByLanguage.get(languageKey);
+		if (headers != null)
+			return headers;
+
+		WOApplication app = WOApplication.application();
+		headers = new HashMap<String, List<String>>();
+		headers.put("accept-language", java.util.Arrays.asList(language));
+
+		/* Tells the WORequest object to answer true when request.isUsingWebServer(). When isUsingWebServer() returns true, 
+		 the URL contains the host and port number.*/
+		headers.put("x-webobjects-adaptor-version", java.util.Arrays.asList("4.5"));
+
+		// Host for URL
+		String host = ERXProperties.stringForKeyWithDefault("er.communication.mail.host", app.host());
+		headers.put("host", java.util.Arrays.asList(host));
+
+		// Port number for URL
+		String port = ERXProperties.stringForKey("er.communication.mail.port");
+		if (port != null)
+			headers.put(WORequest.ServerPortHeaderX, java.util.Arrays.asList(port));
+
+		headers = Collections.unmodifiableMap(headers);
+		Map<String, List<String>> existingHeaders = headersByLanguage.putIfAbsent(languageKey, headers);
+		return existingHeaders != null ? existingHeaders : headers;
 	}
 }
@@ -0,0 +1,264 @@
+package er.communication.mail;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.webobjects.appserver.WOMessage;
+
+import er.communication.foundation.ERMergedDataMap;
+
+/**
+ * Keeps the HTML rendered once for a component, a language, the personalized keys and a communication context.<p>
+ * The component is rendered with a token in place of each personalized value (first name, last name, ...). The
+ * message of a recipient is then built by replacing the tokens with its values escaped the same way as WOString does.<br>
+ * This only works if the component displays the personalized values as they are, which the component declares by
+ * implementing ERRenderOnceComponent. The first template of a component, a language and personalized keys is also
+ * compared with a normal rendering: if they differ, the component is marked as not renderable once and rendered for each
+ * recipient.<p>
+ * The templates are keyed by the identity of the context, so finding the template of a recipient doesn't depend on the
+ * size of the context data: the template is rendered for the first recipient of a context (a campaign, a bulk send)
+ * and merged for the others. The cache only keeps a weak reference to the context, a template whose context is gone is
+ * never found again and is evicted with the least recently used ones.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERHTMLRenderCache
+{
+	private static final String TOKEN_PREFIX = "\u0001ERCommunication.";
+	private static final String TOKEN_SUFFIX = "\u0001";
+
+	/**
+	 * Marks a template which can't be rendered once.
+	 */
+	public static final RenderedTemplate NOT_RENDERABLE = new RenderedTemplate("", new String[0]);
+
+	private final LinkedHashMap<Key, RenderedTemplate> templates;
+	// whether a component can be rendered once, keyed without context
+	private final Map<Key, Boolean> renderable = new HashMap<Key, Boolean>();
+	private long hits;
+	private long misses;
+
+	/**
+	 * The rendered HTML where the personalized values are replaced by tokens.
+	 */
+	public static class RenderedTemplate
+	{
+		private final String html;
+		private final String[] keys;
+
+		public RenderedTemplate(String html, String[] keys)
+		{
+			this.html = html;
+			this.keys = keys;
+		}
+
+		/**
+		 * Replaces the tokens by the values of the recipient.
+		 *
+		 * @param data contains the personalized values
+		 * @return the HTML of the recipient
+		 */
+		public String merge(Map<String, Object> data)
+		{
+			StringBuilder result = new StringBuilder(html.length() + 64);
+			int start = 0;
+			int tokenStart;
+			while ((tokenStart = html.indexOf(TOKEN_PREFIX, start)) >= 0)
+			{
+				int keyStart = tokenStart + TOKEN_PREFIX.length();
+				int tokenEnd = html.indexOf(TOKEN_SUFFIX, keyStart);
+				if (tokenEnd < 0)
+					break;
+				result.append(html, start, tokenStart);
+				Object value = data.get(html.substring(keyStart, tokenEnd));
+				if (value != null)
+					result.append(WOMessage.stringByEscapingHTMLString(value.toString()));
+				start = tokenEnd + TOKEN_SUFFIX.length();
+			}
+			result.append(html, start, html.length());
+			return result.toString();
+		}
+
+		public String[] keys()
+		{
+			return keys;
+		}
+	}
+
+	private static class Key
+	{
+		private final String component;
+		private final String language;
+		private final String[] personalizedKeys;
+		private final WeakReference<Object> context;
+		private final int hashCode;
+
+		Key(String component, String language, String[] personalizedKeys, Object context)
+		{
+			this.component = component;
+			this.language = language;
+			this.personalizedKeys = personalizedKeys;
+			this.context = context != null ? new WeakReference<Object>(context) : null;
+			int result = component != null ? component.hashCode() : 0;
+			result = 31 * result + (language != null ? language.hashCode() : 0);
+			result = 31 * result + Arrays.hashCode(personalizedKeys);
+			this.hashCode = 31 * result + System.identityHashCode(context);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			if (context == null ? other.context != null : other.context == null)
+				return false;
+			// a context which has been collected matches no other key
+			if (context != null && (context.get() == null || context.get() != other.context.get()))
+				return false;
+			return (component == null ? other.component == null : component.equals(other.component))
+				&& (language == null ? other.language == null : language.equals(other.language))
+				&& Arrays.equals(personalizedKeys, other.personalizedKeys);
+		}
+	}
+
+	public ERHTMLRenderCache(final int maxSize)
+	{
+		this.templates = new LinkedHashMap<Key, RenderedTemplate>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, RenderedTemplate> eldest)
+			{
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param key
+	 * @return the token which replaces the value of the key when the component is rendered once.
+	 */
+	public static String tokenForKey(String key)
+	{
+		return TOKEN_PREFIX + key + TOKEN_SUFFIX;
+	}
+
+	/**
+	 * Builds the data used to render the template: a view of data where the personalized values are replaced by tokens.
+	 *
+	 * @param data
+	 * @param personalizedKeys
+	 * @return the data with tokens
+	 */
+	public static Map<String, Object> dataWithTokens(Map<String, Object> data, String[] personalizedKeys)
+	{
+		Object[] tokens = new Object[personalizedKeys.length];
+		for (int i = 0; i < personalizedKeys.length; i++)
+			tokens[i] = tokenForKey(personalizedKeys[i]);
+		return new ERMergedDataMap(data, personalizedKeys, tokens);
+	}
+
+	/**
+	 * @param component
+	 * @param language
+	 * @param personalizedKeys the keys replaced by tokens in the template
+	 * @param context the communication context, compared by identity
+	 * @return the rendered template, NOT_RENDERABLE if the component can't be rendered once or null if there is none yet.
+	 */
+	public RenderedTemplate templateFor(String component, String language, String[] personalizedKeys, Object context)
+	{
+		Key key = new Key(component, language, personalizedKeys, context);
+		synchronized (this)
+		{
+			RenderedTemplate template = Boolean.FALSE.equals(renderable.get(new Key(component, language, personalizedKeys, null))) ? NOT_RENDERABLE : templates.get(key);
+			if (template == null || template == NOT_RENDERABLE)
+				misses++;
+			else
+				hits++;
+			return template;
+		}
+	}
+
+	/**
+	 * @param component
+	 * @param language
+	 * @param personalizedKeys
+	 * @return <code>true</code> once a template of the component has been compared with a normal rendering.
+	 */
+	public synchronized boolean isVerified(String component, String language, String[] personalizedKeys)
+	{
+		return renderable.containsKey(new Key(component, language, personalizedKeys, null));
+	}
+
+	/**
+	 * Keeps the template of a context. NOT_RENDERABLE marks the component as not renderable once, for all the contexts.
+	 *
+	 * @param component
+	 * @param language
+	 * @param personalizedKeys
+	 * @param context
+	 * @param template
+	 */
+	public void setTemplateFor(String component, String language, String[] personalizedKeys, Object context, RenderedTemplate template)
+	{
+		Key componentKey = new Key(component, language, personalizedKeys, null);
+		Key key = new Key(component, language, personalizedKeys, context);
+		synchronized (this)
+		{
+			if (template == NOT_RENDERABLE)
+				renderable.put(componentKey, Boolean.FALSE);
+			else
+			{
+				if (!renderable.containsKey(componentKey))
+					renderable.put(componentKey, Boolean.TRUE);
+				templates.put(key, template);
+			}
+		}
+	}
+
+	public synchronized int size()
+	{
+		return templates.size();
+	}
+
+	/**
+	 * @return the number of messages merged into a template rendered once.
+	 */
+	public synchronized long hitCount()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return the number of messages which have been rendered completely.
+	 */
+	public synchronized long missCount()
+	{
+		return misses;
+	}
+
+	/**
+	 * Empties the cache and resets the counters.
+	 */
+	public synchronized void clear()
+	{
+		templates.clear();
+		renderable.clear();
+		hits = 0;
+		misses = 0;
+	}
+}
@@ -0,0 +1,440 @@
+package er.communication.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.appserver.WOApplication;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+
+import er.communication.foundation.ERChannel;
+import er.extensions.foundation.ERXConstant;
+import er.extensions.foundation.ERXProperties;
+import er.javamail.ERJavaMail;
+
+/**
+ * Delivers mails through a few SMTP connections kept open between messages.<p>
+ * The messages are queued and each worker thread owns one transport. A worker sends the messages one after the other
+ * on its transport and opens a new connection after a maximum number of messages, when the connection fails or
+ * when it has been idle too long. So many messages are sent per SMTP session and several sessions run in parallel.<br>
+ * The future of a message completes when the SMTP server has accepted or refused it. A message given to the engine after 
+ * stop() fails at once, so no future is left waiting.<br>
+ * A message can be given with the concurrency limit of its media: a worker holds a permit of the limit while its
+ * connection is open, so the number of SMTP connections never exceeds the limit whatever the number of workers. A worker
+ * which doesn't get a permit waits until another worker closes its connection, at the end of its session or when it's idle.<br>
+ * The engine is used by the mail processors when the er.communication.mail.ERMailDeliveryEngine.enabled property is true
+ * (false by default, then the messages are sent by ERJavaMail).<br>
+ * The engine is configured with the following properties:
+ * <ul>
+ * <li>er.communication.mail.ERMailDeliveryEngine.connections: number of SMTP connections (2 by default)
+ * <li>er.communication.mail.ERMailDeliveryEngine.maxMessagesPerSession: messages sent before reconnecting (100 by default)
+ * <li>er.communication.mail.ERMailDeliveryEngine.queueSize: maximum number of waiting messages (1000 by default)
+ * <li>er.communication.mail.ERMailDeliveryEngine.idleTimeout: an idle connection is closed after this delay, in milliseconds
+ * (5 seconds by default)
+ * </ul>
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERMailDeliveryEngine
+{
+	private static final Logger log = Logger.getLogger(ERMailDeliveryEngine.class);
+	private static ERMailDeliveryEngine sharedInstance;
+
+	/**
+	 * Creates a transport which isn't connected yet.
+	 */
+	public static interface TransportFactory
+	{
+		public Transport newTransport() throws MessagingException;
+	}
+
+	/**
+	 * Default implementation which uses the session of ERJavaMail.
+	 */
+	public static class DefaultTransportFactory implements TransportFactory
+	{
+		public Transport newTransport() throws MessagingException
+		{
+			return ERJavaMail.sharedInstance().defaultSession().getTransport("smtp");
+		}
+	}
+
+	/**
+	 * The future of a message given to the engine.
+	 */
+	public static class Delivery implements Future<Void>
+	{
+		private final MimeMessage message;
+		private final Semaphore connectionLimit;
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile MessagingException exception;
+
+		Delivery(MimeMessage message, Semaphore connectionLimit)
+		{
+			this.message = message;
+			this.connectionLimit = connectionLimit;
+		}
+
+		public MimeMessage message()
+		{
+			return message;
+		}
+
+		/**
+		 * @return the semaphore which limits the number of connections used to send the message, null if there is no limit.
+		 */
+		public Semaphore connectionLimit()
+		{
+			return connectionLimit;
+		}
+
+		void done(MessagingException e)
+		{
+			exception = e;
+			latch.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) { return false; }
+
+		public boolean isCancelled() { return false; }
+
+		public boolean isDone() { return latch.getCount() == 0; }
+
+		public Void get() throws InterruptedException, ExecutionException
+		{
+			latch.await();
+			return result();
+		}
+
+		public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+		{
+			if (!latch.await(timeout, unit))
+				throw new TimeoutException("The message has not been sent yet.");
+			return result();
+		}
+
+		private Void result() throws ExecutionException
+		{
+			if (exception != null)
+				throw new ExecutionException(exception);
+			return null;
+		}
+	}
+
+	private final TransportFactory transportFactory;
+	private final BlockingQueue<Delivery> queue;
+	private final int maxMessagesPerSession;
+	private final long idleTimeout;
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong sessionCount = new AtomicLong();
+	private volatile boolean running = true;
+	// a message can't be queued after the workers have decided to stop
+	private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+
+	public ERMailDeliveryEngine()
+	{
+		this(new DefaultTransportFactory(),
+			ERXProperties.intForKeyWithDefault("er.communication.mail.ERMailDeliveryEngine.connections", 2),
+			ERXProperties.intForKeyWithDefault("er.communication.mail.ERMailDeliveryEngine.maxMessagesPerSession", 100),
+			ERXProperties.intForKeyWithDefault("er.communication.mail.ERMailDeliveryEngine.queueSize", 1000),
+			ERXProperties.longForKeyWithDefault("er.communication.mail.ERMailDeliveryEngine.idleTimeout", 5 * 1000L));
+	}
+
+	public ERMailDeliveryEngine(TransportFactory transportFactory, int connections, int maxMessagesPerSession, int queueSize, long idleTimeout)
+	{
+		if (transportFactory == null)
+			throw new IllegalArgumentException("The transport factory can't be null.");
+		if (connections <= 0 || maxMessagesPerSession <= 0 || queueSize <= 0)
+			throw new IllegalArgumentException("The number of connections, messages per session and the queue size must be greater than 0.");
+		this.transportFactory = transportFactory;
+		this.maxMessagesPerSession = maxMessagesPerSession;
+		this.idleTimeout = Math.max(idleTimeout, 1);
+		this.queue = new ArrayBlockingQueue<Delivery>(queueSize);
+		for (int i = 0; i < connections; i++)
+		{
+			Thread worker = new Thread(new Worker(), "ERMailDeliveryEngine-" + (i + 1));
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+		NSNotificationCenter.defaultCenter().addObserver(this,
+				new NSSelector<Void>("applicationWillTerminate", ERXConstant.NotificationClassArray),
+				WOApplication.ApplicationWillTerminateNotification,
+				null);
+	}
+
+	/**
+	 * @return <code>true</code> if the mail processors must use the engine.
+	 */
+	public static boolean isEnabled()
+	{
+		return ERXProperties.booleanForKeyWithDefault("er.communication.mail.ERMailDeliveryEngine.enabled", false);
+	}
+
+	/**
+	 * @return the engine shared by the mail processors, created with the default properties if it hasn't been set.
+	 */
+	public static synchronized ERMailDeliveryEngine sharedInstance()
+	{
+		if (sharedInstance == null)
+			sharedInstance = new ERMailDeliveryEngine();
+		return sharedInstance;
+	}
+
+	/**
+	 * @return the engine shared by the mail processors, null if it hasn't been created or set yet.
+	 */
+	public static synchronized ERMailDeliveryEngine existingSharedInstance()
+	{
+		return sharedInstance;
+	}
+
+	public static synchronized void setSharedInstance(ERMailDeliveryEngine engine)
+	{
+		sharedInstance = engine;
+	}
+
+	/**
+	 * Queues a message, the caller waits if the queue is full.
+	 *
+	 * @param message ready to be sent, the recipients are read from the message.
+	 * @return the future of the delivery, it fails with the MessagingException thrown by the transport, or at once if the
+	 * engine is stopped or the caller is interrupted.
+	 */
+	public Future<Void> deliver(MimeMessage message)
+	{
+		return deliver(message, null);
+	}
+
+	/**
+	 * Queues a message, the caller waits if the queue is full.
+	 *
+	 * @param message ready to be sent, the recipients are read from the message.
+	 * @param connectionLimit a permit is held by each connection which sends the message, null if there is no limit
+	 * (see ERChannel.concurrencyLimitForMedia())
+	 * @return the future of the delivery, it fails with the MessagingException thrown by the transport, or at once if the
+	 * engine is stopped or the caller is interrupted.
+	 */
+	public Future<Void> deliver(MimeMessage message, Semaphore connectionLimit)
+	{
+		Delivery delivery = new Delivery(message, connectionLimit);
+		runningLock.readLock().lock();
+		try
+		{
+			if (!running)
+				delivery.done(new MessagingException("The delivery engine is stopped."));
+			else
+				queue.put(delivery);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			delivery.done(new MessagingException("Interrupted while waiting for room in the queue.", e));
+		} finally
+		{
+			runningLock.readLock().unlock();
+		}
+		return delivery;
+	}
+
+	public int queueSize()
+	{
+		return queue.size();
+	}
+
+	public long sentCount()
+	{
+		return sentCount.get();
+	}
+
+	public long failedCount()
+	{
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the number of SMTP sessions opened since the engine started.
+	 */
+	public long sessionCount()
+	{
+		return sessionCount.get();
+	}
+
+	/**
+	 * Stops accepting messages, sends the queued ones then closes the connections.
+	 *
+	 * @param timeout in milliseconds
+	 */
+	public void stop(long timeout)
+	{
+		runningLock.writeLock().lock();
+		try
+		{
+			running = false;
+		} finally
+		{
+			runningLock.writeLock().unlock();
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+		for (Thread worker : workers)
+		{
+			try
+			{
+				worker.join(Math.max(deadline - System.currentTimeMillis(), 1));
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Called when the application terminates, sends the queued messages.
+	 *
+	 * @param n
+	 */
+	public void applicationWillTerminate(NSNotification n)
+	{
+		// the channel delivers its queued messages through the engine first
+		if (this == existingSharedInstance())
+			ERChannel.shutdown();
+		log.info("method: applicationWillTerminate: draining the queue /queueSize: " + queueSize());
+		stop(ERXProperties.longForKeyWithDefault("er.communication.mail.ERMailDeliveryEngine.shutdownTimeout", 30 * 1000L));
+	}
+
+	/**
+	 * A worker owns one transport and sends the queued messages through it.
+	 */
+	private class Worker implements Runnable
+	{
+		private Transport transport;
+		private int sentInSession;
+		// the limit whose permit is held while the transport is open
+		private Semaphore heldLimit;
+
+		public void run()
+		{
+			while (running || !queue.isEmpty())
+			{
+				Delivery delivery;
+				try
+				{
+					delivery = queue.poll(idleTimeout, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e)
+				{
+					break;
+				}
+				if (delivery == null)
+				{
+					closeTransport();
+					continue;
+				}
+				send(delivery);
+			}
+			closeTransport();
+			if (!running)
+			{
+				// interrupted while stopping, the futures of the messages left don't wait forever
+				Delivery delivery;
+				while ((delivery = queue.poll()) != null)
+				{
+					failedCount.incrementAndGet();
+					delivery.done(new MessagingException("The delivery engine is stopped."));
+				}
+			}
+		}
+
+		private void send(Delivery delivery)
+		{
+			MimeMessage message = delivery.message();
+			try
+			{
+				if (transport == null || !transport.isConnected() || sentInSession >= maxMessagesPerSession || heldLimit != delivery.connectionLimit())
+					openTransport(delivery.connectionLimit());
+				message.saveChanges();
+				transport.sendMessage(message, message.getAllRecipients());
+				sentInSession++;
+				sentCount.incrementAndGet();
+				delivery.done(null);
+			} catch (MessagingException e)
+			{
+				failedCount.incrementAndGet();
+				log.error("method: send: failed sending mail.", e);
+				closeTransport();
+				delivery.done(e);
+			} catch (RuntimeException e)
+			{
+				failedCount.incrementAndGet();
+				log.error("method: send: failed sending mail.", e);
+				closeTransport();
+				delivery.done(new MessagingException("Failed sending mail.", e));
+			}
+		}
+
+		private void openTransport(Semaphore connectionLimit) throws MessagingException
+		{
+			closeTransport();
+			if (connectionLimit != null)
+			{
+				try
+				{
+					connectionLimit.acquire();
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new MessagingException("Interrupted while waiting for the connection limit.", e);
+				}
+				heldLimit = connectionLimit;
+			}
+			Transport newTransport = transportFactory.newTransport();
+			newTransport.connect();
+			transport = newTransport;
+			sentInSession = 0;
+			sessionCount.incrementAndGet();
+		}
+
+		/**
+		 * Closes the transport and gives back the permit of its connection.
+		 */
+		private void closeTransport()
+		{
+			if (transport != null)
+			{
+				try
+				{
+					transport.close();
+				} catch (MessagingException e)
+				{
+					log.warn("method: closeTransport: error when closing the transport.", e);
+				}
+				transport = null;
+			}
+			if (heldLimit != null)
+			{
+				heldLimit.release();
+				heldLimit = null;
+			}
+		}
+	}
+}
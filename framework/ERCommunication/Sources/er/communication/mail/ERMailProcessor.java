@@ -1,14 +1,26 @@
 package er.communication.mail;
 
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
 
 import er.communication.foundation.ERAbstractMessageProcessor;
-import er.communication.foundation.ERCommunicationContext;
+import er.communication.foundation.ERChannel;
+import er.communication.foundation.ERConcurrencyLimitedProcessor;
 import er.communication.foundation.ERDataProcessor;
 import er.communication.foundation.ERMedia;
-import er.communication.foundation.ERRecipient;
+import er.communication.foundation.ERSendContext;
+import er.communication.foundation.ERSendException;
+import er.javamail.ERMailDelivery;
 
-public abstract class ERMailProcessor extends ERAbstractMessageProcessor 
+public abstract class ERMailProcessor extends ERAbstractMessageProcessor implements ERConcurrencyLimitedProcessor
 {
 
 	private String fromEmail = null;
@@ -19,14 +31,28 @@ public abstract class ERMailProcessor extends ERAbstractMessageProcessor
 		super();
 	}
 
-	public abstract void sendMail(ERRecipient recipient, ERMedia media, final String subject, final String textContent);
+	public abstract void sendMail(ERSendContext sendContext, final String subject, final String textContent);
+
+	/**
+	 * Sends the mail of a send context whose body is the template of the context name.<p>
+	 * The default implementation renders the body in a String and calls sendMail(ERSendContext, String, String). A subclass
+	 * overrides it to give the body to JavaMail as a data source, so the body is rendered straight into the SMTP connection
+	 * (see getTextContentDataSource()).
+	 * 
+	 * @param sendContext
+	 * @param subject
+	 */
+	public void sendMail(ERSendContext sendContext, final String subject)
+	{
+		sendMail(sendContext, subject, getTextContent(sendContext, sendContext.getContext().getName()));
+	}
 	
 	@Override
-	public void sendContent(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor) 
+	public void sendContent(ERSendContext sendContext) 
 	{
-		String subject = getSubject(recipient.getLanguage(), context.getName() + "." + SUBJECT_SUFFIX, media, dataProcessor, getMergedData());
-		String textContent = getTextContent(recipient.getLanguage(), context.getName(), media, dataProcessor, getMergedData());
-		sendMail(recipient, media, subject, textContent);
+		String contextName = sendContext.getContext().getName();
+		String subject = getSubject(sendContext, contextName + "." + SUBJECT_SUFFIX);
+		sendMail(sendContext, subject);
 	}
 
 	public String getSubject(String targetLanguage, String contextName, ERMedia media, ERDataProcessor dataProcessor, Map<String, Object> mergedData) 
@@ -34,6 +60,95 @@ public abstract class ERMailProcessor extends ERAbstractMessageProcessor
 		return getTextContent(targetLanguage, contextName + "." + SUBJECT_SUFFIX, media, dataProcessor, mergedData);
 	}
 
+	public String getSubject(ERSendContext sendContext, String contextName) 
+	{
+		return getTextContent(sendContext, contextName + "." + SUBJECT_SUFFIX);
+	}
+
+	/**
+	 * The delivery engine keeps its SMTP connections open between mails, so it applies the concurrency limit of the media
+	 * to its connections.
+	 * 
+	 * @param media
+	 * @return <code>true</code> if the mails are sent by the delivery engine.
+	 */
+	public boolean appliesConcurrencyLimit(ERMedia media)
+	{
+		return ERMailDeliveryEngine.isEnabled();
+	}
+
+	/**
+	 * Gives the prepared mail to the delivery engine if it's enabled and waits until the SMTP server has accepted it.<p>
+	 * So the mail is counted as sent and acknowledged in the outbox journal only once it's delivered, and a failure of
+	 * the engine is thrown to the channel which gives the mail to the retry engine.<br>
+	 * The caller sends the mail with ERJavaMail when this method returns false. Each connection of the engine holds a 
+	 * permit of the concurrency limit of the media while it's open.
+	 * 
+	 * @param delivery the mail ready to be sent
+	 * @param media through which the mail is sent
+	 * @return <code>true</code> if the mail has been delivered by the delivery engine
+	 * @throws MessagingException if the engine failed sending the mail
+	 * @see ERMailDeliveryEngine
+	 */
+	protected boolean deliverWithEngine(ERMailDelivery delivery, ERMedia media) throws MessagingException
+	{
+		if (!ERMailDeliveryEngine.isEnabled())
+			return false;
+		delivery.finishMessagePreparation();
+		Future<Void> future = ERMailDeliveryEngine.sharedInstance().deliver(delivery.mimeMessage(), ERChannel.concurrencyLimitForMedia(media));
+		try
+		{
+			future.get();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted while waiting for the delivery of the mail.", e);
+		} catch (ExecutionException e)
+		{
+			// the engine fails a delivery with the MessagingException of the transport
+			throw (MessagingException) e.getCause();
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the exception thrown when a mail can't be sent.<p>
+	 * A malformed address is a permanent failure. A mail refused by the SMTP server is classified by the return codes of the
+	 * server: a 4xx code (mailbox full, greylisting, ...) is transient, a 5xx code or no code at all is permanent. The other
+	 * failures are transient so the mail is retried.
+	 * 
+	 * @param e
+	 * @return the exception to throw
+	 * @see er.communication.foundation.ERRetryEngine
+	 */
+	protected ERSendException sendException(MessagingException e)
+	{
+		boolean transientFailure = !(e instanceof AddressException || e instanceof SendFailedException) || isTransientSMTPFailure(e);
+		return new ERSendException("Failed sending mail.", e, transientFailure);
+	}
+
+	/**
+	 * @param e
+	 * @return <code>true</code> if the SMTP server answered with a 4xx code for the mail or one of its addresses.
+	 */
+	private static boolean isTransientSMTPFailure(MessagingException e)
+	{
+		// the failure of each address is chained to the exception of the mail
+		Exception failure = e;
+		for (int i = 0; failure instanceof MessagingException && i < 100; i++)
+		{
+			int returnCode = 0;
+			if (failure instanceof SMTPAddressFailedException)
+				returnCode = ((SMTPAddressFailedException) failure).getReturnCode();
+			else if (failure instanceof SMTPSendFailedException)
+				returnCode = ((SMTPSendFailedException) failure).getReturnCode();
+			if (returnCode / 100 == 4)
+				return true;
+			failure = ((MessagingException) failure).getNextException();
+		}
+		return false;
+	}
+
 	public String fromEmail()
 	{
 		if (fromEmail == null)
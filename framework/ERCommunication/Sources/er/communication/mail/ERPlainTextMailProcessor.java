@@ -1,30 +1,75 @@
 package er.communication.mail;
 
+import javax.activation.DataHandler;
 import javax.mail.MessagingException;
-import javax.mail.internet.AddressException;
 
 import org.apache.commons.lang.StringUtils;
 
-import er.communication.foundation.ERMedia;
 import er.communication.foundation.ERRecipient;
+import er.communication.foundation.ERSendContext;
+import er.communication.foundation.ERTemplateDataSource;
 import er.javamail.ERMailDeliveryPlainText;
 
 /**
- * Concrete implementation of ERMailProcessor which sends plain text email.
+ * Concrete implementation of ERMailProcessor which sends plain text email.<p>
+ * The body is given to JavaMail as a ERTemplateDataSource, so it's rendered straight into the SMTP connection when the
+ * mail is written, by the delivery engine or by ERJavaMail, and it's never held in memory.
  * 
  * @author Philippe Rabier
  *
  */
 public class ERPlainTextMailProcessor extends ERMailProcessor
 {
+	/**
+	 * A plain text mail whose body is written by a data source.
+	 */
+	private static class DataSourcePlainText extends ERMailDeliveryPlainText
+	{
+		private ERTemplateDataSource textDataSource;
+
+		public void setTextDataSource(ERTemplateDataSource textDataSource)
+		{
+			this.textDataSource = textDataSource;
+		}
+
+		@Override
+		protected DataHandler prepareMail()
+		{
+			return textDataSource.dataHandler();
+		}
 
-	public void sendMail(ERRecipient recipient, ERMedia media, final String subject, final String textContent)
+		@Override
+		public void finishMessagePreparation() throws MessagingException
+		{
+			super.finishMessagePreparation();
+			// JavaMail would render the body once more to choose the encoding
+			mimeMessage().setHeader("Content-Transfer-Encoding", "quoted-printable");
+		}
+	}
+
+	@Override
+	public void sendMail(ERSendContext sendContext, final String subject)
 	{
-		String address = recipient.getIdentifier(media);
+		DataSourcePlainText plainText = new DataSourcePlainText();
+		String charset = plainText.charset();
+		plainText.setTextDataSource(getTextContentDataSource(sendContext, sendContext.getContext().getName(), "text/plain; charset=\"" + charset + "\"", charset));
+		sendMail(sendContext, subject, plainText);
+	}
+
+	public void sendMail(ERSendContext sendContext, final String subject, final String textContent)
+	{
+		ERMailDeliveryPlainText plainText = new ERMailDeliveryPlainText();
+		plainText.setTextContent(textContent);
+		sendMail(sendContext, subject, plainText);
+	}
+
+	private void sendMail(ERSendContext sendContext, String subject, ERMailDeliveryPlainText plainText)
+	{
+		ERRecipient recipient = sendContext.getRecipient();
+		String address = sendContext.getIdentifier();
 		String realName = recipient.getFirstName() + " " + recipient.getLastName();
 		try
 		{
-			ERMailDeliveryPlainText plainText = new ERMailDeliveryPlainText(); 
 			plainText.newMail(); 
 			plainText.setFromAddress(fromEmail());
 			if (StringUtils.isNotEmpty(realName))
@@ -32,16 +77,12 @@ public class ERPlainTextMailProcessor extends ERMailProcessor
 			else
 				plainText.setToAddress(address);
 			plainText.setSubject(subject); 
-			plainText.setTextContent(textContent);
-			plainText.sendMail(false);
-		} 
-		catch (AddressException e) 
-		{ 
-			log.error("Method: sendMail: ", e);
+			if (!deliverWithEngine(plainText, sendContext.getMedia()))
+				plainText.sendMail(false);
 		} 
 		catch (MessagingException e) 
 		{ 
-			log.error("Method: sendMail: ", e);
+			throw sendException(e);
 		}
 	}
 }
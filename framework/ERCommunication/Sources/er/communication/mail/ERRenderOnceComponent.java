@@ -0,0 +1,19 @@
+package er.communication.mail;
+
+/**
+ * Interface to implement by the component of an HTML mail which can be rendered once per language and context data.<p>
+ * By implementing it, the component declares that its HTML only depends on the language and the data it receives, and that
+ * the personalized values (first name, last name and the personalized keys of a campaign) are only displayed as they are,
+ * with a WOString which escapes HTML: no condition, formatter or link is built from them.<br>
+ * The rendered HTML is kept for each language and communication context (the context object, not the content of its
+ * data): the component must only read data which doesn't change while the messages of a context are sent. An enterprise
+ * object modified during a campaign isn't rendered again, send its values in a new context instead.<br>
+ * The component of a sending configuration with <code>"renderOnce": true</code> which doesn't implement this interface
+ * is rendered for each recipient.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public interface ERRenderOnceComponent
+{
+}
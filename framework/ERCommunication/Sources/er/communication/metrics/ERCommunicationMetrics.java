@@ -0,0 +1,235 @@
+package er.communication.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import er.communication.foundation.ERAbstractMessageProcessor;
+import er.communication.foundation.ERCachingTemplateProvider;
+import er.communication.foundation.ERChannel;
+import er.communication.foundation.ERChannelExecutor;
+import er.communication.foundation.ERMedia;
+import er.communication.foundation.ERTemplateCache;
+import er.communication.mail.ERHTMLMailProcessor;
+import er.communication.util.ERCommunicationFrameworkPrincipal;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Keeps the metrics of each context and media and publishes them as JMX MBeans.<p>
+ * The metrics of a context and a media are created when the first message is sent and registered with the name
+ * <code>er.communication:type=ERMetrics,context=&lt;context name&gt;,media=&lt;media name&gt;</code>. The registry itself is
+ * registered with the name <code>er.communication:type=ERCommunicationMetrics</code> and gives the queue depth, the cache
+ * hit ratios and the totals.<br>
+ * Looking up the metrics of a message doesn't allocate any object and the counters are striped, so the metrics
+ * are always collected.<p>
+ * The MBeans are registered in the platform MBean server unless the er.communication.metrics.ERCommunicationMetrics.jmx
+ * property is false (true by default).
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERCommunicationMetrics implements ERCommunicationMetricsMBean
+{
+	private static final Logger log = Logger.getLogger(ERCommunicationMetrics.class);
+
+	public static final String DOMAIN = "er.communication";
+
+	private static volatile ERCommunicationMetrics sharedInstance;
+
+	private final ConcurrentMap<String, ConcurrentMap<String, ERMetrics>> metricsByContext = new ConcurrentHashMap<String, ConcurrentMap<String, ERMetrics>>();
+	private final MBeanServer mbeanServer;
+
+	/**
+	 * @param mbeanServer the server where the MBeans are registered, null to not publish them.
+	 */
+	public ERCommunicationMetrics(MBeanServer mbeanServer)
+	{
+		this.mbeanServer = mbeanServer;
+		register(this, DOMAIN + ":type=ERCommunicationMetrics");
+	}
+
+	/**
+	 * @return the metrics used by the message processors.
+	 */
+	public static ERCommunicationMetrics sharedInstance()
+	{
+		if (sharedInstance == null)
+		{
+			synchronized(ERCommunicationMetrics.class) {
+				if (sharedInstance == null)
+				{
+					boolean jmx = ERXProperties.booleanForKeyWithDefault("er.communication.metrics.ERCommunicationMetrics.jmx", true);
+					sharedInstance = new ERCommunicationMetrics(jmx ? ManagementFactory.getPlatformMBeanServer() : null);
+				}
+			}
+		}
+		return sharedInstance;
+	}
+
+	public static void setSharedInstance(ERCommunicationMetrics metrics)
+	{
+		sharedInstance = metrics;
+	}
+
+	/**
+	 * @param contextName
+	 * @param media
+	 * @return the metrics of the context and media, created and registered at the first call.
+	 */
+	public ERMetrics metricsFor(String contextName, ERMedia media)
+	{
+		ConcurrentMap<String, ERMetrics> metricsByMedia = metricsByContext.get(contextName);
+		if (metricsByMedia == null)
+		{
+			metricsByMedia = new ConcurrentHashMap<String, ERMetrics>();
+			ConcurrentMap<String, ERMetrics> existing = metricsByContext.putIfAbsent(contextName, metricsByMedia);
+			if (existing != null)
+				metricsByMedia = existing;
+		}
+		String mediaName = media.getName();
+		ERMetrics metrics = metricsByMedia.get(mediaName);
+		if (metrics == null)
+		{
+			metrics = new ERMetrics(contextName, mediaName);
+			ERMetrics existing = metricsByMedia.putIfAbsent(mediaName, metrics);
+			if (existing != null)
+				return existing;
+			register(metrics, DOMAIN + ":type=ERMetrics,context=" + quote(contextName) + ",media=" + quote(mediaName));
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return the metrics of all contexts and medias.
+	 */
+	public List<ERMetrics> allMetrics()
+	{
+		List<ERMetrics> result = new ArrayList<ERMetrics>();
+		for (ConcurrentMap<String, ERMetrics> metricsByMedia : metricsByContext.values())
+			result.addAll(metricsByMedia.values());
+		return result;
+	}
+
+	public int getQueueDepth()
+	{
+		ERChannelExecutor executor = ERChannel.existingExecutor();
+		return executor != null ? executor.queueSize() : 0;
+	}
+
+	public int getInFlightCount()
+	{
+		ERChannelExecutor executor = ERChannel.existingExecutor();
+		return executor != null ? executor.activeCount() : 0;
+	}
+
+	public int getTemplateCacheSize()
+	{
+		return ERTemplateCache.sharedInstance().size();
+	}
+
+	public double getTemplateCacheHitRatio()
+	{
+		ERTemplateCache cache = ERTemplateCache.sharedInstance();
+		return hitRatio(cache.hitCount(), cache.missCount());
+	}
+
+	public double getTemplateProviderHitRatio()
+	{
+		ERAbstractMessageProcessor.TemplateProvider templateProvider = ERAbstractMessageProcessor.templateProvider();
+		if (!(templateProvider instanceof ERCachingTemplateProvider))
+			return -1;
+		ERCachingTemplateProvider cachingProvider = (ERCachingTemplateProvider) templateProvider;
+		return hitRatio(cachingProvider.hitCount(), cachingProvider.missCount());
+	}
+
+	public double getHTMLRenderCacheHitRatio()
+	{
+		return hitRatio(ERHTMLMailProcessor.renderCache().hitCount(), ERHTMLMailProcessor.renderCache().missCount());
+	}
+
+	public long getMediaContextVersion()
+	{
+		return ERCommunicationFrameworkPrincipal.sharedInstance().getMediaContextSnapshot().getVersion();
+	}
+
+	public long getMediaContextReloadMillis()
+	{
+		return ERCommunicationFrameworkPrincipal.sharedInstance().lastReloadDuration();
+	}
+
+	public long getSentCount()
+	{
+		long count = 0;
+		for (ERMetrics metrics : allMetrics())
+			count += metrics.getSentCount();
+		return count;
+	}
+
+	public long getFailedCount()
+	{
+		long count = 0;
+		for (ERMetrics metrics : allMetrics())
+			count += metrics.getFailedCount();
+		return count;
+	}
+
+	public long getSkippedCount()
+	{
+		long count = 0;
+		for (ERMetrics metrics : allMetrics())
+			count += metrics.getSkippedCount();
+		return count;
+	}
+
+	public void reset()
+	{
+		for (ERMetrics metrics : allMetrics())
+			metrics.reset();
+	}
+
+	/**
+	 * Registers an MBean in the server of the metrics, replacing the one registered with the same name.
+	 *
+	 * @param mbean
+	 * @param name the object name
+	 */
+	public void register(Object mbean, String name)
+	{
+		if (mbeanServer == null)
+			return;
+		try
+		{
+			ObjectName objectName = new ObjectName(name);
+			if (mbeanServer.isRegistered(objectName))
+				mbeanServer.unregisterMBean(objectName);
+			mbeanServer.registerMBean(mbean, objectName);
+		} catch (JMException e)
+		{
+			log.warn("method: register: the MBean can't be registered /name: " + name, e);
+		}
+	}
+
+	private static String quote(String value)
+	{
+		for (int i = 0; i < value.length(); i++)
+		{
+			if (",=:\"*?\n".indexOf(value.charAt(i)) >= 0)
+				return ObjectName.quote(value);
+		}
+		return value;
+	}
+
+	private static double hitRatio(long hits, long misses)
+	{
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+}
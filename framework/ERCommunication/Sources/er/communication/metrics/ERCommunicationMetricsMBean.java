@@ -0,0 +1,56 @@
+package er.communication.metrics;
+
+/**
+ * The JMX interface of the metrics shared by all contexts and medias.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public interface ERCommunicationMetricsMBean
+{
+	/**
+	 * @return the number of asynchronous sends waiting in the queue of the channel executor, 0 if it hasn't been created.
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * @return the number of asynchronous sends being executed by the channel executor, 0 if it hasn't been created.
+	 */
+	public int getInFlightCount();
+
+	public int getTemplateCacheSize();
+
+	/**
+	 * @return the hit ratio of the compiled templates cache, between 0 and 1.
+	 */
+	public double getTemplateCacheHitRatio();
+
+	/**
+	 * @return the hit ratio of the caching template provider, -1 if the template provider isn't cached.
+	 */
+	public double getTemplateProviderHitRatio();
+
+	/**
+	 * @return the hit ratio of the HTML pages rendered once per language.
+	 */
+	public double getHTMLRenderCacheHitRatio();
+
+	/**
+	 * @return the version of the MediaContext.json configuration in effect, incremented at each reload.
+	 */
+	public long getMediaContextVersion();
+
+	/**
+	 * @return the duration of the last reload of the MediaContext.json files in milliseconds.
+	 */
+	public long getMediaContextReloadMillis();
+
+	public long getSentCount();
+	public long getFailedCount();
+	public long getSkippedCount();
+
+	/**
+	 * Resets the metrics of all contexts and medias.
+	 */
+	public void reset();
+}
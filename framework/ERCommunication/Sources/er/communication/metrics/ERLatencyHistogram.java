@@ -0,0 +1,100 @@
+package er.communication.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies in buckets whose bounds are powers of two microseconds.<p>
+ * The bucket of a latency is found with a bit count and recording doesn't allocate any object. The percentiles
+ * are the upper bound of the bucket which contains them, so they are accurate within a factor of two, which is
+ * enough to tell a template lookup of a few microseconds from a SMTP round trip.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERLatencyHistogram
+{
+	/**
+	 * Number of buckets: the last one contains the latencies greater than 2^31 microseconds (about 35 minutes).
+	 */
+	public static final int BUCKETS = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final ERStripedCounter count = new ERStripedCounter();
+	private final ERStripedCounter totalNanos = new ERStripedCounter();
+
+	/**
+	 * @param nanos the latency in nanoseconds, as measured with System.nanoTime()
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+		long micros = nanos / 1000;
+		int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+		buckets.incrementAndGet(bucket);
+		count.increment();
+		totalNanos.add(nanos);
+	}
+
+	public long count()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * @return the mean latency in milliseconds, 0 if nothing has been recorded.
+	 */
+	public double meanMillis()
+	{
+		long aCount = count.sum();
+		return aCount == 0 ? 0 : totalNanos.sum() / 1000000.0 / aCount;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound in milliseconds of the bucket which contains the percentile, 0 if nothing has been recorded.
+	 */
+	public double percentileMillis(double percentile)
+	{
+		long[] snapshot = snapshot();
+		long total = 0;
+		for (long value : snapshot)
+			total += value;
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++)
+		{
+			seen += snapshot[i];
+			if (seen >= rank)
+				return (1L << i) / 1000.0;
+		}
+		return (1L << (BUCKETS - 1)) / 1000.0;
+	}
+
+	/**
+	 * @return the count of each bucket, the bucket i contains the latencies lower than 2^i microseconds.
+	 */
+	public long[] snapshot()
+	{
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			snapshot[i] = buckets.get(i);
+		return snapshot;
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+		count.reset();
+		totalNanos.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "count: " + count() + " /mean: " + meanMillis() + "ms /p99: " + percentileMillis(99) + "ms";
+	}
+}
@@ -0,0 +1,148 @@
+package er.communication.metrics;
+
+import er.communication.foundation.ERChannel;
+
+/**
+ * The metrics of a context and a media: the number of sent, failed, skipped and expired messages, the number of messages
+ * waiting in the channel executor and the latency histograms of the template lookups, of the renderings and of the deliveries.<p>
+ * The delivery latency is the time spent by the message processor for a message, the lookups and renderings included.
+ *
+ * @author Philippe Rabier
+ * @see ERCommunicationMetrics
+ */
+public class ERMetrics implements ERMetricsMBean
+{
+	private final String contextName;
+	private final String mediaName;
+	private final ERStripedCounter sent = new ERStripedCounter();
+	private final ERStripedCounter failed = new ERStripedCounter();
+	private final ERStripedCounter skipped = new ERStripedCounter();
+	private final ERStripedCounter expired = new ERStripedCounter();
+	private final ERLatencyHistogram lookupLatency = new ERLatencyHistogram();
+	private final ERLatencyHistogram renderLatency = new ERLatencyHistogram();
+	private final ERLatencyHistogram deliverLatency = new ERLatencyHistogram();
+
+	public ERMetrics(String contextName, String mediaName)
+	{
+		this.contextName = contextName;
+		this.mediaName = mediaName;
+	}
+
+	public void recordSent()
+	{
+		sent.increment();
+	}
+
+	public void recordFailed()
+	{
+		failed.increment();
+	}
+
+	public void recordSkipped()
+	{
+		skipped.increment();
+	}
+
+	public void recordExpired()
+	{
+		expired.increment();
+	}
+
+	public ERLatencyHistogram lookupLatency()
+	{
+		return lookupLatency;
+	}
+
+	public ERLatencyHistogram renderLatency()
+	{
+		return renderLatency;
+	}
+
+	public ERLatencyHistogram deliverLatency()
+	{
+		return deliverLatency;
+	}
+
+	public String getContextName()
+	{
+		return contextName;
+	}
+
+	public String getMediaName()
+	{
+		return mediaName;
+	}
+
+	public int getQueueDepth()
+	{
+		return ERChannel.queueDepth(contextName, mediaName);
+	}
+
+	public long getSentCount()
+	{
+		return sent.sum();
+	}
+
+	public long getFailedCount()
+	{
+		return failed.sum();
+	}
+
+	public long getSkippedCount()
+	{
+		return skipped.sum();
+	}
+
+	public long getExpiredCount()
+	{
+		return expired.sum();
+	}
+
+	public double getLookupMeanMillis()
+	{
+		return lookupLatency.meanMillis();
+	}
+
+	public double getLookup99thPercentileMillis()
+	{
+		return lookupLatency.percentileMillis(99);
+	}
+
+	public double getRenderMeanMillis()
+	{
+		return renderLatency.meanMillis();
+	}
+
+	public double getRender99thPercentileMillis()
+	{
+		return renderLatency.percentileMillis(99);
+	}
+
+	public double getDeliverMeanMillis()
+	{
+		return deliverLatency.meanMillis();
+	}
+
+	public double getDeliver99thPercentileMillis()
+	{
+		return deliverLatency.percentileMillis(99);
+	}
+
+	public void reset()
+	{
+		sent.reset();
+		failed.reset();
+		skipped.reset();
+		expired.reset();
+		lookupLatency.reset();
+		renderLatency.reset();
+		deliverLatency.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ERMetrics: /context: " + contextName + " /media: " + mediaName + " /sent: " + sent + " /failed: " + failed + " /skipped: " + skipped + " /expired: " + expired
+			+ " /lookup: " + lookupLatency + " /render: " + renderLatency + " /deliver: " + deliverLatency;
+	}
+}
@@ -0,0 +1,43 @@
+package er.communication.metrics;
+
+/**
+ * The JMX interface of the metrics of a context and a media.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public interface ERMetricsMBean
+{
+	public String getContextName();
+	public String getMediaName();
+
+	public long getSentCount();
+	public long getFailedCount();
+
+	/**
+	 * @return the number of messages not sent because the recipient has no identifier for the media.
+	 */
+	public long getSkippedCount();
+
+	/**
+	 * @return the number of messages dropped because they waited in the channel executor longer than their time to live.
+	 */
+	public long getExpiredCount();
+
+	/**
+	 * @return the number of messages of the context and media waiting in the channel executor.
+	 */
+	public int getQueueDepth();
+
+	public double getLookupMeanMillis();
+	public double getLookup99thPercentileMillis();
+	public double getRenderMeanMillis();
+	public double getRender99thPercentileMillis();
+	public double getDeliverMeanMillis();
+	public double getDeliver99thPercentileMillis();
+
+	/**
+	 * Resets the counters and the histograms.
+	 */
+	public void reset();
+}
@@ -0,0 +1,69 @@
+package er.communication.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which can be incremented by many threads at the same time without contention.<p>
+ * The count is split in several cells, each thread adds to the cell chosen from its id and the cells are summed
+ * when the value is read. The cells are spaced so two of them never share a cache line. Adding doesn't allocate
+ * any object, so the counters can stay in the send path in production.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERStripedCounter
+{
+	private static final int PADDING = 16;
+	private static final int STRIPES = stripes();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	public void increment()
+	{
+		add(1);
+	}
+
+	public void add(long value)
+	{
+		cells.getAndAdd(index(), value);
+	}
+
+	/**
+	 * @return the sum of the cells. It's not an atomic snapshot when other threads are adding.
+	 */
+	public long sum()
+	{
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < STRIPES; i++)
+			cells.set(i * PADDING, 0);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.valueOf(sum());
+	}
+
+	private static int index()
+	{
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+	}
+
+	private static int stripes()
+	{
+		int stripes = 1;
+		int processors = Runtime.getRuntime().availableProcessors();
+		while (stripes < processors * 2 && stripes < 64)
+			stripes <<= 1;
+		return stripes;
+	}
+}
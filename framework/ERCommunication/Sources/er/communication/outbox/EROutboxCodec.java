@@ -0,0 +1,313 @@
+package er.communication.outbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import er.communication.foundation.ERDataProcessor;
+import er.communication.foundation.ERMedia;
+import er.communication.foundation.ERPersonalizedRecipient;
+import er.communication.foundation.ERRecipient;
+import er.communication.foundation.ERTimeZoneRecipient;
+
+/**
+ * Binary format of the outbox records.<p>
+ * The body of a record contains the context name, the data snapshot and the recipient snapshot, followed by the send
+ * time of a scheduled message, the time when the message was appended, its own time to live, the time zone of the
+ * recipient and the class name of the data processor. The values of the maps
+ * are written with a one byte tag: strings, numbers, booleans, dates, maps and lists keep their type, another
+ * serializable value is written with java serialization and any other value is written as its string description.
+ *
+ * @author Philippe Rabier
+ *
+ */
+class EROutboxCodec
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte BOOLEAN = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte MAP = 6;
+	private static final byte LIST = 7;
+	private static final byte DATE = 8;
+	private static final byte BIG_DECIMAL = 9;
+	private static final byte SERIALIZED = 10;
+
+	private EROutboxCodec()
+	{
+	}
+
+	/**
+	 * @return the body of a record: context name, data and recipient snapshots.
+	 */
+	static byte[] encodeBody(String contextName, Map<String, Object> data, ERRecipient recipient, List<ERMedia> medias) throws IOException
+	{
+		return encodeBody(contextName, data, recipient, medias, 0);
+	}
+
+	/**
+	 * @param sendTime the time when a scheduled message must be sent, 0 if it's sent now
+	 * @return the body of a record: context name, data and recipient snapshots and the send time if there is one.
+	 */
+	static byte[] encodeBody(String contextName, Map<String, Object> data, ERRecipient recipient, List<ERMedia> medias, long sendTime) throws IOException
+	{
+		return encodeBody(contextName, data, recipient, medias, sendTime, System.currentTimeMillis(), 0);
+	}
+
+	/**
+	 * @param sendTime the time when a scheduled message must be sent, 0 if it's sent now
+	 * @param enqueueTime the time when the message is appended to the journal
+	 * @param timeToLive the time to live of the message in milliseconds, 0 if the one of the context is used
+	 * @return the body of a record: context name, data and recipient snapshots, send time, enqueue time and time to live.
+	 */
+	static byte[] encodeBody(String contextName, Map<String, Object> data, ERRecipient recipient, List<ERMedia> medias, long sendTime, long enqueueTime, long timeToLive) throws IOException
+	{
+		return encodeBody(contextName, data, recipient, medias, sendTime, enqueueTime, timeToLive, null);
+	}
+
+	/**
+	 * @param sendTime the time when a scheduled message must be sent, 0 if it's sent now
+	 * @param enqueueTime the time when the message is appended to the journal
+	 * @param timeToLive the time to live of the message in milliseconds, 0 if the one of the context is used
+	 * @param dataProcessor its class name is written, can be null
+	 * @return the body of a record: context name, data and recipient snapshots, send time, enqueue time, time to live,
+	 * time zone of the recipient and class name of the data processor.
+	 */
+	static byte[] encodeBody(String contextName, Map<String, Object> data, ERRecipient recipient, List<ERMedia> medias, long sendTime, long enqueueTime, long timeToLive, ERDataProcessor dataProcessor) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeString(out, contextName);
+		writeValue(out, data);
+		writeString(out, recipient.getFirstName());
+		writeString(out, recipient.getLastName());
+		writeString(out, recipient.getLanguage());
+		out.writeInt(medias.size());
+		for (ERMedia media : medias)
+		{
+			writeString(out, media.getName());
+			writeString(out, recipient.getIdentifier(media));
+		}
+		writeValue(out, recipient instanceof ERPersonalizedRecipient ? ((ERPersonalizedRecipient) recipient).getPersonalizedData() : null);
+		// the records written before the scheduled messages end here, the scheduled ones written before the enqueue time
+		// end after the send time
+		out.writeLong(sendTime);
+		out.writeLong(enqueueTime);
+		out.writeLong(timeToLive);
+		TimeZone timeZone = recipient instanceof ERTimeZoneRecipient ? ((ERTimeZoneRecipient) recipient).getTimeZone() : null;
+		writeString(out, timeZone != null ? timeZone.getID() : null);
+		writeString(out, dataProcessor != null ? dataProcessor.getClass().getName() : null);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	static EROutboxRecord decodeBody(long id, byte[] body, List<String> mediaNames) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		String contextName = readString(in);
+		Map<String, Object> data = (Map<String, Object>) readValue(in);
+		String firstName = readString(in);
+		String lastName = readString(in);
+		String language = readString(in);
+		int count = in.readInt();
+		Map<String, String> identifiers = new HashMap<String, String>(count * 2);
+		for (int i = 0; i < count; i++)
+			identifiers.put(readString(in), readString(in));
+		Map<String, Object> personalizedData = (Map<String, Object>) readValue(in);
+		long sendTime = in.available() >= 8 ? in.readLong() : 0;
+		long enqueueTime = 0;
+		long timeToLive = 0;
+		if (in.available() >= 16)
+		{
+			enqueueTime = in.readLong();
+			timeToLive = in.readLong();
+		}
+		// the records written before the time zone was kept end here
+		String timeZoneID = null;
+		String dataProcessorClassName = null;
+		if (in.available() >= 8)
+		{
+			timeZoneID = readString(in);
+			dataProcessorClassName = readString(in);
+		}
+		EROutboxRecipient recipient = new EROutboxRecipient(firstName, lastName, language, identifiers, personalizedData, timeZoneID != null ? TimeZone.getTimeZone(timeZoneID) : null);
+		return new EROutboxRecord(id, contextName, data, recipient, mediaNames, sendTime, enqueueTime, timeToLive, dataProcessorClassName);
+	}
+
+	static void writeString(DataOutput out, String value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInput in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	static void writeValue(DataOutput out, Object value) throws IOException
+	{
+		if (value == null)
+			out.writeByte(NULL);
+		else if (value instanceof String)
+		{
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		}
+		else if (value instanceof Integer)
+		{
+			out.writeByte(INTEGER);
+			out.writeInt(((Integer) value).intValue());
+		}
+		else if (value instanceof Long)
+		{
+			out.writeByte(LONG);
+			out.writeLong(((Long) value).longValue());
+		}
+		else if (value instanceof Boolean)
+		{
+			out.writeByte(BOOLEAN);
+			out.writeBoolean(((Boolean) value).booleanValue());
+		}
+		else if (value instanceof Double)
+		{
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Double) value).doubleValue());
+		}
+		else if (value instanceof BigDecimal)
+		{
+			out.writeByte(BIG_DECIMAL);
+			writeString(out, value.toString());
+		}
+		else if (value instanceof Date && value.getClass() == Date.class)
+		{
+			out.writeByte(DATE);
+			out.writeLong(((Date) value).getTime());
+		}
+		else if (value instanceof Map)
+		{
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.writeByte(MAP);
+			out.writeInt(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet())
+			{
+				writeString(out, String.valueOf(entry.getKey()));
+				writeValue(out, entry.getValue());
+			}
+		}
+		else if (value instanceof Collection)
+		{
+			Collection<?> collection = (Collection<?>) value;
+			out.writeByte(LIST);
+			out.writeInt(collection.size());
+			for (Object element : collection)
+				writeValue(out, element);
+		}
+		else if (value instanceof Serializable)
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+			objectOut.writeObject(value);
+			objectOut.close();
+			out.writeByte(SERIALIZED);
+			out.writeInt(bytes.size());
+			out.write(bytes.toByteArray());
+		}
+		else
+		{
+			out.writeByte(STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	static Object readValue(DataInput in) throws IOException
+	{
+		byte tag = in.readByte();
+		switch (tag)
+		{
+			case NULL:
+				return null;
+			case STRING:
+				return readString(in);
+			case INTEGER:
+				return Integer.valueOf(in.readInt());
+			case LONG:
+				return Long.valueOf(in.readLong());
+			case BOOLEAN:
+				return Boolean.valueOf(in.readBoolean());
+			case DOUBLE:
+				return Double.valueOf(in.readDouble());
+			case BIG_DECIMAL:
+				return new BigDecimal(readString(in));
+			case DATE:
+				return new Date(in.readLong());
+			case MAP:
+			{
+				int size = in.readInt();
+				Map<String, Object> map = new LinkedHashMap<String, Object>(size * 2);
+				for (int i = 0; i < size; i++)
+					map.put(readString(in), readValue(in));
+				return map;
+			}
+			case LIST:
+			{
+				int size = in.readInt();
+				List<Object> list = new ArrayList<Object>(size);
+				for (int i = 0; i < size; i++)
+					list.add(readValue(in));
+				return list;
+			}
+			case SERIALIZED:
+			{
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+				try
+				{
+					return objectIn.readObject();
+				} catch (ClassNotFoundException e)
+				{
+					throw new IOException("Can't read a serialized value: " + e.getMessage());
+				} finally
+				{
+					objectIn.close();
+				}
+			}
+			default:
+				throw new IOException("Unknown value tag: " + tag);
+		}
+	}
+}
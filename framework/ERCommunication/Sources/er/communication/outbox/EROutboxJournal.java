@@ -0,0 +1,823 @@
+package er.communication.outbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.appserver.WOApplication;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+
+import er.communication.foundation.ERChannel;
+import er.communication.foundation.ERCommunicationContext;
+import er.communication.foundation.ERDataProcessor;
+import er.communication.foundation.ERMedia;
+import er.communication.foundation.ERRecipient;
+import er.extensions.foundation.ERXConstant;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * An append-only journal on the local disk which keeps the messages until they are delivered.<p>
+ * Before a message is sent, the context name, a snapshot of the context data, a snapshot of the recipient and the
+ * medias are appended to the journal. Each media delivery is then acknowledged and a record is removed when all its medias
+ * are acknowledged. When the application starts, the records still pending are sent again.<p>
+ * The journal is a list of segment files of a fixed size mapped in memory. A record is written once in the current segment,
+ * with its length and a CRC32 so a record partially written when the instance died is ignored. When the current
+ * segment is full, a new one is created and the oldest segments are compacted: a segment without pending records
+ * is deleted and the few pending records of an old segment are copied to the current segment before it is deleted.
+ * The pending records of the oldest segment are also copied when the old segments are mostly acknowledged, so a record
+ * pending for a long time (a scheduled message) doesn't keep the segments appended after it on the disk.<br>
+ * Only the position of a pending record is kept in memory, its body is read from the segment when it's replayed or copied.<br>
+ * The writes go to the page cache, so the journal survives the death of the instance. Set syncOnWrite to survive
+ * the crash of the system at the cost of a disk write per record.<p>
+ * Each instance must use its own directory, it's locked while the journal is open.<br>
+ * The journal is configured with the following properties:
+ * <ul>
+ * <li>er.communication.outbox.EROutboxJournal.enabled: the journal is used by the channels (false by default)
+ * <li>er.communication.outbox.EROutboxJournal.directory: the directory of the segments (by default, a directory named after
+ * the application and its port in the temporary directory)
+ * <li>er.communication.outbox.EROutboxJournal.segmentSize: size of a segment in bytes (16 MB by default)
+ * <li>er.communication.outbox.EROutboxJournal.syncOnWrite: forces each record to the disk (false by default)
+ * <li>er.communication.outbox.EROutboxJournal.compactionRatio: an old segment is compacted when the ratio of pending records
+ * is lower than this value (0.5 by default)
+ * </ul>
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class EROutboxJournal
+{
+	private static final Logger log = Logger.getLogger(EROutboxJournal.class);
+
+	/**
+	 * The id returned when a message isn't journaled.
+	 */
+	public static final long NO_RECORD = -1;
+
+	private static final int MAGIC = 0x45524f42;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final byte APPEND = 1;
+	private static final byte ACKNOWLEDGE = 2;
+	// length, type, id and length of the body
+	private static final int BODY_OFFSET = 4 + 1 + 8 + 4;
+	private static final String SEGMENT_SUFFIX = ".outbox";
+	private static final String LOCK_FILE_NAME = "outbox.lock";
+
+	private final File directory;
+	private final int segmentSize;
+	private final boolean syncOnWrite;
+	private final double compactionRatio;
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final Map<Long, Pending> pending = new HashMap<Long, Pending>();
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+	private Segment current;
+	private boolean compactionNeeded;
+	private boolean closed;
+
+	private static class Segment
+	{
+		private final long sequence;
+		private final File file;
+		private FileChannel channel;
+		private MappedByteBuffer buffer;
+		private int appendCount;
+		private int liveCount;
+
+		Segment(long sequence, File file)
+		{
+			this.sequence = sequence;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * A record not acknowledged for all its medias, with the position of its body in its segment.
+	 */
+	private static class Pending
+	{
+		private final long id;
+		private final List<String> mediaNames;
+		private final int bodyLength;
+		private Segment segment;
+		private int bodyPosition;
+
+		Pending(long id, List<String> mediaNames, Segment segment, int bodyPosition, int bodyLength)
+		{
+			this.id = id;
+			this.mediaNames = mediaNames;
+			this.segment = segment;
+			this.bodyPosition = bodyPosition;
+			this.bodyLength = bodyLength;
+		}
+	}
+
+	/**
+	 * Opens the journal with the default properties.
+	 *
+	 * @throws IOException
+	 */
+	public EROutboxJournal() throws IOException
+	{
+		this(new File(ERXProperties.stringForKeyWithDefault("er.communication.outbox.EROutboxJournal.directory", defaultDirectory())),
+			ERXProperties.intForKeyWithDefault("er.communication.outbox.EROutboxJournal.segmentSize", 16 * 1024 * 1024),
+			ERXProperties.booleanForKeyWithDefault("er.communication.outbox.EROutboxJournal.syncOnWrite", false),
+			Double.parseDouble(ERXProperties.stringForKeyWithDefault("er.communication.outbox.EROutboxJournal.compactionRatio", "0.5")));
+		NSNotificationCenter.defaultCenter().addObserver(this,
+				new NSSelector<Void>("applicationWillTerminate", ERXConstant.NotificationClassArray),
+				WOApplication.ApplicationWillTerminateNotification,
+				null);
+	}
+
+	/**
+	 * Opens a journal in another directory with the default properties.<p>
+	 * The caller closes the journal.
+	 *
+	 * @param directory of the segments, created if it doesn't exist
+	 * @throws IOException
+	 */
+	public EROutboxJournal(File directory) throws IOException
+	{
+		this(directory,
+			ERXProperties.intForKeyWithDefault("er.communication.outbox.EROutboxJournal.segmentSize", 16 * 1024 * 1024),
+			ERXProperties.booleanForKeyWithDefault("er.communication.outbox.EROutboxJournal.syncOnWrite", false),
+			Double.parseDouble(ERXProperties.stringForKeyWithDefault("er.communication.outbox.EROutboxJournal.compactionRatio", "0.5")));
+	}
+
+	/**
+	 * Opens the journal and reads the pending records of the existing segments.
+	 *
+	 * @param directory of the segments, created if it doesn't exist
+	 * @param segmentSize in bytes
+	 * @param syncOnWrite forces each record to the disk
+	 * @param compactionRatio an old segment is compacted when the ratio of its pending records is lower
+	 * @throws IOException
+	 */
+	public EROutboxJournal(File directory, int segmentSize, boolean syncOnWrite, double compactionRatio) throws IOException
+	{
+		if (segmentSize <= HEADER_SIZE)
+			throw new IllegalArgumentException("The segment size is too small /segmentSize: " + segmentSize);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create the outbox directory: " + directory);
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncOnWrite = syncOnWrite;
+		this.compactionRatio = compactionRatio;
+		this.lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+		this.lock = lockFile.getChannel().tryLock();
+		if (lock == null)
+		{
+			lockFile.close();
+			throw new IllegalStateException("The outbox directory is used by another instance: " + directory);
+		}
+		recover();
+	}
+
+	/**
+	 * @return <code>true</code> if the channels must journal the messages.
+	 */
+	public static boolean isEnabled()
+	{
+		return ERXProperties.booleanForKeyWithDefault("er.communication.outbox.EROutboxJournal.enabled", false);
+	}
+
+	private static String defaultDirectory()
+	{
+		return defaultDirectory("ERCommunicationOutbox");
+	}
+
+	/**
+	 * @param name of the directory in the temporary directory
+	 * @return the path of a directory named after the application and its port in <code>name</code>.
+	 */
+	public static String defaultDirectory(String name)
+	{
+		WOApplication app = WOApplication.application();
+		String applicationName = app != null ? app.name() + "-" + app.port() : "ERCommunication";
+		return System.getProperty("java.io.tmpdir") + File.separator + name + File.separator + applicationName;
+	}
+
+	/**
+	 * Appends a message to the journal.
+	 *
+	 * @param context
+	 * @param recipient
+	 * @param medias the medias which must acknowledge the delivery
+	 * @return the id of the record
+	 * @throws IOException
+	 */
+	public long append(ERCommunicationContext context, ERRecipient recipient, List<ERMedia> medias) throws IOException
+	{
+		return append(context, recipient, medias, 0);
+	}
+
+	/**
+	 * Appends a scheduled message to the journal.
+	 *
+	 * @param context
+	 * @param recipient
+	 * @param medias the medias which must acknowledge the delivery
+	 * @param sendTime the time in milliseconds when the message must be sent, 0 if it's sent now
+	 * @return the id of the record
+	 * @throws IOException if the record can't be written, or is larger than a segment
+	 * @see EROutboxRecord#getSendTime()
+	 */
+	public long append(ERCommunicationContext context, ERRecipient recipient, List<ERMedia> medias, long sendTime) throws IOException
+	{
+		return append(context, recipient, medias, null, sendTime);
+	}
+
+	/**
+	 * Appends a scheduled message to the journal with the class name of its data processor.
+	 *
+	 * @param context
+	 * @param recipient
+	 * @param medias the medias which must acknowledge the delivery
+	 * @param dataProcessor can be null
+	 * @param sendTime the time in milliseconds when the message must be sent, 0 if it's sent now
+	 * @return the id of the record
+	 * @throws IOException if the record can't be written, or is larger than a segment
+	 * @see EROutboxRecord#newDataProcessor()
+	 */
+	public long append(ERCommunicationContext context, ERRecipient recipient, List<ERMedia> medias, ERDataProcessor dataProcessor, long sendTime) throws IOException
+	{
+		List<String> mediaNames = new ArrayList<String>(medias.size());
+		for (ERMedia media : medias)
+			mediaNames.add(media.getName());
+		byte[] body = EROutboxCodec.encodeBody(context.getName(), context.getData(), recipient, medias, sendTime, System.currentTimeMillis(), context.getTimeToLive(), dataProcessor);
+		long id = nextId.getAndIncrement();
+		byte[] record = appendRecord(id, body, mediaNames);
+		synchronized (this)
+		{
+			checkOpen();
+			int position = write(record);
+			pending.put(Long.valueOf(id), new Pending(id, mediaNames, current, position + BODY_OFFSET, body.length));
+			current.appendCount++;
+			current.liveCount++;
+			compactIfNeeded();
+		}
+		return id;
+	}
+
+	/**
+	 * Acknowledges the delivery of a record through a media.
+	 *
+	 * @param id of the record
+	 * @param media
+	 * @throws IOException
+	 */
+	public void acknowledge(long id, ERMedia media) throws IOException
+	{
+		acknowledge(id, media.getName());
+	}
+
+	/**
+	 * Acknowledges the delivery of a record through a media.
+	 *
+	 * @param id of the record
+	 * @param mediaName
+	 * @throws IOException
+	 */
+	public void acknowledge(long id, String mediaName) throws IOException
+	{
+		synchronized (this)
+		{
+			checkOpen();
+			Pending aPending = pending.get(Long.valueOf(id));
+			if (aPending == null || !aPending.mediaNames.contains(mediaName))
+				return;
+			write(acknowledgeRecord(id, mediaName));
+			acknowledgePending(aPending, mediaName);
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 * @return the records not acknowledged for all their medias, in the order they have been appended.
+	 */
+	public List<EROutboxRecord> pendingRecords()
+	{
+		Pending[] sorted;
+		List<byte[]> bodies = new ArrayList<byte[]>();
+		synchronized (this)
+		{
+			sorted = pending.values().toArray(new Pending[pending.size()]);
+			Arrays.sort(sorted, new java.util.Comparator<Pending>()
+			{
+				public int compare(Pending p1, Pending p2)
+				{
+					return p1.id < p2.id ? -1 : (p1.id == p2.id ? 0 : 1);
+				}
+			});
+			// the bodies are read while the segments can't be compacted
+			Map<Segment, RandomAccessFile> files = new HashMap<Segment, RandomAccessFile>();
+			try
+			{
+				for (int i = 0; i < sorted.length; i++)
+				{
+					Pending aPending = sorted[i];
+					sorted[i] = new Pending(aPending.id, new ArrayList<String>(aPending.mediaNames), null, 0, 0);
+					try
+					{
+						bodies.add(readBody(aPending, files));
+					} catch (IOException e)
+					{
+						log.error("method: pendingRecords: can't read the record /id: " + aPending.id, e);
+						bodies.add(null);
+					}
+				}
+			} finally
+			{
+				closeFiles(files);
+			}
+		}
+		List<EROutboxRecord> records = new ArrayList<EROutboxRecord>(sorted.length);
+		for (int i = 0; i < sorted.length; i++)
+		{
+			if (bodies.get(i) == null)
+				continue;
+			try
+			{
+				records.add(EROutboxCodec.decodeBody(sorted[i].id, bodies.get(i), sorted[i].mediaNames));
+			} catch (IOException e)
+			{
+				log.error("method: pendingRecords: can't read the record /id: " + sorted[i].id, e);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Reads a record not acknowledged for all its medias.
+	 *
+	 * @param id of the record
+	 * @return the record, null if it has been acknowledged for all its medias.
+	 * @throws IOException if the journal is closed or the record can't be read
+	 */
+	public EROutboxRecord pendingRecord(long id) throws IOException
+	{
+		List<String> mediaNames;
+		byte[] body;
+		synchronized (this)
+		{
+			checkOpen();
+			Pending aPending = pending.get(Long.valueOf(id));
+			if (aPending == null)
+				return null;
+			mediaNames = new ArrayList<String>(aPending.mediaNames);
+			Map<Segment, RandomAccessFile> files = new HashMap<Segment, RandomAccessFile>();
+			try
+			{
+				body = readBody(aPending, files);
+			} finally
+			{
+				closeFiles(files);
+			}
+		}
+		return EROutboxCodec.decodeBody(id, body, mediaNames);
+	}
+
+	/**
+	 * @param id of the record
+	 * @return <code>true</code> if the record isn't acknowledged for all its medias, <code>false</code> if it is or the
+	 * journal is closed.
+	 */
+	public synchronized boolean isPending(long id)
+	{
+		return pending.containsKey(Long.valueOf(id));
+	}
+
+	public synchronized int pendingCount()
+	{
+		return pending.size();
+	}
+
+	public synchronized int segmentCount()
+	{
+		return segments.size();
+	}
+
+	/**
+	 * Deletes the old segments without pending records and copies the pending records of the old segments
+	 * which are mostly acknowledged.<p>
+	 * The oldest segment is compacted when the ratio of its pending records is lower than the compaction ratio, or when the
+	 * ratio of the pending records of all the old segments is: its records are then copied even if most of them are
+	 * pending, so the old segments behind it can be deleted.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException
+	{
+		checkOpen();
+		compactionNeeded = false;
+		// The acknowledgments of a segment may concern records of the older segments, so the segments are always deleted
+		// from the oldest one.
+		while (segments.getFirst() != current)
+		{
+			Segment oldest = segments.getFirst();
+			if (oldest.liveCount > oldest.appendCount * compactionRatio && !areOldSegmentsMostlyAcknowledged())
+				break;
+			if (oldest.liveCount > 0)
+			{
+				Map<Segment, RandomAccessFile> files = new HashMap<Segment, RandomAccessFile>();
+				try
+				{
+					for (Pending aPending : pending.values())
+					{
+						if (aPending.segment == oldest)
+						{
+							int position = write(appendRecord(aPending.id, readBody(aPending, files), aPending.mediaNames));
+							aPending.segment = current;
+							aPending.bodyPosition = position + BODY_OFFSET;
+							current.appendCount++;
+							current.liveCount++;
+						}
+					}
+				} finally
+				{
+					closeFiles(files);
+				}
+				if (log.isDebugEnabled())
+					log.debug("method: compact: pending records copied /segment: " + oldest.file + " /count: " + oldest.liveCount);
+				oldest.liveCount = 0;
+			}
+			segments.removeFirst();
+			closeSegment(oldest);
+			if (!oldest.file.delete())
+				log.warn("method: compact: can't delete the segment: " + oldest.file);
+		}
+	}
+
+	/**
+	 * Forces the current segment to the disk and closes the journal.
+	 */
+	public synchronized void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		for (Segment segment : segments)
+			closeSegment(segment);
+		segments.clear();
+		pending.clear();
+		try
+		{
+			lock.release();
+			lockFile.close();
+		} catch (IOException e)
+		{
+			log.warn("method: close: error when releasing the lock of the outbox directory.", e);
+		}
+	}
+
+	/**
+	 * Called when the application terminates.<p>
+	 * The outbox of the channel is closed by ERChannel.shutdown(), once the components which write in it are stopped.
+	 *
+	 * @param n
+	 */
+	public void applicationWillTerminate(NSNotification n)
+	{
+		if (this == ERChannel.getOutbox())
+			ERChannel.shutdown();
+		else
+			close();
+	}
+
+	/**
+	 * @throws IOException if the journal is closed, so the callers handle it as any other write failure.
+	 */
+	private void checkOpen() throws IOException
+	{
+		if (closed)
+			throw new IOException("The outbox journal is closed.");
+	}
+
+	private void compactIfNeeded() throws IOException
+	{
+		if (compactionNeeded)
+			compact();
+	}
+
+	private boolean areOldSegmentsMostlyAcknowledged()
+	{
+		long appendCount = 0;
+		long liveCount = 0;
+		for (Segment segment : segments)
+		{
+			if (segment != current)
+			{
+				appendCount += segment.appendCount;
+				liveCount += segment.liveCount;
+			}
+		}
+		return liveCount <= appendCount * compactionRatio;
+	}
+
+	/**
+	 * Reads the body of a pending record from its segment, mapped when it's the current one.
+	 *
+	 * @param files the files of the old segments opened to read the bodies, closed by the caller
+	 */
+	private byte[] readBody(Pending aPending, Map<Segment, RandomAccessFile> files) throws IOException
+	{
+		byte[] body = new byte[aPending.bodyLength];
+		Segment segment = aPending.segment;
+		if (segment.buffer != null)
+		{
+			ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position(aPending.bodyPosition);
+			buffer.get(body);
+			return body;
+		}
+		RandomAccessFile file = files.get(segment);
+		if (file == null)
+		{
+			file = new RandomAccessFile(segment.file, "r");
+			files.put(segment, file);
+		}
+		file.seek(aPending.bodyPosition);
+		file.readFully(body);
+		return body;
+	}
+
+	private static void closeFiles(Map<Segment, RandomAccessFile> files)
+	{
+		for (Map.Entry<Segment, RandomAccessFile> entry : files.entrySet())
+		{
+			try
+			{
+				entry.getValue().close();
+			} catch (IOException e)
+			{
+				log.warn("method: closeFiles: error when closing the segment: " + entry.getKey().file, e);
+			}
+		}
+	}
+
+	private void acknowledgePending(Pending aPending, String mediaName)
+	{
+		aPending.mediaNames.remove(mediaName);
+		if (aPending.mediaNames.isEmpty())
+		{
+			pending.remove(Long.valueOf(aPending.id));
+			aPending.segment.liveCount--;
+		}
+	}
+
+	/**
+	 * @return the position of the record in the current segment.
+	 */
+	private int write(byte[] record) throws IOException
+	{
+		if (record.length > segmentSize - HEADER_SIZE)
+			throw new IOException("The record is larger than a segment /length: " + record.length + " /segmentSize: " + segmentSize);
+		if (current.buffer.remaining() < record.length)
+			roll();
+		int position = current.buffer.position();
+		current.buffer.put(record);
+		if (syncOnWrite)
+			current.buffer.force();
+		return position;
+	}
+
+	private void roll() throws IOException
+	{
+		Segment sealed = current;
+		sealed.buffer.force();
+		sealed.buffer = null;
+		sealed.channel.close();
+		sealed.channel = null;
+		current = openSegment(sealed.sequence + 1);
+		segments.add(current);
+		compactionNeeded = true;
+	}
+
+	private Segment openSegment(long sequence) throws IOException
+	{
+		Segment segment = new Segment(sequence, new File(directory, String.format("%016d%s", Long.valueOf(sequence), SEGMENT_SUFFIX)));
+		boolean exists = segment.file.exists();
+		RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+		segment.channel = file.getChannel();
+		long size = exists ? Math.max(file.length(), HEADER_SIZE) : segmentSize;
+		segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		if (!exists)
+		{
+			segment.buffer.putInt(MAGIC);
+			segment.buffer.putInt(VERSION);
+		}
+		return segment;
+	}
+
+	private void closeSegment(Segment segment)
+	{
+		try
+		{
+			if (segment.buffer != null)
+				segment.buffer.force();
+			if (segment.channel != null)
+				segment.channel.close();
+		} catch (IOException e)
+		{
+			log.warn("method: closeSegment: error when closing the segment: " + segment.file, e);
+		}
+		segment.buffer = null;
+		segment.channel = null;
+	}
+
+	/**
+	 * Reads the existing segments, rebuilds the pending records then appends to the last segment.
+	 */
+	private void recover() throws IOException
+	{
+		File[] files = directory.listFiles(new FilenameFilter()
+		{
+			public boolean accept(File dir, String name)
+			{
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		long maxId = 0;
+		for (File file : files)
+		{
+			long sequence;
+			try
+			{
+				sequence = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e)
+			{
+				log.warn("method: recover: ignoring the file: " + file);
+				continue;
+			}
+			Segment segment = openSegment(sequence);
+			if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != VERSION)
+			{
+				log.error("method: recover: ignoring the segment with an unknown format: " + file);
+				closeSegment(segment);
+				continue;
+			}
+			maxId = Math.max(maxId, readSegment(segment));
+			if (current != null)
+				closeSegment(current);
+			segments.add(segment);
+			current = segment;
+		}
+		if (current == null)
+		{
+			current = openSegment(1);
+			segments.add(current);
+		}
+		else
+		{
+			// the end of the last segment may contain a record partially written
+			ByteBuffer tail = current.buffer.duplicate();
+			while (tail.hasRemaining())
+				tail.put((byte) 0);
+		}
+		nextId.set(maxId + 1);
+		if (log.isInfoEnabled())
+			log.info("method: recover: outbox opened /directory: " + directory + " /segments: " + segments.size() + " /pending: " + pending.size());
+		if (segments.size() > 1)
+			compact();
+	}
+
+	/**
+	 * Reads the valid records of a segment and leaves the position of its buffer after the last one.
+	 *
+	 * @return the greatest record id
+	 */
+	private long readSegment(Segment segment)
+	{
+		MappedByteBuffer buffer = segment.buffer;
+		int position = HEADER_SIZE;
+		long maxId = 0;
+		CRC32 crc = new CRC32();
+		while (position + 4 <= buffer.limit())
+		{
+			int length = buffer.getInt(position);
+			if (length < 13 || position + 4 + length > buffer.limit())
+				break;
+			byte[] record = new byte[length];
+			buffer.position(position + 4);
+			buffer.get(record);
+			crc.reset();
+			crc.update(record, 0, length - 4);
+			if ((int) crc.getValue() != ByteBuffer.wrap(record, length - 4, 4).getInt())
+			{
+				log.warn("method: readSegment: invalid record, the end of the segment is ignored /segment: " + segment.file + " /position: " + position);
+				break;
+			}
+			maxId = Math.max(maxId, apply(ByteBuffer.wrap(record, 0, length - 4), segment, position));
+			position += 4 + length;
+		}
+		buffer.position(position);
+		return maxId;
+	}
+
+	/**
+	 * @param position of the record in the segment
+	 */
+	private long apply(ByteBuffer record, Segment segment, int position)
+	{
+		byte type = record.get();
+		long id = record.getLong();
+		if (type == APPEND)
+		{
+			int bodyLength = record.getInt();
+			record.position(record.position() + bodyLength);
+			int count = record.getInt();
+			List<String> mediaNames = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++)
+				mediaNames.add(readString(record));
+			Pending previous = pending.put(Long.valueOf(id), new Pending(id, mediaNames, segment, position + BODY_OFFSET, bodyLength));
+			// a record copied by a compaction replaces the original one
+			if (previous != null)
+				previous.segment.liveCount--;
+			segment.appendCount++;
+			segment.liveCount++;
+		}
+		else if (type == ACKNOWLEDGE)
+		{
+			Pending aPending = pending.get(Long.valueOf(id));
+			String mediaName = readString(record);
+			if (aPending != null)
+				acknowledgePending(aPending, mediaName);
+		}
+		return id;
+	}
+
+	private static String readString(ByteBuffer buffer)
+	{
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		try
+		{
+			return new String(bytes, "UTF-8");
+		} catch (java.io.UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] appendRecord(long id, byte[] body, List<String> mediaNames) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeByte(APPEND);
+		out.writeLong(id);
+		out.writeInt(body.length);
+		out.write(body);
+		out.writeInt(mediaNames.size());
+		for (String mediaName : mediaNames)
+			EROutboxCodec.writeString(out, mediaName);
+		return seal(bytes);
+	}
+
+	private static byte[] acknowledgeRecord(long id, String mediaName) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeByte(ACKNOWLEDGE);
+		out.writeLong(id);
+		EROutboxCodec.writeString(out, mediaName);
+		return seal(bytes);
+	}
+
+	/**
+	 * Sets the length of the record and appends its CRC.
+	 */
+	private static byte[] seal(ByteArrayOutputStream bytes)
+	{
+		byte[] content = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(content, 4, content.length - 4);
+		ByteBuffer record = ByteBuffer.allocate(content.length + 4);
+		record.put(content);
+		record.putInt((int) crc.getValue());
+		record.putInt(0, content.length);
+		return record.array();
+	}
+}
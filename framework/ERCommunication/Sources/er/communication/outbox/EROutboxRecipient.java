@@ -0,0 +1,99 @@
+package er.communication.outbox;
+
+import java.util.Map;
+import java.util.TimeZone;
+
+import er.communication.foundation.ERMedia;
+import er.communication.foundation.ERPersonalizedRecipient;
+import er.communication.foundation.ERTimeZoneRecipient;
+
+/**
+ * The snapshot of a recipient stored in the outbox journal.<p>
+ * The identifiers are kept by media name for the medias of the record only. The time zone is kept so the quiet hours
+ * are applied in the local time of the recipient when the message is sent again.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class EROutboxRecipient implements ERPersonalizedRecipient, ERTimeZoneRecipient
+{
+	private final String firstName;
+	private final String lastName;
+	private final String language;
+	private final Map<String, String> identifiers;
+	private final Map<String, Object> personalizedData;
+	private final TimeZone timeZone;
+
+	public EROutboxRecipient(String firstName, String lastName, String language, Map<String, String> identifiers, Map<String, Object> personalizedData)
+	{
+		this(firstName, lastName, language, identifiers, personalizedData, null);
+	}
+
+	/**
+	 * @param firstName
+	 * @param lastName
+	 * @param language
+	 * @param identifiers by media name
+	 * @param personalizedData can be null
+	 * @param timeZone of the original recipient, null if it wasn't a ERTimeZoneRecipient
+	 */
+	public EROutboxRecipient(String firstName, String lastName, String language, Map<String, String> identifiers, Map<String, Object> personalizedData, TimeZone timeZone)
+	{
+		this.timeZone = timeZone;
+		this.firstName = firstName;
+		this.lastName = lastName;
+		this.language = language;
+		this.identifiers = identifiers;
+		this.personalizedData = personalizedData;
+	}
+
+	public String getFirstName()
+	{
+		return firstName;
+	}
+
+	public String getLastName()
+	{
+		return lastName;
+	}
+
+	public String getLanguage()
+	{
+		return language;
+	}
+
+	public String getIdentifier(ERMedia media)
+	{
+		return identifiers.get(media.getName());
+	}
+
+	/**
+	 * @return the identifiers by media name
+	 */
+	public Map<String, String> getIdentifiers()
+	{
+		return identifiers;
+	}
+
+	/**
+	 * @return the personalized data of the original recipient, null if it wasn't a ERPersonalizedRecipient.
+	 */
+	public Map<String, Object> getPersonalizedData()
+	{
+		return personalizedData;
+	}
+
+	/**
+	 * @return the time zone of the original recipient, null if it wasn't a ERTimeZoneRecipient or the record was written
+	 * before the time zone was kept.
+	 */
+	public TimeZone getTimeZone()
+	{
+		return timeZone;
+	}
+
+	public String toString()
+	{
+		return "EROutboxRecipient: firstName: " + firstName + " /lastName: " + lastName + " /language: " + language + " /identifiers: " + identifiers + (timeZone != null ? " /timeZone: " + timeZone.getID() : "");
+	}
+}
@@ -0,0 +1,191 @@
+package er.communication.outbox;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import er.communication.foundation.ERCommunicationContext;
+import er.communication.foundation.ERDataProcessor;
+
+/**
+ * A message read from the outbox journal which hasn't been delivered through all its medias.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class EROutboxRecord
+{
+	private static final Logger log = Logger.getLogger(EROutboxRecord.class);
+
+	private final long id;
+	private final String contextName;
+	private final Map<String, Object> data;
+	private final EROutboxRecipient recipient;
+	private final List<String> mediaNames;
+	private final long sendTime;
+	private final long enqueueTime;
+	private final long timeToLive;
+	private final String dataProcessorClassName;
+
+	public EROutboxRecord(long id, String contextName, Map<String, Object> data, EROutboxRecipient recipient, List<String> mediaNames)
+	{
+		this(id, contextName, data, recipient, mediaNames, 0);
+	}
+
+	/**
+	 * @param id
+	 * @param contextName
+	 * @param data
+	 * @param recipient
+	 * @param mediaNames
+	 * @param sendTime the time when a scheduled message must be sent, 0 if it's sent now
+	 */
+	public EROutboxRecord(long id, String contextName, Map<String, Object> data, EROutboxRecipient recipient, List<String> mediaNames, long sendTime)
+	{
+		this(id, contextName, data, recipient, mediaNames, sendTime, 0, 0);
+	}
+
+	/**
+	 * @param id
+	 * @param contextName
+	 * @param data
+	 * @param recipient
+	 * @param mediaNames
+	 * @param sendTime the time when a scheduled message must be sent, 0 if it's sent now
+	 * @param enqueueTime the time when the message was appended, 0 if it's unknown
+	 * @param timeToLive the time to live of the message, 0 if the one of the context is used
+	 */
+	public EROutboxRecord(long id, String contextName, Map<String, Object> data, EROutboxRecipient recipient, List<String> mediaNames, long sendTime, long enqueueTime, long timeToLive)
+	{
+		this(id, contextName, data, recipient, mediaNames, sendTime, enqueueTime, timeToLive, null);
+	}
+
+	/**
+	 * @param id
+	 * @param contextName
+	 * @param data
+	 * @param recipient
+	 * @param mediaNames
+	 * @param sendTime the time when a scheduled message must be sent, 0 if it's sent now
+	 * @param enqueueTime the time when the message was appended, 0 if it's unknown
+	 * @param timeToLive the time to live of the message, 0 if the one of the context is used
+	 * @param dataProcessorClassName the class of the data processor of the message, null if it had none
+	 */
+	public EROutboxRecord(long id, String contextName, Map<String, Object> data, EROutboxRecipient recipient, List<String> mediaNames, long sendTime, long enqueueTime, long timeToLive, String dataProcessorClassName)
+	{
+		this.id = id;
+		this.dataProcessorClassName = dataProcessorClassName;
+		this.sendTime = sendTime;
+		this.enqueueTime = enqueueTime;
+		this.timeToLive = timeToLive;
+		this.contextName = contextName;
+		this.data = data;
+		this.recipient = recipient;
+		this.mediaNames = mediaNames;
+	}
+
+	/**
+	 * @return the id used to acknowledge the deliveries
+	 */
+	public long getId()
+	{
+		return id;
+	}
+
+	public String getContextName()
+	{
+		return contextName;
+	}
+
+	/**
+	 * @return the snapshot of the context data, can be null.
+	 */
+	public Map<String, Object> getData()
+	{
+		return data;
+	}
+
+	public EROutboxRecipient getRecipient()
+	{
+		return recipient;
+	}
+
+	/**
+	 * @return the names of the medias not acknowledged yet
+	 */
+	public List<String> getMediaNames()
+	{
+		return mediaNames;
+	}
+
+	/**
+	 * @return the time in milliseconds when a scheduled message must be sent, 0 if it's sent now.
+	 */
+	public long getSendTime()
+	{
+		return sendTime;
+	}
+
+	/**
+	 * @return the time in milliseconds when the message was appended to the journal, 0 for a record written before this
+	 * time was kept.
+	 */
+	public long getEnqueueTime()
+	{
+		return enqueueTime;
+	}
+
+	/**
+	 * @return the time to live of the message in milliseconds, 0 if the one of the context is used.
+	 */
+	public long getTimeToLive()
+	{
+		return timeToLive;
+	}
+
+	/**
+	 * @return the class name of the data processor of the message, null if it had none or the record was written before
+	 * the data processor was kept.
+	 */
+	public String getDataProcessorClassName()
+	{
+		return dataProcessorClassName;
+	}
+
+	/**
+	 * Creates the data processor of the message again with the public constructor without argument of its class.<p>
+	 * A data processor which keeps a state, or an anonymous class, can't be created again: the message is then sent
+	 * without data processor.
+	 *
+	 * @return a new data processor, null if the message had none or it can't be created.
+	 */
+	public ERDataProcessor newDataProcessor()
+	{
+		if (dataProcessorClassName == null)
+			return null;
+		try
+		{
+			return (ERDataProcessor) Class.forName(dataProcessorClassName).newInstance();
+		} catch (Exception e)
+		{
+			log.error("method: newDataProcessor: the data processor can't be created, the message is sent without it /record: " + this, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return a new communication context built from the snapshot, with the time to live of the message.
+	 */
+	public ERCommunicationContext newContext()
+	{
+		ERCommunicationContext context = new ERCommunicationContext(contextName, data);
+		context.setTimeToLive(timeToLive);
+		return context;
+	}
+
+	public String toString()
+	{
+		return "EROutboxRecord: id: " + id + " /contextName: " + contextName + " /recipient: " + recipient + " /mediaNames: " + mediaNames + (sendTime > 0 ? " /sendTime: " + new java.util.Date(sendTime) : "") + (dataProcessorClassName != null ? " /dataProcessor: " + dataProcessorClassName : "");
+	}
+}
@@ -2,10 +2,27 @@ package er.communication.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -13,6 +30,8 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import er.communication.foundation.ERAbstractMessageProcessor;
+import er.communication.foundation.ERCachingTemplateProvider;
 import er.communication.foundation.ERChannel;
 import er.communication.foundation.ERCommunicationContext;
 import er.communication.foundation.ERMedia;
@@ -20,6 +39,14 @@ import er.communication.foundation.ERMediaManager;
 import er.communication.foundation.ERMediaProvider;
 import er.communication.foundation.ERMessageProcessor;
 import er.communication.foundation.ERMessageProcessorFactory;
+import er.communication.foundation.ERPriority;
+import er.communication.foundation.ERPriorityProvider;
+import er.communication.foundation.ERQuietHours;
+import er.communication.foundation.ERQuietHoursProvider;
+import er.communication.foundation.ERRateLimiterManager;
+import er.communication.foundation.ERScheduler;
+import er.communication.jabber.ERSimpleMessageProcessor;
+import er.communication.outbox.EROutboxJournal;
 import er.extensions.ERXFrameworkPrincipal;
 import er.extensions.foundation.ERXFileUtilities;
 import er.extensions.foundation.ERXProperties;
@@ -27,16 +54,145 @@ import er.extensions.foundation.ERXUtilities;
 
 /**
  * Initialize everything we need to send messages through different medias.<p>
- * The main purpose is to read json configuration files which can reside in any framework of your application
+ * The main purpose is to read json configuration files which can reside in any framework of your application.<br>
+ * The files of the frameworks are read in parallel. A file whose content is the same as a file already read is skipped
+ * and a context described differently by two files is reported, the file read last wins (the application first
+ * then the frameworks in the order of the application).<p>
+ * The files can be read again while the application runs, with reloadMediaContext() or periodically when the
+ * er.communication.util.ERCommunicationFrameworkPrincipal.reloadInterval property is set (in seconds, 0 by default
+ * which means never). The new configuration is built aside then swapped in at once, so a send uses either the old
+ * or the new configuration. A malformed file is logged and the configuration in effect is kept.
  * 
  * @author Philippe Rabier
  *
  */
-public class ERCommunicationFrameworkPrincipal extends ERXFrameworkPrincipal implements ERMediaProvider, ERMessageProcessorFactory
+public class ERCommunicationFrameworkPrincipal extends ERXFrameworkPrincipal implements ERMediaProvider, ERPriorityProvider, ERQuietHoursProvider, ERMessageProcessorFactory
 {
     private static final Logger log = Logger.getLogger(ERCommunicationFrameworkPrincipal.class);
 	private ERMediaManager mediaManager;
-	private Map<String,  Object> mediaContext;
+	private volatile MediaContextSnapshot snapshot = new MediaContextSnapshot(0, null, Collections.<String, ERDispatchPlan> emptyMap());
+	private List<String> loadedHashes;
+	private volatile long lastReloadDuration;
+	private ScheduledExecutorService reloadExecutor;
+	private ExecutorService readExecutor;
+
+	/**
+	 * The configuration read from the description files: the parsed content and the dispatch plans built from it.<p>
+	 * A snapshot is never modified. A reload builds a new one with the next version and replaces the previous one.
+	 */
+	public static class MediaContextSnapshot
+	{
+		private final long version;
+		private final Map<String, Object> mediaContext;
+		private final Map<String, ERDispatchPlan> dispatchPlans;
+		private final long loadTime;
+
+		protected MediaContextSnapshot(long version, Map<String, Object> mediaContext, Map<String, ERDispatchPlan> dispatchPlans)
+		{
+			this.version = version;
+			this.mediaContext = mediaContext;
+			this.dispatchPlans = dispatchPlans;
+			this.loadTime = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return 1 for the configuration read at startup, incremented at each reload.
+		 */
+		public long getVersion()
+		{
+			return version;
+		}
+
+		public Map<String, Object> getMediaContext()
+		{
+			return mediaContext;
+		}
+
+		public Map<String, ERDispatchPlan> getDispatchPlans()
+		{
+			return dispatchPlans;
+		}
+
+		/**
+		 * @return when the snapshot has been built, in milliseconds since the epoch.
+		 */
+		public long getLoadTime()
+		{
+			return loadTime;
+		}
+
+		public String toString()
+		{
+			return "MediaContextSnapshot: version: " + version + " /contexts: " + dispatchPlans.keySet();
+		}
+	}
+
+	/**
+	 * The content of a description file and where it has been found.
+	 */
+	public static class MediaContextFile
+	{
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+
+		private final String source;
+		private final String content;
+		private final String hash;
+
+		/**
+		 * @param source the framework name, or null for the application
+		 * @param content
+		 */
+		public MediaContextFile(String source, String content)
+		{
+			this.source = source;
+			this.content = content;
+			this.hash = hash(content);
+		}
+
+		/**
+		 * @return the framework name, or null for the application
+		 */
+		public String getSource()
+		{
+			return source;
+		}
+
+		public String getContent()
+		{
+			return content;
+		}
+
+		/**
+		 * @return the SHA-256 of the content, in hexadecimal.
+		 */
+		public String getHash()
+		{
+			return hash;
+		}
+
+		public String toString()
+		{
+			return source == null ? "application" : source;
+		}
+
+		private static String hash(String content)
+		{
+			try
+			{
+				byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(UTF8));
+				StringBuilder hash = new StringBuilder(digest.length * 2);
+				for (byte b : digest)
+				{
+					hash.append(Character.forDigit((b >> 4) & 0xF, 16));
+					hash.append(Character.forDigit(b & 0xF, 16));
+				}
+				return hash.toString();
+			} catch (NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException("SHA-256 is not available.", e);
+			}
+		}
+	}
 
     static 
     {
@@ -71,63 +227,354 @@ public class ERCommunicationFrameworkPrincipal extends ERXFrameworkPrincipal imp
         return ERXProperties.stringForKeyWithDefault("er.communication.util.ERCommunicationFrameworkPrincipal.MediaContextFileName", "MediaContext.json");
     }
 
+	/**
+	 * This method reads the er.communication.foundation.ERCachingTemplateProvider.enabled property.<p>
+	 * When it's true, the template provider is wrapped by a ERCachingTemplateProvider at initialization.
+	 *
+	 * @return true (false by default).
+	 */
+	public static boolean templateCacheEnabled()
+	{
+		return ERXProperties.booleanForKeyWithDefault("er.communication.foundation.ERCachingTemplateProvider.enabled", false);
+	}
+
 	@Override
-	public void finishInitialization() 
+	public void finishInitialization()
 	{
         log.debug("method: finishInitialization: " + this);
         if (!communicationServiceMustRun())
 			log.info("******************** method:finishInitialization: Communication Service has not been launched. ********************");
         else
         {
-        	// Look up in the application resource if a description file exists.
-        	Map<String, Object> data = new HashMap<String, Object>();
-        	{
-        		String content = readDescriptionFromMediaContextFile(mediaContextFileName(), null);
-        		if (StringUtils.isNotEmpty(content))
-        		{
-        			Map<String, Object> aMap = parseDescription(content);
-        			if (aMap.size() > 0)
-        				data.putAll(aMap);
-        		}
-        	}
-        	
-        	// Look up in all frameworks if  description files exist.
-        	for (Enumeration<String> e = ERXUtilities.allFrameworkNames().objectEnumerator(); e.hasMoreElements();) {
-        		String frameworkName = e.nextElement();
-            	String content = readDescriptionFromMediaContextFile(mediaContextFileName(), frameworkName);
-        		if (StringUtils.isNotEmpty(content))
-        		{
-        			Map<String, Object> aMap = parseDescription(content);
-        			if (aMap.size() > 0)
-        				data.putAll(aMap);
-        		}
-        	}
-
+        	List<MediaContextFile> files = readMediaContextFiles();
+        	Map<String, Object> data = parseMediaContext(files);
         	if (data.size() == 0)
         		throw new IllegalStateException("There are no communication workflow description. Turn off the service.");
         	else
         		setMediaContext(java.util.Collections.unmodifiableMap(data));
+        	synchronized (this) {
+        		loadedHashes = hashes(files);
+        	}
         	
 
         	if (log.isDebugEnabled())
         		log.debug("Method: finishInitialization: media by context loaded.");
+        	if (templateCacheEnabled() && !(ERAbstractMessageProcessor.templateProvider() instanceof ERCachingTemplateProvider))
+        		ERAbstractMessageProcessor.setTemplateProvider(new ERCachingTemplateProvider(ERAbstractMessageProcessor.templateProvider()));
+        	warmUpJabberConnections();
         	ERChannel.setMediaProvider(this);
         	ERChannel.setMessageProcessorFactory(this);
+        	replayOutbox();
+        	startScheduler();
+        	watchMediaContext();
         }
 	}
+
+	/**
+	 * Reads the description files: the one of the application first then the ones of the frameworks.<p>
+	 * The files of the frameworks are read in parallel. A file with the same content as a previous one is skipped.
+	 * 
+	 * @return the non empty files, in the order they must be merged.
+	 */
+	protected List<MediaContextFile> readMediaContextFiles()
+	{
+		final String fileName = mediaContextFileName();
+		List<String> sources = new ArrayList<String>();
+		// Look up in the application resource if a description file exists.
+		sources.add(null);
+		// Look up in all frameworks if  description files exist.
+		sources.addAll(frameworkNames());
+
+		List<Future<String>> futures = new ArrayList<Future<String>>(sources.size());
+		ExecutorService readExecutor = readExecutor();
+		try
+		{
+			for (final String source : sources) 
+			{
+				futures.add(readExecutor.submit(new Callable<String>()
+				{
+					public String call()
+					{
+						return readDescriptionFromMediaContextFile(fileName, source);
+					}
+				}));
+			}
+
+			List<MediaContextFile> files = new ArrayList<MediaContextFile>();
+			Set<String> hashes = new HashSet<String>();
+			for (int i = 0; i < sources.size(); i++) 
+			{
+				String content = futures.get(i).get();
+				if (StringUtils.isEmpty(content))
+					continue;
+				MediaContextFile file = new MediaContextFile(sources.get(i), content);
+				if (hashes.add(file.getHash()))
+					files.add(file);
+				else if (log.isDebugEnabled())
+					log.debug("method: readMediaContextFiles: the file of " + file + " is the same as a previous one, it's skipped.");
+			}
+			return files;
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading the " + fileName + " files.", e);
+		} catch (ExecutionException e)
+		{
+			throw new IllegalStateException("The " + fileName + " files can't be read.", e.getCause());
+		} finally
+		{
+			// a file not read yet isn't needed anymore
+			for (Future<String> future : futures)
+				future.cancel(true);
+		}
+	}
+
+	/**
+	 * @return the names of the frameworks where the description files are looked up.
+	 */
+	protected List<String> frameworkNames()
+	{
+		List<String> frameworkNames = new ArrayList<String>();
+		for (Enumeration<String> e = ERXUtilities.allFrameworkNames().objectEnumerator(); e.hasMoreElements();)
+			frameworkNames.add(e.nextElement());
+		return frameworkNames;
+	}
+
+	/**
+	 * Parses the files and merges them, a context of a file replaces the one of the same name in the previous files.<p>
+	 * When the two descriptions of a context differ, the conflict is logged.
+	 * 
+	 * @param files
+	 * @return the merged description
+	 * @throws IllegalStateException if a file can't be parsed
+	 */
+	protected Map<String, Object> parseMediaContext(List<MediaContextFile> files)
+	{
+		Map<String, Object> data = new HashMap<String, Object>();
+		Map<String, MediaContextFile> sourceByContext = new HashMap<String, MediaContextFile>();
+		for (MediaContextFile file : files) 
+		{
+			Map<String, Object> aMap = parseDescription(file.getContent());
+			if (aMap == null)
+				throw new IllegalStateException("The communication workflow description of " + file + " can't be parsed: " + file.getContent());
+			for (Map.Entry<String, Object> entry : aMap.entrySet()) 
+			{
+				Object previous = data.put(entry.getKey(), entry.getValue());
+				MediaContextFile previousFile = sourceByContext.put(entry.getKey(), file);
+				if (previous != null && !previous.equals(entry.getValue()))
+					log.warn("method: parseMediaContext: the context " + entry.getKey() + " of " + file + " replaces the one of " + previousFile
+							+ " /previous: " + previous + " /new: " + entry.getValue());
+			}
+		}
+		return data;
+	}
+
+	private static List<String> hashes(List<MediaContextFile> files)
+	{
+		List<String> hashes = new ArrayList<String>(files.size());
+		for (MediaContextFile file : files)
+			hashes.add(file.getHash());
+		return hashes;
+	}
+
+	private static ThreadFactory daemonThreadFactory(final String name)
+	{
+		return new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Reads the description files again and, if they have changed, swaps in the new configuration.<p>
+	 * The configuration in effect is kept if a file is malformed or if there is no description anymore.
+	 * The rate limiters are created again from the new sending configurations.
+	 * 
+	 * @return <code>true</code> if a new configuration is in effect.
+	 */
+	public boolean reloadMediaContext()
+	{
+		long start = System.currentTimeMillis();
+		List<MediaContextFile> files = readMediaContextFiles();
+		List<String> hashes = hashes(files);
+		synchronized (this) {
+			if (hashes.equals(loadedHashes))
+			{
+				if (log.isDebugEnabled())
+					log.debug("method: reloadMediaContext: the description files have not changed /version: " + snapshot.getVersion());
+				return false;
+			}
+			try
+			{
+				Map<String, Object> data = parseMediaContext(files);
+				if (data.size() == 0)
+					throw new IllegalStateException("There are no communication workflow description.");
+				setMediaContext(Collections.unmodifiableMap(data));
+			} catch (IllegalStateException e)
+			{
+				log.error("method: reloadMediaContext: the new description is rejected, the version " + snapshot.getVersion() + " is kept.", e);
+				return false;
+			}
+			loadedHashes = hashes;
+		}
+		ERRateLimiterManager.sharedInstance().clear();
+		warmUpJabberConnections();
+		lastReloadDuration = System.currentTimeMillis() - start;
+		log.info("method: reloadMediaContext: version " + snapshot.getVersion() + " loaded in " + lastReloadDuration + " ms /contexts: " + snapshot.getDispatchPlans().keySet());
+		return true;
+	}
+
+	/**
+	 * Reloads the description files with the reload thread, the caller doesn't wait.
+	 * 
+	 * @return the future result of reloadMediaContext()
+	 */
+	public Future<Boolean> reloadMediaContextInBackground()
+	{
+		return reloadExecutor().submit(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return Boolean.valueOf(reloadMediaContext());
+			}
+		});
+	}
+
+	/**
+	 * Checks the description files periodically if the er.communication.util.ERCommunicationFrameworkPrincipal.reloadInterval 
+	 * property is set.
+	 */
+	protected void watchMediaContext()
+	{
+		long interval = ERXProperties.longForKeyWithDefault("er.communication.util.ERCommunicationFrameworkPrincipal.reloadInterval", 0);
+		if (interval <= 0)
+			return;
+		reloadExecutor().scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					reloadMediaContext();
+				} catch (RuntimeException e)
+				{
+					log.error("method: watchMediaContext: the description files can't be reloaded.", e);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+		log.info("method: watchMediaContext: the description files are checked every " + interval + " seconds.");
+	}
+
+	/**
+	 * @return the configuration in effect.
+	 */
+	public MediaContextSnapshot getMediaContextSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * @return the duration of the last successful reload in milliseconds, 0 if there was none.
+	 */
+	public long lastReloadDuration()
+	{
+		return lastReloadDuration;
+	}
+
+	/**
+	 * The pool which reads the files, shared by the startup and the reloads. Its threads stop when they are idle.
+	 */
+	private synchronized ExecutorService readExecutor()
+	{
+		if (readExecutor == null)
+		{
+			int threads = Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), daemonThreadFactory("ERCommunicationFrameworkPrincipal-read"));
+			pool.allowCoreThreadTimeOut(true);
+			readExecutor = pool;
+		}
+		return readExecutor;
+	}
+
+	private synchronized ScheduledExecutorService reloadExecutor()
+	{
+		if (reloadExecutor == null)
+		{
+			reloadExecutor = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("ERCommunicationFrameworkPrincipal-reload"));
+		}
+		return reloadExecutor;
+	}
 	
-	public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media)
+	/**
+	 * Opens the outbox journal and sends again the messages not delivered by the previous run.<p>
+	 * It's done only if the er.communication.outbox.EROutboxJournal.enabled property is true (false by default).
+	 * 
+	 * @see EROutboxJournal
+	 */
+	protected void replayOutbox()
 	{
-		try 
+		if (!EROutboxJournal.isEnabled())
+			return;
+		try
+		{
+			ERChannel.setOutbox(new EROutboxJournal());
+		} catch (IOException e)
 		{
-			ERMessageProcessor newMessageProcessor = media.getMessageProcessor();
-			newMessageProcessor.setSendingConfiguration(getSendingConfigurationForContextAndMedia(context.getName(), media));
-			return newMessageProcessor;
-		} catch (Exception e) 
+			throw new IllegalStateException("method: replayOutbox: can't open the outbox journal.", e);
+		}
+		new ERChannel().replayOutbox();
+	}
+
+	/**
+	 * Creates the scheduler at startup when it's persistent, so the messages scheduled by the previous run are sent
+	 * at their time even if nothing is scheduled by this run.
+	 * 
+	 * @see ERScheduler
+	 */
+	protected void startScheduler()
+	{
+		if (ERScheduler.isPersistent())
+			ERChannel.getScheduler();
+	}
+
+	/**
+	 * Opens the jabber connections if at least one context uses a jabber processor.<p>
+	 * It can be turned off with the er.communication.jabber.warmUp property (true by default).
+	 */
+	protected void warmUpJabberConnections()
+	{
+		if (!ERXProperties.booleanForKeyWithDefault("er.communication.jabber.warmUp", true))
+			return;
+		for (ERDispatchPlan plan : snapshot.getDispatchPlans().values()) 
 		{
-			log.error("method: newMessageProcessor: problem with the media: " + media, e);
+			for (ERMedia media : plan.getMedias()) 
+			{
+				if (plan.getMessageProcessor(media) instanceof ERSimpleMessageProcessor)
+				{
+					ERSimpleMessageProcessor.connectionPool().warmUp();
+					return;
+				}
+			}
 		}
-		return null;
+	}
+	
+	/**
+	 * Returns the message processor of the context and media.<p>
+	 * The processors are created once when the dispatch plans are built, so the same thread safe processor 
+	 * is returned at each call.
+	 */
+	public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media)
+	{
+		ERMessageProcessor messageProcessor = getDispatchPlan(context.getName()).getMessageProcessor(media);
+		if (messageProcessor == null)
+			log.error("method: newMessageProcessor: the media " + media + " is not used by the context: " + context.getName());
+		return messageProcessor;
 	}
 
 	public ERMediaManager getMediaManager()
@@ -139,11 +586,43 @@ public class ERCommunicationFrameworkPrincipal extends ERXFrameworkPrincipal imp
 		return mediaManager;
 	}
 	
+	/**
+	 * Returns the medias of a context.<p>
+	 * The list is built at initialization, it's unmodifiable and the same object is returned at each call.
+	 */
 	public List<ERMedia> getMedias(String contextName) 
 	{
-		Map<String, Object> data = (Map<String, Object>) mediaContext.get(contextName);
-		List<String> array = (List<String>) data.get("Medias");
-		return getMediaManager().getMedias(array);
+		return getDispatchPlan(contextName).getMedias();
+	}
+	
+	public ERPriority getPriority(String contextName)
+	{
+		return getDispatchPlan(contextName).getPriority();
+	}
+	
+	public long getTimeToLive(String contextName)
+	{
+		return getDispatchPlan(contextName).getTimeToLive();
+	}
+	
+	public ERQuietHours getQuietHours(String contextName)
+	{
+		return getDispatchPlan(contextName).getQuietHours();
+	}
+	
+	/**
+	 * Returns the dispatch plan built from the JSON description of a context.
+	 * 
+	 * @param contextName
+	 * @return the dispatch plan
+	 * @throws IllegalArgumentException if the context doesn't exist.
+	 */
+	public ERDispatchPlan getDispatchPlan(String contextName)
+	{
+		ERDispatchPlan plan = snapshot.getDispatchPlans().get(contextName);
+		if (plan == null)
+			throw new IllegalArgumentException("method: getDispatchPlan: there is no description for the context: " + contextName);
+		return plan;
 	}
 	
 	/**
@@ -153,12 +632,22 @@ public class ERCommunicationFrameworkPrincipal extends ERXFrameworkPrincipal imp
 	 */
 	protected Map<String, Object> getMediaContext() 
 	{
-		return mediaContext;
+		return snapshot.getMediaContext();
 	}
 
-	protected void setMediaContext(Map<String, Object> mediaContext) 
+	/**
+	 * Sets the mediaContext and builds the dispatch plans of all contexts.<p>
+	 * A malformed context or an unknown media raises an exception here rather than when a message is sent, and
+	 * the configuration in effect is kept. Otherwise the new snapshot replaces it at once.
+	 * 
+	 * @param mediaContext
+	 * @throws IllegalStateException if a context is malformed
+	 * @see ERDispatchPlan
+	 */
+	protected synchronized void setMediaContext(Map<String, Object> mediaContext) 
 	{
-		this.mediaContext = mediaContext;
+		Map<String, ERDispatchPlan> plans = ERDispatchPlan.compileAll(mediaContext, getMediaManager());
+		this.snapshot = new MediaContextSnapshot(snapshot.getVersion() + 1, mediaContext, plans);
 	}
 
 	/**
@@ -171,9 +660,7 @@ public class ERCommunicationFrameworkPrincipal extends ERXFrameworkPrincipal imp
 	 */
 	protected Map<String, Object> getSendingConfigurationForContextAndMedia(String contextName, ERMedia media)
 	{
-		Map<String, Object> data = (Map<String, Object>) getMediaContext().get(contextName);
-		Map<String, Object> sendingConfiguration = (Map<String, Object>) data.get(media.getName());
-		return sendingConfiguration;
+		return getDispatchPlan(contextName).getSendingConfiguration(media);
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -192,7 +679,7 @@ public class ERCommunicationFrameworkPrincipal extends ERXFrameworkPrincipal imp
 	protected String readDescriptionFromMediaContextFile(String fileName, String frameworkName)
 	{
 		String stringFromFile = null;
-        InputStream stream = ERXFileUtilities.inputStreamForResourceNamed(fileName, null, null);
+        InputStream stream = ERXFileUtilities.inputStreamForResourceNamed(fileName, frameworkName, null);
         try 
         {
         	if (stream != null) 
@@ -0,0 +1,252 @@
+package er.communication.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import er.communication.foundation.ERMedia;
+import er.communication.foundation.ERMediaManager;
+import er.communication.foundation.ERMessageProcessor;
+import er.communication.foundation.ERPriority;
+import er.communication.foundation.ERQuietHours;
+import er.communication.foundation.ERSendingConfiguration;
+
+/**
+ * The compiled form of a context described in the JSON content.<p>
+ * A plan contains the medias of a context and, for each of them, the sending configuration and the message processor.
+ * The sending configurations are parsed into ERSendingConfiguration objects. The plan is built and checked once at initialization so sending a message only reads immutable objects and reuses
+ * the same processors.<br>
+ * A context description looks like:
+ * <pre>
+ * "context1": {
+ *     "Medias": ["PLAIN_TEXT_MAIL", "HTML_MAIL"],
+ *     "HTML_MAIL": { "component": "MyComponent" }
+ * }
+ * </pre>
+ * The optional "Priority" key gives the lane of the context in the channel executor (TRANSACTIONAL, NORMAL or BULK, 
+ * NORMAL by default) and the optional "TTL" key the number of seconds after which a message still waiting in the executor
+ * is dropped. The optional "QuietHours" key gives the hours, in the time zone of the recipient, during which the scheduled
+ * messages of the context are held, as "HH:mm-HH:mm" (see ERQuietHours).
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERDispatchPlan
+{
+	public static final String MEDIAS_KEY = "Medias";
+	public static final String PRIORITY_KEY = "Priority";
+	public static final String TIME_TO_LIVE_KEY = "TTL";
+	public static final String QUIET_HOURS_KEY = "QuietHours";
+
+	private final String contextName;
+	private final ERMedia[] medias;
+	private final ERSendingConfiguration[] sendingConfigurations;
+	private final ERMessageProcessor[] messageProcessors;
+	private final List<ERMedia> mediaList;
+	private final ERPriority priority;
+	private final long timeToLive;
+	private final ERQuietHours quietHours;
+
+	protected ERDispatchPlan(String contextName, List<ERMedia> medias, List<Map<String, Object>> sendingConfigurations)
+	{
+		this(contextName, medias, sendingConfigurations, ERPriority.NORMAL, 0);
+	}
+
+	/**
+	 * @param contextName
+	 * @param medias
+	 * @param sendingConfigurations
+	 * @param priority
+	 * @param timeToLive in milliseconds, 0 if the messages don't expire
+	 */
+	protected ERDispatchPlan(String contextName, List<ERMedia> medias, List<Map<String, Object>> sendingConfigurations, ERPriority priority, long timeToLive)
+	{
+		this(contextName, medias, sendingConfigurations, priority, timeToLive, null);
+	}
+
+	/**
+	 * @param contextName
+	 * @param medias
+	 * @param sendingConfigurations
+	 * @param priority
+	 * @param timeToLive in milliseconds, 0 if the messages don't expire
+	 * @param quietHours null if the messages can be sent at any time
+	 */
+	protected ERDispatchPlan(String contextName, List<ERMedia> medias, List<Map<String, Object>> sendingConfigurations, ERPriority priority, long timeToLive, ERQuietHours quietHours)
+	{
+		this.contextName = contextName;
+		this.priority = priority;
+		this.timeToLive = timeToLive;
+		this.quietHours = quietHours;
+		this.medias = medias.toArray(new ERMedia[medias.size()]);
+		this.sendingConfigurations = new ERSendingConfiguration[this.medias.length];
+		this.messageProcessors = new ERMessageProcessor[this.medias.length];
+		for (int i = 0; i < this.medias.length; i++)
+		{
+			try
+			{
+				this.sendingConfigurations[i] = ERSendingConfiguration.valueOf(sendingConfigurations.get(i));
+			} catch (IllegalStateException e)
+			{
+				throw new IllegalStateException("The configuration of the media " + this.medias[i].getName() + " in the context " + contextName + " is invalid: " + e.getMessage(), e);
+			}
+			ERMessageProcessor messageProcessor = this.medias[i].getMessageProcessor();
+			if (messageProcessor == null)
+				throw new IllegalStateException("The media " + this.medias[i].getName() + " of the context " + contextName + " has no message processor.");
+			messageProcessor.setSendingConfiguration(this.sendingConfigurations[i]);
+			this.messageProcessors[i] = messageProcessor;
+		}
+		this.mediaList = Collections.unmodifiableList(new ArrayList<ERMedia>(medias));
+	}
+
+	/**
+	 * Builds the plan of a context from its JSON description.
+	 *
+	 * @param contextName
+	 * @param description the value read for the context in the JSON content
+	 * @param mediaManager used to find the medias by name
+	 * @return the plan
+	 * @throws IllegalStateException if the description is malformed or refers to an unknown media.
+	 */
+	@SuppressWarnings("unchecked")
+	public static ERDispatchPlan compile(String contextName, Object description, ERMediaManager mediaManager)
+	{
+		if (!(description instanceof Map))
+			throw new IllegalStateException("The description of the context " + contextName + " must be an object: " + description);
+		Map<String, Object> data = (Map<String, Object>) description;
+		Object mediaNames = data.get(MEDIAS_KEY);
+		if (!(mediaNames instanceof List))
+			throw new IllegalStateException("The context " + contextName + " must have a " + MEDIAS_KEY + " array: " + description);
+
+		List<ERMedia> medias = new ArrayList<ERMedia>();
+		List<Map<String, Object>> sendingConfigurations = new ArrayList<Map<String, Object>>();
+		for (Object mediaName : (List<Object>) mediaNames)
+		{
+			if (!(mediaName instanceof String))
+				throw new IllegalStateException("The context " + contextName + " has a media which is not a string: " + mediaName);
+			ERMedia media = mediaManager.getMedia((String) mediaName);
+			if (media == null)
+				throw new IllegalStateException("The context " + contextName + " uses an unknown media: " + mediaName);
+			Object configuration = data.get(mediaName);
+			if (configuration != null && !(configuration instanceof Map))
+				throw new IllegalStateException("The configuration of the media " + mediaName + " in the context " + contextName + " must be an object: " + configuration);
+			medias.add(media);
+			sendingConfigurations.add((Map<String, Object>) configuration);
+		}
+
+		ERPriority priority = ERPriority.NORMAL;
+		Object priorityName = data.get(PRIORITY_KEY);
+		if (priorityName != null)
+		{
+			try
+			{
+				priority = ERPriority.valueOf(String.valueOf(priorityName));
+			} catch (IllegalArgumentException e)
+			{
+				throw new IllegalStateException("The context " + contextName + " has an unknown priority: " + priorityName);
+			}
+		}
+		Object timeToLive = data.get(TIME_TO_LIVE_KEY);
+		if (timeToLive != null && !(timeToLive instanceof Number && ((Number) timeToLive).doubleValue() > 0))
+			throw new IllegalStateException("The " + TIME_TO_LIVE_KEY + " of the context " + contextName + " must be a positive number of seconds: " + timeToLive);
+		ERQuietHours quietHours = null;
+		Object quietHoursDescription = data.get(QUIET_HOURS_KEY);
+		if (quietHoursDescription != null)
+		{
+			try
+			{
+				quietHours = ERQuietHours.parse(String.valueOf(quietHoursDescription));
+			} catch (IllegalArgumentException e)
+			{
+				throw new IllegalStateException("The " + QUIET_HOURS_KEY + " of the context " + contextName + " must be described as HH:mm-HH:mm: " + quietHoursDescription);
+			}
+		}
+		return new ERDispatchPlan(contextName, medias, sendingConfigurations, priority, timeToLive != null ? (long) (((Number) timeToLive).doubleValue() * 1000) : 0, quietHours);
+	}
+
+	/**
+	 * Builds the plans of all contexts.
+	 *
+	 * @param mediaContext the parsed JSON content
+	 * @param mediaManager used to find the medias by name
+	 * @return an unmodifiable map of plans by context name
+	 */
+	public static Map<String, ERDispatchPlan> compileAll(Map<String, Object> mediaContext, ERMediaManager mediaManager)
+	{
+		Map<String, ERDispatchPlan> plans = new HashMap<String, ERDispatchPlan>();
+		for (Map.Entry<String, Object> entry : mediaContext.entrySet())
+			plans.put(entry.getKey(), compile(entry.getKey(), entry.getValue(), mediaManager));
+		return Collections.unmodifiableMap(plans);
+	}
+
+	public String getContextName()
+	{
+		return contextName;
+	}
+
+	public ERPriority getPriority()
+	{
+		return priority;
+	}
+
+	/**
+	 * @return the time to live of the messages in milliseconds, 0 if they don't expire.
+	 */
+	public long getTimeToLive()
+	{
+		return timeToLive;
+	}
+
+	/**
+	 * @return the quiet hours of the context, null if its messages can be sent at any time.
+	 */
+	public ERQuietHours getQuietHours()
+	{
+		return quietHours;
+	}
+
+	/**
+	 * @return the unmodifiable list of medias, the same object is returned at each call.
+	 */
+	public List<ERMedia> getMedias()
+	{
+		return mediaList;
+	}
+
+	/**
+	 * @param media
+	 * @return the sending configuration of the media, or null if there is none or the media isn't used by the context.
+	 */
+	public ERSendingConfiguration getSendingConfiguration(ERMedia media)
+	{
+		int index = indexOfMedia(media);
+		return index >= 0 ? sendingConfigurations[index] : null;
+	}
+
+	/**
+	 * @param media
+	 * @return the message processor of the media, or null if the media isn't used by the context.
+	 */
+	public ERMessageProcessor getMessageProcessor(ERMedia media)
+	{
+		int index = indexOfMedia(media);
+		return index >= 0 ? messageProcessors[index] : null;
+	}
+
+	private int indexOfMedia(ERMedia media)
+	{
+		for (int i = 0; i < medias.length; i++)
+		{
+			if (medias[i] == media || medias[i].getName().equals(media.getName()))
+				return i;
+		}
+		return -1;
+	}
+
+	public String toString()
+	{
+		return "ERDispatchPlan: contextName: " + contextName + " /medias: " + mediaList;
+	}
+}
@@ -0,0 +1,98 @@
+package er.communication.foundation;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ERCachingTemplateProviderTest
+{
+	private class CountingTemplateProvider implements ERAbstractMessageProcessor.TemplateProvider
+	{
+		public volatile int numberOfCalls;
+		public volatile String template = "Hi, {{firstName}}!";
+
+		@Override
+		public String templateForMedia(String key, String targetLanguage, ERMedia media)
+		{
+			numberOfCalls++;
+			return template;
+		}
+	}
+
+	@Test
+	public void testTemplateIsCachedByKeyLanguageAndMedia()
+	{
+		CountingTemplateProvider provider = new CountingTemplateProvider();
+		ERCachingTemplateProvider cachingProvider = new ERCachingTemplateProvider(provider, 0);
+		cachingProvider.templateForMedia("aKey", "en", ERDefaultMedia.PLAIN_TEXT_MAIL);
+		cachingProvider.templateForMedia("aKey", "en", ERDefaultMedia.PLAIN_TEXT_MAIL);
+		assertEquals(1, provider.numberOfCalls);
+		cachingProvider.templateForMedia("aKey", "fr", ERDefaultMedia.PLAIN_TEXT_MAIL);
+		cachingProvider.templateForMedia("aKey", "en", ERDefaultMedia.JABBER);
+		assertEquals(3, provider.numberOfCalls);
+		assertEquals(3, cachingProvider.size());
+	}
+
+	@Test
+	public void testMissingTemplateIsCached()
+	{
+		CountingTemplateProvider provider = new CountingTemplateProvider();
+		provider.template = null;
+		ERCachingTemplateProvider cachingProvider = new ERCachingTemplateProvider(provider, 0);
+		assertEquals(ERAbstractMessageProcessor.UNDEFINED_COMMUNICATION_TEMPLATE, cachingProvider.templateForMedia("aKey", "en", ERDefaultMedia.JABBER));
+		assertEquals(ERAbstractMessageProcessor.UNDEFINED_COMMUNICATION_TEMPLATE, cachingProvider.templateForMedia("aKey", "en", ERDefaultMedia.JABBER));
+		assertEquals(1, provider.numberOfCalls);
+	}
+
+	@Test
+	public void testStaleTemplateIsRefreshedInBackground() throws InterruptedException
+	{
+		CountingTemplateProvider provider = new CountingTemplateProvider();
+		ERCachingTemplateProvider cachingProvider = new ERCachingTemplateProvider(provider, 1);
+		cachingProvider.templateForMedia("aKey", "en", ERDefaultMedia.JABBER);
+		provider.template = "Hello, {{firstName}}!";
+		Thread.sleep(10);
+		// The stale value is returned while the entry is refreshed.
+		assertEquals("Hi, {{firstName}}!", cachingProvider.templateForMedia("aKey", "en", ERDefaultMedia.JABBER));
+		for (int i = 0; i < 100 && provider.numberOfCalls < 2; i++)
+			Thread.sleep(10);
+		Thread.sleep(10);
+		assertEquals(2, provider.numberOfCalls);
+		assertEquals("Hello, {{firstName}}!", cachingProvider.templateForMedia("aKey", "en", ERDefaultMedia.JABBER));
+	}
+
+	@Test
+	public void testTemplateWithoutLanguageIsCached()
+	{
+		CountingTemplateProvider provider = new CountingTemplateProvider();
+		ERCachingTemplateProvider cachingProvider = new ERCachingTemplateProvider(provider, 0);
+		cachingProvider.templateForMedia("aKey", null, ERDefaultMedia.PLAIN_TEXT_MAIL);
+		cachingProvider.templateForMedia("aKey", null, ERDefaultMedia.PLAIN_TEXT_MAIL);
+		assertEquals(1, provider.numberOfCalls);
+		assertEquals(1, cachingProvider.size());
+	}
+
+	@Test
+	public void testTemplateLoadedDuringResetIsNotCached()
+	{
+		final ERCachingTemplateProvider[] cachingProvider = new ERCachingTemplateProvider[1];
+		CountingTemplateProvider provider = new CountingTemplateProvider()
+		{
+			@Override
+			public String templateForMedia(String key, String targetLanguage, ERMedia media)
+			{
+				// the localizers are reloaded while the old template is read
+				if (numberOfCalls == 0)
+					cachingProvider[0].localizationDidReset(null);
+				return super.templateForMedia(key, targetLanguage, media);
+			}
+		};
+		cachingProvider[0] = new ERCachingTemplateProvider(provider, 0);
+		cachingProvider[0].templateForMedia("aKey", "en", ERDefaultMedia.JABBER);
+		assertEquals(0, cachingProvider[0].size());
+		provider.template = "Hello, {{firstName}}!";
+		assertEquals("Hello, {{firstName}}!", cachingProvider[0].templateForMedia("aKey", "en", ERDefaultMedia.JABBER));
+		assertEquals(2, provider.numberOfCalls);
+		assertEquals(1, cachingProvider[0].size());
+	}
+}
@@ -0,0 +1,206 @@
+package er.communication.foundation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import er.communication.foundation.ERChannelExecutor.AdmissionPolicy;
+
+public class ERChannelExecutorTest
+{
+	/**
+	 * A task which waits until the latch is released so the queue can be filled.
+	 */
+	private class BlockingTask implements Callable<String>
+	{
+		private final CountDownLatch latch;
+		private final String result;
+
+		public BlockingTask(CountDownLatch latch, String result)
+		{
+			this.latch = latch;
+			this.result = result;
+		}
+
+		@Override
+		public String call() throws Exception
+		{
+			latch.await(5, TimeUnit.SECONDS);
+			return result;
+		}
+	}
+
+	@Test
+	public void testSubmit() throws Exception
+	{
+		ERChannelExecutor executor = new ERChannelExecutor(1, 1, AdmissionPolicy.BLOCK, 1000);
+		Future<String> future = executor.submit(new BlockingTask(new CountDownLatch(0), "done"));
+		assertEquals("done", future.get(5, TimeUnit.SECONDS));
+		assertTrue(executor.shutdown());
+	}
+
+	@Test(expected=RejectedExecutionException.class)
+	public void testRejectPolicy()
+	{
+		CountDownLatch latch = new CountDownLatch(1);
+		ERChannelExecutor executor = new ERChannelExecutor(1, 1, AdmissionPolicy.REJECT, 1000);
+		try
+		{
+			executor.submit(new BlockingTask(latch, "running"));
+			executor.submit(new BlockingTask(latch, "queued"));
+			executor.submit(new BlockingTask(latch, "rejected"));
+		}
+		finally
+		{
+			latch.countDown();
+		}
+	}
+
+	@Test
+	public void testDropOldestPolicy() throws Exception
+	{
+		CountDownLatch latch = new CountDownLatch(1);
+		ERChannelExecutor executor = new ERChannelExecutor(1, 1, AdmissionPolicy.DROP_OLDEST, 1000);
+		Future<String> running = executor.submit(new BlockingTask(latch, "running"));
+		// Wait until the first task is taken by the thread so the next one stays in the queue.
+		while (executor.queueSize() > 0)
+			Thread.sleep(1);
+		Future<String> dropped = executor.submit(new BlockingTask(latch, "dropped"));
+		Future<String> kept = executor.submit(new BlockingTask(latch, "kept"));
+		latch.countDown();
+		assertTrue(dropped.isCancelled());
+		assertEquals("running", running.get(5, TimeUnit.SECONDS));
+		assertEquals("kept", kept.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testQueueSizeByTag() throws Exception
+	{
+		CountDownLatch latch = new CountDownLatch(1);
+		ERChannelExecutor executor = new ERChannelExecutor(1, 10, AdmissionPolicy.BLOCK, 1000);
+		Future<String> running = executor.submit(ERPriority.NORMAL, new BlockingTask(latch, "running"), "CONTEXT/HTML_MAIL");
+		while (executor.queueSize() > 0)
+			Thread.sleep(1);
+		executor.submit(ERPriority.NORMAL, new BlockingTask(latch, "mail"), "CONTEXT/HTML_MAIL");
+		executor.submit(ERPriority.BULK, new BlockingTask(latch, "mail"), "CONTEXT/HTML_MAIL");
+		executor.submit(ERPriority.NORMAL, new BlockingTask(latch, "jabber"), "CONTEXT/JABBER");
+		assertEquals(2, executor.queueSize("CONTEXT/HTML_MAIL"));
+		assertEquals(1, executor.queueSize("CONTEXT/JABBER"));
+		assertEquals(0, executor.queueSize("OTHER/JABBER"));
+		latch.countDown();
+		assertEquals("running", running.get(5, TimeUnit.SECONDS));
+		assertTrue(executor.shutdown());
+		assertEquals(0, executor.queueSize("CONTEXT/HTML_MAIL"));
+	}
+
+	@Test
+	public void testCallerRunsPolicy() throws Exception
+	{
+		CountDownLatch latch = new CountDownLatch(1);
+		ERChannelExecutor executor = new ERChannelExecutor(1, 1, AdmissionPolicy.CALLER_RUNS, 1000);
+		executor.submit(new BlockingTask(latch, "running"));
+		executor.submit(new BlockingTask(latch, "queued"));
+		final Thread caller = Thread.currentThread();
+		Future<Boolean> callerRuns = executor.submit(new Callable<Boolean>()
+		{
+			@Override
+			public Boolean call() { return Thread.currentThread() == caller; }
+		});
+		latch.countDown();
+		assertTrue(callerRuns.isDone());
+		assertTrue(callerRuns.get());
+	}
+
+	@Test
+	public void testTransactionalTaskPassesBeforeBulkTasks() throws Exception
+	{
+		CountDownLatch latch = new CountDownLatch(1);
+		ERChannelExecutor executor = new ERChannelExecutor(1, 100, AdmissionPolicy.BLOCK, 1000);
+		final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+		executor.submit(ERPriority.BULK, new BlockingTask(latch, "running"));
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < 10; i++)
+			futures.add(executor.submit(ERPriority.BULK, new RecordingTask(executed, "bulk" + i)));
+		futures.add(executor.submit(ERPriority.TRANSACTIONAL, new RecordingTask(executed, "transactional")));
+		assertEquals(11, executor.queueSize());
+		assertEquals(1, executor.queueSize(ERPriority.TRANSACTIONAL));
+		latch.countDown();
+		for (Future<String> future : futures)
+			future.get(5, TimeUnit.SECONDS);
+		assertEquals("transactional", executed.get(0));
+		assertTrue(executor.shutdown());
+		assertEquals(11, executor.executedCount(ERPriority.BULK));
+	}
+
+	@Test
+	public void testBulkLaneLeavesThreadsToOtherLanes() throws Exception
+	{
+		CountDownLatch latch = new CountDownLatch(1);
+		ERChannelExecutor executor = new ERChannelExecutor(2, 100, AdmissionPolicy.BLOCK, 1000);
+		Future<String> bulk1 = executor.submit(ERPriority.BULK, new BlockingTask(latch, "bulk1"));
+		Future<String> bulk2 = executor.submit(ERPriority.BULK, new BlockingTask(latch, "bulk2"));
+		// the bulk lane can use only one of the two threads
+		assertEquals(1, executor.queueSize(ERPriority.BULK));
+		Future<String> normal = executor.submit(new BlockingTask(new CountDownLatch(0), "normal"));
+		assertEquals("normal", normal.get(5, TimeUnit.SECONDS));
+		assertFalse(bulk1.isDone());
+		latch.countDown();
+		assertEquals("bulk1", bulk1.get(5, TimeUnit.SECONDS));
+		assertEquals("bulk2", bulk2.get(5, TimeUnit.SECONDS));
+		assertTrue(executor.shutdown());
+	}
+
+	@Test
+	public void testVirtualThreadMode() throws Exception
+	{
+		CountDownLatch latch = new CountDownLatch(1);
+		ERChannelExecutor executor = new ERChannelExecutor(1000, 1000, AdmissionPolicy.BLOCK, 5000, ERChannelExecutor.ThreadMode.VIRTUAL);
+		ERChannelExecutor.ThreadMode expectedMode = ERChannelExecutor.virtualThreadsSupported() ? ERChannelExecutor.ThreadMode.VIRTUAL : ERChannelExecutor.ThreadMode.PLATFORM;
+		assertEquals(expectedMode, executor.threadMode());
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < 500; i++)
+			futures.add(executor.submit(new BlockingTask(latch, "task" + i)));
+		// in the VIRTUAL mode, all tasks are in flight at the same time
+		int expectedActiveCount = Math.min(500, executor.threads());
+		assertEquals(expectedActiveCount, executor.activeCount());
+		assertEquals(500 - expectedActiveCount, executor.queueSize());
+		latch.countDown();
+		for (Future<String> future : futures)
+			future.get(5, TimeUnit.SECONDS);
+		assertTrue(executor.shutdown());
+		assertEquals(0, executor.activeCount());
+	}
+
+	/**
+	 * Records its result when it's executed.
+	 */
+	private class RecordingTask implements Callable<String>
+	{
+		private final List<String> executed;
+		private final String result;
+
+		public RecordingTask(List<String> executed, String result)
+		{
+			this.executed = executed;
+			this.result = result;
+		}
+
+		@Override
+		public String call()
+		{
+			executed.add(result);
+			return result;
+		}
+	}
+}
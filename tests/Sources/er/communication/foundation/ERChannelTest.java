@@ -3,8 +3,15 @@ package er.communication.foundation;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -61,6 +68,27 @@ public class ERChannelTest
 		public ERMessageProcessor theMessageProcessor() { return theMessageProcessor; }
 	}
 	
+	private class ConcurrentMessageProcessorTest implements ERMessageProcessor
+	{
+		private AtomicInteger numberOfMessages = new AtomicInteger();
+		@Override
+		public void setSendingConfiguration( Map<String, Object> sendingInformationsForMedia) { }
+
+		@Override
+		public Map<String, Object> getSendingConfiguration() { return null;	}
+
+		@Override
+		public void sendMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor) 
+		{
+			if (recipient.getIdentifier(media) == null)
+				throw new IllegalStateException("No identifier");
+			if (recipient.getIdentifier(media).equals("anID60"))
+				throw new IllegalStateException("Rejected identifier");
+			numberOfMessages.incrementAndGet();
+		}	
+		public int numberOfMessages() { return numberOfMessages.get(); }
+	}
+	
 	@Test(expected=IllegalArgumentException.class)
 	public void testSendMessageWithNullRecipient()
 	{
@@ -172,4 +200,669 @@ public class ERChannelTest
 		assertTrue(aMessageProcessor.getRecipients().get(0).getLastName().equals("Hill"));
 		assertTrue(aMessageProcessor.getRecipients().get(1).getLastName().equals("Rabier"));
 	}
+
+	/**
+	 * The goal is to ensure the message is sent by the executor and there is one future per media.
+	 */
+	@Test
+	public void testSendMessageAsync() throws Exception
+	{
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		
+		MessageProcessorFactoryTest factory = new MessageProcessorFactoryTest();
+		MessageProcessorTest aMessageProcessor  = (MessageProcessorTest) factory.theMessageProcessor();
+		
+		ERChannel.setMessageProcessorFactory(factory);
+		ERChannel.setExecutor(new ERChannelExecutor(1, 10, ERChannelExecutor.AdmissionPolicy.BLOCK, 1000));
+		
+		ERChannel channel = new ERChannel();
+		Map<ERMedia, Future<Void>> futures = channel.sendMessageAsync(new ERRecipient() 
+		{	
+			@Override
+			public String getLastName() { return "Hill";}
+			@Override
+			public String getLanguage() { return "en"; }
+			@Override
+			public String getIdentifier(ERMedia media) { return "anID";	}
+			@Override
+			public String getFirstName() { return "Chuck"; }
+		}, 
+		new ERCommunicationContext("CONTEXT", null), 
+		null);
+		assertTrue(futures.size() == 1);
+		futures.get(ERDefaultMedia.PLAIN_TEXT_MAIL).get(5, TimeUnit.SECONDS);
+		assertTrue(aMessageProcessor.numberOfMessages() == 1);
+		assertTrue(aMessageProcessor.getRecipients().get(0).getLastName().equals("Hill"));
+	}
+
+	/**
+	 * The goal is to ensure a message which waited in the executor longer than its time to live is dropped.
+	 */
+	@Test
+	public void testSendMessageAsyncDropsExpiredMessage() throws Exception
+	{
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		
+		MessageProcessorFactoryTest factory = new MessageProcessorFactoryTest();
+		MessageProcessorTest aMessageProcessor  = (MessageProcessorTest) factory.theMessageProcessor();
+		
+		ERChannel.setMessageProcessorFactory(factory);
+		ERChannelExecutor executor = new ERChannelExecutor(1, 10, ERChannelExecutor.AdmissionPolicy.BLOCK, 1000);
+		ERChannel.setExecutor(executor);
+		final CountDownLatch latch = new CountDownLatch(1);
+		executor.submit(new Callable<Void>() 
+		{
+			@Override
+			public Void call() throws Exception 
+			{
+				latch.await(5, TimeUnit.SECONDS);
+				return null;
+			}
+		});
+		
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		context.setTimeToLive(1);
+		ERChannel channel = new ERChannel();
+		Map<ERMedia, Future<Void>> futures = channel.sendMessageAsync(new ERRecipient() 
+		{	
+			@Override
+			public String getLastName() { return "Hill";}
+			@Override
+			public String getLanguage() { return "en"; }
+			@Override
+			public String getIdentifier(ERMedia media) { return "anID";	}
+			@Override
+			public String getFirstName() { return "Chuck"; }
+		}, 
+		context, 
+		null);
+		Thread.sleep(20);
+		latch.countDown();
+		futures.get(ERDefaultMedia.PLAIN_TEXT_MAIL).get(5, TimeUnit.SECONDS);
+		assertTrue(aMessageProcessor.numberOfMessages() == 0);
+	}
+
+	/**
+	 * The goal is to ensure the deliveries of a media in progress don't exceed its concurrency limit, whatever the number of threads.
+	 */
+	@Test
+	public void testConcurrencyLimitOfMedia() throws Exception
+	{
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		final AtomicInteger inProgress = new AtomicInteger();
+		final AtomicInteger maxInProgress = new AtomicInteger();
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory() 
+		{
+			private final ERMessageProcessor aMessageProcessor = new MessageProcessorTest()
+			{
+				@Override
+				public void sendMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor) 
+				{
+					int count = inProgress.incrementAndGet();
+					synchronized (maxInProgress) {
+						maxInProgress.set(Math.max(maxInProgress.get(), count));
+					}
+					try
+					{
+						Thread.sleep(5);
+					} catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					inProgress.decrementAndGet();
+				}
+			};
+			@Override
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media) { return aMessageProcessor; }
+		});
+		ERChannel.setExecutor(new ERChannelExecutor(8, 100, ERChannelExecutor.AdmissionPolicy.BLOCK, 1000));
+		ERChannel.setConcurrencyLimit(ERDefaultMedia.PLAIN_TEXT_MAIL, 2);
+		try
+		{
+			ERChannel channel = new ERChannel();
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 40; i++)
+			{
+				futures.addAll(channel.sendMessageAsync(new ERRecipient() 
+				{	
+					@Override
+					public String getLastName() { return "Hill";}
+					@Override
+					public String getLanguage() { return "en"; }
+					@Override
+					public String getIdentifier(ERMedia media) { return "anID";	}
+					@Override
+					public String getFirstName() { return "Chuck"; }
+				}, 
+				new ERCommunicationContext("CONTEXT", null), 
+				null).values());
+			}
+			for (Future<Void> future : futures)
+				future.get(5, TimeUnit.SECONDS);
+			assertTrue("max: " + maxInProgress.get(), maxInProgress.get() <= 2);
+			assertTrue(ERChannel.concurrencyLimitForMedia(ERDefaultMedia.PLAIN_TEXT_MAIL).availablePermits() == 2);
+		} finally
+		{
+			ERChannel.setConcurrencyLimit(ERDefaultMedia.PLAIN_TEXT_MAIL, 0);
+		}
+		assertTrue(ERChannel.concurrencyLimitForMedia(ERDefaultMedia.PLAIN_TEXT_MAIL) == null);
+	}
+
+	/**
+	 * The goal is to ensure all recipients are processed once by the parallel path and failures are counted.
+	 */
+	@Test
+	public void testSendMessageInParallel()
+	{
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		final ConcurrentMessageProcessorTest aMessageProcessor = new ConcurrentMessageProcessorTest();
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory() 
+		{
+			@Override
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media) { return aMessageProcessor; }
+		});
+		
+		List<ERRecipient> recipients = new ArrayList<ERRecipient>();
+		for (int i = 0; i < 100; i++)
+		{
+			final String identifier = i == 50 ? null : "anID" + i;
+			recipients.add(new ERRecipient() 
+			{	
+				@Override
+				public String getLastName() { return "Hill";}
+				@Override
+				public String getLanguage() { return "en"; }
+				@Override
+				public String getIdentifier(ERMedia media) { return identifier; }
+				@Override
+				public String getFirstName() { return "Chuck"; }
+			});
+		}
+		
+		ERChannel channel = new ERChannel();
+		ERBulkSendResult result = channel.sendMessageInParallel(recipients, new ERCommunicationContext("CONTEXT", null), null);
+		assertTrue(aMessageProcessor.numberOfMessages() == 98);
+		assertTrue(result.sentCount(ERDefaultMedia.PLAIN_TEXT_MAIL) == 98);
+		// the recipient without identifier is skipped by the channel
+		assertTrue(result.skippedCount(ERDefaultMedia.PLAIN_TEXT_MAIL) == 1);
+		assertTrue(result.failedCount() == 1);
+		assertTrue(result.getFailures().get(0).getRecipient() == recipients.get(60));
+	}
+
+	/**
+	 * The goal is to ensure a bulk send uses the identifier rule of the message processor and doesn't count the messages
+	 * given to the retry engine as sent.
+	 */
+	@Test
+	public void testSendMessageInParallelCountsRetriedMessages()
+	{
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		final ERMessageProcessor aMessageProcessor = new ERAbstractMessageProcessor()
+		{
+			@Override
+			public boolean isExistsIdentifierForMedia(ERRecipient recipient, ERMedia media)
+			{
+				return !recipient.getIdentifier(media).startsWith("optout");
+			}
+
+			@Override
+			protected void sendContent(ERSendContext sendContext)
+			{
+				if (sendContext.getRecipient().getIdentifier(sendContext.getMedia()).startsWith("retry"))
+					throw new ERSendException("The server is busy.", null, true);
+			}
+		};
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory() 
+		{
+			@Override
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media) { return aMessageProcessor; }
+		});
+		ERRetryEngine engine = new ERRetryEngine(new ERRetryEngine.Sender()
+		{
+			public void send(ERFailedMessage message) { }
+			public void finished(ERFailedMessage message) { }
+		}, 3, 1000, 1000, 1, 10);
+		ERChannel.setRetryEngine(engine);
+		try
+		{
+			List<ERRecipient> recipients = new ArrayList<ERRecipient>();
+			for (int i = 0; i < 10; i++)
+			{
+				final String identifier = (i == 3 ? "optout" : i == 7 ? "retry" : "anID") + i;
+				recipients.add(new ERRecipient() 
+				{	
+					@Override
+					public String getLastName() { return "Hill";}
+					@Override
+					public String getLanguage() { return "en"; }
+					@Override
+					public String getIdentifier(ERMedia media) { return identifier; }
+					@Override
+					public String getFirstName() { return "Chuck"; }
+				});
+			}
+			
+			ERBulkSendResult result = new ERChannel().sendMessageInParallel(recipients, new ERCommunicationContext("CONTEXT", null), null);
+			assertTrue(result.toString(), result.sentCount(ERDefaultMedia.PLAIN_TEXT_MAIL) == 8);
+			assertTrue(result.toString(), result.skippedCount(ERDefaultMedia.PLAIN_TEXT_MAIL) == 1);
+			assertTrue(result.toString(), result.retriedCount(ERDefaultMedia.PLAIN_TEXT_MAIL) == 1);
+			assertTrue(result.toString(), result.failedCount() == 0);
+		} finally
+		{
+			ERChannel.setRetryEngine(null);
+			engine.stop();
+		}
+	}
+
+	/**
+	 * The goal is to ensure the messages of a bulk send reached after their time to live are dropped.
+	 */
+	@Test
+	public void testSendMessageInParallelDropsExpiredMessages()
+	{
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		final AtomicInteger numberOfMessages = new AtomicInteger();
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory() 
+		{
+			private final ERMessageProcessor aMessageProcessor = new MessageProcessorTest()
+			{
+				@Override
+				public void sendMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor) 
+				{
+					numberOfMessages.incrementAndGet();
+					try
+					{
+						Thread.sleep(5);
+					} catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			@Override
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media) { return aMessageProcessor; }
+		});
+		ERChannel.setExecutor(new ERChannelExecutor(1, 10, ERChannelExecutor.AdmissionPolicy.BLOCK, 1000));
+		
+		List<ERRecipient> recipients = new ArrayList<ERRecipient>();
+		for (int i = 0; i < 10; i++)
+		{
+			recipients.add(new ERRecipient() 
+			{	
+				@Override
+				public String getLastName() { return "Hill";}
+				@Override
+				public String getLanguage() { return "en"; }
+				@Override
+				public String getIdentifier(ERMedia media) { return "anID"; }
+				@Override
+				public String getFirstName() { return "Chuck"; }
+			});
+		}
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		context.setTimeToLive(1);
+		ERBulkSendResult result = new ERChannel().sendMessageInParallel(recipients, context, null);
+		// a single thread sends the partitions one after the other and each message lasts longer than the time to live
+		assertTrue(result.toString(), result.expiredCount(ERDefaultMedia.PLAIN_TEXT_MAIL) >= 9);
+		assertTrue(result.toString(), result.sentCount() + result.expiredCount() == 10);
+		assertTrue(numberOfMessages.get() == result.sentCount());
+	}
+
+	/**
+	 * The goal is to ensure the recipients of an iterator are read lazily and all of them are processed once.
+	 */
+	@Test
+	public void testSendMessageWithIterator()
+	{
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		final ConcurrentMessageProcessorTest aMessageProcessor = new ConcurrentMessageProcessorTest();
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory() 
+		{
+			@Override
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media) { return aMessageProcessor; }
+		});
+		
+		final ERChannel channel = new ERChannel();
+		final AtomicInteger maxAhead = new AtomicInteger();
+		Iterator<ERRecipient> recipients = new Iterator<ERRecipient>() 
+		{
+			private int count;
+
+			@Override
+			public boolean hasNext() { return count < 10000; }
+
+			@Override
+			public ERRecipient next() 
+			{
+				// the recipients taken but not sent yet, the skipped and the failed ones are not counted by the processor
+				int notCounted = (count > 50 ? 1 : 0) + (count > 60 ? 1 : 0);
+				maxAhead.set(Math.max(maxAhead.get(), count - notCounted - aMessageProcessor.numberOfMessages()));
+				final String identifier = count == 50 ? null : "anID" + count;
+				count++;
+				return new ERRecipient() 
+				{	
+					@Override
+					public String getLastName() { return "Hill";}
+					@Override
+					public String getLanguage() { return "en"; }
+					@Override
+					public String getIdentifier(ERMedia media) { return identifier; }
+					@Override
+					public String getFirstName() { return "Chuck"; }
+				};
+			}
+
+			@Override
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+		ERBulkSendResult result = channel.sendMessage(recipients, new ERCommunicationContext("CONTEXT", null), null);
+		assertTrue(aMessageProcessor.numberOfMessages() == 9998);
+		assertTrue(result.sentCount(ERDefaultMedia.PLAIN_TEXT_MAIL) == 9998);
+		assertTrue(result.skippedCount() == 1);
+		assertTrue(result.failedCount() == 1);
+		assertTrue("ahead: " + maxAhead.get(), maxAhead.get() <= channel.parallelismForMedia(ERDefaultMedia.PLAIN_TEXT_MAIL));
+	}
+
+	/**
+	 * The goal is to ensure a recipient who can't be journaled is counted as a failure and doesn't stop the send.
+	 */
+	@Test
+	public void testSendMessageWithIteratorContinuesAfterJournalFailure() throws Exception
+	{
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		final ConcurrentMessageProcessorTest aMessageProcessor = new ConcurrentMessageProcessorTest();
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory() 
+		{
+			@Override
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media) { return aMessageProcessor; }
+		});
+		List<ERRecipient> recipients = new ArrayList<ERRecipient>();
+		for (int i = 0; i < 20; i++)
+		{
+			final boolean broken = i % 5 == 0;
+			recipients.add(new ERRecipient() 
+			{	
+				@Override
+				public String getLastName() { return "Hill";}
+				@Override
+				public String getLanguage() 
+				{ 
+					if (broken)
+						throw new IllegalStateException("No language");
+					return "en"; 
+				}
+				@Override
+				public String getIdentifier(ERMedia media) { return "anID"; }
+				@Override
+				public String getFirstName() { return "Chuck"; }
+			});
+		}
+		java.io.File directory = java.io.File.createTempFile("outbox", "");
+		directory.delete();
+		er.communication.outbox.EROutboxJournal journal = new er.communication.outbox.EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		ERChannel.setOutbox(journal);
+		try
+		{
+			ERBulkSendResult result = new ERChannel().sendMessage(recipients.iterator(), new ERCommunicationContext("CONTEXT", null), null);
+			assertTrue(result.toString(), result.failedCount() == 4);
+			assertTrue(result.toString(), result.sentCount() == 16);
+			assertTrue(aMessageProcessor.numberOfMessages() == 16);
+			assertTrue(journal.pendingCount() == 0);
+		} finally
+		{
+			ERChannel.setOutbox(null);
+			journal.close();
+			for (java.io.File file : directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
+
+	/**
+	 * The goal is to ensure the batches are fetched one after the other and the last one stops the iteration.
+	 */
+	@Test
+	public void testBatchedRecipientIterator()
+	{
+		final List<Integer> starts = new ArrayList<Integer>();
+		ERBatchedRecipientIterator iterator = new ERBatchedRecipientIterator(new ERRecipientBatchSource() 
+		{
+			@Override
+			public List<? extends ERRecipient> fetchBatch(int start, int batchSize) 
+			{
+				starts.add(Integer.valueOf(start));
+				List<ERRecipient> batch = new ArrayList<ERRecipient>();
+				for (int i = start; i < Math.min(start + batchSize, 25); i++)
+				{
+					final String identifier = "anID" + i;
+					batch.add(new ERRecipient() 
+					{	
+						@Override
+						public String getLastName() { return "Hill";}
+						@Override
+						public String getLanguage() { return "en"; }
+						@Override
+						public String getIdentifier(ERMedia media) { return identifier; }
+						@Override
+						public String getFirstName() { return "Chuck"; }
+					});
+				}
+				return batch;
+			}
+		}, 10);
+		int count = 0;
+		while (iterator.hasNext())
+		{
+			assertTrue(iterator.next().getIdentifier(ERDefaultMedia.PLAIN_TEXT_MAIL).equals("anID" + count));
+			count++;
+			if (count == 5)
+				assertTrue(starts.size() == 1);
+		}
+		assertTrue(count == 25);
+		assertTrue(starts.equals(Arrays.asList(Integer.valueOf(0), Integer.valueOf(10), Integer.valueOf(20))));
+	}
+
+	/**
+	 * The goal is to ensure the templates are resolved once per language and the personalized keys are merged.
+	 */
+	@Test
+	public void testSendCampaign()
+	{
+		final List<String> resolutions = new ArrayList<String>();
+		final List<String> contents = java.util.Collections.synchronizedList(new ArrayList<String>());
+		ERAbstractMessageProcessor.TemplateProvider previousTemplateProvider = ERAbstractMessageProcessor.templateProvider();
+		ERAbstractMessageProcessor.setTemplateProvider(new ERAbstractMessageProcessor.TemplateProvider() 
+		{
+			@Override
+			public String templateForMedia(String key, String targetLanguage, ERMedia media) 
+			{
+				synchronized (resolutions) {
+					resolutions.add(key + "/" + targetLanguage);
+				}
+				return "fr".equals(targetLanguage) ? "Bonjour {{firstName}} {{code}}" : "Hello {{firstName}} {{code}}";
+			}
+		});
+		final ERAbstractMessageProcessor aMessageProcessor = new ERAbstractMessageProcessor() 
+		{
+			@Override
+			protected void sendContent(ERSendContext sendContext) 
+			{
+				contents.add(getTextContent(sendContext, sendContext.getContext().getName()));
+			}
+		};
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory() 
+		{
+			@Override
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media) { return aMessageProcessor; }
+		});
+
+		List<ERRecipient> recipients = new ArrayList<ERRecipient>();
+		for (int i = 0; i < 10; i++)
+		{
+			final String firstName = "Chuck" + i;
+			final String language = i % 2 == 0 ? "en" : "fr";
+			final Map<String, Object> personalizedData = new java.util.HashMap<String, Object>();
+			personalizedData.put("code", "C" + i);
+			personalizedData.put("secret", "S" + i);
+			recipients.add(new ERPersonalizedRecipient() 
+			{	
+				@Override
+				public String getLastName() { return "Hill";}
+				@Override
+				public String getLanguage() { return language; }
+				@Override
+				public String getIdentifier(ERMedia media) { return "anID"; }
+				@Override
+				public String getFirstName() { return firstName; }
+				@Override
+				public Map<String, Object> getPersonalizedData() { return personalizedData; }
+			});
+		}
+
+		try
+		{
+			ERChannel channel = new ERChannel();
+			ERBulkSendResult result = channel.sendCampaign(recipients, new ERCommunicationContext("CONTEXT", null), null, "code");
+			assertTrue(result.sentCount(ERDefaultMedia.PLAIN_TEXT_MAIL) == 10);
+			assertTrue(resolutions.size() == 2);
+			assertTrue(contents.size() == 10);
+			assertTrue(contents.contains("Hello Chuck0 C0"));
+			assertTrue(contents.contains("Bonjour Chuck1 C1"));
+			assertTrue(!channel.campaignData(null, recipients.get(0), new String[] { "code" }).containsKey("secret"));
+		} finally
+		{
+			ERAbstractMessageProcessor.setTemplateProvider(previousTemplateProvider);
+		}
+	}
+
+	/**
+	 * The goal is to ensure a campaign doesn't count the messages given to the retry engine as sent.
+	 */
+	@Test
+	public void testSendCampaignCountsRetriedMessages()
+	{
+		final ERAbstractMessageProcessor aMessageProcessor = new ERAbstractMessageProcessor() 
+		{
+			@Override
+			protected void sendContent(ERSendContext sendContext) 
+			{
+				if ("Chuck3".equals(sendContext.getRecipient().getFirstName()))
+					throw new ERSendException("The server is busy.", null, true);
+			}
+		};
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory() 
+		{
+			@Override
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media) { return aMessageProcessor; }
+		});
+		ERRetryEngine engine = new ERRetryEngine(new ERRetryEngine.Sender()
+		{
+			public void send(ERFailedMessage message) { }
+			public void finished(ERFailedMessage message) { }
+		}, 3, 1000, 1000, 1, 10);
+		ERChannel.setRetryEngine(engine);
+		List<ERRecipient> recipients = new ArrayList<ERRecipient>();
+		for (int i = 0; i < 5; i++)
+		{
+			final String firstName = "Chuck" + i;
+			recipients.add(new ERRecipient() 
+			{	
+				@Override
+				public String getLastName() { return "Hill";}
+				@Override
+				public String getLanguage() { return "en"; }
+				@Override
+				public String getIdentifier(ERMedia media) { return "anID"; }
+				@Override
+				public String getFirstName() { return firstName; }
+			});
+		}
+		try
+		{
+			ERBulkSendResult result = new ERChannel().sendCampaign(recipients, new ERCommunicationContext("CONTEXT", null), null);
+			assertTrue(result.toString(), result.sentCount(ERDefaultMedia.PLAIN_TEXT_MAIL) == 4);
+			assertTrue(result.toString(), result.retriedCount(ERDefaultMedia.PLAIN_TEXT_MAIL) == 1);
+			assertTrue(result.toString(), result.failedCount() == 0);
+		} finally
+		{
+			ERChannel.setRetryEngine(null);
+			engine.stop();
+		}
+	}
+
+	/**
+	 * The goal is to ensure the queued messages are delivered and acknowledged before the outbox is closed, even when the
+	 * outbox is the first to know the application terminates.
+	 */
+	@Test
+	public void testShutdownDeliversQueuedMessagesBeforeClosingTheOutbox() throws Exception
+	{
+		ERChannel.setMediaProvider(new MediaProviderTest());
+		final AtomicInteger numberOfMessages = new AtomicInteger();
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory() 
+		{
+			private final ERMessageProcessor aMessageProcessor = new MessageProcessorTest()
+			{
+				@Override
+				public void sendMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor) 
+				{
+					try
+					{
+						Thread.sleep(5);
+					} catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					numberOfMessages.incrementAndGet();
+				}
+			};
+			@Override
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media) { return aMessageProcessor; }
+		});
+		java.io.File directory = java.io.File.createTempFile("outbox", "");
+		directory.delete();
+		er.communication.outbox.EROutboxJournal journal = new er.communication.outbox.EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		ERChannel.setOutbox(journal);
+		ERChannel.setExecutor(new ERChannelExecutor(1, 100, ERChannelExecutor.AdmissionPolicy.BLOCK, 10000));
+		ERRecipient recipient = new ERRecipient() 
+		{	
+			@Override
+			public String getLastName() { return "Hill";}
+			@Override
+			public String getLanguage() { return "en"; }
+			@Override
+			public String getIdentifier(ERMedia media) { return "anID"; }
+			@Override
+			public String getFirstName() { return "Chuck"; }
+		};
+		try
+		{
+			ERChannel channel = new ERChannel();
+			for (int i = 0; i < 20; i++)
+				channel.sendMessageAsync(recipient, new ERCommunicationContext("CONTEXT", null), null);
+			journal.applicationWillTerminate(null);
+			assertTrue(numberOfMessages.get() == 20);
+			assertTrue(ERChannel.existingExecutor().isShutdown());
+			// a closed outbox is a write failure, the message is sent anyway
+			channel.sendMessage(recipient, new ERCommunicationContext("CONTEXT", null), null);
+			assertTrue(numberOfMessages.get() == 21);
+
+			er.communication.outbox.EROutboxJournal reopened = new er.communication.outbox.EROutboxJournal(directory, 64 * 1024, false, 0.5);
+			assertTrue(reopened.pendingCount() == 0);
+			reopened.close();
+		} finally
+		{
+			ERChannel.setOutbox(null);
+			ERChannel.setExecutor(null);
+			ERChannel.setRetryEngine(null);
+			ERChannel.setDigestBuffer(null);
+			ERChannel.setScheduler(null);
+			journal.close();
+			for (java.io.File file : directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
 }
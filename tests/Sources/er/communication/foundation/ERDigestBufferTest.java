@@ -0,0 +1,301 @@
+package er.communication.foundation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ERDigestBufferTest
+{
+	private ERMediaProvider previousMediaProvider;
+	private ERMessageProcessorFactory previousMessageProcessorFactory;
+
+	@Before
+	public void setUp()
+	{
+		try
+		{
+			previousMediaProvider = ERChannel.getMediaProvider();
+		} catch (IllegalStateException e)
+		{
+			previousMediaProvider = null;
+		}
+		try
+		{
+			previousMessageProcessorFactory = ERChannel.getMessageProcessorFactory();
+		} catch (IllegalStateException e)
+		{
+			previousMessageProcessorFactory = null;
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		ERChannel.setMediaProvider(previousMediaProvider);
+		ERChannel.setMessageProcessorFactory(previousMessageProcessorFactory);
+	}
+
+	private static ERRecipient recipient(final String identifier)
+	{
+		return new ERRecipient()
+		{
+			public String getLastName() { return "Hill"; }
+			public String getLanguage() { return "en"; }
+			public String getIdentifier(ERMedia media) { return identifier; }
+			public String getFirstName() { return "Chuck"; }
+		};
+	}
+
+	private static ERCommunicationContext context(int index)
+	{
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("index", Integer.valueOf(index));
+		return new ERCommunicationContext("CONTEXT", data);
+	}
+
+	private static Map<String, Object> configuration(double window, int maxMessages)
+	{
+		Map<String, Object> configuration = new HashMap<String, Object>();
+		configuration.put(ERDigestBuffer.DIGEST_WINDOW, Double.valueOf(window));
+		configuration.put(ERDigestBuffer.DIGEST_MAX_MESSAGES, Integer.valueOf(maxMessages));
+		return configuration;
+	}
+
+	private static class RecordingSender implements ERDigestBuffer.Sender
+	{
+		private final List<ERDigestBuffer.Digest> digests = Collections.synchronizedList(new ArrayList<ERDigestBuffer.Digest>());
+		private final CountDownLatch latch;
+
+		RecordingSender(int count)
+		{
+			latch = new CountDownLatch(count);
+		}
+
+		public void send(ERDigestBuffer.Digest digest)
+		{
+			digests.add(digest);
+			latch.countDown();
+		}
+	}
+
+	@Test
+	public void testMessagesAreGatheredUntilTheEndOfTheWindow() throws InterruptedException
+	{
+		RecordingSender sender = new RecordingSender(2);
+		ERDigestBuffer buffer = new ERDigestBuffer(sender, 100, 1);
+		Map<String, Object> configuration = configuration(0.2, 100);
+		for (int i = 0; i < 3; i++)
+			assertTrue(buffer.offer(recipient("chuck@domain.com"), context(i), ERDefaultMedia.PLAIN_TEXT_MAIL, null, i, configuration));
+		assertTrue(buffer.offer(recipient("bruce@domain.com"), context(3), ERDefaultMedia.PLAIN_TEXT_MAIL, null, 3, configuration));
+		assertEquals(2, buffer.pendingCount());
+
+		assertTrue(sender.latch.await(5, TimeUnit.SECONDS));
+		assertEquals(0, buffer.pendingCount());
+		assertEquals(4, buffer.bufferedCount());
+		ERDigestBuffer.Digest digest = sender.digests.get(0).size() == 3 ? sender.digests.get(0) : sender.digests.get(1);
+		assertTrue(Arrays.equals(new long[] { 0, 1, 2 }, digest.getRecordIds()));
+
+		ERCommunicationContext digestContext = digest.newContext();
+		assertTrue(digestContext instanceof ERDigestContext);
+		assertEquals("CONTEXT" + ERDigestContext.DIGEST_SUFFIX, digestContext.getName());
+		assertEquals("CONTEXT", ((ERDigestContext) digestContext).getOriginalContext().getName());
+		assertEquals(Integer.valueOf(3), digestContext.getData().get(ERDigestContext.DIGEST_COUNT));
+		assertEquals(Integer.valueOf(2), digestContext.getData().get("index"));
+		List<?> messages = (List<?>) digestContext.getData().get(ERDigestContext.DIGEST_MESSAGES);
+		assertEquals(3, messages.size());
+		assertEquals(Integer.valueOf(0), ((Map<?, ?>) messages.get(0)).get("index"));
+
+		ERDigestBuffer.Digest single = sender.digests.get(0).size() == 1 ? sender.digests.get(0) : sender.digests.get(1);
+		assertEquals(Integer.valueOf(3), single.newContext().getData().get("index"));
+		assertFalse(single.newContext() instanceof ERDigestContext);
+		buffer.stop();
+	}
+
+	@Test
+	public void testFullDigestIsSentBeforeTheEndOfTheWindow() throws InterruptedException
+	{
+		RecordingSender sender = new RecordingSender(1);
+		ERDigestBuffer buffer = new ERDigestBuffer(sender, 100, 1);
+		Map<String, Object> configuration = configuration(3600, 2);
+		buffer.offer(recipient("chuck@domain.com"), context(0), ERDefaultMedia.PLAIN_TEXT_MAIL, null, 0, configuration);
+		buffer.offer(recipient("chuck@domain.com"), context(1), ERDefaultMedia.PLAIN_TEXT_MAIL, null, 1, configuration);
+		assertTrue(sender.latch.await(5, TimeUnit.SECONDS));
+		assertEquals(2, sender.digests.get(0).size());
+
+		buffer.offer(recipient("chuck@domain.com"), context(2), ERDefaultMedia.PLAIN_TEXT_MAIL, null, 2, configuration);
+		assertEquals(1, buffer.pendingCount());
+		buffer.stop();
+		assertEquals(2, sender.digests.size());
+		assertEquals(0, buffer.pendingCount());
+		assertFalse(buffer.offer(recipient("chuck@domain.com"), context(3), ERDefaultMedia.PLAIN_TEXT_MAIL, null, 3, configuration));
+	}
+
+	@Test
+	public void testMessageIsNotBufferedWithoutWindow()
+	{
+		RecordingSender sender = new RecordingSender(1);
+		ERDigestBuffer buffer = new ERDigestBuffer(sender, 100, 1);
+		assertFalse(buffer.offer(recipient("chuck@domain.com"), context(0), ERDefaultMedia.PLAIN_TEXT_MAIL, null, 0, null));
+		assertFalse(buffer.offer(recipient("chuck@domain.com"), context(0), ERDefaultMedia.PLAIN_TEXT_MAIL, null, 0, new HashMap<String, Object>()));
+		assertFalse(buffer.offer(recipient(null), context(0), ERDefaultMedia.PLAIN_TEXT_MAIL, null, 0, configuration(60, 10)));
+		assertEquals(0, buffer.pendingCount());
+		buffer.stop();
+	}
+
+	@Test
+	public void testMessagesWithDifferentDataProcessorsAreGatheredApart()
+	{
+		RecordingSender sender = new RecordingSender(2);
+		ERDigestBuffer buffer = new ERDigestBuffer(sender, 100, 1);
+		Map<String, Object> configuration = configuration(3600, 100);
+		ERDataProcessor upperCase = new UpperCaseProcessor();
+		buffer.offer(recipient("chuck@domain.com"), context(0), ERDefaultMedia.PLAIN_TEXT_MAIL, null, 0, configuration);
+		buffer.offer(recipient("chuck@domain.com"), context(1), ERDefaultMedia.PLAIN_TEXT_MAIL, upperCase, 1, configuration);
+		buffer.offer(recipient("chuck@domain.com"), context(2), ERDefaultMedia.PLAIN_TEXT_MAIL, new UpperCaseProcessor(), 2, configuration);
+		buffer.offer(recipient("chuck@domain.com"), context(3), ERDefaultMedia.PLAIN_TEXT_MAIL, null, 3, configuration);
+		assertEquals(2, buffer.pendingCount());
+		assertEquals(2, buffer.flush());
+		for (ERDigestBuffer.Digest digest : sender.digests)
+		{
+			if (digest.getDataProcessor() == null)
+				assertTrue(Arrays.equals(new long[] { 0, 3 }, digest.getRecordIds()));
+			else
+				assertTrue(Arrays.equals(new long[] { 1, 2 }, digest.getRecordIds()));
+		}
+		buffer.stop();
+	}
+
+	private static class UpperCaseProcessor implements ERDataProcessor
+	{
+		public String processTemplate(String template, Map<String, Object> data)
+		{
+			return template.toUpperCase();
+		}
+
+		public boolean equals(Object object)
+		{
+			return object instanceof UpperCaseProcessor;
+		}
+
+		public int hashCode()
+		{
+			return UpperCaseProcessor.class.hashCode();
+		}
+	}
+
+	@Test
+	public void testFailedDigestIsRetriedWithAllItsMessages() throws InterruptedException
+	{
+		final Map<String, Object> configuration = configuration(3600, 100);
+		final ERMessageProcessor messageProcessor = new ERMessageProcessor()
+		{
+			public void setSendingConfiguration(Map<String, Object> sendingInformationsForMedia) { }
+			public Map<String, Object> getSendingConfiguration() { return configuration; }
+			public void sendMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor)
+			{
+				throw new ERSendException("Invalid recipient", null, false);
+			}
+		};
+		ERChannel.setMediaProvider(new ERMediaProvider()
+		{
+			public List<ERMedia> getMedias(String contextName) { return Arrays.asList(new ERMedia[] { ERDefaultMedia.PLAIN_TEXT_MAIL }); }
+		});
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory()
+		{
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media)
+			{
+				return messageProcessor;
+			}
+		});
+		final List<ERFailedMessage> finished = Collections.synchronizedList(new ArrayList<ERFailedMessage>());
+		ERRetryEngine engine = new ERRetryEngine(new ERRetryEngine.Sender()
+		{
+			public void send(ERFailedMessage message) { }
+			public void finished(ERFailedMessage message) { finished.add(message); }
+		}, 3, 1, 10, 1, 10);
+		ERChannel.setRetryEngine(engine);
+		ERDigestBuffer buffer = new ERDigestBuffer(new ERChannel.ChannelDigestSender(), 100, 1);
+		ERChannel.setDigestBuffer(buffer);
+		try
+		{
+			ERChannel channel = new ERChannel();
+			for (int i = 0; i < 3; i++)
+				channel.sendMessage(recipient("chuck@domain.com"), context(i), null);
+			assertEquals(1, buffer.flush());
+			long deadline = System.currentTimeMillis() + 5000;
+			while (engine.deadLetterStore().count() == 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(1, engine.deadLetterStore().count());
+			ERFailedMessage deadLetter = engine.deadLetterStore().deadLetters(ERDefaultMedia.PLAIN_TEXT_MAIL).get(0);
+			assertTrue(deadLetter.getContext() instanceof ERDigestContext);
+			assertEquals(3, deadLetter.getRecordIds().length);
+			// a dead letter stays pending in the outbox
+			assertEquals(0, finished.size());
+		} finally
+		{
+			ERChannel.setDigestBuffer(null);
+			ERChannel.setRetryEngine(null);
+			buffer.stop();
+			engine.stop();
+		}
+	}
+
+	@Test
+	public void testChannelSendsTheDigestWithTheOriginalProcessor()
+	{
+		final Map<String, Object> configuration = configuration(3600, 100);
+		final List<ERCommunicationContext> sentContexts = new ArrayList<ERCommunicationContext>();
+		final ERMessageProcessor messageProcessor = new ERMessageProcessor()
+		{
+			public void setSendingConfiguration(Map<String, Object> sendingInformationsForMedia) { }
+			public Map<String, Object> getSendingConfiguration() { return configuration; }
+			public void sendMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor)
+			{
+				sentContexts.add(context);
+			}
+		};
+		ERChannel.setMediaProvider(new ERMediaProvider()
+		{
+			public List<ERMedia> getMedias(String contextName) { return Arrays.asList(new ERMedia[] { ERDefaultMedia.PLAIN_TEXT_MAIL }); }
+		});
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory()
+		{
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media)
+			{
+				if (!"CONTEXT".equals(context.getName()))
+					throw new IllegalArgumentException("Unknown context: " + context.getName());
+				return messageProcessor;
+			}
+		});
+		ERDigestBuffer buffer = new ERDigestBuffer(new ERChannel.ChannelDigestSender(), 100, 1);
+		ERChannel.setDigestBuffer(buffer);
+		try
+		{
+			ERChannel channel = new ERChannel();
+			for (int i = 0; i < 3; i++)
+				channel.sendMessage(recipient("chuck@domain.com"), context(i), null);
+			assertEquals(0, sentContexts.size());
+			assertEquals(1, buffer.flush());
+			assertEquals(1, sentContexts.size());
+			assertTrue(sentContexts.get(0) instanceof ERDigestContext);
+			assertEquals(Integer.valueOf(3), sentContexts.get(0).getData().get(ERDigestContext.DIGEST_COUNT));
+		} finally
+		{
+			ERChannel.setDigestBuffer(null);
+			buffer.stop();
+		}
+	}
+}
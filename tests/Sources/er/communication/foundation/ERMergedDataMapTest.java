@@ -0,0 +1,83 @@
+package er.communication.foundation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ERMergedDataMapTest
+{
+	private static Map<String, Object> contextData()
+	{
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("content", "important request");
+		data.put(ERAbstractMessageProcessor.FIRST_NAME, "Context first name");
+		return data;
+	}
+
+	@Test
+	public void testOverlayHidesData()
+	{
+		Map<String, Object> data = contextData();
+		ERMergedDataMap map = new ERMergedDataMap(data, new String[] { ERAbstractMessageProcessor.FIRST_NAME, ERAbstractMessageProcessor.LAST_NAME, "code" },
+				new Object[] { "Chuck", null, "A1" });
+		assertEquals("Chuck", map.get(ERAbstractMessageProcessor.FIRST_NAME));
+		assertNull(map.get(ERAbstractMessageProcessor.LAST_NAME));
+		assertTrue(map.containsKey(ERAbstractMessageProcessor.LAST_NAME));
+		assertEquals("important request", map.get("content"));
+		assertFalse(map.containsKey("missing"));
+		assertEquals(4, map.size());
+
+		Map<String, Object> copy = new HashMap<String, Object>(data);
+		copy.put(ERAbstractMessageProcessor.FIRST_NAME, "Chuck");
+		copy.put(ERAbstractMessageProcessor.LAST_NAME, null);
+		copy.put("code", "A1");
+		assertEquals(copy, map);
+		assertEquals(copy, new HashMap<String, Object>(map));
+		// the context data is not modified
+		assertEquals("Context first name", data.get(ERAbstractMessageProcessor.FIRST_NAME));
+	}
+
+	@Test
+	public void testLastOverlayValueWins()
+	{
+		ERMergedDataMap map = new ERMergedDataMap(null, new String[] { "key", "key" }, new Object[] { "first", "second" });
+		assertEquals("second", map.get("key"));
+		assertEquals(1, map.size());
+		assertEquals(1, new HashMap<String, Object>(map).size());
+		assertEquals("second", new HashMap<String, Object>(map).get("key"));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testReadOnly()
+	{
+		ERMergedDataMap.recipientData(contextData(), TestRecipient.INSTANCE).put("key", "value");
+	}
+
+	@Test
+	public void testParseTemplate()
+	{
+		ERAbstractMessageProcessor processor = new ERAbstractMessageProcessor()
+		{
+			@Override
+			protected void sendContent(ERSendContext sendContext) { }
+		};
+		Map<String, Object> mergedData = ERMergedDataMap.recipientData(contextData(), TestRecipient.INSTANCE);
+		assertEquals("Hi Chuck Hill, this is a new important request", processor.parseTemplate("Hi {{firstName}} {{lastName}}, this is a new {{content}}", mergedData));
+	}
+
+	private static class TestRecipient implements ERRecipient
+	{
+		static final ERRecipient INSTANCE = new TestRecipient();
+
+		public String getFirstName() { return "Chuck"; }
+		public String getLastName() { return "Hill"; }
+		public String getLanguage() { return "en"; }
+		public String getIdentifier(ERMedia media) { return "chuck@domain.com"; }
+	}
+}
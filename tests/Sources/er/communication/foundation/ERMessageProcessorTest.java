@@ -3,7 +3,13 @@ package er.communication.foundation;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -21,8 +27,9 @@ public class ERMessageProcessorTest
 
 	private class MessageProcessor extends ERAbstractMessageProcessor
 	{
+		public ERSendContext lastSendContext;
 		@Override
-		protected void sendContent(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor) { }
+		protected void sendContent(ERSendContext sendContext) { lastSendContext = sendContext; }
 	}
 	
 	private class TemplateProviderTest implements ERAbstractMessageProcessor.TemplateProvider
@@ -87,6 +94,109 @@ public class ERMessageProcessorTest
 		assertEquals(content, "Hi Sacha");
 	}
 
+	@Test
+	public void testWriteTextContent()
+	{
+		MessageProcessor p = new MessageProcessor();
+		ERSendContext sendContext = sendContext(null);
+		StringWriter out = new StringWriter();
+		p.writeTextContent(sendContext, "aKey", out);
+		assertEquals("Hi, Chuck Hill!", out.toString());
+		assertEquals("Hi, Chuck Hill!", p.getTextContent(sendContext, "aKey"));
+
+		ERDataProcessor dp = new ERDataProcessor() 
+		{
+			@Override
+			public String processTemplate(String template, Map<String, Object> data) { return "Hi Sacha"; }
+		};
+		out = new StringWriter();
+		p.writeTextContent(sendContext(dp), "aKey", out);
+		assertEquals("Hi Sacha", out.toString());
+	}
+
+	@Test
+	public void testWriteTextContentWithFailingWriter()
+	{
+		Writer failingWriter = new Writer()
+		{
+			@Override
+			public void write(char[] cbuf, int off, int len) throws IOException { throw new IOException("Connection reset"); }
+			@Override
+			public void flush() { }
+			@Override
+			public void close() { }
+		};
+		try
+		{
+			new MessageProcessor().writeTextContent(sendContext(null), "aKey", failingWriter);
+			fail("The failure of the writer must be thrown.");
+		} catch (ERSendException e)
+		{
+			assertTrue(e.isTransient());
+		}
+	}
+
+	@Test
+	public void testTextContentDataSourceRendersWhenWritten() throws IOException
+	{
+		final int[] numberOfCalls = new int[1];
+		ERDataProcessor dp = new ERDataProcessor() 
+		{
+			@Override
+			public String processTemplate(String template, Map<String, Object> data) { numberOfCalls[0]++; return "Hi Sacha \u00e9"; }
+		};
+		ERTemplateDataSource dataSource = new MessageProcessor().getTextContentDataSource(sendContext(dp), "aKey", "text/plain; charset=\"UTF-8\"", "UTF-8");
+		assertEquals(0, numberOfCalls[0]);
+		assertEquals("text/plain; charset=\"UTF-8\"", dataSource.getContentType());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		dataSource.dataHandler().writeTo(out);
+		assertEquals(1, numberOfCalls[0]);
+		assertEquals("Hi Sacha \u00e9", new String(out.toByteArray(), "UTF-8"));
+
+		dataSource = new MessageProcessor().getTextContentDataSource(sendContext(null), "aKey", "text/plain; charset=\"UTF-8\"", "UTF-8");
+		out = new ByteArrayOutputStream();
+		dataSource.dataHandler().writeTo(out);
+		assertEquals("Hi, Chuck Hill!", new String(out.toByteArray(), "UTF-8"));
+		assertEquals("Hi, Chuck Hill!", dataSource.contentString());
+	}
+
+	@Test
+	public void testTextContentDataSourceWithFailingStream()
+	{
+		OutputStream failingStream = new OutputStream()
+		{
+			@Override
+			public void write(int b) throws IOException { throw new IOException("Connection reset"); }
+		};
+		ERTemplateDataSource dataSource = new MessageProcessor().getTextContentDataSource(sendContext(null), "aKey", "text/plain; charset=\"UTF-8\"", "UTF-8");
+		try
+		{
+			dataSource.dataHandler().writeTo(failingStream);
+			fail("The failure of the stream must be thrown.");
+		} catch (IOException e)
+		{
+			assertEquals("Connection reset", e.getMessage());
+		}
+	}
+
+	private ERSendContext sendContext(ERDataProcessor dataProcessor)
+	{
+		ERRecipient recipient = new ERRecipient() {
+			@Override
+			public String getLastName() { return "Hill"; }
+			@Override
+			public String getLanguage() { return "en"; }
+			@Override
+			public String getIdentifier(ERMedia media) { return "yes"; }
+			@Override
+			public String getFirstName() { return "Chuck"; }
+		};
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", new HashMap<String, Object>());
+		Map<String, Object> mergedData = ERMergedDataMap.recipientData(context.getData(), recipient);
+		return new ERSendContext(recipient, context, ERDefaultMedia.PLAIN_TEXT_MAIL, dataProcessor, mergedData, null, new TemplateProviderTest());
+	}
+
 	@Test (expected = IllegalArgumentException.class)
 	public void testNullRecipient()
 	{
@@ -150,7 +260,7 @@ public class ERMessageProcessorTest
 		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", data);
 		p.sendMessage(recipient, context, ERDefaultMedia.PLAIN_TEXT_MAIL, null);
 		
-		Map<String, Object> mergedData = p.getMergedData();
+		Map<String, Object> mergedData = p.lastSendContext.getMergedData();
 		assertEquals(mergedData.get("aKey"), "aValue");
 		assertEquals(mergedData.get(ERAbstractMessageProcessor.FIRST_NAME), "Chuck");
 		assertEquals(mergedData.get(ERAbstractMessageProcessor.LAST_NAME), "Hill");	
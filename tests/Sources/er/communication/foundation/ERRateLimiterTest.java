@@ -0,0 +1,83 @@
+package er.communication.foundation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ERRateLimiterTest
+{
+	@Test
+	public void testBurstThenRate()
+	{
+		ERRateLimiter limiter = new ERRateLimiter("TEST", 50, 5);
+		long start = System.nanoTime();
+		for (int i = 0; i < 15; i++)
+			limiter.acquire();
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		// 5 tokens at once then 10 tokens at 50 per second
+		assertTrue("elapsed: " + elapsed, elapsed >= 150);
+		assertTrue("elapsed: " + elapsed, elapsed < 1000);
+		assertEquals(15, limiter.acquiredCount());
+	}
+
+	@Test
+	public void testTryAcquireOnEmptyBucket()
+	{
+		ERRateLimiter limiter = new ERRateLimiter("TEST", 1, 2);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		assertEquals(0, limiter.waitingCount());
+	}
+
+	@Test
+	public void testContextLimitFromSendingConfiguration()
+	{
+		ERRateLimiterManager manager = new ERRateLimiterManager();
+		Map<String, Object> configuration = new HashMap<String, Object>();
+		configuration.put(ERRateLimiterManager.RATE_LIMIT, Long.valueOf(20));
+		assertNull(manager.limiterForMedia(ERDefaultMedia.PLAIN_TEXT_MAIL));
+		assertNull(manager.limiterForContext("NOT_LIMITED", ERDefaultMedia.PLAIN_TEXT_MAIL, null));
+		ERRateLimiter limiter = manager.limiterForContext("CAMPAIGN", ERDefaultMedia.PLAIN_TEXT_MAIL, configuration);
+		assertNotNull(limiter);
+		assertEquals(20, limiter.getRate(), 0);
+		assertEquals(20, limiter.getBurst(), 0);
+		assertEquals(1, manager.limiters().size());
+
+		manager.setMediaRate(ERDefaultMedia.PLAIN_TEXT_MAIL, 100, 10);
+		assertNotNull(manager.limiterForMedia(ERDefaultMedia.PLAIN_TEXT_MAIL));
+		assertEquals(2, manager.limiters().size());
+		manager.acquire("CAMPAIGN", ERDefaultMedia.PLAIN_TEXT_MAIL, configuration);
+		assertEquals(1, manager.limiterForMedia(ERDefaultMedia.PLAIN_TEXT_MAIL).acquiredCount());
+		assertEquals(1, limiter.acquiredCount());
+	}
+
+	@Test
+	public void testRuntimeLimitsAreKeptAfterClear()
+	{
+		ERRateLimiterManager manager = new ERRateLimiterManager();
+		Map<String, Object> configuration = new HashMap<String, Object>();
+		configuration.put(ERRateLimiterManager.RATE_LIMIT, Long.valueOf(20));
+		manager.setMediaRate(ERDefaultMedia.PLAIN_TEXT_MAIL.getName(), 100, 10);
+		manager.setContextRate("CAMPAIGN", ERDefaultMedia.PLAIN_TEXT_MAIL.getName(), 5, 1);
+		assertEquals(2, manager.getOverrides().length);
+
+		// the reload of MediaContext.json clears the limiters
+		manager.clear();
+		assertEquals(100, manager.limiterForMedia(ERDefaultMedia.PLAIN_TEXT_MAIL).getRate(), 0);
+		assertEquals(5, manager.limiterForContext("CAMPAIGN", ERDefaultMedia.PLAIN_TEXT_MAIL, configuration).getRate(), 0);
+		assertEquals(2, manager.getLimiters().length);
+
+		assertTrue(manager.removeOverride(ERDefaultMedia.PLAIN_TEXT_MAIL.getName() + ".CAMPAIGN"));
+		assertFalse(manager.removeOverride(ERDefaultMedia.PLAIN_TEXT_MAIL.getName() + ".CAMPAIGN"));
+		assertEquals(20, manager.limiterForContext("CAMPAIGN", ERDefaultMedia.PLAIN_TEXT_MAIL, configuration).getRate(), 0);
+		assertEquals(1, manager.getOverrides().length);
+	}
+}
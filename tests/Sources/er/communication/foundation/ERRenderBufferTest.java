@@ -0,0 +1,67 @@
+package er.communication.foundation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class ERRenderBufferTest
+{
+	@Test
+	public void testBufferIsReused()
+	{
+		ERRenderBuffer buffer = ERRenderBuffer.acquire();
+		buffer.write("Hi, ");
+		buffer.append("Chuck").append('!');
+		assertEquals("Hi, Chuck!", buffer.toString());
+		buffer.release();
+
+		ERRenderBuffer reused = ERRenderBuffer.acquire();
+		assertSame(buffer, reused);
+		assertEquals(0, reused.length());
+		reused.release();
+	}
+
+	@Test
+	public void testLargeBufferIsNotKept()
+	{
+		ERRenderBuffer buffer = ERRenderBuffer.acquire();
+		int pooled = ERRenderBuffer.pooledCount();
+		char[] chars = new char[300 * 1024];
+		buffer.write(chars, 0, chars.length);
+		buffer.release();
+		assertEquals(pooled, ERRenderBuffer.pooledCount());
+		ERRenderBuffer other = ERRenderBuffer.acquire();
+		assertNotSame(buffer, other);
+		other.release();
+	}
+
+	@Test
+	public void testBufferAboveDefaultRetainedSizeIsNotKept()
+	{
+		ERRenderBuffer buffer = ERRenderBuffer.acquire();
+		int pooled = ERRenderBuffer.pooledCount();
+		char[] chars = new char[20 * 1024];
+		buffer.write(chars, 0, chars.length);
+		buffer.release();
+		assertEquals(pooled, ERRenderBuffer.pooledCount());
+	}
+
+	@Test
+	public void testWriteTo() throws IOException
+	{
+		ERRenderBuffer buffer = ERRenderBuffer.acquire();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+			expected.append(i).append(' ');
+		buffer.write(expected.toString());
+		StringWriter out = new StringWriter();
+		buffer.writeTo(out);
+		assertEquals(expected.toString(), out.toString());
+		buffer.release();
+	}
+}
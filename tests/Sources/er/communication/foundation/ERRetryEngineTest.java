@@ -0,0 +1,140 @@
+package er.communication.foundation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ERRetryEngineTest
+{
+	private static final ERRecipient recipient = new ERRecipient()
+	{
+		public String getLastName() { return "Hill"; }
+		public String getLanguage() { return "en"; }
+		public String getIdentifier(ERMedia media) { return "anID"; }
+		public String getFirstName() { return "Chuck"; }
+	};
+
+	/**
+	 * Fails a number of times then delivers the message.
+	 */
+	private static class FailingSender implements ERRetryEngine.Sender
+	{
+		private final AtomicInteger failures;
+		private final boolean transientFailure;
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private final AtomicInteger sendCount = new AtomicInteger();
+
+		FailingSender(int failures, boolean transientFailure)
+		{
+			this.failures = new AtomicInteger(failures);
+			this.transientFailure = transientFailure;
+		}
+
+		public void send(ERFailedMessage message)
+		{
+			sendCount.incrementAndGet();
+			if (failures.getAndDecrement() > 0)
+				throw new ERSendException("Server down", null, transientFailure);
+		}
+
+		public void finished(ERFailedMessage message)
+		{
+			finished.countDown();
+		}
+	}
+
+	private static ERFailedMessage message()
+	{
+		return new ERFailedMessage(recipient, new ERCommunicationContext("CONTEXT", null), ERDefaultMedia.PLAIN_TEXT_MAIL, null, -1);
+	}
+
+	@Test
+	public void testTransientFailureIsRetried() throws InterruptedException
+	{
+		FailingSender sender = new FailingSender(1, true);
+		ERRetryEngine engine = new ERRetryEngine(sender, 3, 1, 10, 1, 10);
+		ERFailedMessage message = message();
+		assertTrue(engine.failed(message, new ERSendException("Server down", null, true)));
+		assertTrue(sender.finished.await(5, TimeUnit.SECONDS));
+		assertEquals(2, sender.sendCount.get());
+		assertEquals(2, message.getAttempts());
+		assertEquals(1, engine.deliveredCount());
+		assertEquals(0, engine.deadLetterStore().count());
+		engine.stop();
+	}
+
+	@Test
+	public void testMessageGoesToDeadLetterStore() throws InterruptedException
+	{
+		FailingSender sender = new FailingSender(10, true);
+		ERRetryEngine engine = new ERRetryEngine(sender, 3, 1, 10, 1, 10);
+		ERFailedMessage message = message();
+		engine.failed(message, new ERSendException("Server down", null, true));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (engine.deadLetterStore().count() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(3, message.getAttempts());
+		assertEquals(1, engine.deadLetterStore().count(ERDefaultMedia.PLAIN_TEXT_MAIL));
+		assertTrue(engine.deadLetterStore().deadLetters(ERDefaultMedia.PLAIN_TEXT_MAIL).get(0) == message);
+		// the dead letter stays pending in the outbox journal
+		assertEquals(1, sender.finished.getCount());
+		engine.stop();
+	}
+
+	@Test
+	public void testPermanentFailureIsNotRetried()
+	{
+		FailingSender sender = new FailingSender(0, false);
+		ERRetryEngine engine = new ERRetryEngine(sender, 3, 1, 10, 1, 10);
+		assertFalse(engine.failed(message(), new ERSendException("Invalid address", null, false)));
+		assertEquals(0, sender.sendCount.get());
+		assertEquals(1, sender.finished.getCount());
+		assertEquals(1, engine.deadLetterStore().count());
+		engine.stop();
+	}
+
+	@Test
+	public void testDroppedDeadLetterIsFinished()
+	{
+		FailingSender sender = new FailingSender(0, false);
+		ERRetryEngine engine = new ERRetryEngine(sender, 3, 1, 10, 1, 1);
+		engine.failed(message(), new ERSendException("Invalid address", null, false));
+		assertEquals(1, sender.finished.getCount());
+		engine.failed(message(), new ERSendException("Invalid address", null, false));
+		assertEquals(0, sender.finished.getCount());
+		assertEquals(1, engine.deadLetterStore().count());
+		assertEquals(1, engine.deadLetterStore().droppedCount());
+		engine.stop();
+	}
+
+	@Test
+	public void testFailureAfterStopIsLeftPending()
+	{
+		FailingSender sender = new FailingSender(0, false);
+		ERRetryEngine engine = new ERRetryEngine(sender, 3, 1, 10, 1, 10);
+		engine.stop();
+		assertFalse(engine.failed(message(), new ERSendException("Invalid address", null, false)));
+		assertEquals(1, sender.finished.getCount());
+		assertEquals(0, engine.deadLetterStore().count());
+	}
+
+	@Test
+	public void testDelayIsExponentialWithJitter()
+	{
+		ERRetryEngine engine = new ERRetryEngine(new FailingSender(0, true), 3, 1000, 60000, 1, 10);
+		for (int i = 0; i < 100; i++)
+		{
+			long delay = engine.delayForAttempt(3);
+			assertTrue("delay: " + delay, delay >= 2000 && delay <= 4000);
+			delay = engine.delayForAttempt(20);
+			assertTrue("delay: " + delay, delay >= 30000 && delay <= 60000);
+		}
+		engine.stop();
+	}
+}
@@ -0,0 +1,407 @@
+package er.communication.foundation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import er.communication.outbox.EROutboxJournal;
+
+public class ERSchedulerTest
+{
+	private static final List<ERMedia> MEDIAS = Arrays.asList(new ERMedia[] { ERDefaultMedia.PLAIN_TEXT_MAIL });
+	private static final TimeZone PARIS = TimeZone.getTimeZone("Europe/Paris");
+
+	private File directory;
+
+	private static ERRecipient recipient(final String firstName, final TimeZone timeZone)
+	{
+		return new ERTimeZoneRecipient()
+		{
+			public String getLastName() { return "Hill"; }
+			public String getLanguage() { return "en"; }
+			public String getIdentifier(ERMedia media) { return firstName + "@domain.com"; }
+			public String getFirstName() { return firstName; }
+			public TimeZone getTimeZone() { return timeZone; }
+		};
+	}
+
+	private static long time(TimeZone timeZone, int year, int month, int day, int hour, int minute)
+	{
+		Calendar calendar = Calendar.getInstance(timeZone);
+		calendar.clear();
+		calendar.set(year, month, day, hour, minute);
+		return calendar.getTimeInMillis();
+	}
+
+	private static class RecordingSender implements ERScheduler.Sender
+	{
+		private final List<ERScheduler.ScheduledSend> sends = Collections.synchronizedList(new ArrayList<ERScheduler.ScheduledSend>());
+
+		public void send(ERScheduler.ScheduledSend scheduledSend)
+		{
+			sends.add(scheduledSend);
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = File.createTempFile("schedule", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testMessageIsSentAtItsTime()
+	{
+		RecordingSender sender = new RecordingSender();
+		ERScheduler scheduler = new ERScheduler(sender, 3600 * 1000L, 256, 4, null);
+		long now = System.currentTimeMillis();
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		scheduler.schedule(recipient("Chuck", null), context, MEDIAS, null, now + 2 * 3600 * 1000L);
+		ERScheduler.ScheduledSend cancelled = scheduler.schedule(recipient("Bruce", null), context, MEDIAS, null, now + 2 * 3600 * 1000L);
+		assertEquals(2, scheduler.pendingCount());
+		assertTrue(cancelled.cancel());
+		assertFalse(cancelled.cancel());
+
+		assertEquals(0, scheduler.advance(now + 3600 * 1000L));
+		assertEquals(1, scheduler.advance(now + 3 * 3600 * 1000L));
+		assertEquals(1, sender.sends.size());
+		assertEquals("Chuck", sender.sends.get(0).getRecipient().getFirstName());
+		assertEquals(0, scheduler.pendingCount());
+		scheduler.stop();
+	}
+
+	@Test
+	public void testPendingMessagesAreScheduledAgainAfterRestart() throws IOException
+	{
+		long now = System.currentTimeMillis();
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		ERScheduler scheduler = new ERScheduler(new RecordingSender(), 3600 * 1000L, 256, 4, new EROutboxJournal(directory, 64 * 1024, false, 0.5));
+		scheduler.schedule(recipient("Chuck", null), context, MEDIAS, null, now - 1000);
+		scheduler.schedule(recipient("Bruce", null), context, MEDIAS, null, now + 24 * 3600 * 1000L);
+		scheduler.schedule(recipient("Steve", null), context, MEDIAS, null, now + 24 * 3600 * 1000L).cancel();
+		assertEquals(1, scheduler.advance(now));
+		scheduler.stop();
+
+		RecordingSender sender = new RecordingSender();
+		scheduler = new ERScheduler(sender, 3600 * 1000L, 256, 4, new EROutboxJournal(directory, 64 * 1024, false, 0.5));
+		assertEquals(1, scheduler.pendingCount());
+		assertEquals(0, scheduler.advance(now + 23 * 3600 * 1000L));
+		assertEquals(1, scheduler.advance(now + 25 * 3600 * 1000L));
+		ERScheduler.ScheduledSend scheduledSend = sender.sends.get(0);
+		assertEquals("Bruce", scheduledSend.getRecipient().getFirstName());
+		assertEquals("Bruce@domain.com", scheduledSend.getRecipient().getIdentifier(ERDefaultMedia.PLAIN_TEXT_MAIL));
+		assertEquals("CONTEXT", scheduledSend.getContext().getName());
+		assertEquals(now + 24 * 3600 * 1000L, scheduledSend.getSendTime());
+		assertEquals(0, scheduler.getJournal().pendingCount());
+		scheduler.stop();
+	}
+
+	public static class UpperCaseDataProcessor implements ERDataProcessor
+	{
+		public String processTemplate(String template, Map<String, Object> data)
+		{
+			return template.toUpperCase();
+		}
+	}
+
+	@Test
+	public void testTimeZoneAndDataProcessorAreKeptAfterRestart() throws IOException
+	{
+		long now = System.currentTimeMillis();
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		ERScheduler scheduler = new ERScheduler(new RecordingSender(), 3600 * 1000L, 256, 4, new EROutboxJournal(directory, 64 * 1024, false, 0.5));
+		scheduler.schedule(recipient("Chuck", PARIS), context, MEDIAS, new UpperCaseDataProcessor(), now + 3600 * 1000L);
+		scheduler.stop();
+
+		RecordingSender sender = new RecordingSender();
+		scheduler = new ERScheduler(sender, 3600 * 1000L, 256, 4, new EROutboxJournal(directory, 64 * 1024, false, 0.5));
+		assertEquals(1, scheduler.advance(now + 2 * 3600 * 1000L));
+		ERScheduler.ScheduledSend scheduledSend = sender.sends.get(0);
+		assertTrue(scheduledSend.getRecipient() instanceof ERTimeZoneRecipient);
+		assertEquals(PARIS, ((ERTimeZoneRecipient) scheduledSend.getRecipient()).getTimeZone());
+		assertEquals(PARIS, ERQuietHours.timeZoneForRecipient(scheduledSend.getRecipient()));
+		assertTrue(scheduledSend.getDataProcessor() instanceof UpperCaseDataProcessor);
+		scheduler.stop();
+	}
+
+	@Test
+	public void testPendingMessageKeepsLittleMemory() throws IOException
+	{
+		long now = System.currentTimeMillis();
+		RecordingSender sender = new RecordingSender();
+		ERScheduler scheduler = new ERScheduler(sender, 3600 * 1000L, 256, 4, new EROutboxJournal(directory, 4 * 1024 * 1024, false, 0.5));
+		int count = 2000;
+		char[] content = new char[4000];
+		Arrays.fill(content, 'a');
+		long before = usedMemory();
+		for (int i = 0; i < count; i++)
+		{
+			// each message has its own data, as many campaigns do
+			Map<String, Object> data = new HashMap<String, Object>();
+			data.put("content", new String(content) + i);
+			scheduler.schedule(recipient("Chuck" + i, PARIS), new ERCommunicationContext("CONTEXT", data), MEDIAS, null, now + 3600 * 1000L);
+		}
+		long perMessage = (usedMemory() - before) / count;
+		assertTrue("memory kept per message: " + perMessage, perMessage < 1024);
+		assertEquals(count, scheduler.pendingCount());
+
+		assertEquals(count, scheduler.advance(now + 2 * 3600 * 1000L));
+		assertEquals("Chuck12", sender.sends.get(12).getRecipient().getFirstName());
+		assertEquals(new String(content) + 12, sender.sends.get(12).getContext().getData().get("content"));
+		assertEquals(0, scheduler.getJournal().pendingCount());
+		scheduler.stop();
+	}
+
+	private static long usedMemory()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++)
+		{
+			System.gc();
+			try
+			{
+				Thread.sleep(20);
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	@Test
+	public void testMessageWhichCantBeHandedOverIsSentAgain() throws IOException
+	{
+		final List<String> sends = Collections.synchronizedList(new ArrayList<String>());
+		ERScheduler.Sender sender = new ERScheduler.Sender()
+		{
+			public void send(ERScheduler.ScheduledSend scheduledSend)
+			{
+				sends.add(scheduledSend.getRecipient().getFirstName());
+				if (sends.size() == 1)
+					throw new IllegalStateException("The executor is shut down.");
+			}
+		};
+		long now = System.currentTimeMillis();
+		ERScheduler scheduler = new ERScheduler(sender, 1000L, 256, 4, new EROutboxJournal(directory, 64 * 1024, false, 0.5), 60 * 1000L);
+		try
+		{
+			scheduler.schedule(recipient("Chuck", null), new ERCommunicationContext("CONTEXT", null), MEDIAS, null, now - 1000);
+			assertEquals(0, scheduler.advance(now));
+			assertEquals(1, scheduler.pendingCount());
+			assertEquals(1, scheduler.getJournal().pendingCount());
+			assertEquals(0, scheduler.advance(now + 30 * 1000L));
+			assertEquals(1, scheduler.advance(now + 62 * 1000L));
+			assertEquals(Arrays.asList("Chuck", "Chuck"), sends);
+			assertEquals(0, scheduler.pendingCount());
+			assertEquals(0, scheduler.getJournal().pendingCount());
+			assertEquals(1, scheduler.sentCount());
+		} finally
+		{
+			scheduler.stop();
+		}
+	}
+
+	@Test
+	public void testQuietHoursAreCheckedWhenTheMessageIsSent() throws IOException
+	{
+		long now = System.currentTimeMillis();
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm");
+		format.setTimeZone(PARIS);
+		ERQuietHours quietHours = ERQuietHours.parse(format.format(new Date(now - 3600 * 1000L)) + "-" + format.format(new Date(now + 3600 * 1000L)));
+		ERMediaProvider previousMediaProvider = previousMediaProvider();
+		ERChannel.setMediaProvider(new QuietMediaProvider(quietHours));
+		ERScheduler scheduler = new ERScheduler(new ERChannel.ChannelScheduledSender(), 1000L, 256, 4, new EROutboxJournal(directory, 64 * 1024, false, 0.5));
+		try
+		{
+			// as a message read from the journal, whose time has come during the quiet hours
+			ERScheduler.ScheduledSend scheduledSend = scheduler.schedule(recipient("Chuck", PARIS), new ERCommunicationContext("CONTEXT", null), MEDIAS, null, now - 1000);
+			assertEquals(0, scheduler.advance(now));
+			assertEquals(1, scheduler.pendingCount());
+			assertEquals(1, scheduler.getJournal().pendingCount());
+			assertTrue(scheduledSend.getSendTime() > now);
+			assertEquals(quietHours.nextAllowedTime(now, PARIS), scheduledSend.getSendTime());
+			assertTrue(scheduledSend.cancel());
+			assertEquals(0, scheduler.getJournal().pendingCount());
+		} finally
+		{
+			ERChannel.setMediaProvider(previousMediaProvider);
+			scheduler.stop();
+		}
+	}
+
+	@Test
+	public void testMessageIsAcknowledgedOnceDeliveredWithoutOutbox() throws Exception
+	{
+		final CountDownLatch delivering = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ERMediaProvider previousMediaProvider = previousMediaProvider();
+		ERMessageProcessorFactory previousMessageProcessorFactory;
+		try
+		{
+			previousMessageProcessorFactory = ERChannel.getMessageProcessorFactory();
+		} catch (IllegalStateException e)
+		{
+			previousMessageProcessorFactory = null;
+		}
+		EROutboxJournal previousOutbox = ERChannel.getOutbox();
+		ERChannel.setMediaProvider(new QuietMediaProvider(null));
+		ERChannel.setOutbox(null);
+		ERChannel.setMessageProcessorFactory(new ERMessageProcessorFactory()
+		{
+			private final ERMessageProcessor messageProcessor = new ERMessageProcessor()
+			{
+				public void setSendingConfiguration(Map<String, Object> sendingInformationsForMedia) { }
+				public Map<String, Object> getSendingConfiguration() { return null; }
+				public void sendMessage(ERRecipient recipient, ERCommunicationContext context, ERMedia media, ERDataProcessor dataProcessor)
+				{
+					delivering.countDown();
+					try
+					{
+						release.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			public ERMessageProcessor newMessageProcessor(ERCommunicationContext context, ERMedia media) { return messageProcessor; }
+		});
+		final EROutboxJournal journal = new EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		ERScheduler scheduler = new ERScheduler(new ERChannel.ChannelScheduledSender(), 1000L, 256, 4, journal);
+		try
+		{
+			long now = System.currentTimeMillis();
+			ERScheduler.ScheduledSend scheduledSend = scheduler.schedule(recipient("Chuck", null), new ERCommunicationContext("CONTEXT", null), MEDIAS, null, now - 1000);
+			assertEquals(1, scheduler.advance(now));
+			assertTrue(delivering.await(10, TimeUnit.SECONDS));
+			assertEquals(1, journal.pendingCount());
+			release.countDown();
+			for (int i = 0; i < 1000 && journal.pendingCount() > 0; i++)
+				Thread.sleep(10);
+			assertEquals(0, journal.pendingCount());
+			assertFalse(scheduledSend.cancel());
+		} finally
+		{
+			release.countDown();
+			scheduler.stop();
+			ERChannel.setMediaProvider(previousMediaProvider);
+			ERChannel.setMessageProcessorFactory(previousMessageProcessorFactory);
+			ERChannel.setOutbox(previousOutbox);
+		}
+	}
+
+	@Test
+	public void testQuietHours()
+	{
+		ERQuietHours quietHours = ERQuietHours.parse("22:00-08:30");
+		assertEquals("22:00-08:30", quietHours.toString());
+		long evening = time(PARIS, 2024, Calendar.MARCH, 4, 23, 15);
+		assertTrue(quietHours.isQuiet(evening, PARIS));
+		assertEquals(time(PARIS, 2024, Calendar.MARCH, 5, 8, 30), quietHours.nextAllowedTime(evening, PARIS));
+		long earlyMorning = time(PARIS, 2024, Calendar.MARCH, 5, 6, 0);
+		assertEquals(time(PARIS, 2024, Calendar.MARCH, 5, 8, 30), quietHours.nextAllowedTime(earlyMorning, PARIS));
+		long noon = time(PARIS, 2024, Calendar.MARCH, 5, 12, 0);
+		assertFalse(quietHours.isQuiet(noon, PARIS));
+		assertEquals(noon, quietHours.nextAllowedTime(noon, PARIS));
+		// 23:15 in Paris is the afternoon in New York
+		assertFalse(quietHours.isQuiet(evening, TimeZone.getTimeZone("America/New_York")));
+
+		ERQuietHours lunch = ERQuietHours.parse("12:00-14:00");
+		assertTrue(lunch.isQuiet(noon, PARIS));
+		assertEquals(time(PARIS, 2024, Calendar.MARCH, 5, 14, 0), lunch.nextAllowedTime(noon, PARIS));
+		assertFalse(lunch.isQuiet(evening, PARIS));
+		try
+		{
+			ERQuietHours.parse("22h-8h");
+			assertTrue("Malformed quiet hours must be rejected.", false);
+		} catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void testSendAtHoldsMessageDuringQuietHours()
+	{
+		final ERQuietHours quietHours = ERQuietHours.parse("22:00-08:00");
+		ERChannel.setMediaProvider(new QuietMediaProvider(quietHours));
+		RecordingSender sender = new RecordingSender();
+		ERScheduler scheduler = new ERScheduler(sender, 3600 * 1000L, 256, 4, null);
+		ERChannel.setScheduler(scheduler);
+		try
+		{
+			ERChannel channel = new ERChannel();
+			long evening = time(PARIS, 2024, Calendar.MARCH, 4, 23, 15);
+			ERScheduler.ScheduledSend held = channel.sendAt(recipient("Chuck", PARIS), new ERCommunicationContext("CONTEXT", null), null, evening);
+			assertEquals(time(PARIS, 2024, Calendar.MARCH, 5, 8, 0), held.getSendTime());
+			ERScheduler.ScheduledSend notHeld = channel.sendAt(recipient("Bruce", TimeZone.getTimeZone("America/New_York")), new ERCommunicationContext("CONTEXT", null), null, evening);
+			assertEquals(evening, notHeld.getSendTime());
+
+			ERChannel.setMediaProvider(new QuietMediaProvider(null));
+			long before = System.currentTimeMillis();
+			ERScheduler.ScheduledSend later = channel.sendAfter(recipient("Steve", PARIS), new ERCommunicationContext("CONTEXT", null), null, 2, TimeUnit.HOURS);
+			assertTrue(later.getSendTime() >= before + 2 * 3600 * 1000L);
+			assertNull(later.getDataProcessor());
+			assertEquals(3, scheduler.pendingCount());
+		} finally
+		{
+			ERChannel.setScheduler(null);
+			scheduler.stop();
+		}
+	}
+
+	private static ERMediaProvider previousMediaProvider()
+	{
+		try
+		{
+			return ERChannel.getMediaProvider();
+		} catch (IllegalStateException e)
+		{
+			return null;
+		}
+	}
+
+	private static class QuietMediaProvider implements ERMediaProvider, ERQuietHoursProvider
+	{
+		private final ERQuietHours quietHours;
+
+		QuietMediaProvider(ERQuietHours quietHours)
+		{
+			this.quietHours = quietHours;
+		}
+
+		public List<ERMedia> getMedias(String contextName) { return MEDIAS; }
+		public ERQuietHours getQuietHours(String contextName) { return quietHours; }
+	}
+}
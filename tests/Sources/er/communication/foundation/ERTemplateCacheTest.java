@@ -0,0 +1,57 @@
+package er.communication.foundation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.samskivert.mustache.Template;
+
+public class ERTemplateCacheTest
+{
+	@Test
+	public void testTemplateIsCompiledOnce()
+	{
+		ERTemplateCache cache = new ERTemplateCache(10);
+		Template t1 = cache.templateForSource("Hi, {{firstName}}!");
+		Template t2 = cache.templateForSource("Hi, {{firstName}}!");
+		assertSame(t1, t2);
+		assertEquals(1, cache.missCount());
+		assertEquals(1, cache.hitCount());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted()
+	{
+		ERTemplateCache cache = new ERTemplateCache(2);
+		Template t1 = cache.templateForSource("one");
+		cache.templateForSource("two");
+		// "one" is used again so "two" becomes the eldest entry
+		cache.templateForSource("one");
+		cache.templateForSource("three");
+		assertEquals(2, cache.size());
+		assertSame(t1, cache.templateForSource("one"));
+		assertEquals(3, cache.missCount());
+		cache.templateForSource("two");
+		assertEquals(4, cache.missCount());
+	}
+
+	@Test
+	public void testClear()
+	{
+		ERTemplateCache cache = new ERTemplateCache(2);
+		Template t1 = cache.templateForSource("one");
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.hitCount());
+		assertNotSame(t1, cache.templateForSource("one"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidSize()
+	{
+		new ERTemplateCache(0);
+	}
+}
@@ -0,0 +1,82 @@
+package er.communication.foundation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ERTimerWheelTest
+{
+	@Test
+	public void testTimeoutsExpireInOrderAndNeverEarly()
+	{
+		ERTimerWheel<Long> wheel = new ERTimerWheel<Long>(10, 8, 3, 0);
+		Random random = new Random(42);
+		List<Long> deadlines = new ArrayList<Long>();
+		for (int i = 0; i < 1000; i++)
+		{
+			// up to twice the range of the wheels
+			long deadline = random.nextInt(10 * 8 * 8 * 8 * 2);
+			deadlines.add(Long.valueOf(deadline));
+			wheel.schedule(Long.valueOf(deadline), deadline);
+		}
+		assertEquals(1000, wheel.size());
+
+		List<Long> expired = new ArrayList<Long>();
+		for (long now = 0; now <= 10 * 8 * 8 * 8 * 2 + 10; now += 7)
+		{
+			for (Long deadline : wheel.advance(now))
+			{
+				assertTrue("expired early: " + deadline + " at " + now, deadline.longValue() <= now);
+				assertTrue("expired late: " + deadline + " at " + now, deadline.longValue() > now - 7 - 10);
+				expired.add(deadline);
+			}
+		}
+		assertEquals(0, wheel.size());
+		assertEquals(1000, expired.size());
+		// in the order of their ticks
+		for (int i = 1; i < expired.size(); i++)
+			assertTrue((expired.get(i - 1).longValue() + 9) / 10 <= (expired.get(i).longValue() + 9) / 10);
+	}
+
+	@Test
+	public void testCancel()
+	{
+		ERTimerWheel<String> wheel = new ERTimerWheel<String>(1000, 256, 4, 0);
+		ERTimerWheel.Timeout<String> first = wheel.schedule("first", 5000);
+		ERTimerWheel.Timeout<String> second = wheel.schedule("second", 3600 * 1000);
+		assertTrue(first.isPending());
+		assertTrue(wheel.cancel(first));
+		assertFalse(wheel.cancel(first));
+		assertEquals(1, wheel.size());
+		assertEquals(0, wheel.advance(3599 * 1000).size());
+		assertEquals(Arrays.asList("second"), wheel.advance(3600 * 1000));
+		assertFalse(second.isPending());
+		assertFalse(wheel.cancel(second));
+	}
+
+	@Test
+	public void testPastDeadlineExpiresAtNextAdvance()
+	{
+		ERTimerWheel<String> wheel = new ERTimerWheel<String>(1000, 256, 4, 10000);
+		wheel.schedule("past", 5000);
+		wheel.schedule("now", 10000);
+		assertEquals(Arrays.asList("past", "now"), wheel.advance(10000));
+	}
+
+	@Test
+	public void testDeadlineBeyondTheWheels()
+	{
+		ERTimerWheel<String> wheel = new ERTimerWheel<String>(1, 4, 2, 0);
+		wheel.schedule("far", 100);
+		for (long now = 0; now < 100; now++)
+			assertEquals(0, wheel.advance(now).size());
+		assertEquals(Arrays.asList("far"), wheel.advance(100));
+	}
+}
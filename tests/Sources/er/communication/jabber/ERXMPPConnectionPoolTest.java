@@ -0,0 +1,279 @@
+package er.communication.jabber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.MessageListener;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.junit.Test;
+
+/**
+ * We test the pool against a stand-in connection which records the packets instead of sending them to a server.
+ * 
+ * @author Philippe Rabier
+ *
+ */
+public class ERXMPPConnectionPoolTest 
+{
+	private static class StandInConnection extends Connection
+	{
+		public volatile boolean connected = true;
+		public List<Packet> packets = new ArrayList<Packet>();
+
+		public StandInConnection() { super(new ConnectionConfiguration("localhost", 5222)); }
+		@Override
+		public String getUser() { return "test@localhost"; }
+		@Override
+		public String getConnectionID() { return "1"; }
+		@Override
+		public boolean isConnected() { return connected; }
+		@Override
+		public boolean isAuthenticated() { return true; }
+		@Override
+		public boolean isAnonymous() { return false; }
+		@Override
+		public boolean isSecureConnection() { return false; }
+		@Override
+		public boolean isUsingCompression() { return false; }
+		@Override
+		public void connect() throws XMPPException { connected = true; }
+		@Override
+		public void login(String username, String password, String resource) throws XMPPException { }
+		@Override
+		public void loginAnonymously() throws XMPPException { }
+		@Override
+		public synchronized void sendPacket(Packet packet) 
+		{ 
+			if (!connected)
+				throw new IllegalStateException("Not connected to server.");
+			packets.add(packet); 
+		}
+		@Override
+		public Roster getRoster() { return null; }
+		@Override
+		public void disconnect(Presence unavailablePresence) { connected = false; }
+	}
+
+	private static class StandInConnectionFactory implements ERXMPPConnectionPool.ConnectionFactory
+	{
+		public List<StandInConnection> connections = new ArrayList<StandInConnection>();
+		public int failuresToSimulate;
+
+		@Override
+		public Connection newConnection() throws XMPPException 
+		{
+			if (failuresToSimulate > 0)
+			{
+				failuresToSimulate--;
+				throw new XMPPException("Server unavailable");
+			}
+			StandInConnection connection = new StandInConnection();
+			connections.add(connection);
+			return connection;
+		}
+	}
+
+	@Test
+	public void testWarmUp() 
+	{
+		StandInConnectionFactory factory = new StandInConnectionFactory();
+		ERXMPPConnectionPool pool = new ERXMPPConnectionPool(factory, 3, 1, 10, 1, 1);
+		assertEquals(3, pool.warmUp());
+		assertEquals(3, factory.connections.size());
+		assertEquals(3, pool.healthyConnectionCount());
+	}
+
+	@Test
+	public void testInFlightLimit() throws XMPPException 
+	{
+		ERXMPPConnectionPool pool = new ERXMPPConnectionPool(new StandInConnectionFactory(), 1, 1, 10, 1, 1);
+		ERXMPPConnectionPool.PooledConnection pooledConnection = pool.borrow();
+		assertEquals(1, pooledConnection.inFlight());
+		try
+		{
+			pool.borrow();
+			fail("The connection has reached its in flight limit.");
+		} catch (XMPPException e) { }
+		pool.release(pooledConnection);
+		assertSame(pooledConnection, pool.borrow());
+	}
+
+	@Test
+	public void testReconnectWithBackoff() throws Exception 
+	{
+		StandInConnectionFactory factory = new StandInConnectionFactory();
+		factory.failuresToSimulate = 1;
+		ERXMPPConnectionPool pool = new ERXMPPConnectionPool(factory, 1, 1, 0, 50, 50);
+		assertEquals(0, pool.warmUp());
+		// The next attempt is not allowed before the backoff delay.
+		try
+		{
+			pool.borrow();
+			fail("The connection is waiting for the backoff delay.");
+		} catch (XMPPException e) { }
+		assertTrue(factory.connections.isEmpty());
+		Thread.sleep(60);
+		ERXMPPConnectionPool.PooledConnection pooledConnection = pool.borrow();
+		assertTrue(pooledConnection.isHealthy());
+	}
+
+	@Test
+	public void testConnectionDropIsHealed() throws XMPPException 
+	{
+		StandInConnectionFactory factory = new StandInConnectionFactory();
+		ERXMPPConnectionPool pool = new ERXMPPConnectionPool(factory, 1, 1, 10, 1, 1);
+		pool.warmUp();
+		StandInConnection first = factory.connections.get(0);
+		first.connected = false;
+		assertFalse(pool.borrow().connection() == null);
+		assertEquals(2, factory.connections.size());
+		assertNotSame(first, factory.connections.get(1));
+	}
+
+	@Test
+	public void testInvalidatedConnectionIsClosedWhenGivenBack() throws XMPPException 
+	{
+		StandInConnectionFactory factory = new StandInConnectionFactory();
+		ERXMPPConnectionPool pool = new ERXMPPConnectionPool(factory, 1, 2, 10, 1, 1);
+		ERXMPPConnectionPool.PooledConnection first = pool.borrow();
+		ERXMPPConnectionPool.PooledConnection second = pool.borrow();
+		pool.invalidate(first);
+		pool.release(first);
+		// the other sender still uses the connection
+		assertTrue(factory.connections.get(0).connected);
+		assertTrue(second.chatForParticipant("operator@localhost", null) != null);
+		try
+		{
+			pool.borrow();
+			fail("An invalidated connection isn't lent.");
+		} catch (XMPPException e) { }
+		pool.release(second);
+		assertFalse(factory.connections.get(0).connected);
+		assertTrue(pool.borrow().isHealthy());
+		assertEquals(2, factory.connections.size());
+	}
+
+	@Test
+	public void testBorrowWaitsForAnyConnection() throws Exception 
+	{
+		ERXMPPConnectionPool pool = new ERXMPPConnectionPool(new StandInConnectionFactory(), 2, 1, 5000, 1000, 1000);
+		pool.borrow();
+		final ERXMPPConnectionPool.PooledConnection second = pool.borrow();
+		final ERXMPPConnectionPool aPool = pool;
+		Thread releaser = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(50);
+				} catch (InterruptedException e) { }
+				aPool.release(second);
+			}
+		};
+		long start = System.currentTimeMillis();
+		releaser.start();
+		// the borrower starts with the first connection and gets the second one as soon as it's given back
+		assertSame(second, pool.borrow());
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		releaser.join();
+	}
+
+	@Test
+	public void testSetConnectionReconnects() 
+	{
+		StandInConnection connection = new StandInConnection();
+		ERSimpleMessageProcessor.setConnection(connection);
+		ERSimpleMessageProcessor processor = new ERSimpleMessageProcessor();
+		processor.sendChatMessage("operator@localhost", "Server is down");
+		connection.connected = false;
+		processor.sendChatMessage("operator@localhost", "Server is up");
+		assertTrue(connection.connected);
+		assertEquals("Server is up", ((Message) connection.packets.get(connection.packets.size() - 1)).getBody());
+	}
+
+	@Test
+	public void testSendChatMessage() 
+	{
+		StandInConnectionFactory factory = new StandInConnectionFactory();
+		ERSimpleMessageProcessor.setConnectionPool(new ERXMPPConnectionPool(factory, 1, 1, 10, 1, 1));
+		new ERSimpleMessageProcessor().sendChatMessage("operator@localhost", "Server is down");
+		List<Packet> packets = factory.connections.get(0).packets;
+		Message message = (Message) packets.get(packets.size() - 1);
+		assertEquals("operator@localhost", message.getTo());
+		assertEquals("Server is down", message.getBody());
+		assertEquals(0, ERSimpleMessageProcessor.connectionPool().inFlightCount());
+	}
+
+	@Test
+	public void testChatIsReused() throws XMPPException 
+	{
+		StandInConnectionFactory factory = new StandInConnectionFactory();
+		ERXMPPConnectionPool pool = new ERXMPPConnectionPool(factory, 1, 1, 10, 1, 1);
+		ERSimpleMessageProcessor.setConnectionPool(pool);
+		ERSimpleMessageProcessor processor = new ERSimpleMessageProcessor();
+		processor.sendChatMessage("operator@localhost", "Server is down");
+		processor.sendChatMessage("operator@localhost", "Server is up");
+		List<Packet> packets = factory.connections.get(0).packets;
+		Message first = (Message) packets.get(packets.size() - 2);
+		Message second = (Message) packets.get(packets.size() - 1);
+		assertEquals(first.getThread(), second.getThread());
+		assertEquals(1, pool.borrow().chatCount());
+	}
+
+	@Test
+	public void testChatOfClosedConnection() throws XMPPException 
+	{
+		StandInConnectionFactory factory = new StandInConnectionFactory();
+		ERXMPPConnectionPool pool = new ERXMPPConnectionPool(factory, 1, 1, 10, 1, 1);
+		ERXMPPConnectionPool.PooledConnection pooledConnection = pool.borrow();
+		pool.invalidate(pooledConnection);
+		pool.release(pooledConnection);
+		try
+		{
+			pooledConnection.chatForParticipant("operator@localhost", null);
+			fail("The connection has been closed.");
+		} catch (XMPPException e) { }
+
+		// the chats of a previous connection are not reused
+		ERChatCache cache = new ERChatCache(10, 0);
+		Chat chat = cache.chatForParticipant(new StandInConnection().getChatManager(), "operator@localhost", null);
+		assertNotSame(chat, cache.chatForParticipant(new StandInConnection().getChatManager(), "operator@localhost", null));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testIdleChatIsEvicted() throws InterruptedException 
+	{
+		StandInConnection connection = new StandInConnection();
+		MessageListener listener = new MessageListener() 
+		{
+			@Override
+			public void processMessage(Chat chat, Message message) { }
+		};
+		ERChatCache cache = new ERChatCache(2, 20);
+		Chat chat = cache.chatForParticipant(connection.getChatManager(), "operator@localhost", listener);
+		assertSame(chat, cache.chatForParticipant(connection.getChatManager(), "operator@localhost", listener));
+		Thread.sleep(30);
+		assertNotSame(chat, cache.chatForParticipant(connection.getChatManager(), "operator@localhost", listener));
+		assertTrue(chat.getListeners().isEmpty());
+		// The least recently used chat is evicted when the cache is full.
+		cache.chatForParticipant(connection.getChatManager(), "admin@localhost", listener);
+		cache.chatForParticipant(connection.getChatManager(), "root@localhost", listener);
+		assertEquals(2, cache.size());
+	}
+}
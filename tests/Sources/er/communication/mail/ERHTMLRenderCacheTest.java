@@ -0,0 +1,81 @@
+package er.communication.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import er.communication.foundation.ERCommunicationContext;
+
+public class ERHTMLRenderCacheTest
+{
+	private static final String[] KEYS = new String[] { "firstName", "lastName" };
+
+	/**
+	 * Renders the data like a component displaying the values with WOStrings.
+	 */
+	private static String render(Map<String, Object> data)
+	{
+		return "<p>Hello " + data.get("firstName") + " " + data.get("lastName") + ",</p><p>" + data.get("offer") + "</p>";
+	}
+
+	@Test
+	public void testMergeEscapesValues()
+	{
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("offer", "50% off");
+		ERHTMLRenderCache.RenderedTemplate template = new ERHTMLRenderCache.RenderedTemplate(render(ERHTMLRenderCache.dataWithTokens(data, KEYS)), KEYS);
+
+		data.put("firstName", "Tom & Jerry");
+		data.put("lastName", "<b>");
+		assertEquals("<p>Hello Tom &amp; Jerry &lt;b&gt;,</p><p>50% off</p>", template.merge(data));
+
+		data.put("firstName", null);
+		data.put("lastName", "Smith");
+		assertEquals("<p>Hello  Smith,</p><p>50% off</p>", template.merge(data));
+	}
+
+	@Test
+	public void testTemplatesAreKeyedByContext()
+	{
+		ERHTMLRenderCache cache = new ERHTMLRenderCache(2);
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("offer", "50% off");
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", data);
+		ERCommunicationContext sameData = new ERCommunicationContext("CONTEXT", data);
+		ERHTMLRenderCache.RenderedTemplate template = new ERHTMLRenderCache.RenderedTemplate(render(ERHTMLRenderCache.dataWithTokens(data, KEYS)), KEYS);
+		assertFalse(cache.isVerified("Newsletter", "en", KEYS));
+		cache.setTemplateFor("Newsletter", "en", KEYS, context, template);
+		assertTrue(cache.isVerified("Newsletter", "en", KEYS));
+		assertSame(template, cache.templateFor("Newsletter", "en", KEYS, context));
+		// the data of another context may have changed, even if it's the same map
+		assertNull(cache.templateFor("Newsletter", "en", KEYS, sameData));
+		assertNull(cache.templateFor("Newsletter", "fr", KEYS, context));
+		assertNull(cache.templateFor("Newsletter", "en", new String[] { "firstName", "lastName", "code" }, context));
+		assertEquals(1, cache.hitCount());
+
+		cache.setTemplateFor("Newsletter", "fr", KEYS, context, template);
+		cache.setTemplateFor("Newsletter", "de", KEYS, context, template);
+		assertEquals(2, cache.size());
+		assertNull(cache.templateFor("Newsletter", "en", KEYS, context));
+	}
+
+	@Test
+	public void testComponentNotRenderableOnceIsMarkedForAllContexts()
+	{
+		ERHTMLRenderCache cache = new ERHTMLRenderCache(10);
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		cache.setTemplateFor("Newsletter", "en", KEYS, context, ERHTMLRenderCache.NOT_RENDERABLE);
+		assertTrue(cache.isVerified("Newsletter", "en", KEYS));
+		assertSame(ERHTMLRenderCache.NOT_RENDERABLE, cache.templateFor("Newsletter", "en", KEYS, context));
+		assertSame(ERHTMLRenderCache.NOT_RENDERABLE, cache.templateFor("Newsletter", "en", KEYS, new ERCommunicationContext("CONTEXT", null)));
+		assertNull(cache.templateFor("Newsletter", "fr", KEYS, context));
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,167 @@
+package er.communication.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+/**
+ * We test the engine against a stand-in SMTP server: the transports record the messages instead of sending them.
+ *
+ * @author Philippe Rabier
+ *
+ */
+public class ERMailDeliveryEngineTest
+{
+	private static final Session session = Session.getInstance(new Properties());
+
+	private static class StandInSMTPServer implements ERMailDeliveryEngine.TransportFactory
+	{
+		public List<Message> messages = new ArrayList<Message>();
+		public volatile int connections;
+		public volatile boolean down;
+		private int open;
+		public volatile int maxOpen;
+
+		@Override
+		public Transport newTransport()
+		{
+			return new Transport(session, null)
+			{
+				@Override
+				protected boolean protocolConnect(String host, int port, String user, String password) throws MessagingException
+				{
+					if (down)
+						throw new MessagingException("Connection refused");
+					connections++;
+					synchronized (StandInSMTPServer.this) {
+						open++;
+						maxOpen = Math.max(maxOpen, open);
+					}
+					return true;
+				}
+
+				@Override
+				public synchronized void close() throws MessagingException
+				{
+					if (isConnected())
+					{
+						synchronized (StandInSMTPServer.this) {
+							open--;
+						}
+					}
+					super.close();
+				}
+
+				@Override
+				public void sendMessage(Message message, Address[] addresses) throws MessagingException
+				{
+					synchronized (messages) {
+						messages.add(message);
+					}
+				}
+			};
+		}
+	}
+
+	@Test
+	public void testMessagesAreBatchedPerSession() throws Exception
+	{
+		StandInSMTPServer server = new StandInSMTPServer();
+		ERMailDeliveryEngine engine = new ERMailDeliveryEngine(server, 1, 4, 100, 1000);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < 10; i++)
+			futures.add(engine.deliver(new MimeMessage(session)));
+		for (Future<Void> future : futures)
+			future.get(5, TimeUnit.SECONDS);
+		assertEquals(10, server.messages.size());
+		assertEquals(10, engine.sentCount());
+		// 4 + 4 + 2 messages
+		assertEquals(3, server.connections);
+		assertEquals(3, engine.sessionCount());
+		engine.stop(1000);
+	}
+
+	@Test
+	public void testConnectionsAreLimited() throws Exception
+	{
+		StandInSMTPServer server = new StandInSMTPServer();
+		ERMailDeliveryEngine engine = new ERMailDeliveryEngine(server, 4, 5, 100, 50);
+		Semaphore connectionLimit = new Semaphore(1);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < 20; i++)
+			futures.add(engine.deliver(new MimeMessage(session), connectionLimit));
+		for (Future<Void> future : futures)
+			future.get(5, TimeUnit.SECONDS);
+		assertEquals(20, server.messages.size());
+		assertEquals(1, server.maxOpen);
+		engine.stop(1000);
+		// the connections give back their permits when they are closed
+		assertEquals(1, connectionLimit.availablePermits());
+	}
+
+	@Test
+	public void testFailureIsReported() throws Exception
+	{
+		StandInSMTPServer server = new StandInSMTPServer();
+		server.down = true;
+		ERMailDeliveryEngine engine = new ERMailDeliveryEngine(server, 2, 10, 100, 1000);
+		try
+		{
+			engine.deliver(new MimeMessage(session)).get(5, TimeUnit.SECONDS);
+			fail("The server is down.");
+		} catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof MessagingException);
+		}
+		assertEquals(1, engine.failedCount());
+		server.down = false;
+		engine.deliver(new MimeMessage(session)).get(5, TimeUnit.SECONDS);
+		assertEquals(1, server.messages.size());
+		engine.stop(1000);
+	}
+
+	@Test
+	public void testStopSendsQueuedMessages() throws Exception
+	{
+		StandInSMTPServer server = new StandInSMTPServer();
+		ERMailDeliveryEngine engine = new ERMailDeliveryEngine(server, 2, 10, 100, 1000);
+		for (int i = 0; i < 20; i++)
+			engine.deliver(new MimeMessage(session));
+		engine.stop(5000);
+		assertEquals(20, server.messages.size());
+	}
+
+	@Test
+	public void testDeliverAfterStopFails() throws Exception
+	{
+		ERMailDeliveryEngine engine = new ERMailDeliveryEngine(new StandInSMTPServer(), 1, 10, 100, 1000);
+		engine.stop(1000);
+		Future<Void> future = engine.deliver(new MimeMessage(session));
+		assertTrue(future.isDone());
+		try
+		{
+			future.get(1, TimeUnit.SECONDS);
+			fail("The engine is stopped.");
+		} catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof MessagingException);
+		}
+	}
+}
@@ -1,17 +1,30 @@
 package er.communication.mail;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.HashMap;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
 
 import org.junit.Test;
 
+import com.sun.mail.smtp.SMTPAddressFailedException;
+
 import er.communication.foundation.ERAbstractMessageProcessor;
 import er.communication.foundation.ERCommunicationContext;
 import er.communication.foundation.ERDefaultMedia;
 import er.communication.foundation.ERMedia;
 import er.communication.foundation.ERRecipient;
+import er.communication.foundation.ERSendContext;
+import er.communication.foundation.ERSendException;
 
 public class ERMailProcessorTest 
 {
@@ -22,7 +35,7 @@ public class ERMailProcessorTest
 		public boolean isSent = false;
 		
 		@Override
-		public void sendMail(ERRecipient recipient, ERMedia media, String subject, String textContent) 
+		public void sendMail(ERSendContext sendContext, String subject, String textContent) 
 		{
 			isSent = true;
 			
@@ -62,6 +75,67 @@ public class ERMailProcessorTest
 		assertTrue(mp.isSent);
 	}
 	
+	/**
+	 * The goal is to ensure a mail is not considered sent before the delivery engine has sent it.
+	 */
+	@Test
+	public void testFailureOfDeliveryEngineIsThrown() 
+	{
+		Properties previous = System.getProperties();
+		Properties p = new Properties(previous);
+		p.setProperty("er.communication.mail.ERMailDeliveryEngine.enabled", "true");
+		p.setProperty("er.communication.foundation.mailFrom", "noreply@domain.com");
+		System.setProperties(p);
+		ERMailDeliveryEngine engine = new ERMailDeliveryEngine(new ERMailDeliveryEngine.TransportFactory() 
+		{
+			@Override
+			public Transport newTransport() throws MessagingException { throw new MessagingException("Connection refused"); }
+		}, 1, 10, 10, 1000);
+		ERMailDeliveryEngine.setSharedInstance(engine);
+		try
+		{
+			ERRecipient recipient = new ERRecipient() {
+				@Override
+				public String getLastName() { return "Hill"; }		
+				@Override
+				public String getLanguage() { return "en"; }	
+				@Override
+				public String getIdentifier(ERMedia media) { return "chuck@domain.com"; }	
+				@Override
+				public String getFirstName() { return "Chuck"; }
+			};
+			ERSendContext sendContext = new ERSendContext(recipient, new ERCommunicationContext("CONTEXT", null), ERDefaultMedia.PLAIN_TEXT_MAIL, null, new HashMap<String, Object>(), null);
+			new ERPlainTextMailProcessor().sendMail(sendContext, "subject", "content");
+			fail("The SMTP server is down.");
+		} catch (ERSendException e)
+		{
+			assertTrue(e.isTransient());
+			assertEquals(1, engine.failedCount());
+		} finally
+		{
+			ERMailDeliveryEngine.setSharedInstance(null);
+			engine.stop(1000);
+			System.setProperties(previous);
+		}
+	}
+
+	@Test
+	public void testSMTPFailuresAreClassifiedByReturnCode() throws AddressException
+	{
+		MailProcessor mp = new MailProcessor();
+		assertTrue(mp.sendException(new MessagingException("Connection refused")).isTransient());
+		assertFalse(mp.sendException(new AddressException("Illegal address")).isTransient());
+		assertFalse(mp.sendException(new SendFailedException("No recipient addresses")).isTransient());
+
+		SendFailedException mailboxFull = new SendFailedException("Invalid Addresses");
+		mailboxFull.setNextException(new SMTPAddressFailedException(new InternetAddress("chuck@domain.com"), "RCPT TO:<chuck@domain.com>", 452, "452 Mailbox full"));
+		assertTrue(mp.sendException(mailboxFull).isTransient());
+
+		SendFailedException unknownUser = new SendFailedException("Invalid Addresses");
+		unknownUser.setNextException(new SMTPAddressFailedException(new InternetAddress("bruce@domain.com"), "RCPT TO:<bruce@domain.com>", 550, "550 No such user"));
+		assertFalse(mp.sendException(unknownUser).isTransient());
+	}
+
 	@Test
 	public void testGetSubject()
 	{
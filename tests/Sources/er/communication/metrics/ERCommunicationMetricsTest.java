@@ -0,0 +1,116 @@
+package er.communication.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import er.communication.foundation.ERAbstractMessageProcessor;
+import er.communication.foundation.ERCommunicationContext;
+import er.communication.foundation.ERDefaultMedia;
+import er.communication.foundation.ERMedia;
+import er.communication.foundation.ERRecipient;
+import er.communication.foundation.ERSendContext;
+
+public class ERCommunicationMetricsTest
+{
+	private static ERRecipient recipient(final String email)
+	{
+		return new ERRecipient()
+		{
+			public String getLastName() { return "Hill"; }
+			public String getLanguage() { return "en"; }
+			public String getIdentifier(ERMedia media) { return email; }
+			public String getFirstName() { return "Chuck"; }
+		};
+	}
+
+	@Test
+	public void testStripedCounterFromSeveralThreads() throws InterruptedException
+	{
+		final ERStripedCounter counter = new ERStripedCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					for (int j = 0; j < 10000; j++)
+						counter.increment();
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(80000, counter.sum());
+		counter.reset();
+		assertEquals(0, counter.sum());
+	}
+
+	@Test
+	public void testHistogramPercentiles()
+	{
+		ERLatencyHistogram histogram = new ERLatencyHistogram();
+		for (int i = 0; i < 99; i++)
+			histogram.record(3000); // 3 microseconds
+		histogram.record(5000000); // 5 milliseconds
+		assertEquals(100, histogram.count());
+		assertEquals(0.004, histogram.percentileMillis(50), 0);
+		assertEquals(0.004, histogram.percentileMillis(99), 0);
+		assertEquals(8.192, histogram.percentileMillis(100), 0);
+		assertEquals((99 * 3000 + 5000000) / 100 / 1000000.0, histogram.meanMillis(), 0.000001);
+	}
+
+	@Test
+	public void testMessageProcessorRecordsMetrics() throws Exception
+	{
+		MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+		ERCommunicationMetrics metrics = new ERCommunicationMetrics(mbeanServer);
+		ERCommunicationMetrics.setSharedInstance(metrics);
+		try
+		{
+			ERAbstractMessageProcessor processor = new ERAbstractMessageProcessor()
+			{
+				@Override
+				protected void sendContent(ERSendContext sendContext)
+				{
+					if (sendContext.getIdentifier().startsWith("fail"))
+						throw new IllegalStateException("failure");
+				}
+			};
+			ERCommunicationContext context = new ERCommunicationContext("METRICS", null);
+			processor.sendMessage(recipient("chuck@domain.com"), context, ERDefaultMedia.PLAIN_TEXT_MAIL, null);
+			processor.sendMessage(recipient(null), context, ERDefaultMedia.PLAIN_TEXT_MAIL, null);
+			try
+			{
+				processor.sendMessage(recipient("fail@domain.com"), context, ERDefaultMedia.PLAIN_TEXT_MAIL, null);
+			} catch (IllegalStateException e)
+			{
+				// expected
+			}
+
+			ERMetrics contextMetrics = metrics.metricsFor("METRICS", ERDefaultMedia.PLAIN_TEXT_MAIL);
+			assertSame(contextMetrics, metrics.metricsFor("METRICS", ERDefaultMedia.PLAIN_TEXT_MAIL));
+			assertEquals(1, contextMetrics.getSentCount());
+			assertEquals(1, contextMetrics.getSkippedCount());
+			assertEquals(1, contextMetrics.getFailedCount());
+			assertEquals(1, contextMetrics.deliverLatency().count());
+
+			ObjectName name = new ObjectName("er.communication:type=ERMetrics,context=METRICS,media=" + ERDefaultMedia.PLAIN_TEXT_MAIL.getName());
+			assertTrue(mbeanServer.isRegistered(name));
+			assertEquals(Long.valueOf(1), mbeanServer.getAttribute(name, "SentCount"));
+			assertTrue(mbeanServer.isRegistered(new ObjectName("er.communication:type=ERCommunicationMetrics")));
+			assertEquals(Long.valueOf(1), mbeanServer.getAttribute(new ObjectName("er.communication:type=ERCommunicationMetrics"), "SkippedCount"));
+		} finally
+		{
+			ERCommunicationMetrics.setSharedInstance(null);
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package er.communication.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import er.communication.foundation.ERCommunicationContext;
+import er.communication.foundation.ERDefaultMedia;
+import er.communication.foundation.ERMedia;
+import er.communication.foundation.ERRecipient;
+
+public class EROutboxJournalTest
+{
+	private static final List<ERMedia> MEDIAS = Arrays.asList(new ERMedia[] { ERDefaultMedia.PLAIN_TEXT_MAIL, ERDefaultMedia.JABBER });
+
+	private File directory;
+
+	private static ERRecipient recipient(final String firstName)
+	{
+		return new ERRecipient()
+		{
+			public String getLastName() { return "Hill"; }
+			public String getLanguage() { return "en"; }
+			public String getIdentifier(ERMedia media) { return media == ERDefaultMedia.JABBER ? null : firstName + "@domain.com"; }
+			public String getFirstName() { return firstName; }
+		};
+	}
+
+	private static int readInt(RandomAccessFile file, int position) throws IOException
+	{
+		file.seek(position);
+		return file.readInt();
+	}
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = File.createTempFile("outbox", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testPendingRecordsAreReadAfterReopening() throws IOException
+	{
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("count", Integer.valueOf(3));
+		data.put("date", new Date(1000L));
+		data.put("items", Arrays.asList("a", "b"));
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", data);
+
+		EROutboxJournal journal = new EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		long id1 = journal.append(context, recipient("Chuck"), MEDIAS);
+		long id2 = journal.append(context, recipient("Bruce"), MEDIAS);
+		journal.acknowledge(id1, ERDefaultMedia.PLAIN_TEXT_MAIL);
+		journal.acknowledge(id2, ERDefaultMedia.PLAIN_TEXT_MAIL);
+		journal.acknowledge(id2, ERDefaultMedia.JABBER);
+		assertEquals(1, journal.pendingCount());
+		journal.close();
+
+		journal = new EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		List<EROutboxRecord> records = journal.pendingRecords();
+		assertEquals(1, records.size());
+		EROutboxRecord record = records.get(0);
+		assertEquals(id1, record.getId());
+		assertEquals("CONTEXT", record.getContextName());
+		assertEquals(data, record.getData());
+		assertEquals(Arrays.asList(ERDefaultMedia.JABBER.getName()), record.getMediaNames());
+		assertEquals("Chuck", record.getRecipient().getFirstName());
+		assertEquals("Chuck@domain.com", record.getRecipient().getIdentifier(ERDefaultMedia.PLAIN_TEXT_MAIL));
+		assertNull(record.getRecipient().getIdentifier(ERDefaultMedia.JABBER));
+		assertTrue(journal.append(context, recipient("Bruce"), MEDIAS) > id2);
+		journal.close();
+	}
+
+	@Test
+	public void testSendTimeOfScheduledRecord() throws IOException
+	{
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		EROutboxJournal journal = new EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		journal.append(context, recipient("Chuck"), MEDIAS);
+		journal.append(context, recipient("Bruce"), MEDIAS, 1234567890123L);
+		journal.close();
+
+		journal = new EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		List<EROutboxRecord> records = journal.pendingRecords();
+		assertEquals(0, records.get(0).getSendTime());
+		assertEquals(1234567890123L, records.get(1).getSendTime());
+		assertEquals("Bruce", records.get(1).getRecipient().getFirstName());
+		journal.close();
+	}
+
+	@Test
+	public void testEnqueueTimeAndTimeToLiveAreKept() throws IOException
+	{
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		context.setTimeToLive(60000);
+		long before = System.currentTimeMillis();
+		EROutboxJournal journal = new EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		journal.append(context, recipient("Chuck"), MEDIAS, 1234567890123L);
+		journal.close();
+
+		journal = new EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		EROutboxRecord record = journal.pendingRecords().get(0);
+		assertEquals(1234567890123L, record.getSendTime());
+		assertTrue(record.getEnqueueTime() >= before && record.getEnqueueTime() <= System.currentTimeMillis());
+		assertEquals(60000, record.getTimeToLive());
+		assertEquals(60000, record.newContext().getTimeToLive());
+		journal.close();
+	}
+
+	@Test
+	public void testPartialRecordIsIgnored() throws IOException
+	{
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		EROutboxJournal journal = new EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		journal.append(context, recipient("Chuck"), MEDIAS);
+		journal.close();
+
+		// simulates a record partially written after the first one
+		File segment = directory.listFiles(new java.io.FilenameFilter()
+		{
+			public boolean accept(File dir, String name) { return name.endsWith(".outbox"); }
+		})[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		int position = 8;
+		int length;
+		while ((length = readInt(file, position)) != 0)
+			position += 4 + length;
+		file.seek(position);
+		file.writeInt(200);
+		file.writeByte(1);
+		file.writeLong(99);
+		file.close();
+
+		journal = new EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		assertEquals(1, journal.pendingCount());
+		journal.append(context, recipient("Bruce"), MEDIAS);
+		journal.close();
+		journal = new EROutboxJournal(directory, 64 * 1024, false, 0.5);
+		assertEquals(2, journal.pendingCount());
+		journal.close();
+	}
+
+	@Test
+	public void testSegmentsAreCompacted() throws IOException
+	{
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		EROutboxJournal journal = new EROutboxJournal(directory, 4 * 1024, false, 0.5);
+		List<Long> kept = new ArrayList<Long>();
+		for (int i = 0; i < 1000; i++)
+		{
+			long id = journal.append(context, recipient("Chuck" + i), MEDIAS);
+			if (i % 100 == 0)
+				kept.add(Long.valueOf(id));
+			else
+			{
+				journal.acknowledge(id, ERDefaultMedia.PLAIN_TEXT_MAIL);
+				journal.acknowledge(id, ERDefaultMedia.JABBER);
+			}
+		}
+		assertEquals(10, journal.pendingCount());
+		assertTrue("segments: " + journal.segmentCount(), journal.segmentCount() <= 3);
+		journal.close();
+
+		journal = new EROutboxJournal(directory, 4 * 1024, false, 0.5);
+		List<Long> ids = new ArrayList<Long>();
+		for (EROutboxRecord record : journal.pendingRecords())
+			ids.add(Long.valueOf(record.getId()));
+		assertEquals(kept, ids);
+		journal.close();
+	}
+
+	@Test
+	public void testLongPendingRecordsDontStopCompaction() throws IOException
+	{
+		ERCommunicationContext context = new ERCommunicationContext("CONTEXT", null);
+		EROutboxJournal journal = new EROutboxJournal(directory, 4 * 1024, false, 0.5);
+		// the first segment only contains records which stay pending
+		List<Long> kept = new ArrayList<Long>();
+		while (journal.segmentCount() == 1)
+			kept.add(Long.valueOf(journal.append(context, recipient("Scheduled" + kept.size()), MEDIAS)));
+		for (int i = 0; i < 1000; i++)
+		{
+			long id = journal.append(context, recipient("Chuck" + i), MEDIAS);
+			journal.acknowledge(id, ERDefaultMedia.PLAIN_TEXT_MAIL);
+			journal.acknowledge(id, ERDefaultMedia.JABBER);
+		}
+		assertTrue("segments: " + journal.segmentCount(), journal.segmentCount() <= 4);
+		List<Long> ids = new ArrayList<Long>();
+		for (EROutboxRecord record : journal.pendingRecords())
+			ids.add(Long.valueOf(record.getId()));
+		assertEquals(kept, ids);
+		journal.close();
+
+		journal = new EROutboxJournal(directory, 4 * 1024, false, 0.5);
+		ids.clear();
+		for (EROutboxRecord record : journal.pendingRecords())
+		{
+			ids.add(Long.valueOf(record.getId()));
+			assertTrue(record.getRecipient().getFirstName().startsWith("Scheduled"));
+		}
+		assertEquals(kept, ids);
+		journal.close();
+	}
+
+	@Test
+	public void testRecordLargerThanSegmentIsRejected() throws IOException
+	{
+		Map<String, Object> data = new HashMap<String, Object>();
+		char[] text = new char[8 * 1024];
+		Arrays.fill(text, 'a');
+		data.put("text", new String(text));
+		EROutboxJournal journal = new EROutboxJournal(directory, 4 * 1024, false, 0.5);
+		try
+		{
+			journal.append(new ERCommunicationContext("CONTEXT", data), recipient("Chuck"), MEDIAS);
+			assertTrue("A record larger than a segment must be rejected.", false);
+		} catch (IOException e)
+		{
+			// expected
+		}
+		assertEquals(0, journal.pendingCount());
+		journal.append(new ERCommunicationContext("CONTEXT", null), recipient("Chuck"), MEDIAS);
+		assertEquals(1, journal.pendingRecords().size());
+		journal.close();
+	}
+}
@@ -4,16 +4,46 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import er.communication.foundation.ERCachingTemplateProviderTest;
+import er.communication.foundation.ERChannelExecutorTest;
 import er.communication.foundation.ERChannelTest;
+import er.communication.foundation.ERDigestBufferTest;
+import er.communication.foundation.ERMergedDataMapTest;
 import er.communication.foundation.ERMessageProcessorTest;
+import er.communication.foundation.ERRateLimiterTest;
+import er.communication.foundation.ERRenderBufferTest;
+import er.communication.foundation.ERRetryEngineTest;
+import er.communication.foundation.ERSchedulerTest;
+import er.communication.foundation.ERTemplateCacheTest;
+import er.communication.foundation.ERTimerWheelTest;
+import er.communication.jabber.ERXMPPConnectionPoolTest;
+import er.communication.mail.ERHTMLRenderCacheTest;
+import er.communication.mail.ERMailDeliveryEngineTest;
 import er.communication.mail.ERMailProcessorTest;
+import er.communication.metrics.ERCommunicationMetricsTest;
+import er.communication.outbox.EROutboxJournalTest;
 import er.communication.util.ERCommunicationFrameworkPrincipalTest;
 
 @RunWith(Suite.class)
 @SuiteClasses({
 	ERChannelTest.class,
+	ERChannelExecutorTest.class,
+	ERCachingTemplateProviderTest.class,
+	ERDigestBufferTest.class,
+	ERMergedDataMapTest.class,
 	ERMessageProcessorTest.class,
+	ERRateLimiterTest.class,
+	ERRenderBufferTest.class,
+	ERRetryEngineTest.class,
+	ERSchedulerTest.class,
+	ERTemplateCacheTest.class,
+	ERTimerWheelTest.class,
+	ERXMPPConnectionPoolTest.class,
 	ERMailProcessorTest.class,
+	ERMailDeliveryEngineTest.class,
+	EROutboxJournalTest.class,
+	ERHTMLRenderCacheTest.class,
+	ERCommunicationMetricsTest.class,
 	ERCommunicationFrameworkPrincipalTest.class
 	})
 
@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,7 +16,10 @@ import org.junit.Test;
 
 import er.communication.foundation.ERCommunicationContext;
 import er.communication.foundation.ERDefaultMedia;
+import er.communication.foundation.ERMedia;
 import er.communication.foundation.ERMessageProcessor;
+import er.communication.foundation.ERPriority;
+import er.communication.foundation.ERSendingConfiguration;
 import er.communication.mail.ERPlainTextMailProcessor;
 import er.communication.util.ERCommunicationFrameworkPrincipal;
 import er.extensions.foundation.ERXFileUtilities;
@@ -106,6 +110,8 @@ public class ERCommunicationFrameworkPrincipalTest {
 		
 		ERCommunicationFrameworkPrincipal si = ERCommunicationFrameworkPrincipal.sharedInstance();
 		Map<String, Object> mediaContext = si.parseDescription(mediaContextContent);
+		// context2 is malformed on purpose, see testSetMediaContextWithMalformedContext
+		mediaContext.remove("context2");
 		si.setMediaContext(mediaContext);
 		ERCommunicationContext context = new ERCommunicationContext("context1", null);
 		ERMessageProcessor mp = si.newMessageProcessor(context, ERDefaultMedia.PLAIN_TEXT_MAIL);
@@ -114,4 +120,192 @@ public class ERCommunicationFrameworkPrincipalTest {
 		Map<String, Object> configuration = mp.getSendingConfiguration();
 		assertEquals(configuration.get("mailTextKey"), "mailTextValue");
 	}
+
+	@Test (expected=IllegalStateException.class)
+	public void testSetMediaContextWithMalformedContext() throws IOException 
+	{
+		URL url = this.getClass().getResource("MediaContext.json");
+		File jsonFile = new File(url.getFile());
+		String mediaContextContent = ERXFileUtilities.stringFromFile(jsonFile);
+
+		Properties p = new Properties(System.getProperties());
+		p.setProperty("er.communication.util.ERCommunicationFrameworkPrincipal.communicationServiceToLaunch", "true");
+		System.setProperties(p);
+		
+		ERCommunicationFrameworkPrincipal si = ERCommunicationFrameworkPrincipal.sharedInstance();
+		// context2 has no Medias key and must be rejected when the dispatch plans are built.
+		si.setMediaContext(si.parseDescription(mediaContextContent));
+	}
+
+	@Test
+	public void testDispatchPlan() throws IOException 
+	{
+		URL url = this.getClass().getResource("MediaContext.json");
+		File jsonFile = new File(url.getFile());
+		String mediaContextContent = ERXFileUtilities.stringFromFile(jsonFile);
+
+		Properties p = new Properties(System.getProperties());
+		p.setProperty("er.communication.util.ERCommunicationFrameworkPrincipal.communicationServiceToLaunch", "true");
+		System.setProperties(p);
+		
+		ERCommunicationFrameworkPrincipal si = ERCommunicationFrameworkPrincipal.sharedInstance();
+		Map<String, Object> mediaContext = si.parseDescription(mediaContextContent);
+		mediaContext.remove("context2");
+		si.setMediaContext(mediaContext);
+		List<ERMedia> medias = si.getMedias("context1");
+		assertEquals(medias, Arrays.asList(ERDefaultMedia.PLAIN_TEXT_MAIL, ERDefaultMedia.HTML_MAIL));
+		// The same list is returned at each call.
+		assertSame(medias, si.getMedias("context1"));
+		assertEquals(si.getDispatchPlan("context1").getSendingConfiguration(ERDefaultMedia.HTML_MAIL).get("component"), "MyComponent");
+		// The message processor is created once and shared.
+		ERCommunicationContext context = new ERCommunicationContext("context1", null);
+		assertSame(si.newMessageProcessor(context, ERDefaultMedia.HTML_MAIL), si.newMessageProcessor(context, ERDefaultMedia.HTML_MAIL));
+	}
+
+	@Test
+	public void testPriorityAndTimeToLive() 
+	{
+		Properties p = new Properties(System.getProperties());
+		p.setProperty("er.communication.util.ERCommunicationFrameworkPrincipal.communicationServiceToLaunch", "true");
+		System.setProperties(p);
+		
+		ERCommunicationFrameworkPrincipal si = ERCommunicationFrameworkPrincipal.sharedInstance();
+		si.setMediaContext(si.parseDescription("{ \"reset\": { \"Medias\": [\"PLAIN_TEXT_MAIL\"], \"Priority\": \"TRANSACTIONAL\" },"
+				+ " \"newsletter\": { \"Medias\": [\"PLAIN_TEXT_MAIL\"], \"Priority\": \"BULK\", \"TTL\": 3600 },"
+				+ " \"other\": { \"Medias\": [\"PLAIN_TEXT_MAIL\"] } }"));
+		assertEquals(ERPriority.TRANSACTIONAL, si.getPriority("reset"));
+		assertEquals(0, si.getTimeToLive("reset"));
+		assertEquals(ERPriority.BULK, si.getPriority("newsletter"));
+		assertEquals(3600 * 1000L, si.getTimeToLive("newsletter"));
+		assertEquals(ERPriority.NORMAL, si.getPriority("other"));
+		try
+		{
+			si.setMediaContext(si.parseDescription("{ \"reset\": { \"Medias\": [\"PLAIN_TEXT_MAIL\"], \"Priority\": \"URGENT\" } }"));
+			fail("An unknown priority must be rejected.");
+		} catch (IllegalStateException e)
+		{
+			assertEquals(ERPriority.TRANSACTIONAL, si.getPriority("reset"));
+		}
+	}
+
+	@Test
+	public void testQuietHours() 
+	{
+		Properties p = new Properties(System.getProperties());
+		p.setProperty("er.communication.util.ERCommunicationFrameworkPrincipal.communicationServiceToLaunch", "true");
+		System.setProperties(p);
+		
+		ERCommunicationFrameworkPrincipal si = ERCommunicationFrameworkPrincipal.sharedInstance();
+		si.setMediaContext(si.parseDescription("{ \"newsletter\": { \"Medias\": [\"PLAIN_TEXT_MAIL\"], \"QuietHours\": \"22:00-08:30\" },"
+				+ " \"reset\": { \"Medias\": [\"PLAIN_TEXT_MAIL\"] } }"));
+		assertEquals("22:00-08:30", si.getQuietHours("newsletter").toString());
+		assertNull(si.getQuietHours("reset"));
+		try
+		{
+			si.setMediaContext(si.parseDescription("{ \"newsletter\": { \"Medias\": [\"PLAIN_TEXT_MAIL\"], \"QuietHours\": \"late\" } }"));
+			fail("Malformed quiet hours must be rejected.");
+		} catch (IllegalStateException e)
+		{
+			assertEquals("22:00-08:30", si.getQuietHours("newsletter").toString());
+		}
+	}
+
+	@Test
+	public void testSendingConfiguration() 
+	{
+		Properties p = new Properties(System.getProperties());
+		p.setProperty("er.communication.util.ERCommunicationFrameworkPrincipal.communicationServiceToLaunch", "true");
+		System.setProperties(p);
+		
+		ERCommunicationFrameworkPrincipal si = ERCommunicationFrameworkPrincipal.sharedInstance();
+		si.setMediaContext(si.parseDescription("{ \"newsletter\": { \"Medias\": [\"HTML_MAIL\"],"
+				+ " \"HTML_MAIL\": { \"component\": \"Newsletter\", \"renderOnce\": true, \"rateLimit\": \"20\", \"digestWindow\": 1.5, \"footer\": \"none\" } } }"));
+		ERSendingConfiguration configuration = si.getDispatchPlan("newsletter").getSendingConfiguration(ERDefaultMedia.HTML_MAIL);
+		assertEquals("Newsletter", configuration.getComponentName());
+		assertTrue(configuration.isRenderOnce());
+		assertEquals(20, configuration.getRateLimit(), 0);
+		assertEquals(1500, configuration.getDigestWindow());
+		assertEquals(0, configuration.getDigestMaxMessages());
+		// the other keys are read as a map by the message processors
+		assertEquals("none", configuration.get("footer"));
+		assertSame(configuration, si.newMessageProcessor(new ERCommunicationContext("newsletter", null), ERDefaultMedia.HTML_MAIL).getSendingConfiguration());
+		try
+		{
+			si.setMediaContext(si.parseDescription("{ \"newsletter\": { \"Medias\": [\"HTML_MAIL\"], \"HTML_MAIL\": { \"rateLimit\": \"fast\" } } }"));
+			fail("A malformed sending configuration must be rejected.");
+		} catch (IllegalStateException e)
+		{
+			assertEquals("Newsletter", si.getDispatchPlan("newsletter").getSendingConfiguration(ERDefaultMedia.HTML_MAIL).getComponentName());
+		}
+	}
+
+	@Test
+	public void testReloadMediaContext() 
+	{
+		Properties p = new Properties(System.getProperties());
+		p.setProperty("er.communication.util.ERCommunicationFrameworkPrincipal.communicationServiceToLaunch", "true");
+		System.setProperties(p);
+
+		final List<String> contents = new ArrayList<String>();
+		ERCommunicationFrameworkPrincipal si = new ERCommunicationFrameworkPrincipal()
+		{
+			@Override
+			protected List<MediaContextFile> readMediaContextFiles() 
+			{
+				List<MediaContextFile> files = new ArrayList<MediaContextFile>();
+				for (String content : contents)
+					files.add(new MediaContextFile("Framework" + files.size(), content));
+				return files;
+			}
+		};
+		contents.add("{ \"context1\": { \"Medias\": [\"PLAIN_TEXT_MAIL\"] } }");
+		assertTrue(si.reloadMediaContext());
+		assertEquals(1, si.getMediaContextSnapshot().getVersion());
+		assertEquals(Arrays.asList(ERDefaultMedia.PLAIN_TEXT_MAIL), si.getMedias("context1"));
+		// Nothing has changed
+		assertFalse(si.reloadMediaContext());
+		assertEquals(1, si.getMediaContextSnapshot().getVersion());
+
+		contents.add("{ \"context1\": { \"Medias\": [\"PLAIN_TEXT_MAIL\", \"HTML_MAIL\"], \"HTML_MAIL\": { \"component\": \"MyComponent\" } } }");
+		assertTrue(si.reloadMediaContext());
+		assertEquals(2, si.getMediaContextSnapshot().getVersion());
+		assertEquals(Arrays.asList(ERDefaultMedia.PLAIN_TEXT_MAIL, ERDefaultMedia.HTML_MAIL), si.getMedias("context1"));
+
+		// A malformed description is rejected and the configuration in effect is kept.
+		contents.add("{ \"context2\": [\"PLAIN_TEXT_MAIL\"] }");
+		assertFalse(si.reloadMediaContext());
+		contents.set(2, "{ not json");
+		assertFalse(si.reloadMediaContext());
+		assertEquals(2, si.getMediaContextSnapshot().getVersion());
+		assertEquals(2, si.getMedias("context1").size());
+	}
+
+	@Test
+	public void testReadMediaContextFiles() 
+	{
+		final Map<String, String> contentByFramework = new HashMap<String, String>();
+		contentByFramework.put(null, "{ \"context1\": { \"Medias\": [\"PLAIN_TEXT_MAIL\"] } }");
+		contentByFramework.put("Framework1", "{ \"context2\": { \"Medias\": [\"HTML_MAIL\"] } }");
+		// the same file bundled twice
+		contentByFramework.put("Framework2", "{ \"context2\": { \"Medias\": [\"HTML_MAIL\"] } }");
+		// replaces context1 of the application
+		contentByFramework.put("Framework3", "{ \"context1\": { \"Medias\": [\"HTML_MAIL\"] } }");
+		ERCommunicationFrameworkPrincipal si = new ERCommunicationFrameworkPrincipal()
+		{
+			@Override
+			protected List<String> frameworkNames() { return Arrays.asList("Framework1", "Framework2", "Framework3", "Framework4"); }
+
+			@Override
+			protected String readDescriptionFromMediaContextFile(String fileName, String frameworkName) { return contentByFramework.get(frameworkName); }
+		};
+		List<ERCommunicationFrameworkPrincipal.MediaContextFile> files = si.readMediaContextFiles();
+		assertEquals(3, files.size());
+		assertEquals(null, files.get(0).getSource());
+		assertEquals("Framework1", files.get(1).getSource());
+		assertEquals("Framework3", files.get(2).getSource());
+
+		Map<String, Object> mediaContext = si.parseMediaContext(files);
+		assertEquals(2, mediaContext.size());
+		assertEquals(Arrays.asList("HTML_MAIL"), ((Map<?, ?>) mediaContext.get("context1")).get("Medias"));
+	}
 }